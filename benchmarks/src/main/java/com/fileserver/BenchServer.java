@@ -0,0 +1,132 @@
+package com.fileserver;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+/**
+ * A MiniFileServer started on an ephemeral port over a throwaway storage directory, plus a
+ * client for driving it over loopback.
+ */
+final class BenchServer {
+  private final Path storage;
+  private final String baseUrl;
+  private final HttpClient client = HttpClient.newBuilder()
+      .version(HttpClient.Version.HTTP_1_1)
+      .build();
+
+  private BenchServer(Path storage, int port) {
+    this.storage = storage;
+    this.baseUrl = "http://localhost:" + port;
+  }
+
+  /**
+   * Starts the server.
+   *
+   * @param backend value of {@code fileserver.backend}
+   * @param executor value of {@code fileserver.executor}
+   * @param engine value of {@code fileserver.engine}
+   * @return the running server
+   * @throws IOException if the server cannot start
+   */
+  static BenchServer start(String backend, String executor, String engine)
+      throws IOException {
+    Path storage = Files.createTempDirectory("fileserver-bench");
+    Properties props = new Properties();
+    props.setProperty("fileserver.port", "0");
+    props.setProperty("fileserver.storage", storage.toString());
+    props.setProperty("fileserver.backend", backend);
+    props.setProperty("fileserver.executor", executor);
+    props.setProperty("fileserver.engine", engine);
+    int port = MiniFileServer.start(ServerConfig.from(props)).getAddress().getPort();
+    return new BenchServer(storage, port);
+  }
+
+  /**
+   * Stops the server and deletes its storage.
+   *
+   * @throws IOException if the storage cannot be deleted
+   */
+  void stop() throws IOException {
+    MiniFileServer.stop();
+    try (Stream<Path> files = Files.walk(storage)) {
+      for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+        Files.deleteIfExists(file);
+      }
+    }
+  }
+
+  /**
+   * Uploads a file over loopback.
+   *
+   * @param name file name
+   * @param content file content
+   * @return response status
+   * @throws IOException if the request fails
+   * @throws InterruptedException if interrupted while waiting
+   */
+  int upload(String name, byte[] content) throws IOException, InterruptedException {
+    HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/upload"))
+        .header("X-Filename", name)
+        .POST(HttpRequest.BodyPublishers.ofByteArray(content))
+        .build();
+    return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+  }
+
+  /**
+   * Downloads a file over loopback, discarding the body as it arrives.
+   *
+   * @param name file name
+   * @return response status
+   * @throws IOException if the request fails
+   * @throws InterruptedException if interrupted while waiting
+   */
+  int download(String name) throws IOException, InterruptedException {
+    HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/download?name=" + name))
+        .GET()
+        .build();
+    return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+  }
+
+  /**
+   * Creates incompressible content of a size such as {@code 64k} or {@code 16m}.
+   *
+   * @param size size with an optional k/m suffix
+   * @return random bytes
+   */
+  static byte[] payload(String size) {
+    String value = size.toLowerCase();
+    long multiplier = 1;
+    if (value.endsWith("k")) {
+      multiplier = 1L << 10;
+    } else if (value.endsWith("m")) {
+      multiplier = 1L << 20;
+    }
+    if (multiplier > 1) {
+      value = value.substring(0, value.length() - 1);
+    }
+    byte[] content = new byte[Math.toIntExact(Long.parseLong(value) * multiplier)];
+    ThreadLocalRandom.current().nextBytes(content);
+    return content;
+  }
+
+  /**
+   * Fails the benchmark setup on an unexpected status.
+   *
+   * @param what the request that was made
+   * @param status its response status
+   */
+  static void expect(String what, int status) {
+    if (status != 200) {
+      throw new IllegalStateException(what + " returned " + status);
+    }
+  }
+}
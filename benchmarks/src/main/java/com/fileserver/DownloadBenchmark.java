@@ -0,0 +1,97 @@
+package com.fileserver;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Downloads of one stored file, through the handler alone and over loopback HTTP.
+ *
+ * <p>Concurrency is JMH's thread count, e.g. {@code -t 1} and {@code -t 16}; every thread
+ * downloads the same file, which is what the caches are meant for.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DownloadBenchmark {
+  private static final String NAME = "bench.bin";
+
+  /** File size. */
+  @Param({"1k", "64k", "1m", "16m"})
+  public String size;
+
+  /** Storage backend. */
+  @Param({"local", "memory", "segment"})
+  public String backend;
+
+  /** Worker executor; {@code virtual} needs a Java 21 runtime. */
+  @Param({"platform", "virtual"})
+  public String executor;
+
+  /** HTTP engine. */
+  @Param({"jdk", "nio"})
+  public String engine;
+
+  private BenchServer server;
+
+  /**
+   * Starts the server and stores the file to download.
+   *
+   * @throws Exception if the server cannot start or the upload fails
+   */
+  @Setup(Level.Trial)
+  public void start() throws Exception {
+    server = BenchServer.start(backend, executor, engine);
+    BenchServer.expect("Upload", server.upload(NAME, BenchServer.payload(size)));
+    BenchServer.expect("Download", server.download(NAME));
+  }
+
+  /**
+   * Stops the server.
+   *
+   * @throws IOException if its storage cannot be deleted
+   */
+  @TearDown(Level.Trial)
+  public void stop() throws IOException {
+    server.stop();
+  }
+
+  /**
+   * Runs the download handler on the calling thread against an in-memory exchange.
+   *
+   * @return bytes written, so the work cannot be eliminated
+   * @throws IOException if the handler fails
+   */
+  @Benchmark
+  public long inProcess() throws IOException {
+    InMemoryExchange exchange = InMemoryExchange.get("/download?name=" + NAME);
+    MiniFileServer.handleDownload(exchange);
+    return exchange.responseBytes();
+  }
+
+  /**
+   * Downloads the file over a loopback connection.
+   *
+   * @return response status
+   * @throws Exception if the request fails
+   */
+  @Benchmark
+  public int loopback() throws Exception {
+    return server.download(NAME);
+  }
+}
@@ -0,0 +1,165 @@
+package com.fileserver;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An exchange without a socket: the request body comes from memory and the response body is
+ * counted and dropped, so handlers can be measured without the HTTP stack around them.
+ */
+final class InMemoryExchange extends HttpExchange {
+  private static final InetSocketAddress LOOPBACK = new InetSocketAddress("localhost", 0);
+
+  private final String method;
+  private final URI uri;
+  private final Headers requestHeaders = new Headers();
+  private final Headers responseHeaders = new Headers();
+  private final Map<String, Object> attributes = new HashMap<>();
+  private InputStream requestBody;
+  private OutputStream responseBody = new OutputStream() {
+    @Override
+    public void write(int b) {
+      responseBytes++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      responseBytes += len;
+    }
+  };
+  private int responseCode = -1;
+  private long responseBytes;
+
+  private InMemoryExchange(String method, String uri, byte[] body) {
+    this.method = method;
+    this.uri = URI.create(uri);
+    this.requestBody = new ByteArrayInputStream(body);
+    if (body.length > 0) {
+      requestHeaders.set("Content-Length", Integer.toString(body.length));
+    }
+  }
+
+  /**
+   * Creates a GET request.
+   *
+   * @param uri request URI including the query
+   * @return the exchange
+   */
+  static InMemoryExchange get(String uri) {
+    return new InMemoryExchange("GET", uri, new byte[0]);
+  }
+
+  /**
+   * Creates a POST request.
+   *
+   * @param uri request URI
+   * @param body request body
+   * @return the exchange; add headers through {@link #getRequestHeaders()}
+   */
+  static InMemoryExchange post(String uri, byte[] body) {
+    return new InMemoryExchange("POST", uri, body);
+  }
+
+  /** Response body bytes the handler wrote. */
+  long responseBytes() {
+    return responseBytes;
+  }
+
+  @Override
+  public Headers getRequestHeaders() {
+    return requestHeaders;
+  }
+
+  @Override
+  public Headers getResponseHeaders() {
+    return responseHeaders;
+  }
+
+  @Override
+  public URI getRequestURI() {
+    return uri;
+  }
+
+  @Override
+  public String getRequestMethod() {
+    return method;
+  }
+
+  @Override
+  public HttpContext getHttpContext() {
+    return null;
+  }
+
+  @Override
+  public void close() {
+  }
+
+  @Override
+  public InputStream getRequestBody() {
+    return requestBody;
+  }
+
+  @Override
+  public OutputStream getResponseBody() {
+    return responseBody;
+  }
+
+  @Override
+  public void sendResponseHeaders(int code, long length) {
+    responseCode = code;
+  }
+
+  @Override
+  public InetSocketAddress getRemoteAddress() {
+    return LOOPBACK;
+  }
+
+  @Override
+  public int getResponseCode() {
+    return responseCode;
+  }
+
+  @Override
+  public InetSocketAddress getLocalAddress() {
+    return LOOPBACK;
+  }
+
+  @Override
+  public String getProtocol() {
+    return "HTTP/1.1";
+  }
+
+  @Override
+  public Object getAttribute(String name) {
+    return attributes.get(name);
+  }
+
+  @Override
+  public void setAttribute(String name, Object value) {
+    attributes.put(name, value);
+  }
+
+  @Override
+  public void setStreams(InputStream in, OutputStream out) {
+    if (in != null) {
+      requestBody = in;
+    }
+    if (out != null) {
+      responseBody = out;
+    }
+  }
+
+  @Override
+  public HttpPrincipal getPrincipal() {
+    return null;
+  }
+}
@@ -0,0 +1,121 @@
+package com.fileserver;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Uploads through the handler alone and over loopback HTTP, including staging, hashing and
+ * the atomic commit.
+ *
+ * <p>Each JMH thread overwrites its own file name, so concurrent runs ({@code -t 16}) measure
+ * parallel commits rather than contention on one name.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadBenchmark {
+
+  /** The server and the content uploaded in every invocation. */
+  @State(Scope.Benchmark)
+  public static class Server {
+    /** Upload size. */
+    @Param({"1k", "64k", "1m", "16m"})
+    public String size;
+
+    /** Storage backend. */
+    @Param({"local", "memory", "segment"})
+    public String backend;
+
+    /** Worker executor; {@code virtual} needs a Java 21 runtime. */
+    @Param({"platform", "virtual"})
+    public String executor;
+
+    /** HTTP engine. */
+    @Param({"jdk", "nio"})
+    public String engine;
+
+    BenchServer server;
+    byte[] content;
+
+    /**
+     * Starts the server.
+     *
+     * @throws IOException if it cannot start
+     */
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+      server = BenchServer.start(backend, executor, engine);
+      content = BenchServer.payload(size);
+    }
+
+    /**
+     * Stops the server.
+     *
+     * @throws IOException if its storage cannot be deleted
+     */
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+      server.stop();
+    }
+  }
+
+  /** The file name a thread uploads to. */
+  @State(Scope.Thread)
+  public static class Target {
+    private static int next;
+
+    String name;
+
+    /** Picks a name no other thread uses. */
+    @Setup(Level.Trial)
+    public void name() {
+      synchronized (Target.class) {
+        name = "upload-" + next++ + ".bin";
+      }
+    }
+  }
+
+  /**
+   * Runs the upload handler on the calling thread against an in-memory exchange.
+   *
+   * @param server server state
+   * @param target this thread's file name
+   * @return response status
+   * @throws IOException if the handler fails
+   */
+  @Benchmark
+  public int inProcess(Server server, Target target) throws IOException {
+    InMemoryExchange exchange = InMemoryExchange.post("/upload", server.content);
+    exchange.getRequestHeaders().set("X-Filename", target.name);
+    MiniFileServer.handleUpload(exchange);
+    return exchange.getResponseCode();
+  }
+
+  /**
+   * Uploads over a loopback connection.
+   *
+   * @param server server state
+   * @param target this thread's file name
+   * @return response status
+   * @throws Exception if the request fails
+   */
+  @Benchmark
+  public int loopback(Server server, Target target) throws Exception {
+    return server.server.upload(target.name, server.content);
+  }
+}
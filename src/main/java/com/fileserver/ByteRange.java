@@ -0,0 +1,197 @@
+package com.fileserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An inclusive byte range of a representation, as used by the HTTP Range header.
+ * Also knows how to frame several ranges as a multipart/byteranges body.
+ */
+final class ByteRange {
+  /** Ranges beyond this count are treated as abuse and the Range header is ignored. */
+  static final int MAX_RANGES = 32;
+
+  private final long start;
+  private final long end;
+
+  ByteRange(long start, long end) {
+    this.start = start;
+    this.end = end;
+  }
+
+  /** First byte offset, inclusive. */
+  long start() {
+    return start;
+  }
+
+  /** Last byte offset, inclusive. */
+  long end() {
+    return end;
+  }
+
+  /** Number of bytes covered. */
+  long length() {
+    return end - start + 1;
+  }
+
+  /**
+   * Formats the Content-Range header value for this range.
+   *
+   * @param total full representation length
+   * @return header value such as {@code bytes 0-99/1000}
+   */
+  String contentRange(long total) {
+    return "bytes " + start + "-" + end + "/" + total;
+  }
+
+  /**
+   * Parses a Range header against a representation of the given length.
+   * Overlapping or adjacent ranges are merged and the result is sorted.
+   *
+   * @param header Range header value, may be null
+   * @param total representation length
+   * @return null if the header is absent, malformed or should be ignored; an empty list if no
+   *     range is satisfiable (416); otherwise the ranges to send
+   */
+  static List<ByteRange> parse(String header, long total) {
+    if (header == null) {
+      return null;
+    }
+    String value = header.trim();
+    if (!value.regionMatches(true, 0, "bytes=", 0, 6)) {
+      return null;
+    }
+    String[] specs = value.substring(6).split(",");
+    if (specs.length > MAX_RANGES) {
+      return null;
+    }
+    List<ByteRange> ranges = new ArrayList<>();
+    for (String raw : specs) {
+      String spec = raw.trim();
+      int dash = spec.indexOf('-');
+      if (dash < 0) {
+        return null;
+      }
+      String first = spec.substring(0, dash).trim();
+      String last = spec.substring(dash + 1).trim();
+      try {
+        if (first.isEmpty()) {
+          // Suffix range: the final N bytes
+          long suffix = Long.parseLong(last);
+          if (suffix < 0) {
+            return null;
+          }
+          if (suffix > 0 && total > 0) {
+            ranges.add(new ByteRange(Math.max(0, total - suffix), total - 1));
+          }
+        } else {
+          long start = Long.parseLong(first);
+          long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+          if (start < 0 || end < start) {
+            return null;
+          }
+          if (start < total) {
+            ranges.add(new ByteRange(start, Math.min(end, total - 1)));
+          }
+        }
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+    return coalesce(ranges);
+  }
+
+  private static List<ByteRange> coalesce(List<ByteRange> ranges) {
+    if (ranges.size() < 2) {
+      return ranges;
+    }
+    ranges.sort(Comparator.comparingLong(ByteRange::start));
+    List<ByteRange> merged = new ArrayList<>();
+    ByteRange current = ranges.get(0);
+    for (int i = 1; i < ranges.size(); i++) {
+      ByteRange next = ranges.get(i);
+      if (next.start <= current.end + 1) {
+        current = new ByteRange(current.start, Math.max(current.end, next.end));
+      } else {
+        merged.add(current);
+        current = next;
+      }
+    }
+    merged.add(current);
+    return merged;
+  }
+
+  /**
+   * Computes the exact length of a multipart/byteranges body so it can be sent with a
+   * fixed Content-Length.
+   *
+   * @param ranges ranges to send
+   * @param boundary multipart boundary
+   * @param contentType content type of each part
+   * @param total full representation length
+   * @return body length in bytes
+   */
+  static long multipartLength(List<ByteRange> ranges, String boundary, String contentType,
+      long total) {
+    long length = 0;
+    for (ByteRange range : ranges) {
+      length += partHeader(range, boundary, contentType, total).length + range.length();
+    }
+    return length + closing(boundary).length;
+  }
+
+  /**
+   * Writes a multipart/byteranges body, reading each part positionally from the content.
+   *
+   * @param content bytes to read from
+   * @param ranges ranges to send
+   * @param boundary multipart boundary
+   * @param contentType content type of each part
+   * @param total full representation length
+   * @param os response stream
+   * @throws IOException if reading or writing fails
+   */
+  static void writeMultipart(Content content, List<ByteRange> ranges, String boundary,
+      String contentType, long total, OutputStream os) throws IOException {
+    for (ByteRange range : ranges) {
+      os.write(partHeader(range, boundary, contentType, total));
+      content.writeTo(range.start, range.length(), os);
+    }
+    os.write(closing(boundary));
+  }
+
+  private static byte[] partHeader(ByteRange range, String boundary, String contentType,
+      long total) {
+    return ("\r\n--" + boundary + "\r\n"
+        + "Content-Type: " + contentType + "\r\n"
+        + "Content-Range: " + range.contentRange(total) + "\r\n\r\n")
+        .getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private static byte[] closing(String boundary) {
+    return ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof ByteRange)) {
+      return false;
+    }
+    ByteRange other = (ByteRange) o;
+    return start == other.start && end == other.end;
+  }
+
+  @Override
+  public int hashCode() {
+    return Long.hashCode(start) * 31 + Long.hashCode(end);
+  }
+
+  @Override
+  public String toString() {
+    return start + "-" + end;
+  }
+}
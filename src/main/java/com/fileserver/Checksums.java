@@ -0,0 +1,173 @@
+package com.fileserver;
+
+import com.sun.net.httpserver.Headers;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.Locale;
+
+/**
+ * Client-supplied digests of an upload body, checked while the body streams in.
+ *
+ * <p>Accepted headers are {@code Content-MD5} (base64), {@code Digest} as in RFC 3230 with
+ * {@code sha-256} and {@code md5} values (base64; other algorithms are ignored) and
+ * {@code X-Checksum-SHA256} (base64 or hex). The SHA-256 of every upload is computed by
+ * {@link FileStore} anyway; an MD5 is only computed when the client sent one, by wrapping the
+ * request body, so verification never needs a second pass over the stored file.
+ */
+final class Checksums {
+  private static final HexFormat HEX = HexFormat.of();
+
+  private final String sha256;
+  private final String md5;
+  private MessageDigest md5Digest;
+
+  private Checksums(String sha256, String md5) {
+    this.sha256 = sha256;
+    this.md5 = md5;
+  }
+
+  /**
+   * Reads the expected digests from request headers.
+   *
+   * @param headers request headers
+   * @return the expected digests, possibly none
+   * @throws IllegalArgumentException if a digest is malformed or two headers disagree
+   */
+  static Checksums fromHeaders(Headers headers) {
+    String sha256 = null;
+    String md5 = null;
+    String contentMd5 = headers.getFirst("Content-MD5");
+    if (contentMd5 != null) {
+      md5 = merge(md5, decode("Content-MD5", contentMd5, 16), "Content-MD5");
+    }
+    String digest = headers.getFirst("Digest");
+    if (digest != null) {
+      for (String element : digest.split(",")) {
+        int eq = element.indexOf('=');
+        if (eq < 0) {
+          throw new IllegalArgumentException("Malformed Digest header");
+        }
+        String algorithm = element.substring(0, eq).trim().toLowerCase(Locale.ROOT);
+        String value = element.substring(eq + 1).trim();
+        if (algorithm.equals("sha-256")) {
+          sha256 = merge(sha256, decode("Digest sha-256", value, 32), "Digest");
+        } else if (algorithm.equals("md5")) {
+          md5 = merge(md5, decode("Digest md5", value, 16), "Digest");
+        }
+      }
+    }
+    String checksum = headers.getFirst("X-Checksum-SHA256");
+    if (checksum != null) {
+      String value = checksum.trim();
+      sha256 = merge(sha256, value.length() == 64 ? hex(value) : decode("X-Checksum-SHA256",
+          value, 32), "X-Checksum-SHA256");
+    }
+    return new Checksums(sha256, md5);
+  }
+
+  /** Whether the client sent any digest. */
+  boolean present() {
+    return sha256 != null || md5 != null;
+  }
+
+  /** Expected lowercase hex SHA-256, or null if none was sent. */
+  String sha256() {
+    return sha256;
+  }
+
+  /**
+   * Wraps the request body so that digests not computed by the store are computed too.
+   *
+   * @param in request body
+   * @return a stream to read the body through
+   */
+  InputStream wrap(InputStream in) {
+    if (md5 == null) {
+      return in;
+    }
+    try {
+      md5Digest = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("MD5 is required by the Java platform", e);
+    }
+    return new DigestInputStream(in, md5Digest);
+  }
+
+  /**
+   * Compares the expected digests with the ones computed while streaming.
+   *
+   * @param body digests of the received bytes; the body must have been read through
+   *     {@link #wrap}
+   * @return the received digests, with the MD5 added if one was computed
+   * @throws ChecksumMismatchException if a digest differs
+   */
+  ContentDigests.Entry verify(ContentDigests.Entry body) throws ChecksumMismatchException {
+    if (sha256 != null && !sha256.equals(body.sha256())) {
+      throw new ChecksumMismatchException("SHA-256", sha256, body.sha256());
+    }
+    if (md5Digest == null) {
+      return body;
+    }
+    String actual = HEX.formatHex(md5Digest.digest());
+    if (!md5.equals(actual)) {
+      throw new ChecksumMismatchException("MD5", md5, actual);
+    }
+    return body.withMd5(actual);
+  }
+
+  /**
+   * Formats stored digests as an RFC 3230 {@code Digest} header value.
+   *
+   * @param sha256 lowercase hex SHA-256
+   * @param md5 lowercase hex MD5, or null
+   * @return e.g. {@code sha-256=ungWv48Bz+pBQUDeXa4iI7ADYaOWF3qctBD/YfIAFa0=}
+   */
+  static String header(String sha256, String md5) {
+    String value = "sha-256=" + Base64.getEncoder().encodeToString(HEX.parseHex(sha256));
+    if (md5 != null) {
+      value += ",md5=" + Base64.getEncoder().encodeToString(HEX.parseHex(md5));
+    }
+    return value;
+  }
+
+  private static String decode(String header, String base64, int length) {
+    byte[] bytes;
+    try {
+      bytes = Base64.getDecoder().decode(base64.trim());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Malformed " + header + " value", e);
+    }
+    if (bytes.length != length) {
+      throw new IllegalArgumentException("Malformed " + header + " value");
+    }
+    return HEX.formatHex(bytes);
+  }
+
+  private static String hex(String value) {
+    try {
+      return HEX.formatHex(HEX.parseHex(value));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Malformed X-Checksum-SHA256 value", e);
+    }
+  }
+
+  private static String merge(String previous, String value, String header) {
+    if (previous != null && !previous.equals(value)) {
+      throw new IllegalArgumentException(header + " disagrees with another digest header");
+    }
+    return value;
+  }
+
+  /** A received body whose digest differs from the one the client sent. */
+  static final class ChecksumMismatchException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    ChecksumMismatchException(String algorithm, String expected, String actual) {
+      super(algorithm + " mismatch: expected " + expected + ", received " + actual);
+    }
+  }
+}
@@ -0,0 +1,538 @@
+package com.fileserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Negotiated gzip compression of downloads.
+ *
+ * <p>Only text-like content types above a minimum size are compressed; images, archives and
+ * other already-compressed formats are always sent as stored. When an upload is committed,
+ * a background thread precomputes a gzip variant and keeps it under
+ * {@code variants/ab/<sha256>.gz}, named by the digest of the uncompressed content, so the
+ * download hot path just streams the variant and identical uploads share it. The upload's
+ * response never waits for this. Content without a variant, such as files placed in storage
+ * by hand, files above the precompression limit, or uploads whose variant is still queued,
+ * is compressed on the fly at the fastest level. Overwriting a file leaves the old content's
+ * variant behind, so variants no stored file refers to are swept at startup and periodically.
+ *
+ * <p>Files stored gzip-compressed by {@link FileStore} need no variant: their stored bytes are
+ * sent as they are to clients accepting gzip, and {@link #decode decoded} for everyone else.
+ *
+ * <p>A compressed response is a different representation of the file, so it carries the
+ * file's ETag marked weak and a {@code Vary: Accept-Encoding} header, as does a 304 sent in
+ * its place. Range requests are always answered from the identity representation.
+ */
+final class Compression {
+  static final String GZIP = "gzip";
+  /** A variant is only kept when it is at most this fraction of the original. */
+  private static final double MAX_RATIO = 0.9;
+  /** Deflate level of variants: nearly the ratio of the best level for far less CPU. */
+  static final int PRECOMPRESS_LEVEL = 6;
+  /** Variants waiting for the background thread; uploads beyond this go without one. */
+  private static final int PRECOMPRESS_QUEUE = 256;
+
+  private final boolean enabled;
+  private final long minBytes;
+  private final boolean precompress;
+  private final long precompressMaxBytes;
+  private final Path dir;
+  private final ThreadPoolExecutor background;
+  private final ScheduledExecutorService sweeper;
+
+  private final LongAdder precompressed = new LongAdder();
+  private final LongAdder onTheFly = new LongAdder();
+  private final LongAdder passedThrough = new LongAdder();
+
+  /**
+   * Creates the policy and schedules removal of variants no stored file refers to any more.
+   *
+   * @param internalDir server state directory; variants live in its {@code variants} child
+   * @param enabled whether downloads may be compressed at all
+   * @param minBytes smallest file worth compressing
+   * @param precompress whether to store a compressed variant of each upload
+   * @param precompressMaxBytes largest file a variant is precomputed for
+   * @param digests recorded digests of stored files, used to find orphaned variants
+   * @param sweepIntervalSeconds how often to remove orphaned variants; 0 only does so once,
+   *     at startup
+   * @throws IOException if the variant directory cannot be prepared
+   */
+  Compression(Path internalDir, boolean enabled, long minBytes, boolean precompress,
+      long precompressMaxBytes, ContentDigests digests, long sweepIntervalSeconds)
+      throws IOException {
+    this.enabled = enabled;
+    this.minBytes = minBytes;
+    this.precompress = enabled && precompress;
+    this.precompressMaxBytes = precompressMaxBytes;
+    this.dir = internalDir.resolve("variants");
+    Files.createDirectories(dir);
+    this.background = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(PRECOMPRESS_QUEUE), runnable -> {
+          Thread thread = new Thread(runnable, "fileserver-precompress");
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        }, new ThreadPoolExecutor.DiscardPolicy());
+    // Orphans only waste space, and finding them reads every digest record, so startup does
+    // not wait for it
+    this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "fileserver-variant-sweeper");
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    });
+    Runnable sweep = () -> {
+      try {
+        long readAt = System.currentTimeMillis();
+        collectGarbage(digests.recorded(), readAt);
+      } catch (IOException | UncheckedIOException e) {
+        System.err.println("Cannot remove orphaned variants: " + e.getMessage());
+      }
+    };
+    if (sweepIntervalSeconds > 0) {
+      sweeper.scheduleWithFixedDelay(sweep, 0, sweepIntervalSeconds, TimeUnit.SECONDS);
+    } else {
+      sweeper.execute(sweep);
+    }
+  }
+
+  /**
+   * Tells whether a file is worth compressing.
+   *
+   * @param metadata metadata of the stored file
+   * @return true if compression is enabled and the size and content type qualify
+   */
+  boolean compressible(FileMetadata metadata) {
+    return enabled && metadata.size() >= minBytes
+        && compressibleType(metadata.contentType());
+  }
+
+  /**
+   * Tells whether responses for a file depend on the request's Accept-Encoding, so every one
+   * of them, 304 and 206 included, must carry {@code Vary: Accept-Encoding}.
+   *
+   * @param metadata metadata of the stored file
+   * @return true if the file may be sent gzip-encoded to some clients
+   */
+  boolean varies(FileMetadata metadata) {
+    return GZIP.equals(metadata.encoding()) || compressible(metadata);
+  }
+
+  /**
+   * Tells whether a media type is text-like enough to shrink under gzip.
+   *
+   * @param contentType media type, optionally with parameters
+   * @return true for text, JSON, XML, JavaScript and similar types
+   */
+  static boolean compressibleType(String contentType) {
+    String type = contentType.toLowerCase(Locale.ROOT);
+    int semicolon = type.indexOf(';');
+    if (semicolon >= 0) {
+      type = type.substring(0, semicolon).trim();
+    }
+    return type.startsWith("text/") || type.endsWith("+json") || type.endsWith("+xml")
+        || type.equals("application/json") || type.equals("application/xml")
+        || type.equals("application/javascript") || type.equals("application/x-ndjson")
+        || type.equals("application/csv") || type.equals("application/x-sh");
+  }
+
+  /**
+   * Picks a content coding from an Accept-Encoding header.
+   *
+   * @param acceptEncoding request header value, or null
+   * @return {@link #GZIP} if the client accepts it, otherwise null for identity
+   */
+  static String negotiate(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return null;
+    }
+    Double gzip = null;
+    Double any = null;
+    for (String element : acceptEncoding.split(",")) {
+      String[] parts = element.split(";");
+      String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+      double quality = 1;
+      for (int i = 1; i < parts.length; i++) {
+        String param = parts[i].trim();
+        if (param.startsWith("q=") || param.startsWith("Q=")) {
+          try {
+            quality = Double.parseDouble(param.substring(2).trim());
+          } catch (NumberFormatException e) {
+            quality = 0;
+          }
+        }
+      }
+      if (coding.equals(GZIP) || coding.equals("x-gzip")) {
+        gzip = quality;
+      } else if (coding.equals("*")) {
+        any = quality;
+      }
+    }
+    double accepted = gzip != null ? gzip : any != null ? any : 0;
+    return accepted > 0 ? GZIP : null;
+  }
+
+  /**
+   * Queues a gzip variant of a newly committed upload for the background thread. The file
+   * is read again when its turn comes and skipped if a newer upload has replaced it. When
+   * the queue is full the upload simply goes without a variant.
+   *
+   * @param backend backend holding the file
+   * @param filename stored file name
+   * @param metadata metadata of the committed content
+   */
+  void precompressLater(StorageBackend backend, String filename, FileMetadata metadata) {
+    if (!wanted(metadata)) {
+      return;
+    }
+    background.execute(() -> {
+      try (StorageBackend.OpenFile file = backend.openRead(filename)) {
+        // The variant is named by the digest in the metadata, so the bytes must still be
+        // that upload's
+        if (file != null && metadata.matches(file.attributes())) {
+          precompress(file, metadata);
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    });
+  }
+
+  /** Whether content should get a precomputed variant. */
+  private boolean wanted(FileMetadata metadata) {
+    return precompress && sha256(metadata) != null && metadata.encoding() == null
+        && metadata.size() <= precompressMaxBytes && compressible(metadata);
+  }
+
+  /**
+   * Stores a gzip variant of committed content, unless it already exists or would not save
+   * enough. Content that does not compress well gets an empty marker instead, so downloads
+   * know not to try.
+   *
+   * @param content the stored content
+   * @param metadata metadata of the stored content; only files with a digest get a variant
+   * @throws IOException if the variant cannot be written
+   */
+  void precompress(Content content, FileMetadata metadata) throws IOException {
+    if (!wanted(metadata)) {
+      return;
+    }
+    Path variant = variant(sha256(metadata));
+    if (Files.exists(variant)) {
+      return;
+    }
+    Files.createDirectories(variant.getParent());
+    Path temp = Files.createTempFile(dir, "variant", ".tmp");
+    try {
+      try (OutputStream out = gzip(Files.newOutputStream(temp), PRECOMPRESS_LEVEL)) {
+        content.writeTo(0, metadata.size(), out);
+      }
+      if (Files.size(temp) > metadata.size() * MAX_RATIO) {
+        Files.write(temp, new byte[0]);
+      }
+      LocalStorageBackend.move(temp, variant);
+      precompressed.increment();
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * Returns the ETag a full response to this request would carry, for a 304 to repeat: the
+   * weak form whenever the body would be sent gzip-encoded.
+   *
+   * @param acceptEncoding request's Accept-Encoding header, or null
+   * @param metadata metadata of the file
+   * @return the file's ETag, marked weak if the response would be encoded
+   */
+  String etag(String acceptEncoding, FileMetadata metadata) {
+    if (!varies(metadata) || negotiate(acceptEncoding) == null) {
+      return metadata.etag();
+    }
+    String sha256 = sha256(metadata);
+    if (!GZIP.equals(metadata.encoding()) && sha256 != null) {
+      try {
+        if (Files.size(variant(sha256)) == 0) {
+          // Marked as not worth compressing, so the body goes out as identity
+          return metadata.etag();
+        }
+      } catch (IOException e) {
+        // Not precomputed; compressed on the fly
+      }
+    }
+    return weak(metadata.etag());
+  }
+
+  private static String weak(String etag) {
+    return "W/" + etag.replace("W/", "");
+  }
+
+  /**
+   * Sends a full response gzip-encoded if the client accepts it and the file qualifies.
+   * Files stored gzip-compressed are passed through as stored. The caller adds
+   * {@code Vary}, see {@link #varies}.
+   *
+   * @param exchange exchange whose Content-Type, ETag and Last-Modified are already set
+   * @param stored file bytes as held by the backend
+   * @param metadata metadata of the file
+   * @return true if the response was sent, false if the caller should send identity bytes
+   * @throws IOException if the response cannot be sent
+   */
+  boolean sendEncoded(HttpExchange exchange, Content stored, FileMetadata metadata)
+      throws IOException {
+    boolean storedGzip = GZIP.equals(metadata.encoding());
+    if (!varies(metadata)) {
+      return false;
+    }
+    if (negotiate(exchange.getRequestHeaders().getFirst("Accept-Encoding")) == null) {
+      return false;
+    }
+    if (storedGzip) {
+      passedThrough.increment();
+      sendGzipHeaders(exchange, metadata, metadata.storedSize());
+      try (OutputStream os = exchange.getResponseBody()) {
+        stored.writeTo(0, metadata.storedSize(), os);
+      }
+      return true;
+    }
+    String sha256 = sha256(metadata);
+    FileChannel variant = null;
+    if (sha256 != null) {
+      try {
+        variant = FileChannel.open(variant(sha256));
+      } catch (NoSuchFileException e) {
+        // Not precomputed; compress on the fly
+      }
+    }
+    try {
+      long variantSize = variant == null ? -1 : variant.size();
+      if (variantSize == 0) {
+        return false;
+      }
+      if (variant != null) {
+        sendGzipHeaders(exchange, metadata, variantSize);
+        try (OutputStream os = exchange.getResponseBody()) {
+          FileTransfer.transfer(variant, 0, variantSize, os);
+        }
+      } else {
+        onTheFly.increment();
+        sendGzipHeaders(exchange, metadata, 0);
+        try (OutputStream os = gzip(exchange.getResponseBody(), Deflater.BEST_SPEED)) {
+          stored.writeTo(0, metadata.size(), os);
+        }
+      }
+      return true;
+    } finally {
+      if (variant != null) {
+        variant.close();
+      }
+    }
+  }
+
+  private static void sendGzipHeaders(HttpExchange exchange, FileMetadata metadata, long length)
+      throws IOException {
+    exchange.getResponseHeaders().set("Content-Encoding", GZIP);
+    exchange.getResponseHeaders().set("ETag", weak(metadata.etag()));
+    // The stored digests describe the uploaded bytes, not this encoding of them
+    exchange.getResponseHeaders().remove("Digest");
+    exchange.sendResponseHeaders(200, length);
+  }
+
+  /**
+   * Returns the uploaded bytes of a file, decoding it if it is stored compressed.
+   *
+   * <p>The decoded view inflates from the start of the stored bytes and keeps its place, so
+   * reads and writes at increasing positions cost one pass; going backwards starts over. It
+   * is meant for one request at a time.
+   *
+   * @param stored file bytes as held by the backend
+   * @param metadata metadata of the file
+   * @return {@code stored} itself, or a decoding view of it
+   */
+  static Content decode(Content stored, FileMetadata metadata) {
+    if (metadata.encoding() == null) {
+      return stored;
+    }
+    long size = metadata.size();
+    return new Content() {
+      private final byte[] buffer = new byte[64 * 1024];
+      private InputStream in;
+      private long position;
+
+      @Override
+      public long size() {
+        return size;
+      }
+
+      @Override
+      public void writeTo(long start, long count, OutputStream os) throws IOException {
+        InputStream source = seek(start);
+        long remaining = count;
+        while (remaining > 0) {
+          int n = source.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+          if (n < 0) {
+            throw new EOFException("Compressed file ends after " + position + " bytes");
+          }
+          os.write(buffer, 0, n);
+          position += n;
+          remaining -= n;
+        }
+      }
+
+      @Override
+      public int read(long start, ByteBuffer dst) throws IOException {
+        if (start >= size) {
+          return -1;
+        }
+        int n = seek(start).read(buffer, 0, Math.min(dst.remaining(), buffer.length));
+        if (n > 0) {
+          dst.put(buffer, 0, n);
+          position += n;
+        }
+        return n;
+      }
+
+      private InputStream seek(long start) throws IOException {
+        if (in == null || start < position) {
+          in = new GZIPInputStream(stream(stored), 64 * 1024);
+          position = 0;
+        }
+        in.skipNBytes(start - position);
+        position = start;
+        return in;
+      }
+    };
+  }
+
+  /** Reads content sequentially through its positional interface. */
+  private static InputStream stream(Content content) {
+    return new InputStream() {
+      private long position;
+
+      @Override
+      public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+          return 0;
+        }
+        int n = content.read(position, ByteBuffer.wrap(b, off, len));
+        if (n > 0) {
+          position += n;
+        }
+        return n;
+      }
+    };
+  }
+
+  /** Variants written at upload time. */
+  long precompressed() {
+    return precompressed.sum();
+  }
+
+  /** Responses sent as stored because the file is kept gzip-compressed. */
+  long passedThrough() {
+    return passedThrough.sum();
+  }
+
+  /** Responses compressed while sending because no variant existed. */
+  long onTheFly() {
+    return onTheFly.sum();
+  }
+
+  /** Stops the background threads; variants still queued are not written. */
+  void close() {
+    background.shutdownNow();
+    sweeper.shutdownNow();
+  }
+
+  /** Location of the gzip variant of content with this digest. */
+  Path variant(String sha256) {
+    return dir.resolve(sha256.substring(0, 2)).resolve(sha256 + ".gz");
+  }
+
+  /**
+   * Deletes variants whose digest no stored file has any more. Staging files of variants
+   * still being written are left alone, as are files that vanish during the sweep.
+   *
+   * @param live digests of stored files
+   * @param readAt when {@code live} was read, in epoch milliseconds; variants written since
+   *     may belong to records it missed and are kept
+   * @return number of variants removed
+   * @throws IOException if the variant directory cannot be walked
+   */
+  int collectGarbage(Set<String> live, long readAt) throws IOException {
+    List<Path> variants;
+    try (Stream<Path> walk = Files.walk(dir)) {
+      variants = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+    }
+    int removed = 0;
+    for (Path variant : variants) {
+      String name = variant.getFileName().toString();
+      if (name.startsWith("variant") && name.endsWith(".tmp")) {
+        continue;
+      }
+      try {
+        if (Files.getLastModifiedTime(variant).toMillis() >= readAt) {
+          continue;
+        }
+      } catch (NoSuchFileException e) {
+        continue;
+      }
+      if (!name.endsWith(".gz") || !live.contains(name.substring(0, name.length() - 3))) {
+        if (Files.deleteIfExists(variant)) {
+          removed++;
+        }
+      }
+    }
+    return removed;
+  }
+
+  /** Digest of the content, known when the ETag is the strong content hash. */
+  private static String sha256(FileMetadata metadata) {
+    return metadata.strongEtag() ? metadata.etag().replace("\"", "") : null;
+  }
+
+  /**
+   * Wraps a stream in a gzip encoder.
+   *
+   * @param out destination of the compressed bytes; closed with the returned stream
+   * @param level deflate level, see {@link Deflater}
+   * @return the encoding stream
+   * @throws IOException if the gzip header cannot be written
+   */
+  static OutputStream gzip(OutputStream out, int level) throws IOException {
+    return new GZIPOutputStream(out, 64 * 1024) {
+      {
+        def.setLevel(level);
+      }
+    };
+  }
+}
@@ -0,0 +1,154 @@
+package com.fileserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A response body that can be read positionally, so full, single-range and multi-range
+ * responses are produced the same way whether the bytes live in a file or in memory.
+ */
+interface Content {
+
+  /**
+   * Returns the total length in bytes.
+   *
+   * @return content length
+   * @throws IOException if the length cannot be determined
+   */
+  long size() throws IOException;
+
+  /**
+   * Writes {@code count} bytes starting at {@code position} to the stream.
+   *
+   * @param position first byte to write
+   * @param count number of bytes to write
+   * @param os destination stream
+   * @throws IOException if reading or writing fails
+   */
+  void writeTo(long position, long count, OutputStream os) throws IOException;
+
+  /**
+   * Reads bytes starting at {@code position} into the buffer, like
+   * {@link FileChannel#read(ByteBuffer, long)}.
+   *
+   * @param position first byte to read
+   * @param dst buffer to fill from its position
+   * @return number of bytes read, or -1 at the end of the content
+   * @throws IOException if reading fails
+   */
+  int read(long position, ByteBuffer dst) throws IOException;
+
+  /**
+   * Maps the whole content into memory, for content backed by a file of its own.
+   *
+   * @return a read-only mapping from position 0 to the content length, or null if this
+   *     content cannot be mapped
+   * @throws IOException if mapping fails
+   */
+  default ByteBuffer map() throws IOException {
+    return null;
+  }
+
+  /**
+   * Content backed by an open file; bytes are sent with {@link FileTransfer}.
+   *
+   * @param channel open file, closed by the caller
+   * @return the content
+   */
+  static Content of(FileChannel channel) {
+    return new Content() {
+      @Override
+      public long size() throws IOException {
+        return channel.size();
+      }
+
+      @Override
+      public void writeTo(long position, long count, OutputStream os) throws IOException {
+        FileTransfer.transfer(channel, position, count, os);
+      }
+
+      @Override
+      public int read(long position, ByteBuffer dst) throws IOException {
+        return channel.read(dst, position);
+      }
+
+      @Override
+      public ByteBuffer map() throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      }
+    };
+  }
+
+  /**
+   * Content stored as a slice of a larger file, e.g. one record of a segment.
+   *
+   * @param channel open file, closed by the caller
+   * @param offset position of the first content byte in the file
+   * @param size content length
+   * @return the content
+   */
+  static Content of(FileChannel channel, long offset, long size) {
+    return new Content() {
+      @Override
+      public long size() {
+        return size;
+      }
+
+      @Override
+      public void writeTo(long position, long count, OutputStream os) throws IOException {
+        FileTransfer.transfer(channel, offset + position, count, os);
+      }
+
+      @Override
+      public int read(long position, ByteBuffer dst) throws IOException {
+        if (position >= size) {
+          return -1;
+        }
+        int limit = dst.limit();
+        dst.limit((int) Math.min(limit, dst.position() + size - position));
+        try {
+          return channel.read(dst, offset + position);
+        } finally {
+          dst.limit(limit);
+        }
+      }
+    };
+  }
+
+  /**
+   * Content backed by a buffer; the buffer itself is never modified.
+   *
+   * @param buffer bytes from position 0 to limit
+   * @return the content
+   */
+  static Content of(ByteBuffer buffer) {
+    return new Content() {
+      @Override
+      public long size() {
+        return buffer.limit();
+      }
+
+      @Override
+      public void writeTo(long position, long count, OutputStream os) throws IOException {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position((int) position).limit((int) (position + count));
+        FileTransfer.transfer(slice, os);
+      }
+
+      @Override
+      public int read(long position, ByteBuffer dst) {
+        if (position >= buffer.limit()) {
+          return -1;
+        }
+        ByteBuffer slice = buffer.duplicate();
+        slice.position((int) position);
+        slice.limit((int) Math.min(buffer.limit(), position + dst.remaining()));
+        int n = slice.remaining();
+        dst.put(slice);
+        return n;
+      }
+    };
+  }
+}
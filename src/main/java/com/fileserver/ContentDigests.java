@@ -0,0 +1,224 @@
+package com.fileserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Persisted SHA-256 digests of stored files, used as strong ETags.
+ *
+ * <p>Each digest is recorded together with the size, modification time and file key
+ * (inode) of the file it was computed from. A file changed by anything other than an upload
+ * no longer matches, and its digest is ignored instead of being served stale. For files
+ * stored compressed the record also holds the content coding and the uploaded length; the
+ * digest is always that of the uploaded bytes.
+ */
+final class ContentDigests {
+  static final String ALGORITHM = "SHA-256";
+
+  private final Path dir;
+  private final StorageLayout layout;
+
+  /**
+   * Creates the store.
+   *
+   * @param internalDir server state directory; digests live in its {@code digests} child
+   * @param layout layout of the records, the same as that of the stored files
+   * @throws IOException if the directory cannot be created
+   */
+  ContentDigests(Path internalDir, StorageLayout layout) throws IOException {
+    this.dir = internalDir.resolve("digests");
+    this.layout = layout;
+    Files.createDirectories(dir);
+  }
+
+  /**
+   * Creates a new SHA-256 message digest.
+   *
+   * @return the digest
+   */
+  static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(ALGORITHM + " is required by the Java platform", e);
+    }
+  }
+
+  /**
+   * Hashes a whole file; used where the bytes were not seen while streaming.
+   *
+   * @param file file to hash
+   * @return lowercase hex digest
+   * @throws IOException if the file cannot be read
+   */
+  static String compute(Path file) throws IOException {
+    MessageDigest digest = newDigest();
+    byte[] buffer = new byte[64 * 1024];
+    try (InputStream in = Files.newInputStream(file)) {
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, n);
+      }
+    }
+    return HexFormat.of().formatHex(digest.digest());
+  }
+
+  /**
+   * Records the digests of a stored file, which may be held in a content coding.
+   *
+   * @param name stored file name
+   * @param entry digests, length and coding of the uploaded bytes
+   * @param attrs attributes of the stored file
+   * @throws IOException if the record cannot be written
+   */
+  void save(String name, Entry entry, BasicFileAttributes attrs) throws IOException {
+    Properties record = new Properties();
+    record.setProperty("sha256", entry.sha256());
+    if (entry.md5() != null) {
+      record.setProperty("md5", entry.md5());
+    }
+    if (entry.encoding() != null) {
+      record.setProperty("encoding", entry.encoding());
+      record.setProperty("identity-size", Long.toString(entry.size()));
+    }
+    record.setProperty("size", Long.toString(attrs.size()));
+    record.setProperty("mtime", Long.toString(attrs.lastModifiedTime().toMillis()));
+    record.setProperty("key", String.valueOf(attrs.fileKey()));
+
+    Path target = layout.resolve(dir, name);
+    layout.createParents(dir, target);
+    Path temp = Files.createTempFile(dir, "digest", ".tmp");
+    try {
+      try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+        record.store(writer, null);
+      }
+      try {
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * Returns the recorded digest if it still describes the file.
+   *
+   * @param name stored file name
+   * @param attrs current attributes of the stored file
+   * @return the record, or null if none is recorded or the file has changed
+   * @throws IOException if the record cannot be read
+   */
+  Entry load(String name, BasicFileAttributes attrs) throws IOException {
+    Properties record = new Properties();
+    try (Reader reader = Files.newBufferedReader(layout.locate(dir, name),
+        StandardCharsets.UTF_8)) {
+      record.load(reader);
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+    boolean current = Long.toString(attrs.size()).equals(record.getProperty("size"))
+        && Long.toString(attrs.lastModifiedTime().toMillis()).equals(record.getProperty("mtime"))
+        && Objects.equals(String.valueOf(attrs.fileKey()), record.getProperty("key"));
+    if (!current) {
+      return null;
+    }
+    String encoding = record.getProperty("encoding");
+    long size = encoding == null ? attrs.size()
+        : Long.parseLong(record.getProperty("identity-size"));
+    return new Entry(record.getProperty("sha256"), record.getProperty("md5"), encoding, size);
+  }
+
+  /**
+   * Collects every recorded digest, to find derived data no stored file needs any more.
+   *
+   * @return lowercase hex digests, including ones whose file has since changed
+   * @throws IOException if the records cannot be listed
+   */
+  Set<String> recorded() throws IOException {
+    List<Path> records;
+    try (Stream<Path> walk = Files.walk(dir)) {
+      records = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+    }
+    Set<String> digests = new HashSet<>();
+    for (Path path : records) {
+      Properties record = new Properties();
+      try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+        record.load(reader);
+      } catch (NoSuchFileException e) {
+        continue;
+      }
+      String sha256 = record.getProperty("sha256");
+      if (sha256 != null) {
+        digests.add(sha256);
+      }
+    }
+    return digests;
+  }
+
+  /** Digests and length of uploaded bytes, and the coding they are stored in. */
+  static final class Entry {
+    private final String sha256;
+    private final String md5;
+    private final String encoding;
+    private final long size;
+
+    Entry(String sha256, String md5, String encoding, long size) {
+      this.sha256 = sha256;
+      this.md5 = md5;
+      this.encoding = encoding;
+      this.size = size;
+    }
+
+    /** Lowercase hex SHA-256 of the uploaded bytes. */
+    String sha256() {
+      return sha256;
+    }
+
+    /** Lowercase hex MD5 of the uploaded bytes, or null if it was not computed. */
+    String md5() {
+      return md5;
+    }
+
+    /** Content coding of the stored bytes, or null if stored as uploaded. */
+    String encoding() {
+      return encoding;
+    }
+
+    /** Length of the uploaded bytes. */
+    long size() {
+      return size;
+    }
+
+    /**
+     * Returns a copy carrying an MD5 computed alongside the SHA-256.
+     *
+     * @param md5 lowercase hex MD5, or null
+     * @return the new entry
+     */
+    Entry withMd5(String md5) {
+      return new Entry(sha256, md5, encoding, size);
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package com.fileserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Hands an exchange off to a dedicated executor.
+ * When the executor is saturated the request is answered with 503 and a Retry-After
+ * header instead of waiting for a thread.
+ */
+final class DispatchHandler implements HttpHandler {
+  private final HttpHandler delegate;
+  private final Executor executor;
+  private final int retryAfterSeconds;
+
+  DispatchHandler(HttpHandler delegate, Executor executor, int retryAfterSeconds) {
+    this.delegate = delegate;
+    this.executor = executor;
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+
+  @Override
+  public void handle(HttpExchange exchange) throws IOException {
+    try {
+      executor.execute(() -> run(exchange));
+    } catch (RejectedExecutionException e) {
+      reject(exchange);
+    }
+  }
+
+  private void run(HttpExchange exchange) {
+    try {
+      delegate.handle(exchange);
+    } catch (IOException | RuntimeException e) {
+      e.printStackTrace();
+      exchange.close();
+    }
+  }
+
+  private void reject(HttpExchange exchange) throws IOException {
+    String response = "Server busy, retry later";
+    exchange.getResponseHeaders().set("Retry-After", Integer.toString(retryAfterSeconds));
+    exchange.getResponseHeaders().set("Content-Type", "text/plain");
+    exchange.sendResponseHeaders(503, response.getBytes().length);
+    try (OutputStream os = exchange.getResponseBody()) {
+      os.write(response.getBytes());
+    }
+    exchange.close();
+  }
+}
@@ -0,0 +1,347 @@
+package com.fileserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Byte-bounded cache of small, frequently downloaded files held in off-heap buffers.
+ *
+ * <p>Eviction is LRU. Admission follows TinyLFU: every lookup is counted in a count-min
+ * sketch sized from the cache's capacity, and a new file only displaces the LRU victim when
+ * it has been requested more often. One-off downloads therefore never flush the hot set.
+ * Sketch counters are halved periodically so popularity ages out.
+ *
+ * <p>Hits take no lock: lookups go to a concurrent index and the sketch counts with atomic
+ * increments. Recency is only updated when the LRU lock is free, so under contention the
+ * order is approximate rather than a point every request queues on.
+ */
+final class FileCache {
+  static final int GENERATION_STRIPES = 1024;
+
+  private final long maxBytes;
+  private final long maxFileBytes;
+  private final FrequencySketch sketch;
+  /** LRU order and byte accounting; guarded by {@link #lock}. */
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+  /** Lock-free view of {@link #entries} for lookups. */
+  private final Map<String, Entry> index = new ConcurrentHashMap<>();
+  private final ReentrantLock lock = new ReentrantLock();
+  /** Invalidation counters, one per stripe of names. */
+  private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+  private long usedBytes;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder rejections = new LongAdder();
+
+  /**
+   * Creates a cache.
+   *
+   * @param maxBytes total bytes of file content to hold; 0 disables caching
+   * @param maxFileBytes largest file that may be cached
+   */
+  FileCache(long maxBytes, long maxFileBytes) {
+    this.maxBytes = maxBytes;
+    this.maxFileBytes = Math.min(maxFileBytes, maxBytes);
+    this.sketch = FrequencySketch.forCapacity(maxBytes);
+  }
+
+  /** Whether the cache can hold anything at all. */
+  boolean enabled() {
+    return maxBytes > 0;
+  }
+
+  /**
+   * Looks up a file and records the access for admission decisions.
+   *
+   * @param name stored file name
+   * @return the cached entry, or null on a miss
+   */
+  Entry get(String name) {
+    if (!enabled()) {
+      return null;
+    }
+    sketch.increment(name);
+    Entry entry = index.get(name);
+    if (entry == null) {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    if (lock.tryLock()) {
+      try {
+        entries.get(name);
+      } finally {
+        lock.unlock();
+      }
+    }
+    return entry;
+  }
+
+  /**
+   * Returns a token to pass to {@link #load}; loads that straddle an invalidation of the
+   * same name are discarded so a file replaced mid-read is never cached stale. Names share
+   * one of {@value #GENERATION_STRIPES} counters, so an unrelated invalidation only rarely
+   * voids a load.
+   *
+   * @param name stored file name
+   * @return current invalidation generation of the name
+   */
+  long generation(String name) {
+    return generations.get(stripe(name));
+  }
+
+  /** Which of the {@value #GENERATION_STRIPES} invalidation counters a name shares. */
+  static int stripe(String name) {
+    int h = name.hashCode() * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & (GENERATION_STRIPES - 1);
+  }
+
+  /**
+   * Reads a file into the cache if it is small enough and popular enough.
+   *
+   * @param name stored file name
+   * @param content open file content
+   * @param metadata metadata to serve it with
+   * @param token value of {@link #generation(String)} taken before the file was opened
+   * @return the new entry, or null if the file was not admitted
+   * @throws IOException if the file cannot be read
+   */
+  Entry load(String name, Content content, FileMetadata metadata, long token)
+      throws IOException {
+    long size = metadata.storedSize();
+    if (!enabled() || size > maxFileBytes || !admits(name, size)) {
+      return null;
+    }
+    ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+    while (buffer.hasRemaining()) {
+      if (content.read(buffer.position(), buffer) < 0) {
+        return null;
+      }
+    }
+    buffer.flip();
+    Entry entry = new Entry(buffer.asReadOnlyBuffer(), metadata);
+
+    lock.lock();
+    try {
+      if (generation(name) != token || !admitsLocked(name, size)) {
+        return null;
+      }
+      Entry previous = entries.put(name, entry);
+      index.put(name, entry);
+      if (previous != null) {
+        usedBytes -= previous.size();
+      }
+      usedBytes += size;
+      evict();
+    } finally {
+      lock.unlock();
+    }
+    return entry;
+  }
+
+  /**
+   * Drops a file from the cache, e.g. after it was overwritten.
+   *
+   * @param name stored file name
+   */
+  void invalidate(String name) {
+    if (!enabled()) {
+      return;
+    }
+    lock.lock();
+    try {
+      generations.incrementAndGet(stripe(name));
+      Entry removed = entries.remove(name);
+      index.remove(name);
+      if (removed != null) {
+        usedBytes -= removed.size();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Decides whether {@code name} may displace the entries needed to make room for it.
+   */
+  private boolean admits(String name, long size) {
+    lock.lock();
+    try {
+      return admitsLocked(name, size);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private boolean admitsLocked(String name, long size) {
+    if (usedBytes + size <= maxBytes || entries.containsKey(name)) {
+      return true;
+    }
+    int candidate = sketch.frequency(name);
+    long freed = 0;
+    Iterator<Map.Entry<String, Entry>> lru = entries.entrySet().iterator();
+    while (usedBytes - freed + size > maxBytes && lru.hasNext()) {
+      Map.Entry<String, Entry> victim = lru.next();
+      if (sketch.frequency(victim.getKey()) >= candidate) {
+        rejections.increment();
+        return false;
+      }
+      freed += victim.getValue().size();
+    }
+    return true;
+  }
+
+  private void evict() {
+    Iterator<Map.Entry<String, Entry>> lru = entries.entrySet().iterator();
+    while (usedBytes > maxBytes && lru.hasNext()) {
+      Map.Entry<String, Entry> victim = lru.next();
+      lru.remove();
+      index.remove(victim.getKey());
+      usedBytes -= victim.getValue().size();
+      evictions.increment();
+    }
+  }
+
+  /** Requests served from memory. */
+  long hits() {
+    return hits.sum();
+  }
+
+  /** Requests that had to go to storage. */
+  long misses() {
+    return misses.sum();
+  }
+
+  /** Entries removed to make room. */
+  long evictions() {
+    return evictions.sum();
+  }
+
+  /** Files refused because the LRU victim was more popular. */
+  long rejections() {
+    return rejections.sum();
+  }
+
+  /** Bytes of file content currently cached. */
+  long usedBytes() {
+    lock.lock();
+    try {
+      return usedBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** A cached file: its bytes plus the metadata needed to serve it. */
+  static final class Entry {
+    private final ByteBuffer bytes;
+    private final FileMetadata metadata;
+
+    Entry(ByteBuffer bytes, FileMetadata metadata) {
+      this.bytes = bytes;
+      this.metadata = metadata;
+    }
+
+    /** Read-only view of the file bytes; callers must duplicate before moving position. */
+    ByteBuffer bytes() {
+      return bytes;
+    }
+
+    FileMetadata metadata() {
+      return metadata;
+    }
+
+    long size() {
+      return bytes.limit();
+    }
+  }
+
+  /**
+   * Count-min sketch with four hashed rows and periodic halving, as used by TinyLFU.
+   * Thread-safe without locking: counters are atomic, and an increment racing with the
+   * halving may be lost, which only makes the estimate slightly low.
+   */
+  static final class FrequencySketch {
+    private static final int ROWS = 4;
+    /** Typical size of a small file, used to estimate how many entries a budget holds. */
+    private static final long EXPECTED_ENTRY_BYTES = 4L << 10;
+    private static final int MIN_WIDTH = 1024;
+    /** Widest sketch: four rows of this many counters take 1 MiB. */
+    private static final int MAX_WIDTH = 1 << 16;
+    private final AtomicIntegerArray table;
+    private final int size;
+    private final int mask;
+    private final int sampleSize;
+    private final int seed = ThreadLocalRandom.current().nextInt() | 1;
+    private final AtomicInteger additions = new AtomicInteger();
+
+    /**
+     * Sizes a sketch for a byte budget, with about one counter per row for each entry the
+     * budget can hold, as W-TinyLFU sizes its sketch from the maximum entry count. Fewer
+     * counters than entries saturate, and admission then approaches random.
+     *
+     * @param maxBytes bytes of content the tracked entries may take
+     * @return the sketch
+     */
+    static FrequencySketch forCapacity(long maxBytes) {
+      long entries = maxBytes / EXPECTED_ENTRY_BYTES;
+      return new FrequencySketch((int) Math.max(MIN_WIDTH, Math.min(MAX_WIDTH, entries)));
+    }
+
+    FrequencySketch(int width) {
+      this.size = Integer.highestOneBit(Math.max(16, width - 1) << 1);
+      this.table = new AtomicIntegerArray(ROWS * size);
+      this.mask = size - 1;
+      this.sampleSize = size * 10;
+    }
+
+    /** Counters per row. */
+    int width() {
+      return size;
+    }
+
+    void increment(String key) {
+      int hash = key.hashCode();
+      for (int row = 0; row < ROWS; row++) {
+        table.incrementAndGet(index(hash, row));
+      }
+      if (additions.incrementAndGet() == sampleSize) {
+        age();
+      }
+    }
+
+    int frequency(String key) {
+      int hash = key.hashCode();
+      int min = Integer.MAX_VALUE;
+      for (int row = 0; row < ROWS; row++) {
+        min = Math.min(min, table.get(index(hash, row)));
+      }
+      return min;
+    }
+
+    private int index(int hash, int row) {
+      int h = (hash ^ (seed * (row + 1))) * 0x9E3779B9;
+      return row * size + ((h ^ (h >>> 16)) & mask);
+    }
+
+    /** Run by the one increment that reaches the sample size. */
+    private void age() {
+      for (int i = 0; i < table.length(); i++) {
+        table.set(i, table.get(i) >>> 1);
+      }
+      additions.addAndGet(-sampleSize / 2);
+    }
+  }
+}
@@ -0,0 +1,158 @@
+package com.fileserver;
+
+import java.io.IOException;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Objects;
+
+/**
+ * What a download needs to know about a stored file before streaming it: length, modification
+ * time, media type and validator. Immutable; a changed file gets a new instance.
+ *
+ * <p>A file may be stored compressed; {@link #size()} is then the length of the uploaded
+ * bytes, {@link #storedSize()} the length held by the backend and {@link #encoding()} the
+ * content coding needed to get from one to the other.
+ */
+final class FileMetadata {
+  static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+  private final long size;
+  private final long storedSize;
+  private final String encoding;
+  private final FileTime lastModified;
+  private final String lastModifiedHeader;
+  private final String contentType;
+  private final String etag;
+  private final String digest;
+  private final Object fileKey;
+
+  FileMetadata(long size, FileTime lastModified, String contentType, String etag) {
+    this(size, size, null, lastModified, contentType, etag, null);
+  }
+
+  FileMetadata(long size, long storedSize, String encoding, FileTime lastModified,
+      String contentType, String etag, String digest) {
+    this(size, storedSize, encoding, lastModified, contentType, etag, digest, null);
+  }
+
+  FileMetadata(long size, long storedSize, String encoding, FileTime lastModified,
+      String contentType, String etag, String digest, Object fileKey) {
+    this.size = size;
+    this.storedSize = storedSize;
+    this.encoding = encoding;
+    this.lastModified = lastModified;
+    this.lastModifiedHeader = MiniFileServer.httpDate(lastModified);
+    this.contentType = contentType;
+    this.etag = etag;
+    this.digest = digest;
+    this.fileKey = fileKey;
+  }
+
+  /**
+   * Builds metadata from a backend lookup, probing the content type from the stored file.
+   *
+   * @param name stored file name
+   * @param file local file holding the name, or null if the backend keeps none
+   * @param attrs attributes returned by the storage backend
+   * @param digests persisted content digests, or null to always use a weak ETag
+   * @return the metadata
+   * @throws IOException if the digest record cannot be read
+   */
+  static FileMetadata read(String name, Path file, BasicFileAttributes attrs,
+      ContentDigests digests) throws IOException {
+    String contentType = contentType(name, file);
+    ContentDigests.Entry digest = digests == null ? null : digests.load(name, attrs);
+    if (digest == null) {
+      return new FileMetadata(attrs.size(), attrs.size(), null, attrs.lastModifiedTime(),
+          contentType, weakEtag(attrs), null, attrs.fileKey());
+    }
+    return new FileMetadata(digest.size(), attrs.size(), digest.encoding(),
+        attrs.lastModifiedTime(), contentType, "\"" + digest.sha256() + "\"",
+        Checksums.header(digest.sha256(), digest.md5()), attrs.fileKey());
+  }
+
+  /**
+   * Guesses the media type of a stored file. The installed type detectors get the stored
+   * file's own path; a bare name would resolve against the working directory and let a
+   * detector that reads content probe an unrelated file there.
+   *
+   * @param name stored file name
+   * @param file local file holding the name, or null to go by the name's extension alone
+   * @return the media type, or {@link #DEFAULT_CONTENT_TYPE} if unknown
+   * @throws IOException if the type detectors fail
+   */
+  static String contentType(String name, Path file) throws IOException {
+    String contentType = file != null ? Files.probeContentType(file)
+        : URLConnection.getFileNameMap().getContentTypeFor(name);
+    return contentType != null ? contentType : DEFAULT_CONTENT_TYPE;
+  }
+
+  /**
+   * Builds a weak validator from size and modification time.
+   *
+   * @param attrs file attributes
+   * @return an ETag such as {@code W/"1a-18c2f0e4d11"}
+   */
+  static String weakEtag(BasicFileAttributes attrs) {
+    return "W/\"" + Long.toHexString(attrs.size()) + "-"
+        + Long.toHexString(attrs.lastModifiedTime().toMillis()) + "\"";
+  }
+
+  /**
+   * Tells whether these attributes describe the same version of the file.
+   *
+   * @param attrs freshly read attributes
+   * @return true if size, modification time and file key are unchanged
+   */
+  boolean matches(BasicFileAttributes attrs) {
+    return attrs.isRegularFile() && attrs.size() == storedSize
+        && attrs.lastModifiedTime().equals(lastModified)
+        && Objects.equals(attrs.fileKey(), fileKey);
+  }
+
+  /** Length of the file as uploaded and served. */
+  long size() {
+    return size;
+  }
+
+  /** Length of the bytes held by the backend; differs from {@link #size()} when encoded. */
+  long storedSize() {
+    return storedSize;
+  }
+
+  /** Content coding the file is stored in, or null if stored as uploaded. */
+  String encoding() {
+    return encoding;
+  }
+
+  FileTime lastModified() {
+    return lastModified;
+  }
+
+  /** Last-Modified header value, formatted once. */
+  String lastModifiedHeader() {
+    return lastModifiedHeader;
+  }
+
+  String contentType() {
+    return contentType;
+  }
+
+  /** Strong content-hash ETag when the digest is known, otherwise a weak size/mtime one. */
+  String etag() {
+    return etag;
+  }
+
+  /** Digest header value for the uploaded bytes, or null if their digest is not known. */
+  String digest() {
+    return digest;
+  }
+
+  /** Whether {@link #etag()} is a strong validator usable for If-Range. */
+  boolean strongEtag() {
+    return !etag.startsWith("W/");
+  }
+}
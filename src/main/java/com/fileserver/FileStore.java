@@ -0,0 +1,323 @@
+package com.fileserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+
+/**
+ * Commits uploaded content into storage atomically.
+ *
+ * <p>Every upload path writes into a local staging file and then hands it to the
+ * {@link StorageBackend}, which swaps it in atomically. Readers that already hold the old
+ * content keep reading it, and new readers see either the old or the new content, never a
+ * torn mix. A crash mid-upload leaves only a staging file, which is cleaned up on the next
+ * start. How much is flushed to disk before an upload is acknowledged is set by
+ * {@link Durability}.
+ *
+ * <p>In content-addressable mode each distinct body is kept once as a blob named by its
+ * SHA-256 under {@code cas/ab/cd/}, and the stored name is a hard link to it. Duplicate
+ * uploads cost one directory entry, downloads read the name as before, and the persisted
+ * {@link ContentDigests} record is the name-to-digest index. Blobs no name links to any more
+ * are removed on the next start. This mode needs the {@link LocalStorageBackend}.
+ *
+ * <p>With compression at rest, bodies of text-like uploads are gzip-compressed while they
+ * stream into the staging file, and the digest record notes the coding and uploaded length so
+ * downloads can pass the stored bytes through or decode them.
+ */
+final class FileStore {
+  /** How much is forced to disk before an upload is acknowledged. */
+  enum Durability {
+    /** Rely on the OS to write back; fastest, may lose recent uploads on power loss. */
+    NONE,
+    /** fsync the file content before it becomes visible. */
+    FILE,
+    /** Also fsync the directory entry of a renamed file. */
+    FULL
+  }
+
+  private final StorageBackend backend;
+  private final Path tmp;
+  private final Durability durability;
+  private final Path cas;
+  private final boolean compressAtRest;
+  private final ContentDigests digests;
+  private final Consumer<String> onStored;
+  /** Held shared while a blob is created and linked, exclusively while one is collected. */
+  private final ReadWriteLock blobLock = new ReentrantReadWriteLock();
+
+  /**
+   * Creates the store, removes staging files left by a previous run and starts collecting
+   * unreferenced blobs in the background.
+   *
+   * @param backend where committed content is stored
+   * @param internalDir server state directory; staging files live in its {@code tmp} child
+   * @param layout layout of the digest records
+   * @param durability flush policy for content-addressed blobs
+   * @param contentAddressed whether to deduplicate bodies into a digest-addressed blob store
+   * @param compressAtRest whether to store text-like uploads gzip-compressed; not together
+   *     with {@code contentAddressed}
+   * @param onStored notified with the file name after new content is visible
+   * @throws IOException if the staging or digest directories cannot be prepared
+   */
+  FileStore(StorageBackend backend, Path internalDir, StorageLayout layout,
+      Durability durability, boolean contentAddressed, boolean compressAtRest,
+      Consumer<String> onStored) throws IOException {
+    if (contentAddressed && compressAtRest) {
+      throw new IllegalArgumentException("Blobs are shared by digest and must be stored as is");
+    }
+    this.backend = backend;
+    this.tmp = internalDir.resolve("tmp");
+    this.durability = durability;
+    this.cas = contentAddressed ? internalDir.resolve("cas") : null;
+    this.compressAtRest = compressAtRest;
+    this.digests = new ContentDigests(internalDir, layout);
+    this.onStored = onStored;
+    Files.createDirectories(tmp);
+    try (DirectoryStream<Path> stale = Files.newDirectoryStream(tmp)) {
+      for (Path file : stale) {
+        Files.deleteIfExists(file);
+      }
+    }
+    if (cas != null) {
+      Files.createDirectories(cas);
+      Thread collector = new Thread(() -> {
+        try {
+          collectGarbage();
+        } catch (IOException | UncheckedIOException e) {
+          System.err.println("Cannot remove unreferenced blobs: " + e.getMessage());
+        }
+      }, "fileserver-cas-gc");
+      collector.setDaemon(true);
+      collector.setPriority(Thread.MIN_PRIORITY);
+      collector.start();
+    }
+  }
+
+  /** Persisted content digests of committed files. */
+  ContentDigests digests() {
+    return digests;
+  }
+
+  /**
+   * Creates an empty staging file on the storage filesystem.
+   *
+   * @return path of the new file; the caller deletes it if the upload is abandoned
+   * @throws IOException if the file cannot be created
+   */
+  Path newStagingFile() throws IOException {
+    return Files.createTempFile(tmp, "upload", ".tmp");
+  }
+
+  /**
+   * Streams a request body into a staging file, hashing it and, if compression at rest
+   * applies to the name, gzip-compressing it on the way.
+   *
+   * @param in request body
+   * @param staged staging file to overwrite
+   * @param name file name the body will be stored under, used to pick the coding
+   * @return digest, length and stored coding of the uploaded bytes
+   * @throws IOException if reading or writing fails
+   */
+  ContentDigests.Entry write(InputStream in, Path staged, String name) throws IOException {
+    MessageDigest digest = ContentDigests.newDigest();
+    long size;
+    String encoding = null;
+    try (InputStream hashing = new DigestInputStream(in, digest)) {
+      if (compressAtRest && Compression.compressibleType(FileMetadata.contentType(name, null))) {
+        encoding = Compression.GZIP;
+        try (OutputStream out = Compression.gzip(Files.newOutputStream(staged),
+            Deflater.DEFAULT_COMPRESSION)) {
+          size = hashing.transferTo(out);
+        }
+      } else {
+        size = Files.copy(hashing, staged, StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    return new ContentDigests.Entry(HexFormat.of().formatHex(digest.digest()), null, encoding,
+        size);
+  }
+
+  /**
+   * Atomically replaces {@code name} in storage with the staged file.
+   *
+   * @param staged fully written staging file on the storage filesystem; moved away or left for
+   *     the caller to delete
+   * @param name stored file name
+   * @param sha256 hex SHA-256 of the staged content
+   * @return true if identical content was already stored and the staged copy was not needed
+   * @throws IOException if flushing or renaming fails; the stored file is then unchanged
+   */
+  boolean commit(Path staged, String name, String sha256) throws IOException {
+    return commit(staged, name, new ContentDigests.Entry(sha256, null, null, Files.size(staged)));
+  }
+
+  /**
+   * Atomically replaces {@code name} in storage with a staged body from
+   * {@link #write(InputStream, Path, String)}.
+   *
+   * @param staged fully written staging file on the storage filesystem; moved away or left for
+   *     the caller to delete
+   * @param name stored file name
+   * @param body digests, length and coding of what the staging file holds
+   * @return true if identical content was already stored and the staged copy was not needed
+   * @throws IOException if flushing or renaming fails; the stored file is then unchanged
+   */
+  boolean commit(Path staged, String name, ContentDigests.Entry body) throws IOException {
+    String sha256 = body.sha256();
+    if (cas == null) {
+      install(staged, name, body);
+      return false;
+    }
+    Path blob = blob(sha256);
+    blobLock.readLock().lock();
+    try {
+      boolean present = Files.exists(blob);
+      if (!present) {
+        if (durability != Durability.NONE) {
+          LocalStorageBackend.force(staged);
+        }
+        Files.createDirectories(blob.getParent());
+        // Racing uploads of the same body may both get here; rename replaces with equal bytes
+        LocalStorageBackend.move(staged, blob);
+        if (durability == Durability.FULL) {
+          LocalStorageBackend.forceDirectory(blob.getParent());
+        }
+      }
+      bind(blob, name, body);
+      return present;
+    } finally {
+      blobLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Stores {@code name} as a reference to content that is already held, without a body.
+   *
+   * @param name stored file name
+   * @param sha256 client-supplied hex SHA-256
+   * @return true if the content was present and is now stored under {@code name}; false in
+   *     plain mode or when the body has to be uploaded
+   * @throws IOException if linking or renaming fails
+   */
+  boolean commitExisting(String name, String sha256) throws IOException {
+    if (cas == null || !isSha256(sha256)) {
+      return false;
+    }
+    Path blob = blob(sha256);
+    blobLock.readLock().lock();
+    try {
+      if (!Files.exists(blob)) {
+        return false;
+      }
+      bind(blob, name, new ContentDigests.Entry(sha256, null, null, Files.size(blob)));
+      return true;
+    } finally {
+      blobLock.readLock().unlock();
+    }
+  }
+
+  /** Whether bodies are deduplicated by digest. */
+  boolean contentAddressed() {
+    return cas != null;
+  }
+
+  /** Location of the blob holding content with this digest. */
+  Path blob(String sha256) {
+    return cas.resolve(sha256.substring(0, 2)).resolve(sha256.substring(2, 4)).resolve(sha256);
+  }
+
+  private void bind(Path blob, String name, ContentDigests.Entry body) throws IOException {
+    Path link = tmp.resolve("link-" + UUID.randomUUID());
+    try {
+      try {
+        Files.createLink(link, blob);
+      } catch (UnsupportedOperationException | FileSystemException e) {
+        // No hard links here (e.g. FAT, some network mounts): fall back to a private copy
+        Files.copy(blob, link);
+      }
+      install(link, name, body);
+    } finally {
+      Files.deleteIfExists(link);
+    }
+  }
+
+  private void install(Path file, String name, ContentDigests.Entry body) throws IOException {
+    BasicFileAttributes attrs = backend.store(name, file);
+    digests.save(name, body, attrs);
+    onStored.accept(name);
+  }
+
+  /**
+   * Deletes blobs that no stored name links to any more. Only runs where the filesystem
+   * reports link counts. Each blob is checked and deleted under the exclusive lock, so a blob
+   * that an upload is about to link is never taken away from it.
+   *
+   * @return number of blobs removed
+   * @throws IOException if the blob directory cannot be walked
+   */
+  int collectGarbage() throws IOException {
+    List<Path> blobs;
+    try (Stream<Path> walk = Files.walk(cas)) {
+      blobs = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+    }
+    int removed = 0;
+    for (Path blob : blobs) {
+      Object links;
+      try {
+        links = Files.getAttribute(blob, "unix:nlink");
+      } catch (UnsupportedOperationException | IllegalArgumentException e) {
+        return removed;
+      } catch (NoSuchFileException e) {
+        // Already gone
+        continue;
+      }
+      if (!(links instanceof Integer) || (Integer) links > 1) {
+        continue;
+      }
+      blobLock.writeLock().lock();
+      try {
+        // Check again: an upload may have linked the blob since
+        if ((Integer) Files.getAttribute(blob, "unix:nlink") <= 1) {
+          Files.delete(blob);
+          removed++;
+        }
+      } catch (NoSuchFileException e) {
+        // Already gone
+      } finally {
+        blobLock.writeLock().unlock();
+      }
+    }
+    return removed;
+  }
+
+  private static boolean isSha256(String value) {
+    if (value.length() != 64) {
+      return false;
+    }
+    for (int i = 0; i < value.length(); i++) {
+      if (Character.digit(value.charAt(i), 16) < 0 || Character.isUpperCase(value.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,112 @@
+package com.fileserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Streams file content to a response using {@link FileChannel#transferTo}.
+ * When the target is a socket or file channel the kernel copies the bytes directly
+ * (sendfile/copy_file_range). A plain output stream is wrapped with
+ * {@link Channels#newChannel(OutputStream)}, so the JDK reads into a temporary direct buffer
+ * and the wrapper copies that again into its own heap array before writing; only a
+ * {@link Sink} avoids both copies.
+ */
+final class FileTransfer {
+
+  private FileTransfer() {
+  }
+
+  /**
+   * Copies {@code count} bytes starting at {@code position} to the output stream.
+   *
+   * @param source file to read from; its position is not changed
+   * @param position first byte to send
+   * @param count number of bytes to send
+   * @param target response stream
+   * @throws IOException if reading or writing fails, or the file is shorter than expected
+   */
+  static void transfer(FileChannel source, long position, long count, OutputStream target)
+      throws IOException {
+    if (target instanceof Sink) {
+      ((Sink) target).transferFrom(source, position, count);
+      return;
+    }
+    transfer(source, position, count, Channels.newChannel(target));
+  }
+
+  /**
+   * Writes the remaining bytes of a buffer, e.g. a cached or memory-mapped file, to the
+   * output stream. A {@link Sink} writes them straight to its socket; a heap buffer is
+   * written from its array; only a direct buffer on another stream is copied through the heap.
+   *
+   * @param source bytes to send from position to limit; its position is advanced
+   * @param target response stream
+   * @throws IOException if writing fails
+   */
+  static void transfer(ByteBuffer source, OutputStream target) throws IOException {
+    if (target instanceof Sink) {
+      ((Sink) target).transferFrom(source);
+    } else if (source.hasArray()) {
+      target.write(source.array(), source.arrayOffset() + source.position(), source.remaining());
+      source.position(source.limit());
+    } else {
+      Channels.newChannel(target).write(source);
+    }
+  }
+
+  /**
+   * Copies {@code count} bytes starting at {@code position} to the channel.
+   *
+   * @param source file to read from; its position is not changed
+   * @param position first byte to send
+   * @param count number of bytes to send
+   * @param target destination channel in blocking mode
+   * @throws IOException if reading or writing fails, the file is shorter than expected, or
+   *     the target accepts nothing
+   */
+  static void transfer(FileChannel source, long position, long count, WritableByteChannel target)
+      throws IOException {
+    long sent = 0;
+    while (sent < count) {
+      long n = source.transferTo(position + sent, count - sent, target);
+      if (n <= 0) {
+        if (position + sent >= source.size()) {
+          throw new EOFException("File truncated after " + (position + sent) + " bytes");
+        }
+        // A blocking target never takes zero bytes; retrying would spin forever
+        throw new IOException("Target accepted no bytes at position " + (position + sent));
+      }
+      sent += n;
+    }
+  }
+
+  /**
+   * A response stream that can hand file bytes straight to its socket. The JDK server's
+   * streams cannot, so bytes are copied through a direct and a heap buffer there; streams of
+   * {@link NioHttpServer} implement this to get a real sendfile.
+   */
+  interface Sink {
+    /**
+     * Sends {@code count} bytes of the file starting at {@code position}.
+     *
+     * @param source file to read from; its position is not changed
+     * @param position first byte to send
+     * @param count number of bytes to send
+     * @throws IOException if reading or writing fails, or the file is shorter than expected
+     */
+    void transferFrom(FileChannel source, long position, long count) throws IOException;
+
+    /**
+     * Sends the remaining bytes of a buffer without staging them in a heap array first.
+     *
+     * @param source bytes to send from position to limit; its position is advanced
+     * @throws IOException if writing fails
+     */
+    void transferFrom(ByteBuffer source) throws IOException;
+  }
+}
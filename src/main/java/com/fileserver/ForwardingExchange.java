@@ -0,0 +1,109 @@
+package com.fileserver;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+
+/**
+ * An exchange that forwards every call to another one; filters extend it to observe or adjust
+ * what handlers do without reimplementing the whole interface.
+ */
+abstract class ForwardingExchange extends HttpExchange {
+  /** The wrapped exchange. */
+  protected final HttpExchange delegate;
+
+  ForwardingExchange(HttpExchange delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public Headers getRequestHeaders() {
+    return delegate.getRequestHeaders();
+  }
+
+  @Override
+  public Headers getResponseHeaders() {
+    return delegate.getResponseHeaders();
+  }
+
+  @Override
+  public URI getRequestURI() {
+    return delegate.getRequestURI();
+  }
+
+  @Override
+  public String getRequestMethod() {
+    return delegate.getRequestMethod();
+  }
+
+  @Override
+  public HttpContext getHttpContext() {
+    return delegate.getHttpContext();
+  }
+
+  @Override
+  public void close() {
+    delegate.close();
+  }
+
+  @Override
+  public InputStream getRequestBody() {
+    return delegate.getRequestBody();
+  }
+
+  @Override
+  public OutputStream getResponseBody() {
+    return delegate.getResponseBody();
+  }
+
+  @Override
+  public void sendResponseHeaders(int code, long length) throws IOException {
+    delegate.sendResponseHeaders(code, length);
+  }
+
+  @Override
+  public InetSocketAddress getRemoteAddress() {
+    return delegate.getRemoteAddress();
+  }
+
+  @Override
+  public int getResponseCode() {
+    return delegate.getResponseCode();
+  }
+
+  @Override
+  public InetSocketAddress getLocalAddress() {
+    return delegate.getLocalAddress();
+  }
+
+  @Override
+  public String getProtocol() {
+    return delegate.getProtocol();
+  }
+
+  @Override
+  public Object getAttribute(String name) {
+    return delegate.getAttribute(name);
+  }
+
+  @Override
+  public void setAttribute(String name, Object value) {
+    delegate.setAttribute(name, value);
+  }
+
+  @Override
+  public void setStreams(InputStream in, OutputStream out) {
+    delegate.setStreams(in, out);
+  }
+
+  @Override
+  public HttpPrincipal getPrincipal() {
+    return delegate.getPrincipal();
+  }
+}
@@ -0,0 +1,360 @@
+package com.fileserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression (RFC 7541) for {@link Http2Connection}.
+ *
+ * <p>Decoding supports the whole format, since clients use the dynamic table and Huffman
+ * coding freely. Encoding is deliberately stateless: headers are sent as static-table
+ * references or literals that are never added to the dynamic table, so response header blocks
+ * can be encoded on any worker thread, in any order, without coordinating with the other
+ * streams of the connection. Response headers are few and mostly unique per file, so a
+ * dynamic table would save little here.
+ */
+final class Hpack {
+  /** Dynamic table size both ends start with. */
+  static final int DEFAULT_TABLE_SIZE = 4096;
+
+  private static final String[][] STATIC_TABLE = {
+      {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+      {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+      {":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"},
+      {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+      {"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""},
+      {"accept", ""}, {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""},
+      {"authorization", ""}, {"cache-control", ""}, {"content-disposition", ""},
+      {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+      {"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""},
+      {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""},
+      {"if-match", ""}, {"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""},
+      {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""}, {"location", ""},
+      {"max-forwards", ""}, {"proxy-authenticate", ""}, {"proxy-authorization", ""},
+      {"range", ""}, {"referer", ""}, {"refresh", ""}, {"retry-after", ""}, {"server", ""},
+      {"set-cookie", ""}, {"strict-transport-security", ""}, {"transfer-encoding", ""},
+      {"user-agent", ""}, {"vary", ""}, {"via", ""}, {"www-authenticate", ""}};
+
+  /** Huffman codes of octets 0-255 (RFC 7541, Appendix B), right-aligned. */
+  private static final int[] HUFFMAN_CODES = {
+      0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+      0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+      0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+      0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+      0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa, 0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16,
+      0x17, 0x18, 0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d, 0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc,
+      0x20, 0xffb, 0x3fc, 0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62, 0x63, 0x64, 0x65,
+      0x66, 0x67, 0x68, 0x69, 0x6a, 0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72, 0xfc, 0x73,
+      0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22, 0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+      0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7, 0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+      0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc, 0xfffe6, 0x3fffd2, 0xfffe7,
+      0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9, 0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc,
+      0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf, 0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee,
+      0x7fffe1, 0x7fffe2, 0x7fffe3, 0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6,
+      0x7fffe7, 0xffffef, 0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9,
+      0x1fffde, 0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+      0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef, 0xfffea,
+      0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1, 0x3ffffe0, 0x3ffffe1,
+      0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec, 0x3ffffe2, 0x3ffffe3, 0x3ffffe4,
+      0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed, 0x7fff2, 0x1fffe3, 0x3ffffe6,
+      0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2, 0x1fffe4, 0x1fffe5, 0x3ffffe8,
+      0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5, 0xfffec, 0xfffff3, 0xfffed, 0x1fffe6,
+      0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3, 0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4,
+      0xfffff5, 0x3ffffea, 0x7ffff4, 0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7,
+      0x7ffffe8, 0x7ffffe9, 0x7ffffea, 0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee,
+      0x7ffffef, 0x7fffff0, 0x3ffffee,
+  };
+
+  /** Bit lengths of {@link #HUFFMAN_CODES}. */
+  private static final byte[] HUFFMAN_LENGTHS = {
+      13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30,
+      28, 28, 28, 28, 28, 28, 28, 28, 28, 6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+      5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10, 13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+      7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6, 15, 5, 6, 5, 6, 5, 6, 6, 6, 5,
+      7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28, 20, 22, 20, 20, 22,
+      22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23,
+      22, 23, 23, 24, 22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22,
+      21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23, 26, 26, 20, 19, 22, 23, 22, 25, 26, 26,
+      26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27, 20,
+      24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27,
+      27, 28, 27, 27, 27, 27, 27, 26,
+  };
+
+  private static final int EOS = 256;
+  private static final int EOS_CODE = 0x3fffffff;
+  private static final int EOS_LENGTH = 30;
+
+  /**
+   * Huffman decoding tree, two slots per node for the 0 and 1 branches. A slot holds the
+   * index of the next node, {@code -1 - symbol} for a leaf, or 0 where no code continues.
+   */
+  private static final int[] TREE = new int[2 * 2 * (EOS + 1)];
+  private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+  private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+
+  static {
+    int nodes = 1;
+    for (int symbol = 0; symbol <= EOS; symbol++) {
+      int code = symbol == EOS ? EOS_CODE : HUFFMAN_CODES[symbol];
+      int length = symbol == EOS ? EOS_LENGTH : HUFFMAN_LENGTHS[symbol];
+      int node = 0;
+      for (int bit = length - 1; bit > 0; bit--) {
+        int slot = node * 2 + ((code >>> bit) & 1);
+        if (TREE[slot] == 0) {
+          TREE[slot] = nodes++;
+        }
+        node = TREE[slot];
+      }
+      TREE[node * 2 + (code & 1)] = -1 - symbol;
+    }
+    for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+      STATIC_FIELDS.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+      STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+    }
+  }
+
+  private Hpack() {
+  }
+
+  /**
+   * Appends one header field to a header block.
+   *
+   * @param out header block being built
+   * @param name lower-case field name
+   * @param value field value
+   */
+  static void encode(ByteArrayOutputStream out, String name, String value) {
+    Integer index = STATIC_FIELDS.get(name + '\0' + value);
+    if (index != null) {
+      writeInt(out, 0x80, 7, index);
+      return;
+    }
+    index = STATIC_NAMES.get(name);
+    if (index != null) {
+      // Literal header field without indexing, indexed name
+      writeInt(out, 0x00, 4, index);
+    } else {
+      out.write(0x00);
+      writeString(out, name);
+    }
+    writeString(out, value);
+  }
+
+  private static void writeString(ByteArrayOutputStream out, String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+    writeInt(out, 0x00, 7, bytes.length);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  private static void writeInt(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+    int max = (1 << prefixBits) - 1;
+    if (value < max) {
+      out.write(flags | value);
+      return;
+    }
+    out.write(flags | max);
+    value -= max;
+    while (value >= 0x80) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  /**
+   * Decodes a Huffman-coded string.
+   *
+   * @param data encoded bytes
+   * @param off first byte
+   * @param len number of bytes
+   * @return the decoded octets as ISO-8859-1 characters
+   * @throws IOException if the code is invalid or badly padded
+   */
+  static String huffmanDecode(byte[] data, int off, int len) throws IOException {
+    StringBuilder decoded = new StringBuilder(len * 8 / 5);
+    int node = 0;
+    int pending = 0;
+    boolean ones = true;
+    for (int i = off; i < off + len; i++) {
+      for (int bit = 7; bit >= 0; bit--) {
+        int b = (data[i] >>> bit) & 1;
+        int next = TREE[node * 2 + b];
+        pending++;
+        ones &= b == 1;
+        if (next < 0) {
+          if (-1 - next == EOS) {
+            throw new IOException("EOS in Huffman string");
+          }
+          decoded.append((char) (-1 - next));
+          node = 0;
+          pending = 0;
+          ones = true;
+        } else if (next == 0) {
+          throw new IOException("Invalid Huffman code");
+        } else {
+          node = next;
+        }
+      }
+    }
+    if (pending > 7 || !ones) {
+      throw new IOException("Invalid Huffman padding");
+    }
+    return decoded.toString();
+  }
+
+  /**
+   * Decoder of one connection's request header blocks. Blocks must be decoded in the order
+   * they arrive, since each may change the dynamic table the next one refers to.
+   */
+  static final class Decoder {
+    private final int maxTableSize;
+    private final int maxListSize;
+    /** Dynamic table, oldest entry first. */
+    private final List<String[]> table = new ArrayList<>();
+    private int tableSize;
+    private int capacity;
+
+    /**
+     * Creates a decoder.
+     *
+     * @param maxTableSize dynamic table size announced to the peer
+     * @param maxListSize largest decoded header list accepted, counted as in RFC 7540
+     */
+    Decoder(int maxTableSize, int maxListSize) {
+      this.maxTableSize = maxTableSize;
+      this.maxListSize = maxListSize;
+      this.capacity = maxTableSize;
+    }
+
+    /**
+     * Decodes a complete header block.
+     *
+     * @param block the concatenated HEADERS and CONTINUATION fragments
+     * @param length bytes of {@code block} in use
+     * @return name/value pairs in order
+     * @throws IOException if the block is malformed, which is fatal to the connection
+     */
+    List<String[]> decode(byte[] block, int length) throws IOException {
+      Reader reader = new Reader(block, length);
+      List<String[]> fields = new ArrayList<>();
+      long listSize = 0;
+      while (reader.pos < length) {
+        int b = block[reader.pos] & 0xff;
+        String[] field;
+        if ((b & 0x80) != 0) {
+          field = entry(reader.readInt(7));
+        } else if ((b & 0xe0) == 0x20) {
+          if (!fields.isEmpty()) {
+            throw new IOException("Table size update after a header field");
+          }
+          int size = reader.readInt(5);
+          if (size > maxTableSize) {
+            throw new IOException("Table size update above the announced maximum");
+          }
+          capacity = size;
+          evict(0);
+          continue;
+        } else {
+          boolean indexing = (b & 0xc0) == 0x40;
+          int nameIndex = reader.readInt(indexing ? 6 : 4);
+          String name = nameIndex == 0 ? reader.readString() : entry(nameIndex)[0];
+          field = new String[] {name, reader.readString()};
+          if (indexing) {
+            add(field);
+          }
+        }
+        listSize += field[0].length() + field[1].length() + 32;
+        if (listSize > maxListSize) {
+          throw new IOException("Header list too large");
+        }
+        fields.add(field);
+      }
+      return fields;
+    }
+
+    private String[] entry(int index) throws IOException {
+      if (index <= 0) {
+        throw new IOException("Invalid header index 0");
+      }
+      if (index <= STATIC_TABLE.length) {
+        return STATIC_TABLE[index - 1];
+      }
+      int dynamic = index - STATIC_TABLE.length;
+      if (dynamic > table.size()) {
+        throw new IOException("Invalid header index " + index);
+      }
+      return table.get(table.size() - dynamic);
+    }
+
+    private void add(String[] field) {
+      int size = field[0].length() + field[1].length() + 32;
+      evict(size);
+      if (size <= capacity) {
+        table.add(field);
+        tableSize += size;
+      }
+    }
+
+    /** Evicts the oldest entries until {@code room} more bytes fit. */
+    private void evict(int room) {
+      while (!table.isEmpty() && tableSize + room > capacity) {
+        String[] oldest = table.remove(0);
+        tableSize -= oldest[0].length() + oldest[1].length() + 32;
+      }
+    }
+  }
+
+  /** Cursor over a header block. */
+  private static final class Reader {
+    private final byte[] block;
+    private final int end;
+    private int pos;
+
+    Reader(byte[] block, int end) {
+      this.block = block;
+      this.end = end;
+    }
+
+    int readInt(int prefixBits) throws IOException {
+      int max = (1 << prefixBits) - 1;
+      long value = block[pos++] & max;
+      if (value < max) {
+        return (int) value;
+      }
+      for (int shift = 0; ; shift += 7) {
+        if (pos >= end || shift > 28) {
+          throw new IOException("Invalid integer in header block");
+        }
+        int b = block[pos++] & 0xff;
+        value += (long) (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          break;
+        }
+      }
+      if (value > Integer.MAX_VALUE) {
+        throw new IOException("Integer overflow in header block");
+      }
+      return (int) value;
+    }
+
+    String readString() throws IOException {
+      if (pos >= end) {
+        throw new IOException("Truncated header block");
+      }
+      boolean huffman = (block[pos] & 0x80) != 0;
+      int length = readInt(7);
+      if (length > end - pos) {
+        throw new IOException("Truncated header block");
+      }
+      String value = huffman ? huffmanDecode(block, pos, length)
+          : new String(block, pos, length, StandardCharsets.ISO_8859_1);
+      pos += length;
+      return value;
+    }
+  }
+}
@@ -0,0 +1,798 @@
+package com.fileserver;
+
+import com.sun.net.httpserver.Headers;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An HTTP/2 connection (RFC 9113) of {@link NioHttpServer}, in cleartext (h2c).
+ *
+ * <p>A connection starts with the prior-knowledge preface, or as an {@code Upgrade: h2c} of an
+ * HTTP/1.1 request without a body. The connection stays with its reactor, which parses frames
+ * as they arrive and keeps the HPACK and flow-control state, so an idle HTTP/2 connection costs
+ * no more than an idle HTTP/1.1 one. Every stream becomes an {@link Http2Exchange} that runs
+ * through the normal contexts on the server executor, so a slow download never holds up the
+ * others on its connection.
+ *
+ * <p>Frames from all streams are written under one lock, each write a whole frame, so streams
+ * interleave at frame granularity. Frames the reactor itself sends, such as SETTINGS acks,
+ * WINDOW_UPDATE and RST_STREAM, are queued and written without blocking; whatever the socket
+ * does not take at once is written by the next stream that sends, or by an executor task.
+ *
+ * <p>Flow control works in both directions. A stream's response only reads as much of its file
+ * as the client's stream and connection windows allow, and waits for WINDOW_UPDATE otherwise;
+ * request bodies are buffered up to the window advertised here, which is replenished as
+ * handlers consume them.
+ */
+final class Http2Connection {
+  static final String PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n";
+  /** Largest frame payload sent or accepted; the protocol default. */
+  static final int MAX_FRAME = 16384;
+  /** Receive window of each stream. */
+  static final int STREAM_WINDOW = 1 << 20;
+  /** Receive window of the whole connection. */
+  static final int CONNECTION_WINDOW = 16 << 20;
+  private static final int DEFAULT_WINDOW = 65535;
+  private static final long MAX_WINDOW = Integer.MAX_VALUE;
+
+  static final int DATA = 0x0;
+  static final int HEADERS = 0x1;
+  static final int PRIORITY = 0x2;
+  static final int RST_STREAM = 0x3;
+  static final int SETTINGS = 0x4;
+  static final int PUSH_PROMISE = 0x5;
+  static final int PING = 0x6;
+  static final int GOAWAY = 0x7;
+  static final int WINDOW_UPDATE = 0x8;
+  static final int CONTINUATION = 0x9;
+
+  static final int END_STREAM = 0x1;
+  static final int ACK = 0x1;
+  static final int END_HEADERS = 0x4;
+  static final int PADDED = 0x8;
+  static final int PRIORITY_FLAG = 0x20;
+
+  static final int NO_ERROR = 0x0;
+  static final int PROTOCOL_ERROR = 0x1;
+  static final int INTERNAL_ERROR = 0x2;
+  static final int FLOW_CONTROL_ERROR = 0x3;
+  static final int STREAM_CLOSED = 0x5;
+  static final int FRAME_SIZE_ERROR = 0x6;
+  static final int REFUSED_STREAM = 0x7;
+  static final int COMPRESSION_ERROR = 0x9;
+  static final int ENHANCE_YOUR_CALM = 0xb;
+
+  /** Request headers that are specific to HTTP/1.1 and dropped from an upgraded request. */
+  private static final Set<String> UPGRADE_HEADERS = Set.of("Connection", "Upgrade",
+      "Http2-settings", "Keep-alive", "Transfer-encoding");
+
+  private final NioHttpServer server;
+  private final NioHttpServer.Connection connection;
+  private final int maxStreams;
+  private final Hpack.Decoder decoder =
+      new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE, NioHttpServer.HEADER_LIMIT);
+  private final Map<Integer, Http2Exchange> streams = new ConcurrentHashMap<>();
+  private final ReentrantLock writeLock = new ReentrantLock();
+  private final ByteBuffer frame = ByteBuffer.allocate(9 + MAX_FRAME);
+  /** Frames sent by the reactor, waiting for the socket. */
+  private final Queue<ByteBuffer> control = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean flushScheduled = new AtomicBoolean();
+  /** Control frame partly written, guarded by writeLock. */
+  private ByteBuffer pending;
+  /** Set once GOAWAY is queued; the connection closes when it has been written. */
+  private volatile boolean closing;
+  /** Rest of the connection preface still to be read, or null once it has been. */
+  private String preface;
+  private int lastStreamId;
+  private boolean goingAway;
+  /** Header block being assembled from HEADERS and CONTINUATION frames. */
+  private ByteArrayOutputStream headerBlock;
+  private int headerStream;
+  private int headerFlags;
+
+  // Flow control, guarded by this
+  private long sendWindow = DEFAULT_WINDOW;
+  private long peerInitialWindow = DEFAULT_WINDOW;
+  private long receiveWindow = CONNECTION_WINDOW;
+  private int unacknowledged;
+  private boolean closed;
+
+  /**
+   * Creates a connection.
+   *
+   * @param server server the connection belongs to
+   * @param connection the underlying socket and buffers
+   * @param maxStreams concurrent streams the client may open
+   */
+  Http2Connection(NioHttpServer server, NioHttpServer.Connection connection, int maxStreams) {
+    this.server = server;
+    this.connection = connection;
+    this.maxStreams = maxStreams;
+  }
+
+  /**
+   * Returns whether an HTTP/1.1 request asks to switch to h2c in a way this server honours:
+   * with {@code HTTP2-Settings} and without a request body.
+   *
+   * @param request parsed request
+   * @return true to switch
+   */
+  static boolean isUpgrade(NioExchange request) {
+    Headers headers = request.getRequestHeaders();
+    String upgrade = headers.getFirst("Upgrade");
+    String length = headers.getFirst("Content-Length");
+    return upgrade != null && upgrade.toLowerCase(Locale.ROOT).contains("h2c")
+        && headers.containsKey("HTTP2-Settings") && !headers.containsKey("Transfer-Encoding")
+        && (length == null || length.trim().equals("0"));
+  }
+
+  /**
+   * Reactor thread: switches the connection to HTTP/2 and handles what is already buffered.
+   *
+   * @param upgrade HTTP/1.1 request that asked for h2c, or null after a prior-knowledge preface
+   */
+  void start(NioExchange upgrade) {
+    try {
+      if (upgrade != null) {
+        control.add(ByteBuffer.wrap(("HTTP/1.1 101 Switching Protocols\r\n"
+            + "Connection: Upgrade\r\nUpgrade: h2c\r\n\r\n").getBytes(StandardCharsets.US_ASCII)));
+      }
+      sendSettings();
+      if (upgrade != null) {
+        String settings = upgrade.getRequestHeaders().getFirst("HTTP2-Settings");
+        try {
+          applySettings(Base64.getUrlDecoder().decode(settings.trim()));
+        } catch (IllegalArgumentException e) {
+          throw new ProtocolException(PROTOCOL_ERROR, "Bad HTTP2-Settings");
+        }
+        Headers headers = new Headers();
+        upgrade.getRequestHeaders().forEach((name, values) -> {
+          if (!UPGRADE_HEADERS.contains(name)) {
+            headers.put(name, values);
+          }
+        });
+        lastStreamId = 1;
+        open(new Http2Exchange(this, 1, upgrade.getRequestMethod(), upgrade.getRequestURI(),
+            headers, true));
+        preface = PREFACE;
+      } else {
+        // The HTTP/1.1 parser has already consumed "PRI * HTTP/2.0\r\n\r\n"
+        preface = PREFACE.substring(PREFACE.indexOf("SM"));
+      }
+    } catch (ProtocolException e) {
+      shutdown(e.code);
+      return;
+    }
+    onInput();
+  }
+
+  /** Reactor thread: handles every complete frame buffered so far. */
+  void onInput() {
+    ByteBuffer in = connection.in;
+    if (closing) {
+      in.position(in.limit());
+      return;
+    }
+    try {
+      if (preface != null) {
+        if (in.remaining() < preface.length()) {
+          return;
+        }
+        byte[] bytes = new byte[preface.length()];
+        in.get(bytes);
+        if (!new String(bytes, StandardCharsets.ISO_8859_1).equals(preface)) {
+          throw new ProtocolException(PROTOCOL_ERROR, "Bad connection preface");
+        }
+        preface = null;
+      }
+      while (!closing && in.remaining() >= 9) {
+        int p = in.position();
+        int length =
+            (in.get(p) & 0xff) << 16 | (in.get(p + 1) & 0xff) << 8 | (in.get(p + 2) & 0xff);
+        if (length > MAX_FRAME) {
+          throw new ProtocolException(FRAME_SIZE_ERROR, "Frame larger than announced");
+        }
+        if (in.remaining() < 9 + length) {
+          return;
+        }
+        readFrame();
+      }
+    } catch (ProtocolException e) {
+      shutdown(e.code);
+    } catch (IOException | RuntimeException e) {
+      connection.close();
+    }
+  }
+
+  /**
+   * Reactor thread: the connection has been quiet for the idle timeout. It is closed if no
+   * stream is open, or if a GOAWAY sent earlier could not be written since.
+   */
+  void idle() {
+    if (closing) {
+      connection.close();
+    } else if (streams.isEmpty()) {
+      shutdown(NO_ERROR);
+    }
+  }
+
+  /** The socket has been closed; pending stream I/O fails. */
+  void closed() {
+    synchronized (this) {
+      closed = true;
+      notifyAll();
+    }
+    for (Http2Exchange stream : streams.values()) {
+      stream.reset();
+    }
+  }
+
+  /** Handles one frame, which is completely buffered. */
+  private void readFrame() throws IOException {
+    ByteBuffer in = connection.in;
+    int length = (in.get() & 0xff) << 16 | (in.get() & 0xff) << 8 | (in.get() & 0xff);
+    int type = in.get() & 0xff;
+    int flags = in.get() & 0xff;
+    int streamId = in.getInt() & 0x7fffffff;
+    byte[] payload = new byte[length];
+    in.get(payload);
+    if (headerBlock != null && (type != CONTINUATION || streamId != headerStream)) {
+      throw new ProtocolException(PROTOCOL_ERROR, "Header block interrupted");
+    }
+    switch (type) {
+      case DATA:
+        onData(streamId, flags, payload);
+        break;
+      case HEADERS:
+        onHeaders(streamId, flags, payload);
+        break;
+      case PRIORITY:
+        if (length != 5) {
+          throw new ProtocolException(FRAME_SIZE_ERROR, "Bad PRIORITY frame");
+        }
+        break;
+      case RST_STREAM:
+        onReset(streamId, payload);
+        break;
+      case SETTINGS:
+        onSettings(streamId, flags, payload);
+        break;
+      case PING:
+        if (length != 8 || streamId != 0) {
+          throw new ProtocolException(PROTOCOL_ERROR, "Bad PING frame");
+        }
+        if ((flags & ACK) == 0) {
+          sendControl(PING, ACK, 0, payload);
+        }
+        break;
+      case GOAWAY:
+        goingAway = true;
+        break;
+      case WINDOW_UPDATE:
+        onWindowUpdate(streamId, payload);
+        break;
+      case CONTINUATION:
+        if (headerBlock == null) {
+          throw new ProtocolException(PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+        }
+        checkHeaderSize(headerBlock.size() + payload.length);
+        headerBlock.write(payload, 0, payload.length);
+        if ((flags & END_HEADERS) != 0) {
+          endHeaders();
+        }
+        break;
+      case PUSH_PROMISE:
+        throw new ProtocolException(PROTOCOL_ERROR, "Clients cannot push");
+      default:
+        // Unknown frame types are ignored
+    }
+  }
+
+  private void onHeaders(int streamId, int flags, byte[] payload) throws IOException {
+    if (streamId == 0 || streamId % 2 == 0) {
+      throw new ProtocolException(PROTOCOL_ERROR, "Bad stream id " + streamId);
+    }
+    int start = (flags & PADDED) != 0 ? 1 : 0;
+    int end = payload.length - padding(flags, payload);
+    if ((flags & PRIORITY_FLAG) != 0) {
+      start += 5;
+    }
+    if (end < start) {
+      throw new ProtocolException(PROTOCOL_ERROR, "Bad padding");
+    }
+    checkHeaderSize(end - start);
+    headerBlock = new ByteArrayOutputStream(end - start);
+    headerBlock.write(payload, start, end - start);
+    headerStream = streamId;
+    headerFlags = flags;
+    if ((flags & END_HEADERS) != 0) {
+      endHeaders();
+    }
+  }
+
+  /**
+   * Refuses a header block that has grown past the header limit before it is complete, so
+   * a client cannot make the server buffer an endless run of CONTINUATION frames.
+   */
+  private static void checkHeaderSize(int size) throws ProtocolException {
+    if (size > NioHttpServer.HEADER_LIMIT) {
+      throw new ProtocolException(ENHANCE_YOUR_CALM, "Header block too large");
+    }
+  }
+
+  private void endHeaders() throws IOException {
+    byte[] block = headerBlock.toByteArray();
+    int streamId = headerStream;
+    boolean endStream = (headerFlags & END_STREAM) != 0;
+    headerBlock = null;
+    List<String[]> fields;
+    try {
+      // Always decoded, even when the stream is refused, to keep the table in step
+      fields = decoder.decode(block, block.length);
+    } catch (IOException e) {
+      throw new ProtocolException(COMPRESSION_ERROR, e.getMessage());
+    }
+    Http2Exchange existing = streams.get(streamId);
+    if (existing != null) {
+      // Trailers end the request body; their fields are not used
+      if (!endStream) {
+        throw new ProtocolException(PROTOCOL_ERROR, "Trailers without END_STREAM");
+      }
+      existing.receiveEnd();
+      return;
+    }
+    if (streamId <= lastStreamId) {
+      // Trailers of a stream that has already been answered and reset
+      return;
+    }
+    lastStreamId = streamId;
+    if (goingAway || streams.size() >= maxStreams) {
+      writeReset(streamId, REFUSED_STREAM);
+      return;
+    }
+    String method = null;
+    String path = null;
+    String authority = null;
+    Headers headers = new Headers();
+    for (String[] field : fields) {
+      switch (field[0]) {
+        case ":method":
+          method = field[1];
+          break;
+        case ":path":
+          path = field[1];
+          break;
+        case ":authority":
+          authority = field[1];
+          break;
+        default:
+          if (!field[0].startsWith(":")) {
+            headers.add(field[0], field[1]);
+          }
+      }
+    }
+    URI uri;
+    try {
+      uri = path == null || method == null ? null : new URI(path);
+    } catch (URISyntaxException e) {
+      uri = null;
+    }
+    if (uri == null) {
+      writeReset(streamId, PROTOCOL_ERROR);
+      return;
+    }
+    if (authority != null && !headers.containsKey("Host")) {
+      headers.set("Host", authority);
+    }
+    open(new Http2Exchange(this, streamId, method, uri, headers, endStream));
+  }
+
+  /**
+   * Registers a new stream and runs it on the server executor. A stream the executor has no
+   * room for is refused, which tells the client it may safely retry it.
+   */
+  private void open(Http2Exchange stream) {
+    synchronized (this) {
+      stream.sendWindow = peerInitialWindow;
+    }
+    streams.put(stream.id, stream);
+    try {
+      server.getExecutor().execute(() -> server.handle(stream));
+    } catch (RejectedExecutionException e) {
+      streams.remove(stream.id);
+      writeReset(stream.id, REFUSED_STREAM);
+    }
+  }
+
+  private void onData(int streamId, int flags, byte[] payload) throws IOException {
+    if (streamId == 0) {
+      throw new ProtocolException(PROTOCOL_ERROR, "DATA on stream 0");
+    }
+    synchronized (this) {
+      receiveWindow -= payload.length;
+      if (receiveWindow < 0) {
+        throw new ProtocolException(FLOW_CONTROL_ERROR, "Connection window exceeded");
+      }
+    }
+    int start = (flags & PADDED) != 0 ? 1 : 0;
+    int end = payload.length - padding(flags, payload);
+    if (end < start) {
+      throw new ProtocolException(PROTOCOL_ERROR, "Bad padding");
+    }
+    Http2Exchange stream = streams.get(streamId);
+    if (stream == null) {
+      if (streamId > lastStreamId) {
+        throw new ProtocolException(PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+      }
+      // Still in flight when the stream was answered and reset
+      consumed(null, payload.length);
+      return;
+    }
+    boolean accepted;
+    try {
+      accepted = stream.receive(payload, start, end - start, payload.length);
+    } catch (IOException e) {
+      throw new ProtocolException(FLOW_CONTROL_ERROR, e.getMessage());
+    }
+    if (!accepted) {
+      consumed(null, payload.length);
+      writeReset(streamId, STREAM_CLOSED);
+      return;
+    }
+    // Padding counts against the windows but is never read
+    consumed(stream, payload.length - (end - start));
+    if ((flags & END_STREAM) != 0) {
+      stream.receiveEnd();
+    }
+  }
+
+  /** Trailing padding bytes of a frame that may carry the PADDED flag. */
+  private static int padding(int flags, byte[] payload) throws IOException {
+    if ((flags & PADDED) == 0) {
+      return 0;
+    }
+    if (payload.length == 0) {
+      throw new ProtocolException(PROTOCOL_ERROR, "Missing pad length");
+    }
+    return payload[0] & 0xff;
+  }
+
+  private void onReset(int streamId, byte[] payload) throws IOException {
+    if (payload.length != 4 || streamId == 0) {
+      throw new ProtocolException(PROTOCOL_ERROR, "Bad RST_STREAM frame");
+    }
+    Http2Exchange stream = streams.remove(streamId);
+    if (stream != null) {
+      stream.reset();
+      synchronized (this) {
+        notifyAll();
+      }
+    }
+  }
+
+  private void onSettings(int streamId, int flags, byte[] payload) throws IOException {
+    if (streamId != 0) {
+      throw new ProtocolException(PROTOCOL_ERROR, "SETTINGS on a stream");
+    }
+    if ((flags & ACK) != 0) {
+      return;
+    }
+    applySettings(payload);
+    sendControl(SETTINGS, ACK, 0, new byte[0]);
+  }
+
+  private void applySettings(byte[] payload) throws ProtocolException {
+    if (payload.length % 6 != 0) {
+      throw new ProtocolException(FRAME_SIZE_ERROR, "Bad SETTINGS frame");
+    }
+    ByteBuffer settings = ByteBuffer.wrap(payload);
+    while (settings.hasRemaining()) {
+      int id = settings.getShort() & 0xffff;
+      long value = settings.getInt() & 0xffffffffL;
+      if (id == 0x2 && value > 1) {
+        throw new ProtocolException(PROTOCOL_ERROR, "Bad SETTINGS_ENABLE_PUSH");
+      } else if (id == 0x4) {
+        if (value > MAX_WINDOW) {
+          throw new ProtocolException(FLOW_CONTROL_ERROR, "Bad SETTINGS_INITIAL_WINDOW_SIZE");
+        }
+        synchronized (this) {
+          long delta = value - peerInitialWindow;
+          peerInitialWindow = value;
+          for (Http2Exchange stream : streams.values()) {
+            stream.sendWindow += delta;
+          }
+          notifyAll();
+        }
+      } else if (id == 0x5 && (value < MAX_FRAME || value > 0xffffff)) {
+        throw new ProtocolException(PROTOCOL_ERROR, "Bad SETTINGS_MAX_FRAME_SIZE");
+      }
+    }
+  }
+
+  private void onWindowUpdate(int streamId, byte[] payload) throws IOException {
+    if (payload.length != 4) {
+      throw new ProtocolException(FRAME_SIZE_ERROR, "Bad WINDOW_UPDATE frame");
+    }
+    int increment = ByteBuffer.wrap(payload).getInt() & 0x7fffffff;
+    if (increment == 0 && streamId == 0) {
+      throw new ProtocolException(PROTOCOL_ERROR, "Zero window increment");
+    }
+    boolean overflow = false;
+    synchronized (this) {
+      if (streamId == 0) {
+        sendWindow += increment;
+        if (sendWindow > MAX_WINDOW) {
+          throw new ProtocolException(FLOW_CONTROL_ERROR, "Connection window overflow");
+        }
+      } else {
+        Http2Exchange stream = streams.get(streamId);
+        if (stream != null) {
+          stream.sendWindow += increment;
+          overflow = increment == 0 || stream.sendWindow > MAX_WINDOW;
+        }
+      }
+      notifyAll();
+    }
+    if (overflow) {
+      Http2Exchange stream = streams.remove(streamId);
+      if (stream != null) {
+        stream.reset();
+      }
+      writeReset(streamId, FLOW_CONTROL_ERROR);
+    }
+  }
+
+  /**
+   * Takes up to {@code want} bytes of send window from a stream and the connection, waiting
+   * for the client to open them.
+   *
+   * @return bytes that may be sent, at least 1
+   * @throws IOException if the stream or connection closes or no window opens in time
+   */
+  int reserve(Http2Exchange stream, int want) throws IOException {
+    long timeout = server.idleTimeoutMillis();
+    long deadline = System.currentTimeMillis() + timeout;
+    synchronized (this) {
+      while (true) {
+        if (closed || stream.isReset()) {
+          throw new IOException("Stream " + stream.id + " was closed");
+        }
+        long n = Math.min(want, Math.min(sendWindow, stream.sendWindow));
+        if (n > 0) {
+          sendWindow -= n;
+          stream.sendWindow -= n;
+          return (int) n;
+        }
+        long wait = deadline - System.currentTimeMillis();
+        if (wait <= 0) {
+          throw new SocketTimeoutException("Flow-control window closed for " + timeout + " ms");
+        }
+        try {
+          wait(wait);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns request body bytes that have been read or discarded to the client's windows.
+   * Updates are batched until half a window has been consumed.
+   *
+   * @param stream stream the bytes belonged to, or null for the connection window only
+   * @param n bytes consumed
+   */
+  void consumed(Http2Exchange stream, int n) {
+    int connectionIncrement = 0;
+    int streamIncrement = 0;
+    synchronized (this) {
+      unacknowledged += n;
+      if (unacknowledged >= CONNECTION_WINDOW / 2) {
+        connectionIncrement = unacknowledged;
+        receiveWindow += unacknowledged;
+        unacknowledged = 0;
+      }
+      if (stream != null) {
+        streamIncrement = stream.acknowledge(n);
+      }
+    }
+    if (connectionIncrement > 0) {
+      writeWindowUpdate(0, connectionIncrement);
+    }
+    if (streamIncrement > 0) {
+      writeWindowUpdate(stream.id, streamIncrement);
+    }
+  }
+
+  /** A stream's exchange is complete; it no longer counts against the stream limit. */
+  void streamFinished(Http2Exchange stream) {
+    streams.remove(stream.id, stream);
+    connection.touch();
+  }
+
+  private void sendSettings() {
+    ByteBuffer settings = ByteBuffer.allocate(18);
+    settings.putShort((short) 0x3).putInt(maxStreams);
+    settings.putShort((short) 0x4).putInt(STREAM_WINDOW);
+    settings.putShort((short) 0x6).putInt(NioHttpServer.HEADER_LIMIT);
+    sendControl(SETTINGS, 0, 0, settings.array());
+    writeWindowUpdate(0, CONNECTION_WINDOW - DEFAULT_WINDOW);
+  }
+
+  /** Sends GOAWAY and closes the connection once it has been written. */
+  private void shutdown(int code) {
+    ByteBuffer payload = ByteBuffer.allocate(8).putInt(lastStreamId).putInt(code);
+    control.add(encode(GOAWAY, 0, 0, payload.array()));
+    closing = true;
+    flushControl();
+  }
+
+  void writeReset(int streamId, int code) {
+    sendControl(RST_STREAM, 0, streamId, ByteBuffer.allocate(4).putInt(code).array());
+  }
+
+  private void writeWindowUpdate(int streamId, int increment) {
+    sendControl(WINDOW_UPDATE, 0, streamId, ByteBuffer.allocate(4).putInt(increment).array());
+  }
+
+  private static ByteBuffer encode(int type, int flags, int streamId, byte[] payload) {
+    ByteBuffer buffer = ByteBuffer.allocate(9 + payload.length);
+    buffer.put((byte) (payload.length >>> 16)).put((byte) (payload.length >>> 8));
+    buffer.put((byte) payload.length).put((byte) type).put((byte) flags).putInt(streamId);
+    return buffer.put(payload).flip();
+  }
+
+  /** Queues a control frame; safe on the reactor, as it never waits for the socket. */
+  private void sendControl(int type, int flags, int streamId, byte[] payload) {
+    control.add(encode(type, flags, streamId, payload));
+    flushControl();
+  }
+
+  /**
+   * Writes queued control frames if the socket takes them now, and otherwise leaves them to
+   * an executor task, which may wait.
+   */
+  private void flushControl() {
+    if (writeLock.tryLock()) {
+      try {
+        if (writeControl(false)) {
+          return;
+        }
+      } catch (IOException e) {
+        connection.close();
+        return;
+      } finally {
+        writeLock.unlock();
+      }
+    }
+    if (flushScheduled.compareAndSet(false, true)) {
+      try {
+        server.getExecutor().execute(() -> {
+          flushScheduled.set(false);
+          writeLock.lock();
+          try {
+            writeControl(true);
+          } catch (IOException e) {
+            connection.close();
+          } finally {
+            writeLock.unlock();
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        connection.close();
+      }
+    }
+  }
+
+  /**
+   * Writes queued control frames; called with the write lock held. Closes the connection
+   * once a queued GOAWAY has gone out.
+   *
+   * @param block whether to wait for the socket
+   * @return false if the socket filled up before the queue was empty
+   */
+  private boolean writeControl(boolean block) throws IOException {
+    while (true) {
+      if (pending == null || !pending.hasRemaining()) {
+        pending = control.poll();
+        if (pending == null) {
+          if (closing) {
+            connection.close();
+          }
+          return true;
+        }
+      }
+      if (block) {
+        connection.write(pending);
+      } else {
+        connection.channel.write(pending);
+        if (pending.hasRemaining()) {
+          return false;
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes a header block as one HEADERS frame and as many CONTINUATION frames as needed,
+   * with no other frame in between.
+   */
+  void writeHeaders(int streamId, byte[] block, boolean endStream) throws IOException {
+    writeLock.lock();
+    try {
+      int off = 0;
+      do {
+        int n = Math.min(block.length - off, MAX_FRAME);
+        int flags = off + n == block.length ? END_HEADERS : 0;
+        if (off == 0) {
+          writeFrame(HEADERS, flags | (endStream ? END_STREAM : 0), streamId, block, off, n);
+        } else {
+          writeFrame(CONTINUATION, flags, streamId, block, off, n);
+        }
+        off += n;
+      } while (off < block.length);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Writes one frame from a stream's worker, after any queued control frames.
+   *
+   * @param payload buffer holding the payload
+   * @param off first payload byte
+   * @param len payload length, at most {@link #MAX_FRAME}
+   */
+  void writeFrame(int type, int flags, int streamId, byte[] payload, int off, int len)
+      throws IOException {
+    writeLock.lock();
+    try {
+      writeControl(true);
+      frame.clear();
+      frame.put((byte) (len >>> 16)).put((byte) (len >>> 8)).put((byte) len);
+      frame.put((byte) type).put((byte) flags).putInt(streamId);
+      frame.put(payload, off, len);
+      frame.flip();
+      connection.write(frame);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  NioHttpServer.Connection connection() {
+    return connection;
+  }
+
+  NioHttpServer server() {
+    return server;
+  }
+
+  /** A connection error: the connection is closed with GOAWAY and this code. */
+  private static final class ProtocolException extends IOException {
+    private static final long serialVersionUID = 1L;
+    private final int code;
+
+    ProtocolException(int code, String message) {
+      super(message);
+      this.code = code;
+    }
+  }
+}
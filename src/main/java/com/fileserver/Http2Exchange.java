@@ -0,0 +1,492 @@
+package com.fileserver;
+
+import com.sun.net.httpserver.Headers;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One HTTP/2 stream of an {@link Http2Connection}, presented to handlers as an exchange.
+ *
+ * <p>Response lengths follow the JDK server's contract as {@link NioExchange} does: -1 means no
+ * body, 0 means a body of unknown length, which needs no chunking here since DATA frames carry
+ * their own lengths. Completing a stream whose request body was not read to the end resets it
+ * with {@code NO_ERROR}, telling the client to stop sending; the connection stays open for the
+ * other streams.
+ */
+final class Http2Exchange extends NioHttpServer.EngineExchange {
+  /** HTTP/1.1 connection headers, which are not allowed in HTTP/2 responses. */
+  private static final Set<String> CONNECTION_HEADERS = Set.of("connection", "keep-alive",
+      "proxy-connection", "transfer-encoding", "upgrade");
+
+  final int id;
+  private final Http2Connection connection;
+  private final String method;
+  private final URI uri;
+  private final Headers requestHeaders;
+  private final Headers responseHeaders = new Headers();
+  private final AtomicBoolean finished = new AtomicBoolean();
+  private final boolean expectContinue;
+  private final ResponseBody responseBody = new ResponseBody();
+  private InputStream in = new RequestBody();
+  private OutputStream out = responseBody;
+  private boolean continueSent;
+  private int responseCode = -1;
+
+  // Flow control, guarded by the connection
+  long sendWindow;
+  private long receiveWindow = Http2Connection.STREAM_WINDOW;
+  private int unacknowledged;
+
+  // Request body received and not read yet, guarded by this
+  private final ArrayDeque<ByteBuffer> received = new ArrayDeque<>();
+  private int buffered;
+  private boolean endOfInput;
+  private boolean reset;
+
+  Http2Exchange(Http2Connection connection, int id, String method, URI uri,
+      Headers requestHeaders, boolean endOfInput) {
+    this.connection = connection;
+    this.id = id;
+    this.method = method;
+    this.uri = uri;
+    this.requestHeaders = requestHeaders;
+    this.endOfInput = endOfInput;
+    this.expectContinue = !endOfInput
+        && "100-continue".equalsIgnoreCase(requestHeaders.getFirst("Expect"));
+  }
+
+  /**
+   * Reactor thread: queues request body bytes.
+   *
+   * @param frameLength length of the DATA frame, which counts against the stream window
+   * @return false if the stream had already ended its request body
+   * @throws IOException if the client overran the stream window
+   */
+  boolean receive(byte[] data, int off, int len, int frameLength) throws IOException {
+    synchronized (connection) {
+      receiveWindow -= frameLength;
+      if (receiveWindow < 0) {
+        throw new IOException("Stream " + id + " window exceeded");
+      }
+    }
+    synchronized (this) {
+      if (endOfInput) {
+        return false;
+      }
+      if (len > 0 && !reset) {
+        received.add(ByteBuffer.wrap(data, off, len));
+        buffered += len;
+      }
+      notifyAll();
+      return true;
+    }
+  }
+
+  /** Reactor thread: the request body is complete. */
+  synchronized void receiveEnd() {
+    endOfInput = true;
+    notifyAll();
+  }
+
+  /** The client reset the stream or the connection closed; pending I/O fails. */
+  synchronized void reset() {
+    reset = true;
+    notifyAll();
+  }
+
+  synchronized boolean isReset() {
+    return reset;
+  }
+
+  /**
+   * Counts consumed body bytes towards the next stream WINDOW_UPDATE. Called with the
+   * connection locked.
+   *
+   * @return the increment to send now, or 0
+   */
+  int acknowledge(int n) {
+    unacknowledged += n;
+    if (unacknowledged < Http2Connection.STREAM_WINDOW / 2 || inputEnded()) {
+      return 0;
+    }
+    int increment = unacknowledged;
+    receiveWindow += increment;
+    unacknowledged = 0;
+    return increment;
+  }
+
+  private synchronized boolean inputEnded() {
+    return endOfInput || reset;
+  }
+
+  @Override
+  public Headers getRequestHeaders() {
+    return requestHeaders;
+  }
+
+  @Override
+  public Headers getResponseHeaders() {
+    return responseHeaders;
+  }
+
+  @Override
+  public URI getRequestURI() {
+    return uri;
+  }
+
+  @Override
+  public String getRequestMethod() {
+    return method;
+  }
+
+  /**
+   * Completes the exchange. A response that was never started or cannot be finished resets
+   * the stream; otherwise the response body is closed.
+   */
+  @Override
+  public void close() {
+    if (finished.get()) {
+      return;
+    }
+    if (responseCode >= 0) {
+      try {
+        out.close();
+        responseBody.close();
+      } catch (IOException e) {
+        // Aborted below
+      }
+    }
+    abort();
+  }
+
+  @Override
+  public InputStream getRequestBody() {
+    return in;
+  }
+
+  @Override
+  public OutputStream getResponseBody() {
+    return out;
+  }
+
+  @Override
+  public void sendResponseHeaders(int code, long length) throws IOException {
+    if (responseCode >= 0) {
+      throw new IOException("Headers already sent");
+    }
+    if (finished.get()) {
+      throw new IOException("Exchange already closed");
+    }
+    responseCode = code;
+    boolean noBody = length < 0 || method.equals("HEAD") || code == 204 || code == 304
+        || code < 200;
+    if (!noBody && length > 0) {
+      responseHeaders.set("Content-Length", Long.toString(length));
+    }
+    responseBody.start(noBody, length);
+    if (!responseHeaders.containsKey("Date")) {
+      responseHeaders.set("Date", httpDate());
+    }
+    ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+    Hpack.encode(block, ":status", Integer.toString(code));
+    for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+      String name = header.getKey().toLowerCase(Locale.ROOT);
+      if (!CONNECTION_HEADERS.contains(name)) {
+        for (String value : header.getValue()) {
+          Hpack.encode(block, name, value);
+        }
+      }
+    }
+    try {
+      connection.writeHeaders(id, block.toByteArray(), noBody);
+    } catch (IOException e) {
+      abort();
+      throw e;
+    }
+    if (noBody) {
+      complete();
+    }
+  }
+
+  @Override
+  public InetSocketAddress getRemoteAddress() {
+    return connection.connection().remoteAddress();
+  }
+
+  @Override
+  public int getResponseCode() {
+    return responseCode;
+  }
+
+  @Override
+  public InetSocketAddress getLocalAddress() {
+    return connection.connection().localAddress();
+  }
+
+  @Override
+  public String getProtocol() {
+    return "HTTP/2.0";
+  }
+
+  @Override
+  public void setStreams(InputStream in, OutputStream out) {
+    if (in != null) {
+      this.in = in;
+    }
+    if (out != null) {
+      this.out = out;
+    }
+  }
+
+  /** Sends an interim 100 response before the first body read of a request that asked. */
+  private void sendContinue() throws IOException {
+    if (expectContinue && !continueSent && responseCode < 0) {
+      continueSent = true;
+      ByteArrayOutputStream block = new ByteArrayOutputStream(8);
+      Hpack.encode(block, ":status", "100");
+      connection.writeHeaders(id, block.toByteArray(), false);
+    }
+  }
+
+  /**
+   * Sends DATA frames as the flow-control windows allow.
+   *
+   * @param endStream whether the last frame ends the response
+   */
+  private void sendData(byte[] data, int off, int len, boolean endStream) throws IOException {
+    if (len == 0 && endStream) {
+      connection.writeFrame(Http2Connection.DATA, Http2Connection.END_STREAM, id, data, off, 0);
+      return;
+    }
+    while (len > 0) {
+      int n = connection.reserve(this, Math.min(len, Http2Connection.MAX_FRAME));
+      boolean last = n == len && endStream;
+      connection.writeFrame(Http2Connection.DATA, last ? Http2Connection.END_STREAM : 0, id,
+          data, off, n);
+      off += n;
+      len -= n;
+    }
+  }
+
+  /** The response is complete; reset the stream if the client is still sending. */
+  private void complete() {
+    if (!finished.compareAndSet(false, true)) {
+      return;
+    }
+    release(Http2Connection.NO_ERROR);
+  }
+
+  /** Ends the stream with {@code INTERNAL_ERROR}, e.g. after a handler failure. */
+  @Override
+  void abort() {
+    if (finished.compareAndSet(false, true)) {
+      release(Http2Connection.INTERNAL_ERROR);
+    }
+  }
+
+  private void release(int code) {
+    int unread;
+    boolean open;
+    synchronized (this) {
+      open = !endOfInput && !reset;
+      unread = buffered;
+      received.clear();
+      buffered = 0;
+      endOfInput = true;
+    }
+    connection.streamFinished(this);
+    if (open || code != Http2Connection.NO_ERROR) {
+      connection.writeReset(id, code);
+    }
+    if (unread > 0) {
+      connection.consumed(null, unread);
+    }
+  }
+
+  /** Request body fed by the connection's reactor. */
+  private final class RequestBody extends InputStream {
+
+    @Override
+    public int read() throws IOException {
+      byte[] one = new byte[1];
+      return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      sendContinue();
+      int n;
+      long timeout = connection.server().idleTimeoutMillis();
+      synchronized (Http2Exchange.this) {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (received.isEmpty() && !endOfInput && !reset) {
+          long wait = deadline - System.currentTimeMillis();
+          if (wait <= 0) {
+            throw new SocketTimeoutException("No request body for " + timeout + " ms");
+          }
+          try {
+            Http2Exchange.this.wait(wait);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+          }
+        }
+        if (received.isEmpty()) {
+          if (reset && !endOfInput) {
+            throw new IOException("Stream " + id + " was reset");
+          }
+          return -1;
+        }
+        ByteBuffer head = received.peek();
+        n = Math.min(len, head.remaining());
+        head.get(b, off, n);
+        if (!head.hasRemaining()) {
+          received.poll();
+        }
+        buffered -= n;
+      }
+      connection.consumed(Http2Exchange.this, n);
+      return n;
+    }
+  }
+
+  /** Response body, sent as DATA frames of at most one frame's worth of buffered bytes. */
+  private final class ResponseBody extends OutputStream implements FileTransfer.Sink {
+    private final byte[] buffer = new byte[Http2Connection.MAX_FRAME];
+    private int count;
+    private boolean started;
+    private boolean closed;
+    private boolean noBody;
+    /** Declared body length, or -1 for any length. */
+    private long length;
+    private long written;
+
+    void start(boolean noBody, long length) {
+      this.started = true;
+      this.noBody = noBody;
+      this.length = length > 0 ? length : -1;
+    }
+
+    private void check(long n) throws IOException {
+      if (closed) {
+        throw new IOException("Stream is closed");
+      }
+      if (!started) {
+        throw new IOException("Response headers not sent yet");
+      }
+      if (noBody && n > 0) {
+        throw new IOException("Response has no body");
+      }
+      if (length >= 0 && written + n > length) {
+        throw new IOException("Too many bytes to write to stream");
+      }
+      written += n;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      check(len);
+      while (len > 0) {
+        if (count == buffer.length) {
+          sendData(buffer, 0, count, false);
+          count = 0;
+        }
+        int n = Math.min(len, buffer.length - count);
+        System.arraycopy(b, off, buffer, count, n);
+        count += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    /**
+     * Streams part of a file, reading from it only as fast as the client's windows open, so
+     * a slow client holds a window's worth of memory rather than the whole file.
+     */
+    @Override
+    public void transferFrom(FileChannel source, long position, long count) throws IOException {
+      check(count);
+      flush();
+      byte[] chunk = buffer;
+      long sent = 0;
+      while (sent < count) {
+        int n = connection.reserve(Http2Exchange.this,
+            (int) Math.min(count - sent, Http2Connection.MAX_FRAME));
+        ByteBuffer target = ByteBuffer.wrap(chunk, 0, n);
+        while (target.hasRemaining()) {
+          if (source.read(target, position + sent + target.position()) < 0) {
+            throw new IOException("File truncated after " + (position + sent) + " bytes");
+          }
+        }
+        connection.writeFrame(Http2Connection.DATA, 0, id, chunk, 0, n);
+        sent += n;
+      }
+    }
+
+    /** Frames a buffer window by window, copying it once into the frame payload. */
+    @Override
+    public void transferFrom(ByteBuffer source) throws IOException {
+      check(source.remaining());
+      flush();
+      while (source.hasRemaining()) {
+        int n = connection.reserve(Http2Exchange.this,
+            Math.min(source.remaining(), Http2Connection.MAX_FRAME));
+        source.get(buffer, 0, n);
+        connection.writeFrame(Http2Connection.DATA, 0, id, buffer, 0, n);
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (!closed && count > 0) {
+        sendData(buffer, 0, count, false);
+        count = 0;
+      }
+    }
+
+    /** Sends what is buffered with END_STREAM; a short fixed-length body resets the stream. */
+    @Override
+    public void close() throws IOException {
+      if (closed || finished.get()) {
+        return;
+      }
+      closed = true;
+      if (!started) {
+        abort();
+        return;
+      }
+      if (length >= 0 && written < length) {
+        abort();
+        throw new IOException("Insufficient bytes written to stream");
+      }
+      try {
+        sendData(buffer, 0, count, true);
+      } catch (IOException e) {
+        abort();
+        throw e;
+      }
+      complete();
+    }
+  }
+}
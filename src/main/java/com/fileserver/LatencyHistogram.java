@@ -0,0 +1,96 @@
+package com.fileserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent latency histogram with log-linear buckets, in the style of HdrHistogram.
+ *
+ * <p>Values below 128 get a bucket each; above that every power of two is split into 64
+ * buckets, so a recorded value is reported within about 1.6% of its true value at any
+ * magnitude while the whole range of a {@code long} fits in a few thousand counters.
+ * Recording is a single atomic increment, so many request threads can share one histogram.
+ */
+final class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 6;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int LINEAR = 2 * SUB_BUCKETS;
+  private static final int BUCKETS = LINEAR + (64 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder total = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Records one value.
+   *
+   * @param value value to record; negative values count as 0
+   */
+  void record(long value) {
+    long v = Math.max(value, 0);
+    counts.incrementAndGet(index(v));
+    total.increment();
+    sum.add(v);
+    max.accumulateAndGet(v, Math::max);
+  }
+
+  /** Number of recorded values. */
+  long count() {
+    return total.sum();
+  }
+
+  /** Largest recorded value, exactly. */
+  long max() {
+    return max.get();
+  }
+
+  /** Mean of the recorded values, or 0 if none were recorded. */
+  double mean() {
+    long n = count();
+    return n == 0 ? 0 : (double) sum.sum() / n;
+  }
+
+  /**
+   * Returns the value at a percentile.
+   *
+   * @param percentile between 0 and 100
+   * @return the highest value equivalent to the bucket holding that rank, capped at the
+   *     maximum, or 0 if nothing was recorded
+   */
+  long percentile(double percentile) {
+    long n = count();
+    if (n == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(highestValue(i), max());
+      }
+    }
+    return max();
+  }
+
+  static int index(long value) {
+    if (value < LINEAR) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    int mantissa = (int) (value >>> shift);
+    return LINEAR + (shift - 1) * SUB_BUCKETS + (mantissa - SUB_BUCKETS);
+  }
+
+  static long highestValue(int index) {
+    if (index < LINEAR) {
+      return index;
+    }
+    int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+    long mantissa = SUB_BUCKETS + (index - LINEAR) % SUB_BUCKETS;
+    long next = (mantissa + 1) << shift;
+    return next <= 0 ? Long.MAX_VALUE : next - 1;
+  }
+}
@@ -0,0 +1,172 @@
+package com.fileserver;
+
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Moves an existing storage directory to another {@link StorageLayout}, e.g. from flat to
+ * sharded.
+ *
+ * <p>Safe to run while the server is up with the target layout configured: the server finds
+ * not-yet-moved files through {@link StorageLayout#locate}, moves a flat file named like a
+ * shard directory out of the way itself when an upload needs that directory, and a file is
+ * never moved over a newer upload that already landed at its target path. Digest records
+ * move along with their files, again never over a record already at the target. Dotfiles
+ * such as {@code .gitkeep} are housekeeping and stay where they are; {@code locate} still
+ * finds any that were uploaded.
+ * Usage: {@code java -cp mini-file-server.jar com.fileserver.LayoutMigration <storage>
+ * <depth>}.
+ */
+final class LayoutMigration {
+  private final Path storage;
+  private final Path records;
+  private final StorageLayout target;
+
+  /**
+   * Creates a migration.
+   *
+   * @param storage storage directory
+   * @param target layout to move files into
+   */
+  LayoutMigration(Path storage, StorageLayout target) {
+    this.storage = storage;
+    this.records = storage.resolve(MiniFileServer.INTERNAL_DIR).resolve("digests");
+    this.target = target;
+  }
+
+  /**
+   * Command line entry point.
+   *
+   * @param args storage directory and target depth
+   * @throws IOException if the migration fails; rerunning it continues where it stopped
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: LayoutMigration <storage> <depth>");
+      System.exit(2);
+    }
+    StorageLayout layout = new StorageLayout(Integer.parseInt(args[1]));
+    int moved = new LayoutMigration(Paths.get(args[0]), layout).run();
+    System.out.println("Moved " + moved + " files to layout depth " + layout.depth());
+  }
+
+  /**
+   * Moves every stored file that is not yet where the target layout puts it.
+   *
+   * @return number of files moved
+   * @throws IOException if the storage directory cannot be walked or a file cannot be moved
+   */
+  int run() throws IOException {
+    List<Path> files;
+    try (Stream<Path> walk = Files.walk(storage)) {
+      files = walk.filter(path -> !path.startsWith(storage.resolve(MiniFileServer.INTERNAL_DIR)))
+          .filter(path -> !path.getFileName().toString().startsWith("."))
+          .filter(Files::isRegularFile)
+          .sorted(Comparator.comparing(this::order))
+          .collect(Collectors.toList());
+    }
+    int moved = 0;
+    for (Path file : files) {
+      String name = file.getFileName().toString();
+      Path destination = target.resolve(storage, name);
+      if (!destination.equals(file) && move(file, destination, name)) {
+        moved++;
+      }
+    }
+    removeEmptyDirectories(storage);
+    removeEmptyDirectories(records);
+    return moved;
+  }
+
+  /**
+   * Root files named like a shard directory go first, then the other root files, so a flat
+   * file such as {@code 3f} is out of the way before a directory of that name is needed.
+   */
+  private int order(Path file) {
+    if (!file.getParent().equals(storage)) {
+      return 2;
+    }
+    return file.getFileName().toString().length() == 2 ? 0 : 1;
+  }
+
+  private boolean move(Path file, Path destination, String name) throws IOException {
+    Path relative = storage.relativize(file);
+    Path record = records.resolve(relative.toString());
+    Files.createDirectories(destination.getParent());
+    try {
+      // Linking fails if the target exists, so a newer upload there is never overwritten
+      Files.createLink(destination, file);
+    } catch (FileAlreadyExistsException e) {
+      Files.deleteIfExists(file);
+      Files.deleteIfExists(record);
+      return false;
+    } catch (UnsupportedOperationException | FileSystemException e) {
+      if (Files.exists(destination)) {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(record);
+        return false;
+      }
+      Files.move(file, destination);
+      moveRecord(record, name);
+      return true;
+    }
+    moveRecord(record, name);
+    Files.delete(file);
+    return true;
+  }
+
+  private void moveRecord(Path record, String name) throws IOException {
+    if (!Files.exists(record)) {
+      return;
+    }
+    Path destination = target.resolve(records, name);
+    Files.createDirectories(destination.getParent());
+    try {
+      // As for files: a record already at the target belongs to a newer upload and wins
+      Files.createLink(destination, record);
+    } catch (FileAlreadyExistsException e) {
+      // Dropped below
+    } catch (UnsupportedOperationException | FileSystemException e) {
+      if (!Files.exists(destination)) {
+        try {
+          Files.move(record, destination);
+          return;
+        } catch (FileAlreadyExistsException raced) {
+          // Dropped below
+        }
+      }
+    }
+    Files.deleteIfExists(record);
+  }
+
+  private void removeEmptyDirectories(Path root) throws IOException {
+    if (!Files.isDirectory(root)) {
+      return;
+    }
+    List<Path> dirs;
+    try (Stream<Path> walk = Files.walk(root)) {
+      dirs = walk.filter(Files::isDirectory)
+          .filter(path -> !path.equals(root))
+          .filter(path -> !path.startsWith(storage.resolve(MiniFileServer.INTERNAL_DIR))
+              || root.equals(records))
+          .sorted(Comparator.reverseOrder())
+          .collect(Collectors.toList());
+    }
+    for (Path dir : dirs) {
+      try {
+        Files.delete(dir);
+      } catch (DirectoryNotEmptyException e) {
+        // Still holds files at this depth
+      }
+    }
+  }
+}
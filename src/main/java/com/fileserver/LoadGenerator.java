@@ -0,0 +1,303 @@
+package com.fileserver;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator for a running server.
+ *
+ * <p>Requests are issued on a fixed schedule, one every {@code 1/rate} seconds, whether or not
+ * earlier requests have completed, and each latency is measured from the moment the request
+ * was due rather than from when it was actually sent. A server that stalls therefore shows up
+ * in the percentiles instead of quietly slowing the generator down (coordinated omission).
+ * Each request runs on its own virtual thread when the JVM has them.
+ *
+ * <p>Several rates can be given to walk up a saturation curve; each step prints one line per
+ * operation with achieved throughput and latency percentiles:
+ *
+ * <pre>
+ * java -cp mini-file-server.jar com.fileserver.LoadGenerator --url=http://localhost:8080 \
+ *     --rates=100,200,400,800 --duration=30 --upload-ratio=0.1 --size=64k
+ * </pre>
+ */
+final class LoadGenerator {
+  private static final String PREFIX = "loadgen-";
+
+  private final Options options;
+  private final HttpClient client;
+  private final byte[] payload;
+
+  LoadGenerator(Options options) {
+    this.options = options;
+    this.client = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_1_1)
+        .connectTimeout(Duration.ofSeconds(5))
+        .build();
+    this.payload = new byte[Math.toIntExact(options.size)];
+    ThreadLocalRandom.current().nextBytes(payload);
+  }
+
+  /**
+   * Runs the generator from the command line.
+   *
+   * @param args {@code --name=value} options, see {@link Options#parse}
+   * @throws Exception if the server cannot be reached
+   */
+  public static void main(String[] args) throws Exception {
+    Options options;
+    try {
+      options = Options.parse(args);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.println(Options.USAGE);
+      System.exit(2);
+      return;
+    }
+    new LoadGenerator(options).run(System.out);
+  }
+
+  /**
+   * Seeds the download files, then runs every rate step in turn.
+   *
+   * @param out where to print the report
+   * @return the results of every step
+   * @throws IOException if seeding fails
+   * @throws InterruptedException if interrupted
+   */
+  List<Step> run(PrintStream out) throws IOException, InterruptedException {
+    seed();
+    out.printf(Locale.ROOT, "%8s %-8s %8s %7s %9s %9s %9s %9s %9s %9s %9s%n", "target/s",
+        "op", "count", "errors", "rate/s", "mean ms", "p50 ms", "p90 ms", "p99 ms",
+        "p99.9 ms", "max ms");
+    List<Step> steps = new ArrayList<>();
+    for (int rate : options.rates) {
+      Step step = step(rate);
+      steps.add(step);
+      step.print(out);
+    }
+    return steps;
+  }
+
+  private void seed() throws IOException, InterruptedException {
+    for (int i = 0; i < options.files; i++) {
+      int status = send(true, PREFIX + i + ".bin");
+      if (status != 200) {
+        throw new IOException("Seeding " + options.url + " failed with status " + status);
+      }
+    }
+  }
+
+  /**
+   * Issues requests at a fixed rate for the configured duration and waits for stragglers.
+   */
+  private Step step(int rate) throws InterruptedException {
+    Step step = new Step(rate);
+    long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+    long duration = TimeUnit.SECONDS.toNanos(options.duration);
+    AtomicInteger outstanding = new AtomicInteger();
+    ExecutorService executor = newExecutor();
+    long start = System.nanoTime();
+    try {
+      for (long i = 0; i * interval < duration; i++) {
+        long due = start + i * interval;
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+          LockSupport.parkNanos(wait);
+        }
+        boolean upload = ThreadLocalRandom.current().nextDouble() < options.uploadRatio;
+        String name = PREFIX + (upload ? "upload-" : "")
+            + ThreadLocalRandom.current().nextInt(options.files) + ".bin";
+        outstanding.incrementAndGet();
+        executor.execute(() -> {
+          try {
+            step.record(upload, send(upload, name), System.nanoTime() - due);
+          } catch (IOException | InterruptedException e) {
+            step.record(upload, -1, System.nanoTime() - due);
+          } finally {
+            outstanding.decrementAndGet();
+          }
+        });
+      }
+      step.elapsed = System.nanoTime() - start;
+      executor.shutdown();
+      if (!executor.awaitTermination(options.timeout, TimeUnit.SECONDS)) {
+        step.abandoned = outstanding.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return step;
+  }
+
+  private int send(boolean upload, String name) throws IOException, InterruptedException {
+    HttpRequest.Builder request;
+    if (upload) {
+      request = HttpRequest.newBuilder(URI.create(options.url + "/upload"))
+          .header("X-Filename", name)
+          .POST(HttpRequest.BodyPublishers.ofByteArray(payload));
+    } else {
+      request = HttpRequest.newBuilder(URI.create(options.url + "/download?name=" + name))
+          .GET();
+    }
+    request.timeout(Duration.ofSeconds(options.timeout));
+    return client.send(request.build(), HttpResponse.BodyHandlers.discarding()).statusCode();
+  }
+
+  private static ExecutorService newExecutor() {
+    if (Runtime.version().feature() >= 21) {
+      return WorkerPools.virtualPerTask();
+    }
+    return Executors.newCachedThreadPool(runnable -> {
+      Thread thread = new Thread(runnable, "loadgen");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /** Settings of a run. */
+  static final class Options {
+    static final String USAGE = "Usage: LoadGenerator [--url=http://localhost:8080]"
+        + " [--rates=100[,200...]] [--duration=30] [--upload-ratio=0.1] [--size=64k]"
+        + " [--files=16] [--timeout=30]";
+
+    String url = "http://localhost:8080";
+    int[] rates = {100};
+    long duration = 30;
+    double uploadRatio = 0.1;
+    long size = 64 << 10;
+    int files = 16;
+    long timeout = 30;
+
+    /**
+     * Parses {@code --name=value} arguments.
+     *
+     * @param args command line arguments
+     * @return the options, with defaults for those not given
+     * @throws IllegalArgumentException if an argument is unknown or invalid
+     */
+    static Options parse(String... args) {
+      Map<String, String> values = new HashMap<>();
+      for (String arg : args) {
+        int eq = arg.indexOf('=');
+        if (!arg.startsWith("--") || eq < 0) {
+          throw new IllegalArgumentException("Invalid argument: " + arg);
+        }
+        values.put(arg.substring(2, eq), arg.substring(eq + 1));
+      }
+      Options options = new Options();
+      try {
+        options.url = stripSlash(values.getOrDefault("url", options.url));
+        String rates = values.remove("rates");
+        if (rates != null) {
+          options.rates = Arrays.stream(rates.split(","))
+              .mapToInt(rate -> Integer.parseInt(rate.trim())).toArray();
+        }
+        options.duration = Long.parseLong(values.getOrDefault("duration", "30"));
+        options.uploadRatio = Double.parseDouble(values.getOrDefault("upload-ratio", "0.1"));
+        options.files = Integer.parseInt(values.getOrDefault("files", "16"));
+        options.timeout = Long.parseLong(values.getOrDefault("timeout", "30"));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid number: " + e.getMessage(), e);
+      }
+      String size = values.get("size");
+      if (size != null) {
+        options.size = ServerConfig.parseSize("size", size);
+      }
+      values.keySet().removeAll(List.of("url", "duration", "upload-ratio", "files", "timeout",
+          "size"));
+      if (!values.isEmpty()) {
+        throw new IllegalArgumentException("Unknown option: --" + values.keySet().iterator()
+            .next());
+      }
+      for (int rate : options.rates) {
+        if (rate <= 0) {
+          throw new IllegalArgumentException("Rates must be positive");
+        }
+      }
+      if (options.duration <= 0 || options.files <= 0 || options.timeout <= 0
+          || options.uploadRatio < 0 || options.uploadRatio > 1
+          || options.size > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Option out of range");
+      }
+      return options;
+    }
+
+    private static String stripSlash(String url) {
+      return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+  }
+
+  /** Outcome of one rate step. */
+  static final class Step {
+    final int rate;
+    final Operation uploads = new Operation("upload");
+    final Operation downloads = new Operation("download");
+    long elapsed;
+    int abandoned;
+
+    Step(int rate) {
+      this.rate = rate;
+    }
+
+    private void record(boolean upload, int status, long nanos) {
+      (upload ? uploads : downloads).record(status, nanos);
+    }
+
+    private void print(PrintStream out) {
+      for (Operation op : List.of(downloads, uploads)) {
+        if (op.latency.count() > 0) {
+          op.print(out, rate, elapsed);
+        }
+      }
+      if (abandoned > 0) {
+        out.printf(Locale.ROOT, "%8d %d requests still running after the timeout%n", rate,
+            abandoned);
+      }
+    }
+  }
+
+  /** Latencies and failures of one operation within a step. */
+  static final class Operation {
+    final String name;
+    /** Microseconds from when each request was due until its response. */
+    final LatencyHistogram latency = new LatencyHistogram();
+    final LongAdder errors = new LongAdder();
+
+    Operation(String name) {
+      this.name = name;
+    }
+
+    private void record(int status, long nanos) {
+      latency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+      if (status < 200 || status >= 300) {
+        errors.increment();
+      }
+    }
+
+    private void print(PrintStream out, int rate, long elapsed) {
+      long count = latency.count();
+      out.printf(Locale.ROOT, "%8d %-8s %8d %7d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+          rate, name, count, errors.sum(), count * 1e9 / elapsed, latency.mean() / 1e3,
+          latency.percentile(50) / 1e3, latency.percentile(90) / 1e3,
+          latency.percentile(99) / 1e3, latency.percentile(99.9) / 1e3, latency.max() / 1e3);
+    }
+  }
+}
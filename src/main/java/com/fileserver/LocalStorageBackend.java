@@ -0,0 +1,195 @@
+package com.fileserver;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Stores each file as a regular file below the storage directory, placed by a
+ * {@link StorageLayout}. Downloads are sent with {@code transferTo}, and a staged upload is
+ * renamed over its target so readers never see a partial file.
+ */
+final class LocalStorageBackend implements StorageBackend {
+  private final Path storage;
+  private final StorageLayout layout;
+  private final FileStore.Durability durability;
+
+  /**
+   * Creates the backend.
+   *
+   * @param storage directory holding stored files
+   * @param layout where names are placed below {@code storage}
+   * @param durability flush policy applied in {@link #store}
+   */
+  LocalStorageBackend(Path storage, StorageLayout layout, FileStore.Durability durability) {
+    this.storage = storage;
+    this.layout = layout;
+    this.durability = durability;
+  }
+
+  @Override
+  public BasicFileAttributes stat(String name) throws IOException {
+    Path primary = layout.resolve(storage, name);
+    BasicFileAttributes attrs;
+    try {
+      attrs = Files.readAttributes(primary, BasicFileAttributes.class);
+    } catch (NoSuchFileException e) {
+      Path located = layout.locate(storage, name);
+      if (located.equals(primary)) {
+        return null;
+      }
+      try {
+        attrs = Files.readAttributes(located, BasicFileAttributes.class);
+      } catch (NoSuchFileException gone) {
+        return null;
+      }
+    }
+    return attrs.isRegularFile() ? attrs : null;
+  }
+
+  @Override
+  public Path path(String name) {
+    return layout.locate(storage, name);
+  }
+
+  @Override
+  public OpenFile openRead(String name) throws IOException {
+    // Open where this layout puts the name without checking first; only files a layout
+    // migration has not moved yet pay for the lookup at the other depths
+    Path primary = layout.resolve(storage, name);
+    try {
+      return open(primary);
+    } catch (NoSuchFileException e) {
+      Path located = layout.locate(storage, name);
+      if (located.equals(primary)) {
+        return null;
+      }
+      try {
+        return open(located);
+      } catch (NoSuchFileException gone) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Opens a file together with its attributes. Java cannot stat an open channel, so the path
+   * is read after the open; a length that disagrees with the channel means the file was
+   * replaced in between, and the open is retried.
+   */
+  private static OpenFile open(Path file) throws IOException {
+    while (true) {
+      FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+      try {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        if (!attrs.isRegularFile()) {
+          throw new NoSuchFileException(file.toString());
+        }
+        if (attrs.size() == channel.size()) {
+          return OpenFile.of(Content.of(channel), attrs, channel);
+        }
+      } catch (IOException | RuntimeException e) {
+        channel.close();
+        throw e;
+      }
+      channel.close();
+    }
+  }
+
+  @Override
+  public BasicFileAttributes store(String name, Path staged) throws IOException {
+    if (durability != FileStore.Durability.NONE) {
+      force(staged);
+    }
+    // Attributes survive the rename; reading them first ties them to this exact file even
+    // if a concurrent upload replaces the name right after.
+    BasicFileAttributes attrs = Files.readAttributes(staged, BasicFileAttributes.class);
+    Path target = layout.resolve(storage, name);
+    layout.createParents(storage, target);
+    try {
+      move(staged, target);
+    } catch (NoSuchFileException e) {
+      // A concurrent layout migration removed the emptied shard directory; recreate it
+      layout.createParents(storage, target);
+      move(staged, target);
+    }
+    if (durability == FileStore.Durability.FULL) {
+      forceDirectory(target.getParent());
+    }
+    return attrs;
+  }
+
+  @Override
+  public boolean delete(String name) throws IOException {
+    return Files.deleteIfExists(layout.locate(storage, name));
+  }
+
+  @Override
+  public List<String> list() throws IOException {
+    if (!Files.isDirectory(storage)) {
+      return List.of();
+    }
+    Path internal = storage.resolve(MiniFileServer.INTERNAL_DIR);
+    try (Stream<Path> walk = Files.walk(storage)) {
+      return walk.filter(path -> !path.startsWith(internal))
+          .filter(Files::isRegularFile)
+          .map(path -> path.getFileName().toString())
+          .collect(Collectors.toList());
+    }
+  }
+
+  @Override
+  public void close() {
+    // Nothing held open between calls
+  }
+
+  /**
+   * Flushes a file's content to disk.
+   *
+   * @param file file to flush
+   * @throws IOException if the file cannot be opened or flushed
+   */
+  static void force(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.force(true);
+    }
+  }
+
+  /**
+   * Flushes a directory so renames into it survive a crash.
+   *
+   * @param dir directory to flush
+   */
+  static void forceDirectory(Path dir) {
+    try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      // Not every platform allows opening a directory; the rename is still atomic there
+    }
+  }
+
+  /**
+   * Renames a file over a target, atomically where the filesystem supports it.
+   *
+   * @param source file to move
+   * @param target destination, replaced if present
+   * @throws IOException if the move fails
+   */
+  static void move(Path source, Path target) throws IOException {
+    try {
+      Files.move(source, target, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+}
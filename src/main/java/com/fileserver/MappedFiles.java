@@ -0,0 +1,305 @@
+package com.fileserver;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Memory mappings of hot files that are too large for the {@link FileCache}.
+ *
+ * <p>A file is mapped once it has been requested {@code minHits} times, and every later
+ * download of it reads the same mapping, so concurrent readers share the page cache instead of
+ * each opening the file and copying it through a transfer buffer. The total mapped length is
+ * capped; the least recently used mapping is dropped to make room. Mappings are reference
+ * counted: a dropped or replaced mapping is unmapped when its last reader releases it, not
+ * when the next garbage collection happens to find it. Lookups take no lock; only mapping,
+ * eviction and invalidation do.
+ *
+ * <p>Only files the server replaces by rename may be mapped. A file truncated in place while
+ * mapped would fault its readers; the storage watcher invalidates files changed externally,
+ * but cannot close that window entirely.
+ */
+final class MappedFiles {
+  private static final Consumer<ByteBuffer> UNMAPPER = unmapper();
+
+  private final long maxBytes;
+  private final long minFileBytes;
+  private final int minHits;
+  private final FileCache.FrequencySketch sketch;
+  /** LRU order and byte accounting; guarded by {@link #lock}. */
+  private final LinkedHashMap<String, Mapping> entries = new LinkedHashMap<>(16, 0.75f, true);
+  /** Lock-free view of {@link #entries} for lookups. */
+  private final Map<String, Mapping> index = new ConcurrentHashMap<>();
+  private final ReentrantLock lock = new ReentrantLock();
+  /** Invalidation counters, one per stripe of names, as in {@link FileCache}. */
+  private final AtomicLongArray generations =
+      new AtomicLongArray(FileCache.GENERATION_STRIPES);
+  private long mappedBytes;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * Creates an empty set of mappings.
+   *
+   * @param maxBytes total length of all mappings; 0 disables mapping
+   * @param minFileBytes smallest file worth mapping, typically the file cache limit
+   * @param minHits requests after which a file counts as hot
+   */
+  MappedFiles(long maxBytes, long minFileBytes, int minHits) {
+    this.maxBytes = maxBytes;
+    this.minFileBytes = minFileBytes;
+    this.minHits = minHits;
+    // Every download that misses the file cache is counted, not just large files
+    this.sketch = FileCache.FrequencySketch.forCapacity(maxBytes);
+  }
+
+  /** Whether anything may be mapped at all. */
+  boolean enabled() {
+    return maxBytes > 0;
+  }
+
+  /**
+   * Looks up a mapping and records the access for the hotness check.
+   *
+   * @param name stored file name
+   * @return the mapping, acquired for the caller who must {@link Mapping#release} it, or null
+   */
+  Mapping acquire(String name) {
+    if (!enabled()) {
+      return null;
+    }
+    sketch.increment(name);
+    Mapping mapping = index.get(name);
+    if (mapping == null || !mapping.acquire()) {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    if (lock.tryLock()) {
+      try {
+        entries.get(name);
+      } finally {
+        lock.unlock();
+      }
+    }
+    return mapping;
+  }
+
+  /**
+   * Returns a token to pass to {@link #map}; mappings that straddle an invalidation of the
+   * same name are discarded so a file replaced mid-open is never served with stale metadata.
+   * Uploads of other names only void a mapping when they share its stripe.
+   *
+   * @param name stored file name
+   * @return current invalidation generation of the name
+   */
+  long generation(String name) {
+    return generations.get(FileCache.stripe(name));
+  }
+
+  /**
+   * Maps a file if it is hot, large enough and fits under the cap.
+   *
+   * @param name stored file name
+   * @param content open file content
+   * @param metadata metadata to serve it with
+   * @param token value of {@link #generation(String)} taken before the metadata was looked up
+   * @return the new mapping, acquired for the caller, or null if the file was not mapped
+   * @throws IOException if the file cannot be mapped
+   */
+  Mapping map(String name, Content content, FileMetadata metadata, long token)
+      throws IOException {
+    long size = metadata.storedSize();
+    if (!enabled() || size < minFileBytes || size > maxBytes || size > Integer.MAX_VALUE) {
+      return null;
+    }
+    if (sketch.frequency(name) < minHits) {
+      return null;
+    }
+    ByteBuffer buffer = content.map();
+    if (buffer == null || buffer.limit() != size) {
+      return null;
+    }
+    Mapping mapping = new Mapping(buffer, metadata);
+
+    lock.lock();
+    try {
+      if (generation(name) != token) {
+        mapping.release();
+        return null;
+      }
+      mapping.acquire();
+      Mapping previous = entries.put(name, mapping);
+      index.put(name, mapping);
+      if (previous != null) {
+        mappedBytes -= previous.size();
+        previous.release();
+      }
+      mappedBytes += size;
+      evict();
+    } finally {
+      lock.unlock();
+    }
+    return mapping;
+  }
+
+  /**
+   * Drops the mapping of a file, e.g. after it was overwritten. Readers still holding it
+   * finish on the old content.
+   *
+   * @param name stored file name
+   */
+  void invalidate(String name) {
+    if (!enabled()) {
+      return;
+    }
+    lock.lock();
+    try {
+      generations.incrementAndGet(FileCache.stripe(name));
+      Mapping removed = entries.remove(name);
+      index.remove(name);
+      if (removed != null) {
+        mappedBytes -= removed.size();
+        removed.release();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Drops every mapping; used on shutdown. */
+  void clear() {
+    lock.lock();
+    try {
+      for (int i = 0; i < generations.length(); i++) {
+        generations.incrementAndGet(i);
+      }
+      index.clear();
+      entries.values().forEach(Mapping::release);
+      entries.clear();
+      mappedBytes = 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void evict() {
+    Iterator<Map.Entry<String, Mapping>> lru = entries.entrySet().iterator();
+    while (mappedBytes > maxBytes && lru.hasNext()) {
+      Map.Entry<String, Mapping> entry = lru.next();
+      Mapping victim = entry.getValue();
+      lru.remove();
+      index.remove(entry.getKey());
+      mappedBytes -= victim.size();
+      victim.release();
+      evictions.increment();
+    }
+  }
+
+  /** Downloads served from an existing mapping. */
+  long hits() {
+    return hits.sum();
+  }
+
+  /** Lookups that found no mapping. */
+  long misses() {
+    return misses.sum();
+  }
+
+  /** Mappings dropped to stay under the cap. */
+  long evictions() {
+    return evictions.sum();
+  }
+
+  /** Total length of the current mappings. */
+  long mappedBytes() {
+    lock.lock();
+    try {
+      return mappedBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Finds {@code sun.misc.Unsafe.invokeCleaner}, the only way to unmap a buffer before it is
+   * garbage collected. Without it, released mappings are left to the collector.
+   */
+  private static Consumer<ByteBuffer> unmapper() {
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field field = unsafeClass.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      Object unsafe = field.get(null);
+      Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      return buffer -> {
+        try {
+          invokeCleaner.invoke(unsafe, buffer);
+        } catch (ReflectiveOperationException e) {
+          // Left to the garbage collector
+        }
+      };
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return buffer -> {
+      };
+    }
+  }
+
+  /** A mapped file plus the metadata it was mapped under. */
+  static final class Mapping {
+    private final ByteBuffer buffer;
+    private final FileMetadata metadata;
+    /** The set's own reference plus one per reader; the file is unmapped at zero. */
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    Mapping(ByteBuffer buffer, FileMetadata metadata) {
+      this.buffer = buffer;
+      this.metadata = metadata;
+    }
+
+    /** Read-only view of the mapped bytes; valid until {@link #release()}. */
+    ByteBuffer bytes() {
+      return buffer.asReadOnlyBuffer();
+    }
+
+    FileMetadata metadata() {
+      return metadata;
+    }
+
+    long size() {
+      return buffer.limit();
+    }
+
+    /** Takes a reference; fails once the mapping has been unmapped. */
+    boolean acquire() {
+      while (true) {
+        int current = refs.get();
+        if (current <= 0) {
+          return false;
+        }
+        if (refs.compareAndSet(current, current + 1)) {
+          return true;
+        }
+      }
+    }
+
+    /** Drops a reference, unmapping the file when none are left. */
+    void release() {
+      if (refs.decrementAndGet() == 0) {
+        UNMAPPER.accept(buffer);
+      }
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package com.fileserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps stored files on the heap. Nothing survives a restart, so it suits tests, ephemeral
+ * caches and benchmarks that want to take the disk out of the picture.
+ */
+final class MemoryStorageBackend implements StorageBackend {
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  // Digest records outlive the process; an instance prefix keeps old keys from matching
+  private final String instance = UUID.randomUUID().toString();
+  private final AtomicLong versions = new AtomicLong();
+
+  private static final class Entry {
+    final ByteBuffer bytes;
+    final BasicFileAttributes attrs;
+
+    Entry(ByteBuffer bytes, BasicFileAttributes attrs) {
+      this.bytes = bytes;
+      this.attrs = attrs;
+    }
+  }
+
+  @Override
+  public BasicFileAttributes stat(String name) {
+    Entry entry = entries.get(name);
+    return entry == null ? null : entry.attrs;
+  }
+
+  @Override
+  public OpenFile openRead(String name) {
+    Entry entry = entries.get(name);
+    return entry == null ? null : OpenFile.of(Content.of(entry.bytes), entry.attrs, () -> { });
+  }
+
+  @Override
+  public BasicFileAttributes store(String name, Path staged) throws IOException {
+    ByteBuffer bytes;
+    try (FileChannel channel = FileChannel.open(staged, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("File too large for the memory backend: " + size + " bytes");
+      }
+      bytes = ByteBuffer.allocate((int) size);
+      while (bytes.hasRemaining() && channel.read(bytes) >= 0) {
+        // Fill the buffer
+      }
+    }
+    bytes.flip();
+    BasicFileAttributes attrs = new StoredAttributes(bytes.limit(), FileTime.fromMillis(
+        System.currentTimeMillis()), instance + ":" + versions.incrementAndGet());
+    entries.put(name, new Entry(bytes.asReadOnlyBuffer(), attrs));
+    return attrs;
+  }
+
+  @Override
+  public boolean delete(String name) {
+    return entries.remove(name) != null;
+  }
+
+  @Override
+  public List<String> list() {
+    return new ArrayList<>(entries.keySet());
+  }
+
+  @Override
+  public void close() {
+    entries.clear();
+  }
+}
@@ -0,0 +1,307 @@
+package com.fileserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * In-memory index of stored file metadata keyed by file name.
+ *
+ * <p>Entries are added when an upload lands and lazily on first download, so repeat
+ * downloads skip the stat and content-type probe entirely. The index holds at most a
+ * configured number of entries and drops the least recently used beyond that, so a scan over
+ * many files cannot grow it without bound. Hits take no lock: lookups go to a concurrent index,
+ * and recency is only updated when the LRU lock is free. A {@link WatchService} on the
+ * storage directory and each of its shard directories drops entries whose file changed behind
+ * the server's back; events for the server's own writes are recognized by comparing size and
+ * modification time and ignored. Shard directories are watched at every depth, not just the
+ * configured one, so files a layout migration has not moved yet are covered too.
+ */
+final class MetadataIndex implements Closeable {
+  private final StorageBackend backend;
+  private final ContentDigests digests;
+  /** LRU order; guarded by {@link #lock}. */
+  private final LinkedHashMap<String, FileMetadata> entries;
+  /** Lock-free view of {@link #entries} for lookups. */
+  private final Map<String, FileMetadata> index = new ConcurrentHashMap<>();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final Map<WatchKey, Path> watched = new ConcurrentHashMap<>();
+  private WatchService watcher;
+  private Path root;
+
+  /**
+   * Creates an empty index.
+   *
+   * @param backend where stored files live
+   * @param digests persisted content digests used for strong ETags, or null for weak ETags
+   * @param maxEntries most entries kept in memory
+   */
+  MetadataIndex(StorageBackend backend, ContentDigests digests, int maxEntries) {
+    this.backend = backend;
+    this.digests = digests;
+    this.entries = new LinkedHashMap<>(64, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, FileMetadata> eldest) {
+        if (size() <= maxEntries) {
+          return false;
+        }
+        index.remove(eldest.getKey());
+        return true;
+      }
+    };
+  }
+
+  /**
+   * Returns metadata for a stored file, reading it from disk on a miss.
+   *
+   * @param name stored file name
+   * @return the metadata, or null if no regular file has that name
+   * @throws IOException if the file cannot be inspected
+   */
+  FileMetadata get(String name) throws IOException {
+    FileMetadata cached = index.get(name);
+    if (cached != null) {
+      hits.increment();
+      // A missed recency update only makes eviction slightly less precise
+      if (lock.tryLock()) {
+        try {
+          entries.get(name);
+        } finally {
+          lock.unlock();
+        }
+      }
+      return cached;
+    }
+    misses.increment();
+    BasicFileAttributes attrs = backend.stat(name);
+    if (attrs == null) {
+      return null;
+    }
+    FileMetadata loaded = FileMetadata.read(name, backend.path(name), attrs, digests);
+    lock.lock();
+    try {
+      // A concurrent upload may have stored fresher metadata meanwhile; keep it.
+      FileMetadata raced = index.get(name);
+      if (raced != null) {
+        return raced;
+      }
+      put(name, loaded);
+      return loaded;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Re-reads and stores metadata for a file the server has just written.
+   *
+   * @param name stored file name
+   * @return the new metadata, or null if the file is gone
+   * @throws IOException if the file cannot be inspected
+   */
+  FileMetadata refresh(String name) throws IOException {
+    BasicFileAttributes attrs = backend.stat(name);
+    if (attrs == null) {
+      invalidate(name);
+      return null;
+    }
+    FileMetadata loaded = FileMetadata.read(name, backend.path(name), attrs, digests);
+    lock.lock();
+    try {
+      put(name, loaded);
+    } finally {
+      lock.unlock();
+    }
+    return loaded;
+  }
+
+  /**
+   * Checks metadata looked up before a file was opened against what was actually opened, as
+   * the file may have been replaced in between.
+   *
+   * @param name stored file name
+   * @param metadata metadata the lookup returned
+   * @param opened attributes of the open file
+   * @return {@code metadata} if it describes the open file, otherwise fresh metadata for it
+   * @throws IOException if the file cannot be inspected
+   */
+  FileMetadata confirm(String name, FileMetadata metadata, BasicFileAttributes opened)
+      throws IOException {
+    if (metadata.matches(opened)) {
+      return metadata;
+    }
+    FileMetadata loaded = FileMetadata.read(name, backend.path(name), opened, digests);
+    lock.lock();
+    try {
+      put(name, loaded);
+    } finally {
+      lock.unlock();
+    }
+    return loaded;
+  }
+
+  private void put(String name, FileMetadata metadata) {
+    // Index first, so an entry evicted by the put below leaves both maps
+    index.put(name, metadata);
+    entries.put(name, metadata);
+  }
+
+  /**
+   * Forgets a file, e.g. after it vanished between lookup and open.
+   *
+   * @param name stored file name
+   */
+  void invalidate(String name) {
+    lock.lock();
+    try {
+      entries.remove(name);
+      index.remove(name);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Lookups answered from memory. */
+  long hits() {
+    return hits.sum();
+  }
+
+  /** Lookups that went to the filesystem. */
+  long misses() {
+    return misses.sum();
+  }
+
+  /**
+   * Starts a daemon thread that invalidates entries changed outside the server.
+   *
+   * @param dir local directory holding the stored files
+   * @param onChange notified with each file name whose content changed externally
+   * @throws IOException if the directory cannot be watched
+   */
+  void watch(Path dir, Consumer<String> onChange) throws IOException {
+    watcher = dir.getFileSystem().newWatchService();
+    root = dir;
+    register(dir);
+    Thread thread = new Thread(() -> poll(onChange), "fileserver-metadata-watcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void poll(Consumer<String> onChange) {
+    try {
+      while (true) {
+        WatchKey key = watcher.take();
+        Path dir = watched.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+            List<String> names;
+            lock.lock();
+            try {
+              names = new ArrayList<>(entries.keySet());
+              entries.clear();
+              index.clear();
+            } finally {
+              lock.unlock();
+            }
+            names.forEach(onChange);
+            continue;
+          }
+          Path child = dir.resolve((Path) event.context());
+          String name = child.getFileName().toString();
+          if (dir.equals(root) && name.equals(MiniFileServer.INTERNAL_DIR)) {
+            continue;
+          }
+          if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+              && level(dir) < StorageLayout.MAX_DEPTH && StorageLayout.isShard(child)) {
+            // Files may have landed before the new directory was registered
+            registerNew(child, onChange);
+            continue;
+          }
+          invalidate(name, onChange);
+        }
+        if (!key.reset()) {
+          // The shard directory was deleted; a new one is registered when it reappears
+          watched.remove(key);
+        }
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      // Shutting down
+    }
+  }
+
+  private void invalidate(String name, Consumer<String> onChange) {
+    if (changed(name)) {
+      invalidate(name);
+      onChange.accept(name);
+    }
+  }
+
+  private void register(Path dir) throws IOException {
+    watched.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), dir);
+    if (level(dir) < StorageLayout.MAX_DEPTH) {
+      try (DirectoryStream<Path> shards = Files.newDirectoryStream(dir, StorageLayout::isShard)) {
+        for (Path shard : shards) {
+          register(shard);
+        }
+      }
+    }
+  }
+
+  private void registerNew(Path dir, Consumer<String> onChange) {
+    try {
+      register(dir);
+      try (Stream<Path> files = Files.walk(dir, StorageLayout.MAX_DEPTH)) {
+        files.filter(Files::isRegularFile)
+            .forEach(file -> invalidate(file.getFileName().toString(), onChange));
+      }
+    } catch (IOException | UncheckedIOException e) {
+      System.err.println("Cannot watch " + dir + ", external changes there go unnoticed: "
+          + e.getMessage());
+    }
+  }
+
+  private int level(Path dir) {
+    return dir.equals(root) ? 0 : root.relativize(dir).getNameCount();
+  }
+
+  private boolean changed(String name) {
+    FileMetadata cached = index.get(name);
+    if (cached == null) {
+      return true;
+    }
+    try {
+      BasicFileAttributes attrs = backend.stat(name);
+      return attrs == null || !cached.matches(attrs);
+    } catch (IOException e) {
+      return true;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (watcher != null) {
+      watcher.close();
+    }
+  }
+}
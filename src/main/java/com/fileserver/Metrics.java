@@ -0,0 +1,226 @@
+package com.fileserver;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Request metrics and server gauges, rendered in the Prometheus text exposition format.
+ *
+ * <p>Every counter on the request path is a {@link LongAdder}, so recording never takes a
+ * lock or contends on a shared cache line; the cost is paid when {@code /metrics} is scraped
+ * and the cells are summed. Latencies go into fixed histogram buckets per context and
+ * status code. Gauges are read from their owners at scrape time rather than pushed.
+ */
+final class Metrics {
+  /** Upper bounds of the latency buckets, in seconds; the last bucket is {@code +Inf}. */
+  private static final double[] BUCKET_SECONDS = {
+      0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+  private static final long[] BUCKET_NANOS = new long[BUCKET_SECONDS.length];
+
+  static {
+    for (int i = 0; i < BUCKET_SECONDS.length; i++) {
+      BUCKET_NANOS[i] = Math.round(BUCKET_SECONDS[i] * 1e9);
+    }
+  }
+
+  private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+  private final Map<String, Family> gauges = new LinkedHashMap<>();
+
+  /**
+   * Returns the metrics of a context, creating them on first use.
+   *
+   * @param context context path, e.g. {@code /download}
+   * @return the context's metrics
+   */
+  Endpoint endpoint(String context) {
+    return endpoints.computeIfAbsent(context, path -> new Endpoint());
+  }
+
+  /**
+   * Registers a value read at scrape time.
+   *
+   * @param name metric name
+   * @param type {@code gauge} or {@code counter}
+   * @param help description
+   * @param labels label pairs such as {@code pool="data"}, or empty
+   * @param value reads the current value
+   */
+  synchronized void register(String name, String type, String help, String labels,
+      LongSupplier value) {
+    gauges.computeIfAbsent(name, n -> new Family(type, help)).samples.put(labels, value);
+  }
+
+  /**
+   * Renders every metric.
+   *
+   * @return the exposition text
+   */
+  String render() {
+    StringBuilder out = new StringBuilder(4096);
+    Map<String, Endpoint> sorted = new TreeMap<>(endpoints);
+
+    header(out, "fileserver_http_request_duration_seconds", "histogram",
+        "Time from request headers to the end of the response");
+    sorted.forEach((context, endpoint) -> {
+      for (int status = 0; status < Endpoint.STATUSES; status++) {
+        Histogram histogram = endpoint.byStatus.get(status);
+        if (histogram != null) {
+          histogram.render(out, "context=\"" + context + "\",status=\"" + status + "\"");
+        }
+      }
+    });
+    header(out, "fileserver_http_requests_in_flight", "gauge",
+        "Requests received and not yet answered");
+    sorted.forEach((context, endpoint) -> sample(out, "fileserver_http_requests_in_flight",
+        label(context), endpoint.inFlight.sum()));
+    header(out, "fileserver_http_request_bytes_total", "counter",
+        "Request body bytes read by handlers");
+    sorted.forEach((context, endpoint) -> sample(out, "fileserver_http_request_bytes_total",
+        label(context), endpoint.bytesIn.sum()));
+    header(out, "fileserver_http_response_bytes_total", "counter",
+        "Response body bytes written by handlers");
+    sorted.forEach((context, endpoint) -> sample(out, "fileserver_http_response_bytes_total",
+        label(context), endpoint.bytesOut.sum()));
+
+    List<Map.Entry<String, Family>> families;
+    synchronized (this) {
+      families = new ArrayList<>(gauges.entrySet());
+    }
+    for (Map.Entry<String, Family> family : families) {
+      header(out, family.getKey(), family.getValue().type, family.getValue().help);
+      family.getValue().samples.forEach((labels, value) ->
+          sample(out, family.getKey(), labels, value.getAsLong()));
+    }
+    return out.toString();
+  }
+
+  private static String label(String context) {
+    return "context=\"" + context + "\"";
+  }
+
+  private static void header(StringBuilder out, String name, String type, String help) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void sample(StringBuilder out, String name, String labels, Object value) {
+    out.append(name);
+    if (!labels.isEmpty()) {
+      out.append('{').append(labels).append('}');
+    }
+    out.append(' ').append(value).append('\n');
+  }
+
+  /** Counters of one context. */
+  static final class Endpoint {
+    /** Status codes tracked; 0 stands for an exchange closed without a response. */
+    private static final int STATUSES = 600;
+
+    private final LongAdder inFlight = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final AtomicReferenceArray<Histogram> byStatus = new AtomicReferenceArray<>(STATUSES);
+
+    /** Counts a request whose headers have arrived. */
+    void started() {
+      inFlight.increment();
+    }
+
+    /**
+     * Records a finished request.
+     *
+     * @param status response status, or 0 if none was sent
+     * @param nanos time since {@link #started()}
+     */
+    void finished(int status, long nanos) {
+      inFlight.decrement();
+      int index = status > 0 && status < STATUSES ? status : 0;
+      Histogram histogram = byStatus.get(index);
+      if (histogram == null) {
+        byStatus.compareAndSet(index, null, new Histogram());
+        histogram = byStatus.get(index);
+      }
+      histogram.record(nanos);
+    }
+
+    void bytesIn(long n) {
+      bytesIn.add(n);
+    }
+
+    void bytesOut(long n) {
+      bytesOut.add(n);
+    }
+  }
+
+  /** Latency histogram with fixed bucket bounds. */
+  static final class Histogram {
+    private final LongAdder[] buckets = new LongAdder[BUCKET_NANOS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    Histogram() {
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    /**
+     * Records one observation.
+     *
+     * @param nanos observed latency
+     */
+    void record(long nanos) {
+      int low = 0;
+      int high = BUCKET_NANOS.length;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (BUCKET_NANOS[mid] < nanos) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      buckets[low].increment();
+      sumNanos.add(nanos);
+    }
+
+    /** Number of observations. */
+    long count() {
+      long count = 0;
+      for (LongAdder bucket : buckets) {
+        count += bucket.sum();
+      }
+      return count;
+    }
+
+    private void render(StringBuilder out, String labels) {
+      String name = "fileserver_http_request_duration_seconds";
+      long cumulative = 0;
+      for (int i = 0; i < buckets.length; i++) {
+        cumulative += buckets[i].sum();
+        String le = i < BUCKET_SECONDS.length ? Double.toString(BUCKET_SECONDS[i]) : "+Inf";
+        sample(out, name + "_bucket", labels + ",le=\"" + le + "\"", cumulative);
+      }
+      sample(out, name + "_sum", labels, sumNanos.sum() / 1e9);
+      sample(out, name + "_count", labels, cumulative);
+    }
+  }
+
+  /** Registered samples sharing a name. */
+  private static final class Family {
+    private final String type;
+    private final String help;
+    private final Map<String, LongSupplier> samples = new LinkedHashMap<>();
+
+    Family(String type, String help) {
+      this.type = type;
+      this.help = help;
+    }
+  }
+}
@@ -0,0 +1,165 @@
+package com.fileserver;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures the requests of one context.
+ *
+ * <p>Data handlers finish on another thread after the filter chain has returned, so a request
+ * is timed until its exchange is closed rather than until {@code doFilter} returns. Body bytes
+ * are counted as handlers read and write them.
+ */
+final class MetricsFilter extends Filter {
+  private final Metrics.Endpoint endpoint;
+
+  /**
+   * Creates the filter.
+   *
+   * @param endpoint metrics of the context the filter is installed on
+   */
+  MetricsFilter(Metrics.Endpoint endpoint) {
+    this.endpoint = endpoint;
+  }
+
+  @Override
+  public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+    MeasuredExchange measured = new MeasuredExchange(exchange, endpoint);
+    try {
+      chain.doFilter(measured);
+    } catch (IOException | RuntimeException e) {
+      measured.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public String description() {
+    return "Records latency, status and body bytes";
+  }
+
+  /** Exchange that reports to the endpoint metrics when it is closed. */
+  private static final class MeasuredExchange extends ForwardingExchange {
+    private final Metrics.Endpoint endpoint;
+    private final long start = System.nanoTime();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile int status;
+    private InputStream body;
+    private OutputStream response;
+
+    MeasuredExchange(HttpExchange delegate, Metrics.Endpoint endpoint) {
+      super(delegate);
+      this.endpoint = endpoint;
+      endpoint.started();
+    }
+
+    @Override
+    public void sendResponseHeaders(int code, long length) throws IOException {
+      status = code;
+      delegate.sendResponseHeaders(code, length);
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+      if (body == null) {
+        body = new FilterInputStream(delegate.getRequestBody()) {
+          @Override
+          public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+              endpoint.bytesIn(1);
+            }
+            return b;
+          }
+
+          @Override
+          public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+              endpoint.bytesIn(n);
+            }
+            return n;
+          }
+        };
+      }
+      return body;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+      if (response == null) {
+        response = new CountingOutputStream(delegate.getResponseBody(), endpoint);
+      }
+      return response;
+    }
+
+    @Override
+    public void setStreams(InputStream in, OutputStream out) {
+      delegate.setStreams(in, out);
+      body = null;
+      response = null;
+    }
+
+    @Override
+    public void close() {
+      if (!closed.compareAndSet(false, true)) {
+        delegate.close();
+        return;
+      }
+      try {
+        delegate.close();
+      } finally {
+        endpoint.finished(status, System.nanoTime() - start);
+      }
+    }
+  }
+
+  /** Counts response bytes, keeping the zero-copy path of a {@link FileTransfer.Sink}. */
+  private static final class CountingOutputStream extends FilterOutputStream
+      implements FileTransfer.Sink {
+    private final Metrics.Endpoint endpoint;
+
+    CountingOutputStream(OutputStream out, Metrics.Endpoint endpoint) {
+      super(out);
+      this.endpoint = endpoint;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      endpoint.bytesOut(1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      endpoint.bytesOut(len);
+    }
+
+    @Override
+    public void transferFrom(FileChannel source, long position, long count) throws IOException {
+      if (out instanceof FileTransfer.Sink) {
+        ((FileTransfer.Sink) out).transferFrom(source, position, count);
+      } else {
+        FileTransfer.transfer(source, position, count, Channels.newChannel(out));
+      }
+      endpoint.bytesOut(count);
+    }
+
+    @Override
+    public void transferFrom(ByteBuffer source) throws IOException {
+      int count = source.remaining();
+      FileTransfer.transfer(source, out);
+      endpoint.bytesOut(count);
+    }
+  }
+}
@@ -1,6 +1,9 @@
 package com.fileserver;
 
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import java.io.IOException;
 import java.io.InputStream;
@@ -9,18 +12,41 @@ import java.net.InetSocketAddress;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Production-grade file server with health and version endpoints.
  * Provides file upload/download capabilities with proper error handling.
  */
 public class MiniFileServer {
-  private static final Path STORAGE = Paths.get("storage");
   private static final String VERSION = "1.0.0";
+  /** Directory inside storage holding server state; never served or overwritten. */
+  static final String INTERNAL_DIR = ".fileserver";
+  private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+      .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+      .withZone(ZoneOffset.UTC);
+  private static Path storage = Paths.get("storage");
   private static HttpServer server;
+  private static WorkerPools pools;
+  private static FileCache fileCache = new FileCache(0, 0);
+  private static MappedFiles mappedFiles = new MappedFiles(0, 0, 1);
+  private static MetadataIndex metadataIndex;
+  private static StorageBackend backend;
+  private static FileStore fileStore;
+  private static Compression compression;
+  private static UploadLimits uploadLimits;
+  private static Metrics metrics;
 
   /**
    * Main entry point for the file server.
@@ -29,23 +55,192 @@ public class MiniFileServer {
    * @throws Exception if server creation fails
    */
   public static void main(String[] args) throws Exception {
-    Files.createDirectories(STORAGE);
-
-    server = HttpServer.create(new InetSocketAddress(8080), 0);
-    server.createContext("/health", MiniFileServer::handleHealth);
-    server.createContext("/version", MiniFileServer::handleVersion);
-    server.createContext("/upload", MiniFileServer::handleUpload);
-    server.createContext("/download", MiniFileServer::handleDownload);
+    ServerConfig config = ServerConfig.fromEnvironment();
+    start(config);
 
     // Graceful shutdown
     Runtime.getRuntime().addShutdownHook(new Thread(() -> {
       System.out.println("Shutting down server...");
-      server.stop(0);
+      stop();
     }));
 
-    server.start();
-    System.out.println("Server running at http://localhost:8080");
+    System.out.println("Server running at http://localhost:" + server.getAddress().getPort());
     System.out.println("Version: " + VERSION);
+    if (config.executorMode() == ServerConfig.ExecutorMode.VIRTUAL) {
+      System.out.println("Workers: virtual thread per request");
+    } else {
+      System.out.println("Workers: control=" + config.controlThreads()
+          + ", data=" + config.dataThreads() + " (queue " + config.dataQueue() + ")");
+    }
+  }
+
+  /**
+   * Creates and starts the HTTP server.
+   * Control endpoints run on the server executor; data endpoints are dispatched to a
+   * separate bounded pool that answers 503 when saturated.
+   *
+   * @param config server configuration
+   * @return the running server
+   * @throws IOException if the storage directory or socket cannot be created
+   */
+  static HttpServer start(ServerConfig config) throws IOException {
+    storage = config.storage();
+    Files.createDirectories(storage);
+
+    pools = WorkerPools.create(config);
+    fileCache = new FileCache(config.cacheMaxBytes(), config.cacheMaxFileBytes());
+    mappedFiles = new MappedFiles(config.mmapMaxBytes(),
+        fileCache.enabled() ? config.cacheMaxFileBytes() + 1 : 0, config.mmapMinHits());
+    backend = createBackend(config);
+    fileStore = new FileStore(backend, storage.resolve(INTERNAL_DIR), config.layout(),
+        config.durability(), config.contentAddressed(), config.compressAtRest(),
+        MiniFileServer::fileStored);
+    metadataIndex = new MetadataIndex(backend, fileStore.digests(), config.metadataMaxEntries());
+    compression = new Compression(storage.resolve(INTERNAL_DIR), config.compression(),
+        config.compressionMinBytes(), config.precompress(), config.precompressMaxBytes(),
+        fileStore.digests(), config.variantSweepSeconds());
+    if (config.watchStorage() && (config.backend() == StorageBackend.Type.LOCAL
+        || config.backend() == StorageBackend.Type.TIERED)) {
+      metadataIndex.watch(storage, MiniFileServer::fileChanged);
+    }
+
+    uploadLimits = new UploadLimits(config.uploadMaxBytes(), config.uploadInFlightBytes(),
+        storage, config.diskMinFreeBytes(), config.retryAfterSeconds());
+
+    metrics = config.metrics() ? new Metrics() : null;
+    if (metrics != null) {
+      registerGauges();
+    }
+
+    InetSocketAddress address = new InetSocketAddress(config.port());
+    server = config.engine() == ServerConfig.Engine.NIO
+        ? NioHttpServer.create(address, config.engineSelectors(),
+            config.idleTimeoutSeconds() * 1000L, config.http2MaxStreams(),
+            config.retryAfterSeconds())
+        : HttpServer.create(address, 0);
+    server.setExecutor(pools.control());
+    if (metrics != null) {
+      context("/metrics", MiniFileServer::handleMetrics);
+    }
+    context("/health", MiniFileServer::handleHealth);
+    context("/version", MiniFileServer::handleVersion);
+    context("/upload", dataHandler(config, MiniFileServer::handleUpload));
+    context("/download", dataHandler(config, MiniFileServer::handleDownload));
+    context("/uploads",
+        dataHandler(config, new ResumableUploads(fileStore, storage.resolve(INTERNAL_DIR),
+            uploadLimits)));
+    context("/multipart",
+        dataHandler(config, new MultipartUploads(fileStore, storage.resolve(INTERNAL_DIR),
+            uploadLimits)));
+    server.start();
+    return server;
+  }
+
+  private static StorageBackend createBackend(ServerConfig config) throws IOException {
+    switch (config.backend()) {
+      case MEMORY:
+        return new MemoryStorageBackend();
+      case SEGMENT:
+        return segments(config, storage);
+      case TIERED:
+        return new TieredStorageBackend(
+            segments(config, storage.resolve(INTERNAL_DIR).resolve("segments")),
+            new LocalStorageBackend(storage, config.layout(), config.durability()),
+            config.segmentMaxFileBytes());
+      default:
+        return new LocalStorageBackend(storage, config.layout(), config.durability());
+    }
+  }
+
+  private static SegmentStorageBackend segments(ServerConfig config, Path dir)
+      throws IOException {
+    return new SegmentStorageBackend(dir, config.segmentMaxBytes(), config.durability(),
+        config.segmentMmap(), config.segmentCompactSeconds());
+  }
+
+  private static void context(String path, HttpHandler handler) {
+    List<Filter> filters = server.createContext(path, handler).getFilters();
+    if (metrics != null) {
+      filters.add(new MetricsFilter(metrics.endpoint(path)));
+    }
+    filters.add(new EmptyBodyFilter());
+    filters.add(new UnreadBodyFilter());
+  }
+
+  private static void registerGauges() {
+    pools.register(metrics);
+    metrics.register("fileserver_cache_hits_total", "counter", "Downloads served from the cache",
+        "", fileCache::hits);
+    metrics.register("fileserver_cache_misses_total", "counter", "Cache lookups that missed",
+        "", fileCache::misses);
+    metrics.register("fileserver_cache_evictions_total", "counter",
+        "Files evicted from the cache", "", fileCache::evictions);
+    metrics.register("fileserver_cache_rejections_total", "counter",
+        "Files not cached because the least recently used one was more popular", "",
+        fileCache::rejections);
+    metrics.register("fileserver_cache_bytes", "gauge", "Bytes held by the cache", "",
+        fileCache::usedBytes);
+    metrics.register("fileserver_mmap_hits_total", "counter", "Downloads served from a mapping",
+        "", mappedFiles::hits);
+    metrics.register("fileserver_mmap_misses_total", "counter",
+        "Downloads that found no mapping", "", mappedFiles::misses);
+    metrics.register("fileserver_mmap_bytes", "gauge", "Total length of mapped files", "",
+        mappedFiles::mappedBytes);
+    metrics.register("fileserver_metadata_hits_total", "counter",
+        "Metadata lookups answered from memory", "", metadataIndex::hits);
+    metrics.register("fileserver_metadata_misses_total", "counter",
+        "Metadata lookups that went to storage", "", metadataIndex::misses);
+    metrics.register("fileserver_compression_variants_total", "counter",
+        "Gzip variants written at upload time", "", compression::precompressed);
+    metrics.register("fileserver_compressed_responses_total", "counter",
+        "Gzip-encoded downloads not served from a variant", "source=\"stored\"",
+        compression::passedThrough);
+    metrics.register("fileserver_compressed_responses_total", "counter",
+        "Gzip-encoded downloads not served from a variant", "source=\"on-the-fly\"",
+        compression::onTheFly);
+    metrics.register("fileserver_upload_in_flight_bytes", "gauge",
+        "Upload bytes reserved against the in-flight budget", "", uploadLimits::inFlightBytes);
+  }
+
+  /**
+   * Wraps a data endpoint so it runs on the data pool.
+   * Virtual threads are already one per request, so no hand-off is needed there.
+   */
+  private static HttpHandler dataHandler(ServerConfig config, HttpHandler handler) {
+    if (config.executorMode() == ServerConfig.ExecutorMode.VIRTUAL) {
+      return handler;
+    }
+    return new DispatchHandler(handler, pools.data(), config.retryAfterSeconds());
+  }
+
+  /**
+   * Stops the server and its worker pools.
+   */
+  static void stop() {
+    if (server != null) {
+      server.stop(0);
+    }
+    if (pools != null) {
+      pools.shutdown(5);
+    }
+    if (compression != null) {
+      compression.close();
+    }
+    if (metadataIndex != null) {
+      try {
+        metadataIndex.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+    mappedFiles.clear();
+    if (backend != null) {
+      try {
+        backend.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
   }
 
   /**
@@ -79,13 +274,29 @@ public class MiniFileServer {
     exchange.close();
   }
 
+  /**
+   * Metrics endpoint - returns request and server metrics in Prometheus text format.
+   *
+   * @param exchange HTTP exchange object
+   * @throws IOException if response cannot be sent
+   */
+  private static void handleMetrics(HttpExchange exchange) throws IOException {
+    byte[] response = metrics.render().getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+    exchange.sendResponseHeaders(200, response.length);
+    try (OutputStream os = exchange.getResponseBody()) {
+      os.write(response);
+    }
+    exchange.close();
+  }
+
   /**
    * Upload endpoint - accepts file uploads via POST with X-Filename header.
    *
    * @param exchange HTTP exchange object
    * @throws IOException if file cannot be saved
    */
-  private static void handleUpload(HttpExchange exchange) throws IOException {
+  static void handleUpload(HttpExchange exchange) throws IOException {
     if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
       exchange.sendResponseHeaders(405, -1);
       exchange.close();
@@ -106,11 +317,45 @@ public class MiniFileServer {
       }
 
       // Security: Prevent directory traversal
-      filename = Paths.get(filename).getFileName().toString();
+      filename = sanitizeFilename(filename);
+      if (filename == null) {
+        sendText(exchange, 400, "Invalid filename");
+        return;
+      }
+
+      Checksums checksums;
+      try {
+        checksums = Checksums.fromHeaders(exchange.getRequestHeaders());
+      } catch (IllegalArgumentException e) {
+        sendText(exchange, 400, e.getMessage());
+        return;
+      }
 
-      Path target = STORAGE.resolve(filename);
-      try (InputStream in = exchange.getRequestBody()) {
-        Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+      // A client that already knows the hash can skip sending content the store holds
+      if (checksums.sha256() != null && fileStore.commitExisting(filename, checksums.sha256())) {
+        exchange.getResponseHeaders().set("X-Dedup", "hit");
+        sendText(exchange, 200, "Uploaded: " + filename);
+        return;
+      }
+
+      Path staged = fileStore.newStagingFile();
+      try (UploadLimits.Reservation reservation =
+          uploadLimits.admit(exchange.getRequestHeaders())) {
+        ContentDigests.Entry body;
+        try (InputStream in = checksums.wrap(reservation.wrap(exchange.getRequestBody()))) {
+          body = fileStore.write(in, staged, filename);
+        }
+        try {
+          body = checksums.verify(body);
+        } catch (Checksums.ChecksumMismatchException e) {
+          sendText(exchange, 400, e.getMessage());
+          return;
+        }
+        if (fileStore.commit(staged, filename, body)) {
+          exchange.getResponseHeaders().set("X-Dedup", "hit");
+        }
+      } finally {
+        Files.deleteIfExists(staged);
       }
 
       String response = "Uploaded: " + filename;
@@ -118,6 +363,8 @@ public class MiniFileServer {
       try (OutputStream os = exchange.getResponseBody()) {
         os.write(response.getBytes());
       }
+    } catch (UploadLimits.LimitExceededException e) {
+      uploadLimits.reject(exchange, e);
     } catch (Exception e) {
       e.printStackTrace();
       String errorResponse = "Upload failed: " + e.getMessage();
@@ -136,7 +383,7 @@ public class MiniFileServer {
    * @param exchange HTTP exchange object
    * @throws IOException if file cannot be read
    */
-  private static void handleDownload(HttpExchange exchange) throws IOException {
+  static void handleDownload(HttpExchange exchange) throws IOException {
     String query = exchange.getRequestURI().getQuery();
     if (query == null || !query.startsWith("name=")) {
       exchange.sendResponseHeaders(400, -1);
@@ -147,29 +394,316 @@ public class MiniFileServer {
     String filename = URLDecoder.decode(query.substring(5), StandardCharsets.UTF_8);
 
     // Security: Prevent directory traversal
-    filename = Paths.get(filename).getFileName().toString();
+    filename = sanitizeFilename(filename);
+    if (filename == null) {
+      exchange.sendResponseHeaders(400, -1);
+      exchange.close();
+      return;
+    }
 
-    Path file = STORAGE.resolve(filename);
+    FileCache.Entry cached = fileCache.get(filename);
+    if (cached != null) {
+      try {
+        exchange.getResponseHeaders().add("Content-Disposition",
+            "attachment; filename=\"" + filename + "\"");
+        exchange.getResponseHeaders().set("X-Cache", "HIT");
+        sendContent(exchange, Content.of(cached.bytes()), cached.metadata());
+      } finally {
+        exchange.close();
+      }
+      return;
+    }
 
-    if (!Files.exists(file)) {
+    MappedFiles.Mapping mapped = mappedFiles.acquire(filename);
+    if (mapped != null) {
+      try {
+        exchange.getResponseHeaders().add("Content-Disposition",
+            "attachment; filename=\"" + filename + "\"");
+        exchange.getResponseHeaders().set("X-Cache", "MAPPED");
+        sendContent(exchange, Content.of(mapped.bytes()), mapped.metadata());
+      } finally {
+        mapped.release();
+        exchange.close();
+      }
+      return;
+    }
+
+    long cacheToken = fileCache.generation(filename);
+    long mapToken = mappedFiles.generation(filename);
+    FileMetadata metadata = metadataIndex.get(filename);
+    if (metadata == null) {
       exchange.sendResponseHeaders(404, -1);
       exchange.close();
       return;
     }
 
-    String contentType = Files.probeContentType(file);
-    if (contentType == null) {
-      contentType = "application/octet-stream";
+    if (notModified(exchange.getRequestHeaders(), metadata)) {
+      try {
+        sendNotModified(exchange, metadata);
+      } finally {
+        exchange.close();
+      }
+      return;
+    }
+
+    StorageBackend.OpenFile opened = backend.openRead(filename);
+    if (opened == null) {
+      metadataIndex.invalidate(filename);
+      // A layout migration may have just moved the file; look it up once more
+      metadata = metadataIndex.get(filename);
+      opened = metadata == null ? null : backend.openRead(filename);
+      if (opened == null) {
+        metadataIndex.invalidate(filename);
+        exchange.sendResponseHeaders(404, -1);
+        exchange.close();
+        return;
+      }
+    }
+
+    try (StorageBackend.OpenFile file = opened) {
+      // The file may have been replaced since the lookup, before its index entry was refreshed
+      metadata = metadataIndex.confirm(filename, metadata, file.attributes());
+      Content content = file;
+      FileCache.Entry loaded = fileCache.load(filename, file, metadata, cacheToken);
+      if (loaded != null) {
+        content = Content.of(loaded.bytes());
+      } else {
+        mapped = mappedFiles.map(filename, file, metadata, mapToken);
+        if (mapped != null) {
+          content = Content.of(mapped.bytes());
+        }
+      }
+
+      exchange.getResponseHeaders().add("Content-Disposition",
+          "attachment; filename=\"" + filename + "\"");
+      exchange.getResponseHeaders().set("X-Cache", "MISS");
+      sendContent(exchange, content, metadata);
+    } finally {
+      if (mapped != null) {
+        mapped.release();
+      }
+      exchange.close();
+    }
+  }
+
+  /**
+   * Sends file content, honoring Range and If-Range.
+   * A single range is answered with 206 and Content-Range; several ranges are framed as
+   * multipart/byteranges. Each range is read positionally from the content.
+   *
+   * @param exchange HTTP exchange object
+   * @param stored file bytes as held by the backend, possibly compressed
+   * @param metadata metadata of the file
+   * @throws IOException if the response cannot be sent
+   */
+  private static void sendContent(HttpExchange exchange, Content stored, FileMetadata metadata)
+      throws IOException {
+    // The metadata length saves an fstat and matches the validators sent with it
+    long size = metadata.size();
+    String contentType = metadata.contentType();
+    String lastModified = metadata.lastModifiedHeader();
+    Headers request = exchange.getRequestHeaders();
+    Headers response = exchange.getResponseHeaders();
+    response.set("Accept-Ranges", "bytes");
+    response.set("Last-Modified", lastModified);
+    response.set("ETag", metadata.etag());
+    if (metadata.digest() != null) {
+      response.set("Digest", metadata.digest());
+    }
+    setVary(response, metadata);
+
+    if (notModified(request, metadata)) {
+      sendNotModified(exchange, metadata);
+      return;
+    }
+
+    Content content = Compression.decode(stored, metadata);
+    List<ByteRange> ranges = null;
+    String ifRange = request.getFirst("If-Range");
+    if (ifRange == null || ifRange.trim().equals(lastModified)
+        || (metadata.strongEtag() && ifRange.trim().equals(metadata.etag()))) {
+      ranges = ByteRange.parse(request.getFirst("Range"), size);
+    }
+
+    if (ranges == null) {
+      response.set("Content-Type", contentType);
+      if (compression.sendEncoded(exchange, stored, metadata)) {
+        return;
+      }
+      exchange.sendResponseHeaders(200, size);
+      try (OutputStream os = exchange.getResponseBody()) {
+        content.writeTo(0, size, os);
+      }
+    } else if (ranges.isEmpty()) {
+      response.set("Content-Range", "bytes */" + size);
+      exchange.sendResponseHeaders(416, -1);
+    } else if (ranges.size() == 1) {
+      ByteRange range = ranges.get(0);
+      response.set("Content-Type", contentType);
+      response.set("Content-Range", range.contentRange(size));
+      exchange.sendResponseHeaders(206, range.length());
+      try (OutputStream os = exchange.getResponseBody()) {
+        content.writeTo(range.start(), range.length(), os);
+      }
+    } else {
+      String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong())
+          + Long.toHexString(System.nanoTime());
+      response.set("Content-Type", "multipart/byteranges; boundary=" + boundary);
+      exchange.sendResponseHeaders(206,
+          ByteRange.multipartLength(ranges, boundary, contentType, size));
+      try (OutputStream os = exchange.getResponseBody()) {
+        ByteRange.writeMultipart(content, ranges, boundary, contentType, size, os);
+      }
+    }
+  }
+
+  /**
+   * Called after an upload has been committed into storage.
+   *
+   * @param filename stored file name
+   */
+  private static void fileStored(String filename) {
+    try {
+      FileMetadata metadata = metadataIndex.refresh(filename);
+      if (metadata != null) {
+        compression.precompressLater(backend, filename, metadata);
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+      metadataIndex.invalidate(filename);
+    } finally {
+      // After the metadata refresh, so a concurrent cache load cannot pair new bytes with
+      // old metadata
+      fileChanged(filename);
     }
+  }
 
-    exchange.getResponseHeaders().add("Content-Disposition",
-        "attachment; filename=\"" + filename + "\"");
-    exchange.getResponseHeaders().add("Content-Type", contentType);
-    exchange.sendResponseHeaders(200, Files.size(file));
+  /**
+   * Drops in-memory copies of a file whose content changed.
+   *
+   * @param filename stored file name
+   */
+  private static void fileChanged(String filename) {
+    fileCache.invalidate(filename);
+    mappedFiles.invalidate(filename);
+  }
 
+  /**
+   * Evaluates If-None-Match and If-Modified-Since.
+   *
+   * @param request request headers
+   * @param metadata metadata of the requested file
+   * @return true if the client's copy is current and 304 should be sent
+   */
+  private static boolean notModified(Headers request, FileMetadata metadata) {
+    String ifNoneMatch = request.getFirst("If-None-Match");
+    if (ifNoneMatch != null) {
+      // Weak comparison: a W/ prefix on either side is ignored
+      String current = opaqueTag(metadata.etag());
+      for (String tag : ifNoneMatch.split(",")) {
+        String candidate = tag.trim();
+        if (candidate.equals("*") || opaqueTag(candidate).equals(current)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    String ifModifiedSince = request.getFirst("If-Modified-Since");
+    if (ifModifiedSince != null) {
+      Instant since = parseHttpDate(ifModifiedSince);
+      return since != null && !metadata.lastModified().toInstant()
+          .truncatedTo(ChronoUnit.SECONDS).isAfter(since);
+    }
+    return false;
+  }
+
+  private static void sendNotModified(HttpExchange exchange, FileMetadata metadata)
+      throws IOException {
+    // The tag the matching 200 would carry, which is weak when it would be gzip-encoded
+    exchange.getResponseHeaders().set("ETag", compression.etag(
+        exchange.getRequestHeaders().getFirst("Accept-Encoding"), metadata));
+    exchange.getResponseHeaders().set("Last-Modified", metadata.lastModifiedHeader());
+    setVary(exchange.getResponseHeaders(), metadata);
+    exchange.sendResponseHeaders(304, -1);
+  }
+
+  /** Marks every response for a file that is sent encoded to some clients as varying. */
+  private static void setVary(Headers response, FileMetadata metadata) {
+    if (compression.varies(metadata)) {
+      response.set("Vary", "Accept-Encoding");
+    }
+  }
+
+  private static String opaqueTag(String etag) {
+    return etag.startsWith("W/") ? etag.substring(2) : etag;
+  }
+
+  /**
+   * Reduces a client-supplied name to a plain file name inside storage.
+   *
+   * @param raw name from a header or query string
+   * @return the last path element, or null if it is empty, a dot entry or reserved
+   */
+  static String sanitizeFilename(String raw) {
+    if (raw == null || raw.isEmpty()) {
+      return null;
+    }
+    Path name;
+    try {
+      name = Paths.get(raw).getFileName();
+    } catch (InvalidPathException e) {
+      return null;
+    }
+    if (name == null) {
+      return null;
+    }
+    String filename = name.toString();
+    if (filename.isEmpty() || filename.equals(".") || filename.equals("..")
+        || filename.equals(INTERNAL_DIR)) {
+      return null;
+    }
+    return filename;
+  }
+
+  /**
+   * Sends a plain-text response and closes the exchange.
+   *
+   * @param exchange HTTP exchange object
+   * @param status HTTP status code
+   * @param text response body
+   * @throws IOException if response cannot be sent
+   */
+  static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+    byte[] body = text.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(status, body.length);
     try (OutputStream os = exchange.getResponseBody()) {
-      Files.copy(file, os);
+      os.write(body);
     }
     exchange.close();
   }
+
+  /**
+   * Formats a timestamp as an HTTP-date (IMF-fixdate).
+   *
+   * @param time timestamp to format
+   * @return header value such as {@code Sun, 06 Nov 1994 08:49:37 GMT}
+   */
+  static String httpDate(FileTime time) {
+    return HTTP_DATE.format(time.toInstant().truncatedTo(ChronoUnit.SECONDS));
+  }
+
+  /**
+   * Parses an HTTP-date header value.
+   *
+   * @param value header value
+   * @return the instant, or null if the value is not a valid date
+   */
+  static Instant parseHttpDate(String value) {
+    try {
+      return DateTimeFormatter.RFC_1123_DATE_TIME.parse(value.trim(), Instant::from);
+    } catch (DateTimeParseException e) {
+      return null;
+    }
+  }
 }
@@ -0,0 +1,448 @@
+package com.fileserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * S3-style multipart uploads under {@code /multipart}.
+ *
+ * <ul>
+ *   <li>{@code POST /multipart} with {@code X-Filename} starts an upload and returns its URL in
+ *       {@code Location}.</li>
+ *   <li>{@code PUT /multipart/{id}?part=N} uploads part N (1-10000). Parts may be sent
+ *       concurrently over separate connections and in any order; re-sending a part replaces
+ *       it.</li>
+ *   <li>{@code GET /multipart/{id}} lists received parts as {@code number size} lines.</li>
+ *   <li>{@code POST /multipart/{id}} completes the upload. The body may list the part numbers
+ *       to assemble, each once and in ascending order; when empty, all received parts are
+ *       used. Parts sent while an upload is being completed are refused with 409.</li>
+ *   <li>{@code DELETE /multipart/{id}} aborts the upload.</li>
+ * </ul>
+ *
+ * <p>Each part is staged under its own name and renamed into place once fully received, so
+ * a dropped connection never leaves a torn part. A part sent with {@code Content-MD5},
+ * {@code Digest} or {@code X-Checksum-SHA256} is verified as it streams in and refused on a
+ * mismatch. Completion holds the assembled file to the same size limit, in-flight budget and
+ * free-space watermark as a single upload, then concatenates the parts and hashes them in the
+ * same pass, without holding the upload's lock, so a late part is refused at once instead of
+ * waiting on it. Uploads untouched for a day are discarded, as resumable sessions are.
+ */
+final class MultipartUploads implements HttpHandler {
+  static final String CONTEXT = "/multipart";
+  static final int MAX_PARTS = 10_000;
+  /** Longest completion body: every part number, each with a separator. */
+  static final int MAX_PART_LIST_BYTES = MAX_PARTS * 6;
+  private static final long UPLOAD_TTL_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+  private final FileStore store;
+  private final UploadLimits limits;
+  private final Path staging;
+  private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+
+  /**
+   * Creates the handler and recovers uploads left in the staging directory.
+   *
+   * @param store commits finished uploads into storage
+   * @param internalDir server state directory; uploads live in its {@code multipart} child
+   * @param limits size and free-space limits applied to every request body
+   * @throws IOException if the staging directory cannot be created or read
+   */
+  MultipartUploads(FileStore store, Path internalDir, UploadLimits limits)
+      throws IOException {
+    this.store = store;
+    this.limits = limits;
+    this.staging = internalDir.resolve("multipart");
+    Files.createDirectories(staging);
+    recover();
+  }
+
+  @Override
+  public void handle(HttpExchange exchange) throws IOException {
+    try {
+      String method = exchange.getRequestMethod().toUpperCase(Locale.ROOT);
+      String id = uploadId(exchange.getRequestURI().getPath());
+      if (id.isEmpty()) {
+        if (method.equals("POST")) {
+          create(exchange);
+        } else {
+          exchange.sendResponseHeaders(405, -1);
+        }
+        return;
+      }
+
+      Upload upload = uploads.get(id);
+      if (upload == null) {
+        MiniFileServer.sendText(exchange, 404, "Unknown multipart upload");
+        return;
+      }
+      upload.touched = System.currentTimeMillis();
+      switch (method) {
+        case "PUT":
+          putPart(exchange, upload);
+          break;
+        case "GET":
+          listParts(exchange, upload);
+          break;
+        case "POST":
+          complete(exchange, upload);
+          break;
+        case "DELETE":
+          abort(exchange, upload);
+          break;
+        default:
+          exchange.sendResponseHeaders(405, -1);
+      }
+    } catch (UploadLimits.LimitExceededException e) {
+      limits.reject(exchange, e);
+    } catch (Exception e) {
+      e.printStackTrace();
+      MiniFileServer.sendText(exchange, 500, "Upload failed: " + e.getMessage());
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void create(HttpExchange exchange) throws IOException {
+    String filename = MiniFileServer.sanitizeFilename(
+        exchange.getRequestHeaders().getFirst("X-Filename"));
+    if (filename == null) {
+      MiniFileServer.sendText(exchange, 400, "Missing or invalid X-Filename header");
+      return;
+    }
+    purgeExpired();
+    String id = UUID.randomUUID().toString().replace("-", "");
+    Upload upload = new Upload(id, filename, staging.resolve(id));
+    Files.createDirectories(upload.dir);
+    Properties info = new Properties();
+    info.setProperty("filename", filename);
+    try (Writer writer = Files.newBufferedWriter(upload.dir.resolve("upload.info"),
+        StandardCharsets.UTF_8)) {
+      info.store(writer, null);
+    }
+    uploads.put(id, upload);
+
+    exchange.getResponseHeaders().set("Location", CONTEXT + "/" + id);
+    MiniFileServer.sendText(exchange, 201, id);
+  }
+
+  private void putPart(HttpExchange exchange, Upload upload) throws IOException {
+    int part = partNumber(exchange.getRequestURI().getQuery());
+    if (part < 1) {
+      MiniFileServer.sendText(exchange, 400, "Missing or invalid part number (1-" + MAX_PARTS
+          + ")");
+      return;
+    }
+    Checksums checksums;
+    try {
+      checksums = Checksums.fromHeaders(exchange.getRequestHeaders());
+    } catch (IllegalArgumentException e) {
+      MiniFileServer.sendText(exchange, 400, e.getMessage());
+      return;
+    }
+    if (upload.completing) {
+      MiniFileServer.sendText(exchange, 409, "Upload is being completed");
+      return;
+    }
+    Path temp = upload.dir.resolve(part + "." + UUID.randomUUID() + ".tmp");
+    try (UploadLimits.Reservation reservation = limits.admit(exchange.getRequestHeaders())) {
+      MessageDigest sha256 = ContentDigests.newDigest();
+      long size;
+      try (InputStream body = checksums.wrap(reservation.wrap(exchange.getRequestBody()));
+          InputStream in = checksums.sha256() == null ? body
+              : new DigestInputStream(body, sha256)) {
+        size = Files.copy(in, temp);
+      }
+      try {
+        checksums.verify(new ContentDigests.Entry(HexFormat.of().formatHex(sha256.digest()),
+            null, null, size));
+      } catch (Checksums.ChecksumMismatchException e) {
+        MiniFileServer.sendText(exchange, 400, "Part " + part + ": " + e.getMessage());
+        return;
+      }
+      // Under the lock, so a part is either in a completed upload or refused, never lost
+      upload.lock.lock();
+      try {
+        if (upload.closed) {
+          MiniFileServer.sendText(exchange, 404, "Unknown multipart upload");
+          return;
+        }
+        if (upload.completing) {
+          MiniFileServer.sendText(exchange, 409, "Upload is being completed");
+          return;
+        }
+        move(temp, upload.part(part));
+      } finally {
+        upload.lock.unlock();
+      }
+      exchange.getResponseHeaders().set("Part-Size", Long.toString(size));
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+    exchange.sendResponseHeaders(204, -1);
+  }
+
+  private void listParts(HttpExchange exchange, Upload upload) throws IOException {
+    StringBuilder body = new StringBuilder();
+    for (Map.Entry<Integer, Long> part : upload.parts().entrySet()) {
+      body.append(part.getKey()).append(' ').append(part.getValue()).append('\n');
+    }
+    MiniFileServer.sendText(exchange, 200, body.toString());
+  }
+
+  private void complete(HttpExchange exchange, Upload upload) throws IOException {
+    byte[] body;
+    try (InputStream in = exchange.getRequestBody()) {
+      body = in.readNBytes(MAX_PART_LIST_BYTES + 1);
+    }
+    if (body.length > MAX_PART_LIST_BYTES) {
+      MiniFileServer.sendText(exchange, 413, "Part list longer than " + MAX_PART_LIST_BYTES
+          + " bytes");
+      return;
+    }
+    String requested = new String(body, StandardCharsets.US_ASCII).trim();
+    List<Integer> order = new ArrayList<>();
+    UploadLimits.Reservation reservation;
+    upload.lock.lock();
+    try {
+      if (upload.closed) {
+        MiniFileServer.sendText(exchange, 404, "Unknown multipart upload");
+        return;
+      }
+      if (upload.completing) {
+        MiniFileServer.sendText(exchange, 409, "Upload is already being completed");
+        return;
+      }
+      Map<Integer, Long> received = upload.parts();
+      if (requested.isEmpty()) {
+        order.addAll(received.keySet());
+      } else {
+        int previous = 0;
+        for (String token : requested.split("[,\\s]+")) {
+          int part = parsePart(token);
+          if (!received.containsKey(part)) {
+            MiniFileServer.sendText(exchange, 400, "Part not uploaded: " + token);
+            return;
+          }
+          if (part <= previous) {
+            MiniFileServer.sendText(exchange, 400, part == previous
+                ? "Part listed more than once: " + part
+                : "Parts must be listed in ascending order: " + part + " after " + previous);
+            return;
+          }
+          order.add(part);
+          previous = part;
+        }
+      }
+      if (order.isEmpty()) {
+        MiniFileServer.sendText(exchange, 400, "No parts uploaded");
+        return;
+      }
+      long total = 0;
+      for (int part : order) {
+        total += received.get(part);
+      }
+      // The assembled copy needs as much room again as the parts
+      reservation = limits.reserve(total);
+      upload.completing = true;
+    } finally {
+      upload.lock.unlock();
+    }
+
+    // Parts are frozen while completing, so the copy needs no lock
+    boolean committed = false;
+    Path assembled = upload.dir.resolve("assembled.tmp");
+    try {
+      MessageDigest digest = ContentDigests.newDigest();
+      long size = 0;
+      try (OutputStream out = new DigestOutputStream(Files.newOutputStream(assembled),
+          digest)) {
+        for (int part : order) {
+          size += Files.copy(upload.part(part), out);
+        }
+      }
+      store.commit(assembled, upload.filename, HexFormat.of().formatHex(digest.digest()));
+      committed = true;
+      MiniFileServer.sendText(exchange, 200, "Uploaded: " + upload.filename + " (" + order.size()
+          + " parts, " + size + " bytes)");
+    } finally {
+      reservation.close();
+      upload.lock.lock();
+      try {
+        if (committed) {
+          discard(upload);
+        } else {
+          Files.deleteIfExists(assembled);
+          upload.completing = false;
+        }
+      } finally {
+        upload.lock.unlock();
+      }
+    }
+  }
+
+  private void abort(HttpExchange exchange, Upload upload) throws IOException {
+    upload.lock.lock();
+    try {
+      if (upload.completing) {
+        MiniFileServer.sendText(exchange, 409, "Upload is being completed");
+        return;
+      }
+      discard(upload);
+    } finally {
+      upload.lock.unlock();
+    }
+    exchange.sendResponseHeaders(204, -1);
+  }
+
+  private void discard(Upload upload) throws IOException {
+    upload.closed = true;
+    uploads.remove(upload.id);
+    try (Stream<Path> files = Files.list(upload.dir)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        Files.deleteIfExists(file);
+      }
+    }
+    Files.deleteIfExists(upload.dir);
+  }
+
+  private void purgeExpired() {
+    long cutoff = System.currentTimeMillis() - UPLOAD_TTL_MILLIS;
+    for (Upload upload : uploads.values()) {
+      if (upload.touched < cutoff && upload.lock.tryLock()) {
+        try {
+          if (!upload.completing) {
+            discard(upload);
+          }
+        } catch (IOException e) {
+          e.printStackTrace();
+        } finally {
+          upload.lock.unlock();
+        }
+      }
+    }
+  }
+
+  private void recover() throws IOException {
+    try (DirectoryStream<Path> dirs = Files.newDirectoryStream(staging, Files::isDirectory)) {
+      for (Path dir : dirs) {
+        Path info = dir.resolve("upload.info");
+        if (!Files.exists(info)) {
+          continue;
+        }
+        Properties props = new Properties();
+        try (Reader reader = Files.newBufferedReader(info, StandardCharsets.UTF_8)) {
+          props.load(reader);
+        }
+        String id = dir.getFileName().toString();
+        Upload upload = new Upload(id, props.getProperty("filename"), dir);
+        // Renaming a part into the directory updates its modification time
+        upload.touched = Files.getLastModifiedTime(dir).toMillis();
+        uploads.put(id, upload);
+      }
+    }
+  }
+
+  private static void move(Path source, Path target) throws IOException {
+    try {
+      Files.move(source, target, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private static int partNumber(String query) {
+    if (query == null) {
+      return -1;
+    }
+    for (String param : query.split("&")) {
+      if (param.startsWith("part=")) {
+        return parsePart(param.substring(5));
+      }
+    }
+    return -1;
+  }
+
+  private static int parsePart(String value) {
+    try {
+      int part = Integer.parseInt(value.trim());
+      return part >= 1 && part <= MAX_PARTS ? part : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static String uploadId(String path) {
+    String id = path.length() > CONTEXT.length() ? path.substring(CONTEXT.length()) : "";
+    while (id.startsWith("/")) {
+      id = id.substring(1);
+    }
+    while (id.endsWith("/")) {
+      id = id.substring(0, id.length() - 1);
+    }
+    return id;
+  }
+
+  /** A multipart upload in progress; parts are files named {@code N.part} in {@link #dir}. */
+  private static final class Upload {
+    final String id;
+    final String filename;
+    final Path dir;
+    final ReentrantLock lock = new ReentrantLock();
+    volatile boolean closed;
+    /** Set while the parts are being assembled; they must not change meanwhile. */
+    volatile boolean completing;
+    volatile long touched = System.currentTimeMillis();
+
+    Upload(String id, String filename, Path dir) {
+      this.id = id;
+      this.filename = filename;
+      this.dir = dir;
+    }
+
+    Path part(int number) {
+      return dir.resolve(number + ".part");
+    }
+
+    /** Received parts in ascending order, mapped to their sizes. */
+    Map<Integer, Long> parts() throws IOException {
+      Map<Integer, Long> parts = new TreeMap<>();
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.part")) {
+        for (Path file : files) {
+          String name = file.getFileName().toString();
+          int number = parsePart(name.substring(0, name.length() - ".part".length()));
+          if (number > 0) {
+            parts.put(number, Files.size(file));
+          }
+        }
+      }
+      return parts;
+    }
+  }
+}
@@ -0,0 +1,646 @@
+package com.fileserver;
+
+import com.sun.net.httpserver.Headers;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One request/response on a {@link NioHttpServer} connection.
+ *
+ * <p>Follows the JDK server's contract so handlers cannot tell the engines apart: a response
+ * length of 0 means chunked, -1 means no body, HEAD, 204 and 304 responses carry no body, and
+ * the exchange completes when the response body is closed or {@link #close()} is called.
+ * Completing hands the connection back for the next request after discarding at most
+ * {@link #DRAIN_LIMIT} bytes of unread request body; a larger remainder closes it instead.
+ */
+final class NioExchange extends NioHttpServer.EngineExchange {
+  /** Unread request body discarded to keep a connection alive; beyond this it is closed. */
+  static final int DRAIN_LIMIT = 64 << 10;
+  private static final int LINE_LIMIT = 8 << 10;
+  private static final byte[] CONTINUE =
+      "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+  private static final byte[] CRLF = {'\r', '\n'};
+
+  private final NioHttpServer.Connection connection;
+  private final String method;
+  private final URI uri;
+  private final String protocol;
+  private final Headers requestHeaders;
+  private final Headers responseHeaders = new Headers();
+  private final AtomicBoolean finished = new AtomicBoolean();
+  private final RequestBody requestBody;
+  private final ResponseBody responseBody = new ResponseBody();
+  private final boolean expectContinue;
+  private InputStream in;
+  private OutputStream out;
+  private boolean keepAlive;
+  private boolean continueSent;
+  private int responseCode = -1;
+
+  private NioExchange(NioHttpServer.Connection connection, String method, URI uri,
+      String protocol, Headers requestHeaders, RequestBody requestBody) {
+    this.connection = connection;
+    this.method = method;
+    this.uri = uri;
+    this.protocol = protocol;
+    this.requestHeaders = requestHeaders;
+    this.requestBody = requestBody;
+    this.in = requestBody;
+    this.out = responseBody;
+    String connectionHeader = String.valueOf(requestHeaders.getFirst("Connection"));
+    this.keepAlive = protocol.equals("HTTP/1.1")
+        ? !connectionHeader.equalsIgnoreCase("close")
+        : connectionHeader.equalsIgnoreCase("keep-alive");
+    this.expectContinue = protocol.equals("HTTP/1.1")
+        && "100-continue".equalsIgnoreCase(requestHeaders.getFirst("Expect"));
+  }
+
+  /**
+   * Parses a request head.
+   *
+   * @param connection connection the request arrived on
+   * @param head request line and header lines, without the final blank line
+   * @return the exchange
+   * @throws IllegalArgumentException if the head is malformed
+   */
+  static NioExchange parse(NioHttpServer.Connection connection, String head) {
+    String[] lines = head.split("\r\n", -1);
+    String[] requestLine = lines[0].split(" ", -1);
+    if (requestLine.length != 3 || requestLine[0].isEmpty()
+        || !requestLine[2].startsWith("HTTP/1.")) {
+      throw new IllegalArgumentException("Bad request line");
+    }
+    URI uri;
+    try {
+      uri = new URI(requestLine[1]);
+    } catch (URISyntaxException e) {
+      throw new IllegalArgumentException("Bad request target", e);
+    }
+    Headers headers = new Headers();
+    for (int i = 1; i < lines.length; i++) {
+      String line = lines[i];
+      int colon = line.indexOf(':');
+      if (colon <= 0 || line.charAt(0) == ' ' || line.charAt(0) == '\t') {
+        throw new IllegalArgumentException("Bad header line");
+      }
+      headers.add(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+    }
+    RequestBody body;
+    String encoding = headers.getFirst("Transfer-Encoding");
+    if (encoding != null) {
+      if (!encoding.toLowerCase(Locale.ROOT).endsWith("chunked")) {
+        throw new IllegalArgumentException("Unsupported transfer encoding");
+      }
+      body = new RequestBody(connection, -1);
+    } else {
+      String length = headers.getFirst("Content-Length");
+      long declared;
+      try {
+        declared = length == null ? 0 : Long.parseLong(length.trim());
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Bad Content-Length", e);
+      }
+      if (declared < 0) {
+        throw new IllegalArgumentException("Bad Content-Length");
+      }
+      body = new RequestBody(connection, declared);
+    }
+    NioExchange exchange = new NioExchange(connection, requestLine[0], uri, requestLine[2],
+        headers, body);
+    body.exchange = exchange;
+    return exchange;
+  }
+
+  /**
+   * Answers a request that never became an exchange, then closes the connection. Runs on a
+   * reactor thread, so the response is written once without waiting; it is small enough to
+   * fit the socket buffer of a fresh connection.
+   *
+   * @param connection connection to answer on
+   * @param code status code
+   * @param message plain-text body
+   * @param retryAfterSeconds Retry-After value sent with a 503
+   */
+  static void reject(NioHttpServer.Connection connection, int code, String message,
+      int retryAfterSeconds) {
+    byte[] body = message.getBytes(StandardCharsets.UTF_8);
+    String head = "HTTP/1.1 " + code + " " + reason(code) + "\r\nDate: " + httpDate()
+        + "\r\nContent-Type: text/plain\r\nContent-Length: " + body.length
+        + (code == 503 ? "\r\nRetry-After: " + retryAfterSeconds : "")
+        + "\r\nConnection: close\r\n\r\n";
+    ByteBuffer response = ByteBuffer.wrap(concat(head.getBytes(StandardCharsets.ISO_8859_1),
+        body));
+    try {
+      while (response.hasRemaining()) {
+        if (connection.channel.write(response) == 0) {
+          // The reactor cannot wait for room: reset rather than cleanly end a truncated response
+          connection.channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+          break;
+        }
+      }
+    } catch (IOException e) {
+      // The connection is closed either way
+    }
+    connection.finished(false);
+  }
+
+  @Override
+  public Headers getRequestHeaders() {
+    return requestHeaders;
+  }
+
+  @Override
+  public Headers getResponseHeaders() {
+    return responseHeaders;
+  }
+
+  @Override
+  public URI getRequestURI() {
+    return uri;
+  }
+
+  @Override
+  public String getRequestMethod() {
+    return method;
+  }
+
+  /**
+   * Completes the exchange. A response that was never started or cannot be finished closes
+   * the connection, as on the JDK server; otherwise the response body is closed.
+   */
+  @Override
+  public void close() {
+    if (finished.get()) {
+      return;
+    }
+    if (responseCode >= 0) {
+      try {
+        out.close();
+        responseBody.close();
+      } catch (IOException e) {
+        // Aborted below
+      }
+    }
+    abort();
+  }
+
+  @Override
+  public InputStream getRequestBody() {
+    return in;
+  }
+
+  @Override
+  public OutputStream getResponseBody() {
+    return out;
+  }
+
+  @Override
+  public void sendResponseHeaders(int code, long length) throws IOException {
+    if (responseCode >= 0) {
+      throw new IOException("Headers already sent");
+    }
+    if (finished.get()) {
+      throw new IOException("Exchange already closed");
+    }
+    responseCode = code;
+    boolean noBody = length < 0 || method.equals("HEAD") || code == 204 || code == 304
+        || code < 200;
+    if (noBody) {
+      if (code != 304 && !method.equals("HEAD") && code >= 200 && code != 204) {
+        responseHeaders.set("Content-Length", "0");
+      }
+      responseBody.start(ResponseBody.NONE, 0);
+    } else if (length == 0 && protocol.equals("HTTP/1.1")) {
+      responseHeaders.set("Transfer-Encoding", "chunked");
+      responseBody.start(ResponseBody.CHUNKED, 0);
+    } else if (length == 0) {
+      // HTTP/1.0 has no chunking: the end of the body is the end of the connection
+      keepAlive = false;
+      responseBody.start(ResponseBody.UNTIL_CLOSE, 0);
+    } else {
+      responseHeaders.set("Content-Length", Long.toString(length));
+      responseBody.start(ResponseBody.FIXED, length);
+    }
+    if ("close".equalsIgnoreCase(responseHeaders.getFirst("Connection"))
+        || expectContinue && !continueSent && requestBody.pending()) {
+      // A client never told to continue cannot know whether to send the body it announced
+      keepAlive = false;
+    }
+    if (!keepAlive) {
+      responseHeaders.set("Connection", "close");
+    } else if (protocol.equals("HTTP/1.0")) {
+      responseHeaders.set("Connection", "keep-alive");
+    }
+    if (!responseHeaders.containsKey("Date")) {
+      responseHeaders.set("Date", httpDate());
+    }
+    StringBuilder head = new StringBuilder(256);
+    head.append("HTTP/1.1 ").append(code).append(' ').append(reason(code)).append("\r\n");
+    for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+      for (String value : header.getValue()) {
+        head.append(header.getKey()).append(": ").append(value).append("\r\n");
+      }
+    }
+    head.append("\r\n");
+    try {
+      buffer(head.toString().getBytes(StandardCharsets.ISO_8859_1), 0, head.length());
+      if (noBody) {
+        connection.flush();
+        complete();
+      }
+    } catch (IOException e) {
+      abort();
+      throw e;
+    }
+  }
+
+  @Override
+  public InetSocketAddress getRemoteAddress() {
+    return connection.remoteAddress();
+  }
+
+  @Override
+  public int getResponseCode() {
+    return responseCode;
+  }
+
+  @Override
+  public InetSocketAddress getLocalAddress() {
+    return connection.localAddress();
+  }
+
+  @Override
+  public String getProtocol() {
+    return protocol;
+  }
+
+  @Override
+  public void setStreams(InputStream in, OutputStream out) {
+    if (in != null) {
+      this.in = in;
+    }
+    if (out != null) {
+      this.out = out;
+    }
+  }
+
+  /** Appends bytes to the connection's output buffer, flushing it when full. */
+  private void buffer(byte[] bytes, int off, int len) throws IOException {
+    ByteBuffer buffer = connection.out;
+    if (len >= buffer.capacity()) {
+      connection.flush();
+      connection.write(ByteBuffer.wrap(bytes, off, len));
+      return;
+    }
+    while (len > 0) {
+      if (!buffer.hasRemaining()) {
+        connection.flush();
+      }
+      int n = Math.min(len, buffer.remaining());
+      buffer.put(bytes, off, n);
+      off += n;
+      len -= n;
+    }
+  }
+
+  /** Appends a buffer to the output buffer, or writes it straight out if it is large. */
+  private void buffer(ByteBuffer src) throws IOException {
+    ByteBuffer buffer = connection.out;
+    if (src.remaining() > buffer.remaining()) {
+      connection.flush();
+      if (src.remaining() >= buffer.capacity()) {
+        connection.write(src);
+        return;
+      }
+    }
+    buffer.put(src);
+  }
+
+  /**
+   * Sends {@code 100 Continue} before the first body read of a request that asked for it, so
+   * a client is only told to send its body once a handler actually wants it.
+   */
+  private void sendContinue() throws IOException {
+    if (expectContinue && !continueSent && responseCode < 0) {
+      continueSent = true;
+      buffer(CONTINUE, 0, CONTINUE.length);
+      connection.flush();
+    }
+  }
+
+  /** The response is complete: give the connection back or close it. */
+  private void complete() {
+    if (!finished.compareAndSet(false, true)) {
+      return;
+    }
+    boolean reuse = keepAlive;
+    try {
+      connection.flush();
+      if (reuse && requestBody.pending()) {
+        // A client that was never sent 100 Continue may not send the body at all
+        reuse = (!expectContinue || continueSent) && requestBody.drain(DRAIN_LIMIT);
+      }
+    } catch (IOException e) {
+      reuse = false;
+    }
+    connection.finished(reuse);
+  }
+
+  /** Ends the exchange by closing the connection. */
+  @Override
+  void abort() {
+    if (finished.compareAndSet(false, true)) {
+      connection.finished(false);
+    }
+  }
+
+  private static byte[] concat(byte[] first, byte[] second) {
+    byte[] result = new byte[first.length + second.length];
+    System.arraycopy(first, 0, result, 0, first.length);
+    System.arraycopy(second, 0, result, first.length, second.length);
+    return result;
+  }
+
+  private static String reason(int code) {
+    switch (code) {
+      case 100: return "Continue";
+      case 200: return "OK";
+      case 201: return "Created";
+      case 204: return "No Content";
+      case 206: return "Partial Content";
+      case 304: return "Not Modified";
+      case 400: return "Bad Request";
+      case 404: return "Not Found";
+      case 405: return "Method Not Allowed";
+      case 409: return "Conflict";
+      case 412: return "Precondition Failed";
+      case 413: return "Content Too Large";
+      case 416: return "Range Not Satisfiable";
+      case 431: return "Request Header Fields Too Large";
+      case 500: return "Internal Server Error";
+      case 503: return "Service Unavailable";
+      case 507: return "Insufficient Storage";
+      default: return code < 300 ? "OK" : "Error";
+    }
+  }
+
+  /** Request body framed by Content-Length or chunked encoding, read from the connection. */
+  private static final class RequestBody extends InputStream {
+    private final NioHttpServer.Connection connection;
+    private final boolean chunked;
+    private NioExchange exchange;
+    /** Bytes left in the body, or in the current chunk when chunked. */
+    private long remaining;
+    private boolean eof;
+
+    /** @param length Content-Length, or -1 for a chunked body */
+    RequestBody(NioHttpServer.Connection connection, long length) {
+      this.connection = connection;
+      this.chunked = length < 0;
+      this.remaining = Math.max(length, 0);
+      this.eof = length == 0;
+    }
+
+    boolean pending() {
+      return !eof;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] one = new byte[1];
+      return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (eof) {
+        return -1;
+      }
+      if (len == 0) {
+        return 0;
+      }
+      exchange.sendContinue();
+      if (remaining == 0 && !nextChunk()) {
+        return -1;
+      }
+      ByteBuffer in = connection.in;
+      if (!in.hasRemaining() && connection.read() < 0) {
+        throw new EOFException("Connection closed before the end of the request body");
+      }
+      in = connection.in;
+      int n = (int) Math.min(Math.min(len, in.remaining()), remaining);
+      in.get(b, off, n);
+      remaining -= n;
+      if (remaining == 0) {
+        if (chunked) {
+          readLine();
+        } else {
+          eof = true;
+        }
+      }
+      return n;
+    }
+
+    /** Reads the next chunk header; false at the last chunk. */
+    private boolean nextChunk() throws IOException {
+      if (!chunked) {
+        eof = true;
+        return false;
+      }
+      String line = readLine();
+      int semicolon = line.indexOf(';');
+      try {
+        remaining = Long.parseLong(
+            (semicolon < 0 ? line : line.substring(0, semicolon)).trim(), 16);
+      } catch (NumberFormatException e) {
+        throw new IOException("Bad chunk size: " + line, e);
+      }
+      if (remaining < 0) {
+        throw new IOException("Bad chunk size: " + line);
+      }
+      if (remaining == 0) {
+        while (!readLine().isEmpty()) {
+          // Trailers are not used
+        }
+        eof = true;
+        return false;
+      }
+      return true;
+    }
+
+    private String readLine() throws IOException {
+      StringBuilder line = new StringBuilder();
+      while (true) {
+        ByteBuffer in = connection.in;
+        while (in.hasRemaining()) {
+          byte b = in.get();
+          if (b == '\n') {
+            int end = line.length();
+            return end > 0 && line.charAt(end - 1) == '\r' ? line.substring(0, end - 1)
+                : line.toString();
+          }
+          if (line.length() >= LINE_LIMIT) {
+            throw new IOException("Chunk line too long");
+          }
+          line.append((char) b);
+        }
+        if (connection.read() < 0) {
+          throw new EOFException("Connection closed before the end of the request body");
+        }
+      }
+    }
+
+    /**
+     * Discards the rest of the body.
+     *
+     * @return true if the body ended within {@code limit} bytes
+     */
+    boolean drain(long limit) throws IOException {
+      byte[] scratch = new byte[4096];
+      long drained = 0;
+      while (!eof && drained < limit) {
+        int n = read(scratch, 0, scratch.length);
+        if (n > 0) {
+          drained += n;
+        }
+      }
+      return eof;
+    }
+  }
+
+  /** Response body in the framing chosen by {@link #sendResponseHeaders}. */
+  private final class ResponseBody extends OutputStream implements FileTransfer.Sink {
+    static final int NONE = 0;
+    static final int FIXED = 1;
+    static final int CHUNKED = 2;
+    static final int UNTIL_CLOSE = 3;
+
+    private int mode = -1;
+    private long remaining;
+    private boolean closed;
+
+    void start(int mode, long length) {
+      this.mode = mode;
+      this.remaining = length;
+    }
+
+    private void check(long count) throws IOException {
+      if (closed) {
+        throw new IOException("Stream is closed");
+      }
+      if (mode < 0) {
+        throw new IOException("Response headers not sent yet");
+      }
+      if (mode == NONE && count > 0) {
+        throw new IOException("Response has no body");
+      }
+      if (mode == FIXED && count > remaining) {
+        throw new IOException("Too many bytes to write to stream");
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      check(len);
+      if (len == 0) {
+        return;
+      }
+      if (mode == CHUNKED) {
+        byte[] size = (Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        buffer(size, 0, size.length);
+        buffer(b, off, len);
+        buffer(CRLF, 0, CRLF.length);
+      } else {
+        buffer(b, off, len);
+        remaining -= len;
+      }
+    }
+
+    @Override
+    public void transferFrom(FileChannel source, long position, long count) throws IOException {
+      check(count);
+      if (count == 0) {
+        return;
+      }
+      if (mode == CHUNKED) {
+        byte[] size = (Long.toHexString(count) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        buffer(size, 0, size.length);
+        connection.transfer(source, position, count);
+        buffer(CRLF, 0, CRLF.length);
+      } else {
+        connection.transfer(source, position, count);
+        remaining -= count;
+      }
+    }
+
+    @Override
+    public void transferFrom(ByteBuffer source) throws IOException {
+      int count = source.remaining();
+      check(count);
+      if (count == 0) {
+        return;
+      }
+      if (mode == CHUNKED) {
+        byte[] size = (Integer.toHexString(count) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        buffer(size, 0, size.length);
+        buffer(source);
+        buffer(CRLF, 0, CRLF.length);
+      } else {
+        buffer(source);
+        remaining -= count;
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (!closed && mode >= 0) {
+        connection.flush();
+      }
+    }
+
+    /** Ends the body and completes the exchange; a short fixed-length body closes it. */
+    @Override
+    public void close() throws IOException {
+      if (closed || finished.get()) {
+        return;
+      }
+      closed = true;
+      if (mode < 0) {
+        abort();
+        return;
+      }
+      if (mode == FIXED && remaining > 0) {
+        abort();
+        throw new IOException("Insufficient bytes written to stream");
+      }
+      if (mode == CHUNKED) {
+        byte[] last = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        try {
+          buffer(last, 0, last.length);
+        } catch (IOException e) {
+          abort();
+          throw e;
+        }
+      }
+      complete();
+    }
+  }
+}
@@ -0,0 +1,790 @@
+package com.fileserver;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpPrincipal;
+import com.sun.net.httpserver.HttpServer;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An {@link HttpServer} built directly on NIO selectors, as an alternative to the JDK's.
+ *
+ * <p>A fixed set of reactor threads, one per core by default, each own a selector. Reactor 0
+ * also accepts connections and deals them out round-robin. A reactor reads and parses request
+ * headers without blocking; once a request is complete the connection is handed to the
+ * server executor, exactly like the JDK server, so the existing handlers and filters run
+ * unchanged on {@link HttpExchange}s. While a handler owns the connection it reads and writes
+ * the non-blocking socket itself, parking on a pooled selector only when the socket is not
+ * ready, and gives the connection back when the response is complete. Idle keep-alive
+ * connections therefore cost a selector registration and a buffer, not a thread.
+ *
+ * <p>Differences from the JDK server that matter here:
+ *
+ * <ul>
+ *   <li>File downloads are sent with {@code transferTo} straight into the socket channel
+ *       (see {@link FileTransfer.Sink}), so the kernel can use sendfile.</li>
+ *   <li>{@code 100 Continue} is only sent when a handler starts reading the request body, so
+ *       an upload refused on its headers never has its body sent.</li>
+ *   <li>Pipelined requests are read ahead into the connection buffer and served in order.</li>
+ *   <li>Idle keep-alive connections are closed after a configurable timeout.</li>
+ *   <li>Cleartext HTTP/2 is spoken when enabled, see {@link Http2Connection}.</li>
+ * </ul>
+ */
+final class NioHttpServer extends HttpServer {
+  /** Largest request line plus headers accepted. */
+  static final int HEADER_LIMIT = 64 << 10;
+  private static final int BUFFER_SIZE = 16 << 10;
+
+  private final int reactorCount;
+  private final long idleTimeoutMillis;
+  private final int http2Streams;
+  private final int retryAfterSeconds;
+  private final List<NioContext> contexts = new CopyOnWriteArrayList<>();
+  private final Queue<Selector> waitSelectors = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger nextReactor = new AtomicInteger();
+  private ServerSocketChannel serverChannel;
+  private Reactor[] reactors;
+  private Executor executor;
+  private ExecutorService defaultExecutor;
+  private volatile boolean running;
+
+  private NioHttpServer(int reactorCount, long idleTimeoutMillis, int http2Streams,
+      int retryAfterSeconds) {
+    this.reactorCount = reactorCount;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.http2Streams = http2Streams;
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+
+  /**
+   * Creates a server bound to an address.
+   *
+   * @param address address to listen on; port 0 picks a free port
+   * @param reactors number of selector threads
+   * @param idleTimeoutMillis how long an idle keep-alive connection or a stalled read or
+   *     write may last
+   * @param http2Streams concurrent streams per HTTP/2 connection, or 0 to speak HTTP/1.1 only
+   * @param retryAfterSeconds Retry-After value sent with 503 when the executor is saturated
+   * @return the bound, not yet started server
+   * @throws IOException if the address cannot be bound
+   */
+  static NioHttpServer create(InetSocketAddress address, int reactors, long idleTimeoutMillis,
+      int http2Streams, int retryAfterSeconds) throws IOException {
+    NioHttpServer server = new NioHttpServer(Math.max(1, reactors), idleTimeoutMillis,
+        http2Streams, retryAfterSeconds);
+    server.bind(address, 0);
+    return server;
+  }
+
+  @Override
+  public void bind(InetSocketAddress address, int backlog) throws IOException {
+    if (serverChannel != null) {
+      throw new IllegalStateException("Already bound");
+    }
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+    serverChannel.bind(address, backlog);
+    serverChannel.configureBlocking(false);
+  }
+
+  @Override
+  public void start() {
+    if (serverChannel == null || running) {
+      throw new IllegalStateException("Server not bound or already started");
+    }
+    if (executor == null) {
+      defaultExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "fileserver-nio-worker");
+        thread.setDaemon(true);
+        return thread;
+      });
+      executor = defaultExecutor;
+    }
+    running = true;
+    reactors = new Reactor[reactorCount];
+    try {
+      for (int i = 0; i < reactorCount; i++) {
+        reactors[i] = new Reactor(i);
+      }
+      serverChannel.register(reactors[0].selector, SelectionKey.OP_ACCEPT);
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot open selectors", e);
+    }
+    for (Reactor reactor : reactors) {
+      reactor.thread.start();
+    }
+  }
+
+  @Override
+  public void setExecutor(Executor executor) {
+    if (running) {
+      throw new IllegalStateException("Server already started");
+    }
+    this.executor = executor;
+  }
+
+  @Override
+  public Executor getExecutor() {
+    return executor;
+  }
+
+  /**
+   * Stops accepting connections, gives exchanges in progress up to {@code delay} seconds to
+   * finish and closes every connection.
+   */
+  @Override
+  public void stop(int delay) {
+    try {
+      serverChannel.close();
+    } catch (IOException e) {
+      // Nothing more to release
+    }
+    long deadline = System.nanoTime() + delay * 1_000_000_000L;
+    if (reactors != null) {
+      while (busyConnections() > 0 && System.nanoTime() < deadline) {
+        try {
+          Thread.sleep(20);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }
+    running = false;
+    if (reactors != null) {
+      for (Reactor reactor : reactors) {
+        reactor.selector.wakeup();
+      }
+      for (Reactor reactor : reactors) {
+        try {
+          reactor.thread.join(1000);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+    Selector selector;
+    while ((selector = waitSelectors.poll()) != null) {
+      try {
+        selector.close();
+      } catch (IOException e) {
+        // Nothing more to release
+      }
+    }
+    if (defaultExecutor != null) {
+      defaultExecutor.shutdownNow();
+    }
+  }
+
+  /** How long a read or write may stall, or an idle connection stay open. */
+  long idleTimeoutMillis() {
+    return idleTimeoutMillis;
+  }
+
+  private int busyConnections() {
+    int busy = 0;
+    for (Reactor reactor : reactors) {
+      busy += reactor.busy.get();
+    }
+    return busy;
+  }
+
+  @Override
+  public HttpContext createContext(String path, HttpHandler handler) {
+    HttpContext context = createContext(path);
+    context.setHandler(handler);
+    return context;
+  }
+
+  @Override
+  public HttpContext createContext(String path) {
+    if (path == null || !path.startsWith("/")) {
+      throw new IllegalArgumentException("Invalid context path: " + path);
+    }
+    for (NioContext context : contexts) {
+      if (context.path.equals(path)) {
+        throw new IllegalArgumentException("Context already exists: " + path);
+      }
+    }
+    NioContext context = new NioContext(path);
+    contexts.add(context);
+    return context;
+  }
+
+  @Override
+  public void removeContext(String path) {
+    if (!contexts.removeIf(context -> context.path.equals(path))) {
+      throw new IllegalArgumentException("No context for " + path);
+    }
+  }
+
+  @Override
+  public void removeContext(HttpContext context) {
+    if (!contexts.remove(context)) {
+      throw new IllegalArgumentException("Unknown context");
+    }
+  }
+
+  @Override
+  public InetSocketAddress getAddress() {
+    try {
+      return (InetSocketAddress) serverChannel.getLocalAddress();
+    } catch (IOException e) {
+      throw new IllegalStateException("Server is closed", e);
+    }
+  }
+
+  /** Longest context path that prefixes the request path, as the JDK server matches. */
+  private NioContext findContext(String path) {
+    NioContext best = null;
+    for (NioContext context : contexts) {
+      if (path.startsWith(context.path)
+          && (best == null || context.path.length() > best.path.length())) {
+        best = context;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Runs a request through its context's filters and handler on the calling worker thread.
+   */
+  void handle(EngineExchange exchange) {
+    NioContext context = findContext(exchange.getRequestURI().getPath());
+    try {
+      if (context == null || context.handler == null) {
+        exchange.sendError(404, "No context found for request");
+        return;
+      }
+      exchange.setContext(context);
+      new Filter.Chain(context.filters, context.handler).doFilter(exchange);
+    } catch (IOException | RuntimeException e) {
+      exchange.abort();
+    }
+  }
+
+  /**
+   * Parks the calling worker until the channel is ready for {@code ops}, or times out. A
+   * select that returns early with nothing ready is retried until the timeout has really
+   * passed; an interrupt ends the wait.
+   */
+  void await(SocketChannel channel, int ops) throws IOException {
+    Selector selector = waitSelectors.poll();
+    if (selector == null) {
+      selector = Selector.open();
+    }
+    SelectionKey key = channel.register(selector, ops);
+    try {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+      long wait = idleTimeoutMillis;
+      while (selector.select(wait) == 0) {
+        if (Thread.currentThread().isInterrupted()) {
+          throw new InterruptedIOException("Interrupted while waiting for the socket");
+        }
+        long left = deadline - System.nanoTime();
+        if (left <= 0) {
+          throw new SocketTimeoutException("No progress for " + idleTimeoutMillis + " ms");
+        }
+        wait = Math.max(1, TimeUnit.NANOSECONDS.toMillis(left));
+      }
+    } finally {
+      key.cancel();
+      selector.selectedKeys().clear();
+      selector.selectNow();
+      if (running) {
+        waitSelectors.offer(selector);
+      } else {
+        selector.close();
+      }
+    }
+  }
+
+  /** A selector thread with the connections it owns. */
+  private final class Reactor implements Runnable {
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    /** Connections currently owned by a handler. */
+    private final AtomicInteger busy = new AtomicInteger();
+    private long nextIdleCheck;
+
+    Reactor(int index) throws IOException {
+      selector = Selector.open();
+      // Like the JDK server's dispatcher, reactors keep the JVM alive until stop()
+      thread = new Thread(this, "fileserver-nio-" + index);
+    }
+
+    /** Runs a task on the reactor thread. */
+    void execute(Runnable task) {
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        try {
+          selector.select(1000);
+          Runnable task;
+          while ((task = tasks.poll()) != null) {
+            task.run();
+          }
+          for (SelectionKey key : selector.selectedKeys()) {
+            if (!key.isValid()) {
+              continue;
+            }
+            if (key.isAcceptable()) {
+              accept();
+            } else if (key.isReadable()) {
+              ((Connection) key.attachment()).onReadable();
+            }
+          }
+          selector.selectedKeys().clear();
+          closeIdle();
+        } catch (IOException | RuntimeException e) {
+          e.printStackTrace();
+        }
+      }
+      for (SelectionKey key : selector.keys()) {
+        if (key.attachment() instanceof Connection) {
+          ((Connection) key.attachment()).close();
+        }
+      }
+      try {
+        selector.close();
+      } catch (IOException e) {
+        // Nothing more to release
+      }
+    }
+
+    private void accept() throws IOException {
+      SocketChannel channel;
+      while ((channel = serverChannel.accept()) != null) {
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Reactor owner = reactors[Math.floorMod(nextReactor.getAndIncrement(), reactors.length)];
+        SocketChannel accepted = channel;
+        if (owner == this) {
+          owner.register(accepted);
+        } else {
+          owner.execute(() -> owner.register(accepted));
+        }
+      }
+    }
+
+    private void register(SocketChannel channel) {
+      try {
+        Connection connection = new Connection(this, channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+      } catch (ClosedChannelException e) {
+        // Closed before it was registered
+      }
+    }
+
+    private void closeIdle() {
+      long now = System.currentTimeMillis();
+      if (now < nextIdleCheck) {
+        return;
+      }
+      nextIdleCheck = now + 1000;
+      for (SelectionKey key : selector.keys()) {
+        if (key.attachment() instanceof Connection) {
+          Connection connection = (Connection) key.attachment();
+          if (!connection.busy && now - connection.lastActive > idleTimeoutMillis) {
+            if (connection.http2 != null) {
+              connection.http2.idle();
+            } else {
+              connection.close();
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * One client connection. Owned by its reactor while waiting for a request and by a worker
+   * while an exchange runs; ownership passes through the executor or the reactor task queue.
+   */
+  final class Connection {
+    private final Reactor reactor;
+    final SocketChannel channel;
+    private SelectionKey key;
+    /** Received bytes not consumed yet, in read mode. */
+    ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE).flip();
+    /** Response bytes not written yet, in write mode. */
+    final ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+    private volatile boolean busy;
+    private volatile long lastActive = System.currentTimeMillis();
+    /** Set once the connection speaks HTTP/2; its frames are then read on the reactor. */
+    private Http2Connection http2;
+
+    Connection(Reactor reactor, SocketChannel channel) {
+      this.reactor = reactor;
+      this.channel = channel;
+    }
+
+    /** Reactor thread: more header bytes arrived. */
+    private void onReadable() {
+      try {
+        if (fill() < 0) {
+          close();
+          return;
+        }
+        lastActive = System.currentTimeMillis();
+        if (http2 != null) {
+          http2.onInput();
+        } else {
+          dispatch();
+        }
+      } catch (IOException e) {
+        close();
+      }
+    }
+
+    /**
+     * Reads what the socket has into the input buffer without blocking, growing it while
+     * headers are incomplete.
+     *
+     * @return bytes read, or -1 at end of stream
+     */
+    int fill() throws IOException {
+      in.compact();
+      if (!in.hasRemaining() && in.capacity() < HEADER_LIMIT + BUFFER_SIZE) {
+        ByteBuffer larger = ByteBuffer.allocate(in.capacity() * 2);
+        in.flip();
+        larger.put(in);
+        in = larger;
+      }
+      int n = channel.read(in);
+      in.flip();
+      return n;
+    }
+
+    /** Starts an exchange if a complete request head is buffered. */
+    private void dispatch() throws IOException {
+      int end = headerEnd();
+      if (end < 0) {
+        if (in.remaining() >= HEADER_LIMIT) {
+          busy = true;
+          reactor.busy.incrementAndGet();
+          key.interestOps(0);
+          NioExchange.reject(this, 431, "Request header fields too large", retryAfterSeconds);
+        }
+        return;
+      }
+      byte[] head = new byte[end - in.position()];
+      in.get(head);
+      in.position(end + 4);
+      busy = true;
+      reactor.busy.incrementAndGet();
+      key.interestOps(0);
+      String request = new String(head, StandardCharsets.ISO_8859_1);
+      if (http2Streams > 0 && request.equals("PRI * HTTP/2.0")) {
+        startHttp2(null);
+        return;
+      }
+      NioExchange exchange;
+      try {
+        exchange = NioExchange.parse(this, request);
+      } catch (IllegalArgumentException e) {
+        NioExchange.reject(this, 400, e.getMessage(), retryAfterSeconds);
+        return;
+      }
+      if (http2Streams > 0 && Http2Connection.isUpgrade(exchange)) {
+        startHttp2(exchange);
+        return;
+      }
+      try {
+        executor.execute(() -> handle(exchange));
+      } catch (RejectedExecutionException e) {
+        NioExchange.reject(this, 503, "Server busy, retry later", retryAfterSeconds);
+      }
+    }
+
+    /**
+     * Switches the connection to HTTP/2 for good. It goes back to its reactor, which reads
+     * frames from then on, and no longer counts as busy: streams hold up {@link #stop} no
+     * more than idle connections do.
+     */
+    private void startHttp2(NioExchange upgrade) {
+      reactor.busy.decrementAndGet();
+      busy = false;
+      http2 = new Http2Connection(NioHttpServer.this, this, http2Streams);
+      key.interestOps(SelectionKey.OP_READ);
+      http2.start(upgrade);
+    }
+
+    /** Position of the blank line ending the buffered request head, or -1. */
+    private int headerEnd() {
+      for (int i = in.position(); i + 3 < in.limit(); i++) {
+        if (in.get(i) == '\r' && in.get(i + 1) == '\n' && in.get(i + 2) == '\r'
+            && in.get(i + 3) == '\n') {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * Worker thread: the exchange is complete. The connection goes back to its reactor, or
+     * straight on to the next pipelined request if one is already buffered.
+     *
+     * @param keepAlive whether the connection may carry another request
+     */
+    void finished(boolean keepAlive) {
+      reactor.busy.decrementAndGet();
+      if (!keepAlive || !running) {
+        close();
+        return;
+      }
+      lastActive = System.currentTimeMillis();
+      busy = false;
+      reactor.execute(() -> {
+        if (!key.isValid()) {
+          return;
+        }
+        try {
+          if (in.hasRemaining() && headerEnd() >= 0) {
+            dispatch();
+          } else {
+            key.interestOps(SelectionKey.OP_READ);
+          }
+        } catch (IOException | RuntimeException e) {
+          close();
+        }
+      });
+    }
+
+    /** Worker thread: reads at least one byte into the input buffer, waiting if needed. */
+    int read() throws IOException {
+      while (true) {
+        int n = fill();
+        if (n != 0) {
+          return n;
+        }
+        await(channel, SelectionKey.OP_READ);
+      }
+    }
+
+    /** Worker thread: writes the output buffer completely. */
+    void flush() throws IOException {
+      out.flip();
+      try {
+        write(out);
+      } finally {
+        out.compact();
+      }
+    }
+
+    /** Worker thread: writes a buffer completely. */
+    void write(ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining()) {
+        if (channel.write(buffer) == 0) {
+          await(channel, SelectionKey.OP_WRITE);
+        }
+      }
+    }
+
+    /** Worker thread: sends part of a file straight from the page cache to the socket. */
+    void transfer(FileChannel source, long position, long count) throws IOException {
+      flush();
+      long sent = 0;
+      while (sent < count) {
+        long n = source.transferTo(position + sent, count - sent, channel);
+        if (n > 0) {
+          sent += n;
+        } else if (position + sent >= source.size()) {
+          throw new EOFException("File truncated after " + (position + sent) + " bytes");
+        } else {
+          await(channel, SelectionKey.OP_WRITE);
+        }
+      }
+    }
+
+    /** Marks the connection active, postponing its idle timeout. */
+    void touch() {
+      lastActive = System.currentTimeMillis();
+    }
+
+    InetSocketAddress remoteAddress() {
+      try {
+        return (InetSocketAddress) channel.getRemoteAddress();
+      } catch (IOException e) {
+        return null;
+      }
+    }
+
+    InetSocketAddress localAddress() {
+      try {
+        return (InetSocketAddress) channel.getLocalAddress();
+      } catch (IOException e) {
+        return null;
+      }
+    }
+
+    void close() {
+      if (key != null) {
+        key.cancel();
+      }
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // Nothing more to release
+      }
+      if (http2 != null) {
+        http2.closed();
+      }
+    }
+  }
+
+  /** State and behaviour shared by the HTTP/1.1 and HTTP/2 exchanges of this engine. */
+  abstract static class EngineExchange extends HttpExchange {
+    private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+    private HttpContext context;
+
+    /** Current time as an HTTP date. */
+    static String httpDate() {
+      return DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC));
+    }
+
+    /**
+     * Sends a complete plain-text response.
+     *
+     * @param code status code
+     * @param message response body
+     * @throws IOException if the response cannot be written
+     */
+    void sendError(int code, String message) throws IOException {
+      byte[] body = message.getBytes(StandardCharsets.UTF_8);
+      getResponseHeaders().set("Content-Type", "text/plain");
+      sendResponseHeaders(code, body.length);
+      try (OutputStream os = getResponseBody()) {
+        os.write(body);
+      }
+    }
+
+    /** Ends the exchange without completing its response, e.g. after a handler failure. */
+    abstract void abort();
+
+    void setContext(HttpContext context) {
+      this.context = context;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+      return context;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+      return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+      if (value == null) {
+        attributes.remove(name);
+      } else {
+        attributes.put(name, value);
+      }
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+      return null;
+    }
+  }
+
+  /** A context of this server; same matching and filter semantics as the JDK's. */
+  private final class NioContext extends HttpContext {
+    private final String path;
+    private final List<Filter> filters = new ArrayList<>();
+    private final Map<String, Object> attributes = new HashMap<>();
+    private volatile HttpHandler handler;
+    private Authenticator authenticator;
+
+    NioContext(String path) {
+      this.path = path;
+    }
+
+    @Override
+    public HttpHandler getHandler() {
+      return handler;
+    }
+
+    @Override
+    public void setHandler(HttpHandler handler) {
+      if (this.handler != null) {
+        throw new IllegalArgumentException("Handler already set");
+      }
+      this.handler = handler;
+    }
+
+    @Override
+    public String getPath() {
+      return path;
+    }
+
+    @Override
+    public HttpServer getServer() {
+      return NioHttpServer.this;
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+      return attributes;
+    }
+
+    @Override
+    public List<Filter> getFilters() {
+      return filters;
+    }
+
+    @Override
+    public Authenticator setAuthenticator(Authenticator authenticator) {
+      Authenticator previous = this.authenticator;
+      this.authenticator = authenticator;
+      return previous;
+    }
+
+    @Override
+    public Authenticator getAuthenticator() {
+      return authenticator;
+    }
+  }
+}
@@ -0,0 +1,352 @@
+package com.fileserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Resumable upload sessions under {@code /uploads}.
+ *
+ * <ul>
+ *   <li>{@code POST /uploads} with {@code X-Filename} (and optionally {@code Upload-Length})
+ *       creates a session and returns its URL in {@code Location}.</li>
+ *   <li>{@code PUT /uploads/{id}} with {@code Upload-Offset} writes the body at that offset.
+ *       The offset may not be past the committed offset.</li>
+ *   <li>{@code HEAD /uploads/{id}} reports the committed offset in {@code Upload-Offset}.</li>
+ *   <li>{@code POST /uploads/{id}} finalizes the upload into storage.</li>
+ *   <li>{@code DELETE /uploads/{id}} aborts the session.</li>
+ * </ul>
+ *
+ * <p>Chunks are written positionally into a staging file, and progress is kept even when
+ * a chunk is cut off mid-stream. Sessions survive restarts: the committed offset is the
+ * staging file's length.
+ */
+final class ResumableUploads implements HttpHandler {
+  static final String CONTEXT = "/uploads";
+  private static final long SESSION_TTL_MILLIS = TimeUnit.HOURS.toMillis(24);
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final FileStore store;
+  private final UploadLimits limits;
+  private final Path staging;
+  private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+  /**
+   * Creates the handler and recovers sessions left in the staging directory.
+   *
+   * @param store commits finished uploads into storage
+   * @param internalDir server state directory; sessions live in its {@code uploads} child
+   * @param limits size and free-space limits applied to every request body
+   * @throws IOException if the staging directory cannot be created or read
+   */
+  ResumableUploads(FileStore store, Path internalDir, UploadLimits limits)
+      throws IOException {
+    this.store = store;
+    this.limits = limits;
+    this.staging = internalDir.resolve("uploads");
+    Files.createDirectories(staging);
+    recover();
+  }
+
+  @Override
+  public void handle(HttpExchange exchange) throws IOException {
+    try {
+      String method = exchange.getRequestMethod().toUpperCase(Locale.ROOT);
+      String id = sessionId(exchange.getRequestURI().getPath());
+      if (id.isEmpty()) {
+        if (method.equals("POST")) {
+          create(exchange);
+        } else {
+          exchange.sendResponseHeaders(405, -1);
+        }
+        return;
+      }
+
+      Session session = sessions.get(id);
+      if (session == null) {
+        MiniFileServer.sendText(exchange, 404, "Unknown upload session");
+        return;
+      }
+      switch (method) {
+        case "HEAD":
+        case "GET":
+          status(exchange, session, method.equals("HEAD"));
+          break;
+        case "PUT":
+        case "PATCH":
+          writeChunk(exchange, session);
+          break;
+        case "POST":
+          complete(exchange, session);
+          break;
+        case "DELETE":
+          abort(exchange, session);
+          break;
+        default:
+          exchange.sendResponseHeaders(405, -1);
+      }
+    } catch (UploadLimits.LimitExceededException e) {
+      limits.reject(exchange, e);
+    } catch (Exception e) {
+      e.printStackTrace();
+      MiniFileServer.sendText(exchange, 500, "Upload failed: " + e.getMessage());
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void create(HttpExchange exchange) throws IOException {
+    String filename = MiniFileServer.sanitizeFilename(
+        exchange.getRequestHeaders().getFirst("X-Filename"));
+    if (filename == null) {
+      MiniFileServer.sendText(exchange, 400, "Missing or invalid X-Filename header");
+      return;
+    }
+    long length = -1;
+    String declared = exchange.getRequestHeaders().getFirst("Upload-Length");
+    if (declared != null) {
+      length = parseOffset(declared);
+      if (length < 0) {
+        MiniFileServer.sendText(exchange, 400, "Invalid Upload-Length header");
+        return;
+      }
+    }
+    limits.checkLength(length);
+    purgeExpired();
+
+    String id = UUID.randomUUID().toString().replace("-", "");
+    Session session = new Session(id, filename, length, staging.resolve(id + ".part"),
+        staging.resolve(id + ".info"));
+    Files.createFile(session.data);
+    Properties info = new Properties();
+    info.setProperty("filename", filename);
+    info.setProperty("length", Long.toString(length));
+    try (Writer writer = Files.newBufferedWriter(session.info, StandardCharsets.UTF_8)) {
+      info.store(writer, null);
+    }
+    sessions.put(id, session);
+
+    exchange.getResponseHeaders().set("Location", CONTEXT + "/" + id);
+    exchange.getResponseHeaders().set("Upload-Offset", "0");
+    MiniFileServer.sendText(exchange, 201, id);
+  }
+
+  private void status(HttpExchange exchange, Session session, boolean head) throws IOException {
+    exchange.getResponseHeaders().set("Cache-Control", "no-store");
+    exchange.getResponseHeaders().set("Upload-Offset", Long.toString(session.offset));
+    if (session.length >= 0) {
+      exchange.getResponseHeaders().set("Upload-Length", Long.toString(session.length));
+    }
+    if (head) {
+      exchange.sendResponseHeaders(200, -1);
+    } else {
+      MiniFileServer.sendText(exchange, 200, Long.toString(session.offset));
+    }
+  }
+
+  private void writeChunk(HttpExchange exchange, Session session) throws IOException {
+    long offset = parseOffset(exchange.getRequestHeaders().getFirst("Upload-Offset"));
+    if (offset < 0) {
+      MiniFileServer.sendText(exchange, 400, "Missing or invalid Upload-Offset header");
+      return;
+    }
+    if (!session.lock.tryLock()) {
+      MiniFileServer.sendText(exchange, 409, "Another chunk is being written to this session");
+      return;
+    }
+    // The response goes out after the lock is released, so a client sending its next chunk
+    // as soon as it sees this one acknowledged never finds the session busy
+    int status = 204;
+    String message = null;
+    try {
+      if (session.closed) {
+        status = 404;
+        message = "Unknown upload session";
+      } else if (offset > session.offset) {
+        status = 409;
+        message = "Offset is past committed offset " + session.offset;
+      } else if (!receive(exchange, session, offset)) {
+        status = 413;
+        message = "Chunk exceeds declared Upload-Length";
+      }
+      if (status != 404) {
+        exchange.getResponseHeaders().set("Upload-Offset", Long.toString(session.offset));
+      }
+    } finally {
+      session.touched = System.currentTimeMillis();
+      session.lock.unlock();
+    }
+    if (message == null) {
+      exchange.sendResponseHeaders(status, -1);
+    } else {
+      MiniFileServer.sendText(exchange, status, message);
+    }
+  }
+
+  /**
+   * Streams the request body into the staging file, advancing the committed offset after
+   * every write so an interrupted chunk still counts.
+   *
+   * @return false if the body ran past the declared upload length
+   */
+  private boolean receive(HttpExchange exchange, Session session, long offset)
+      throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+    long position = offset;
+    try (UploadLimits.Reservation reservation = limits.admit(exchange.getRequestHeaders());
+        InputStream in = reservation.wrap(exchange.getRequestBody());
+        FileChannel channel = FileChannel.open(session.data, StandardOpenOption.WRITE)) {
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        if (session.length >= 0 && position + n > session.length) {
+          return false;
+        }
+        // Without a declared length the whole upload, not just this chunk, is held to the limit
+        limits.checkLength(position + n);
+        wrapped.clear().limit(n);
+        while (wrapped.hasRemaining()) {
+          position += channel.write(wrapped, position);
+        }
+        session.offset = Math.max(session.offset, position);
+      }
+    }
+    return true;
+  }
+
+  private void complete(HttpExchange exchange, Session session) throws IOException {
+    session.lock.lock();
+    try {
+      if (session.closed) {
+        MiniFileServer.sendText(exchange, 404, "Unknown upload session");
+        return;
+      }
+      if (session.length >= 0 && session.offset != session.length) {
+        exchange.getResponseHeaders().set("Upload-Offset", Long.toString(session.offset));
+        MiniFileServer.sendText(exchange, 409, "Upload incomplete: " + session.offset + " of "
+            + session.length + " bytes");
+        return;
+      }
+      store.commit(session.data, session.filename, ContentDigests.compute(session.data));
+      discard(session);
+    } finally {
+      session.lock.unlock();
+    }
+    MiniFileServer.sendText(exchange, 200, "Uploaded: " + session.filename);
+  }
+
+  private void abort(HttpExchange exchange, Session session) throws IOException {
+    session.lock.lock();
+    try {
+      discard(session);
+    } finally {
+      session.lock.unlock();
+    }
+    exchange.sendResponseHeaders(204, -1);
+  }
+
+  private void discard(Session session) throws IOException {
+    session.closed = true;
+    sessions.remove(session.id);
+    Files.deleteIfExists(session.data);
+    Files.deleteIfExists(session.info);
+  }
+
+  private void purgeExpired() {
+    long cutoff = System.currentTimeMillis() - SESSION_TTL_MILLIS;
+    for (Session session : sessions.values()) {
+      if (session.touched < cutoff && session.lock.tryLock()) {
+        try {
+          discard(session);
+        } catch (IOException e) {
+          e.printStackTrace();
+        } finally {
+          session.lock.unlock();
+        }
+      }
+    }
+  }
+
+  private void recover() throws IOException {
+    try (DirectoryStream<Path> infos = Files.newDirectoryStream(staging, "*.info")) {
+      for (Path info : infos) {
+        String name = info.getFileName().toString();
+        String id = name.substring(0, name.length() - ".info".length());
+        Path data = staging.resolve(id + ".part");
+        if (!Files.exists(data)) {
+          Files.deleteIfExists(info);
+          continue;
+        }
+        Properties props = new Properties();
+        try (Reader reader = Files.newBufferedReader(info, StandardCharsets.UTF_8)) {
+          props.load(reader);
+        }
+        Session session = new Session(id, props.getProperty("filename"),
+            Long.parseLong(props.getProperty("length", "-1")), data, info);
+        session.offset = Files.size(data);
+        session.touched = Files.getLastModifiedTime(data).toMillis();
+        sessions.put(id, session);
+      }
+    }
+  }
+
+  private static String sessionId(String path) {
+    String id = path.length() > CONTEXT.length() ? path.substring(CONTEXT.length()) : "";
+    while (id.startsWith("/")) {
+      id = id.substring(1);
+    }
+    while (id.endsWith("/")) {
+      id = id.substring(0, id.length() - 1);
+    }
+    return id;
+  }
+
+  private static long parseOffset(String value) {
+    if (value == null) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /** State of one upload session; mutated only while holding {@link #lock}. */
+  private static final class Session {
+    final String id;
+    final String filename;
+    final long length;
+    final Path data;
+    final Path info;
+    final ReentrantLock lock = new ReentrantLock();
+    volatile long offset;
+    volatile long touched = System.currentTimeMillis();
+    volatile boolean closed;
+
+    Session(String id, String filename, long length, Path data, Path info) {
+      this.id = id;
+      this.filename = filename;
+      this.length = length;
+      this.data = data;
+      this.info = info;
+    }
+  }
+}
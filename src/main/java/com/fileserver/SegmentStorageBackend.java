@@ -0,0 +1,450 @@
+package com.fileserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Log-structured store that appends stored files to large segment files instead of creating
+ * one file per name.
+ *
+ * <p>Each record is a fixed header (magic, name length, data length, modification time,
+ * version), the UTF-8 name and the data; a data length of -1 marks a deletion. An in-memory
+ * index maps each name to its latest record, and is rebuilt on start by scanning the
+ * segments in order, cutting off a record torn by a crash. When the active segment would
+ * exceed its size limit it is sealed and a new one is started.
+ *
+ * <p>Sealed segments never change, so they can be memory-mapped once and downloads served
+ * as buffer slices with no system call at all; the active segment is read positionally.
+ * Either way a download costs no open, stat or close of its own.
+ *
+ * <p>Overwrites and deletions leave dead records behind. A background task rewrites the live
+ * records of sealed segments that are mostly dead into the active segment and then drops the
+ * old file. Segments are reference counted, so a download still reading a compacted segment
+ * finishes before the file is closed and deleted.
+ */
+final class SegmentStorageBackend implements StorageBackend {
+  private static final int MAGIC = 0x46534731;
+  private static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 8;
+  private static final int MAX_NAME_BYTES = 4096;
+  private static final long TOMBSTONE = -1;
+  /** Sealed segments with less live data than this fraction are compacted. */
+  static final double COMPACT_LIVE_RATIO = 0.5;
+
+  private final Path dir;
+  private final long maxSegmentBytes;
+  private final FileStore.Durability durability;
+  private final boolean mapSealed;
+  private final Map<String, Location> index = new ConcurrentHashMap<>();
+  private final NavigableMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+  private final ScheduledExecutorService compactor;
+  private final AtomicLong compactedBytes = new AtomicLong();
+  private Segment active;
+  private long nextVersion = 1;
+
+  /** One segment file; its channel stays open until the segment is retired or closed. */
+  private static final class Segment {
+    final int id;
+    final Path path;
+    final FileChannel channel;
+    final AtomicLong live = new AtomicLong();
+    // One reference is held by the store itself until the segment is retired
+    final AtomicInteger refs = new AtomicInteger(1);
+    volatile long end;
+    volatile ByteBuffer mapped;
+
+    Segment(int id, Path path, FileChannel channel) {
+      this.id = id;
+      this.path = path;
+      this.channel = channel;
+    }
+
+    boolean acquire() {
+      while (true) {
+        int current = refs.get();
+        if (current == 0) {
+          return false;
+        }
+        if (refs.compareAndSet(current, current + 1)) {
+          return true;
+        }
+      }
+    }
+
+    void release() throws IOException {
+      if (refs.decrementAndGet() == 0) {
+        mapped = null;
+        channel.close();
+        Files.deleteIfExists(path);
+      }
+    }
+  }
+
+  /** Where the latest content of a name lives. */
+  private static final class Location {
+    final Segment segment;
+    final long start;
+    final long recordBytes;
+    final BasicFileAttributes attrs;
+
+    Location(Segment segment, long start, long recordBytes, BasicFileAttributes attrs) {
+      this.segment = segment;
+      this.start = start;
+      this.recordBytes = recordBytes;
+      this.attrs = attrs;
+    }
+
+    long dataOffset() {
+      return start + recordBytes - attrs.size();
+    }
+  }
+
+  /** Receives the records of a segment in order. */
+  private interface RecordVisitor {
+    void visit(long start, String name, long length, long modified, long version)
+        throws IOException;
+  }
+
+  /**
+   * Opens the segments in a directory and rebuilds the index.
+   *
+   * @param dir directory holding segment files
+   * @param maxSegmentBytes size at which a new segment is started
+   * @param durability flush policy applied after each append
+   * @param mapSealed whether to serve sealed segments from memory mappings
+   * @param compactionIntervalSeconds how often to look for segments to compact; 0 disables
+   *     background compaction
+   * @throws IOException if the segments cannot be opened or scanned
+   */
+  SegmentStorageBackend(Path dir, long maxSegmentBytes, FileStore.Durability durability,
+      boolean mapSealed, long compactionIntervalSeconds) throws IOException {
+    this.dir = dir;
+    this.maxSegmentBytes = maxSegmentBytes;
+    this.durability = durability;
+    this.mapSealed = mapSealed;
+    Files.createDirectories(dir);
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.seg")) {
+      stream.forEach(files::add);
+    }
+    Collections.sort(files);
+    for (Path file : files) {
+      String fileName = file.getFileName().toString();
+      int id = Integer.parseInt(fileName.substring(0, fileName.length() - 4));
+      Segment segment = new Segment(id, file, FileChannel.open(file, StandardOpenOption.READ,
+          StandardOpenOption.WRITE));
+      segments.put(id, segment);
+      recover(segment);
+    }
+    if (segments.isEmpty()) {
+      active = newSegment(1);
+    } else {
+      active = segments.lastEntry().getValue();
+      for (Segment segment : segments.headMap(active.id).values()) {
+        seal(segment);
+      }
+    }
+    if (compactionIntervalSeconds > 0) {
+      compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "fileserver-segment-compactor");
+        thread.setDaemon(true);
+        return thread;
+      });
+      compactor.scheduleWithFixedDelay(this::compactQuietly, compactionIntervalSeconds,
+          compactionIntervalSeconds, TimeUnit.SECONDS);
+    } else {
+      compactor = null;
+    }
+  }
+
+  @Override
+  public BasicFileAttributes stat(String name) {
+    Location location = index.get(name);
+    return location == null ? null : location.attrs;
+  }
+
+  @Override
+  public OpenFile openRead(String name) {
+    while (true) {
+      Location location = index.get(name);
+      if (location == null) {
+        return null;
+      }
+      Segment segment = location.segment;
+      if (!segment.acquire()) {
+        // Retired by compaction; the index already points at the copy
+        continue;
+      }
+      long size = location.attrs.size();
+      ByteBuffer mapped = segment.mapped;
+      Content content;
+      if (mapped != null) {
+        ByteBuffer slice = mapped.duplicate();
+        slice.position((int) location.dataOffset()).limit((int) (location.dataOffset() + size));
+        content = Content.of(slice.slice());
+      } else {
+        content = Content.of(segment.channel, location.dataOffset(), size);
+      }
+      return OpenFile.of(content, location.attrs, releaseOnce(segment));
+    }
+  }
+
+  @Override
+  public BasicFileAttributes store(String name, Path staged) throws IOException {
+    try (FileChannel source = FileChannel.open(staged, StandardOpenOption.READ)) {
+      synchronized (this) {
+        return append(name, source, 0, source.size(), System.currentTimeMillis(),
+            nextVersion++);
+      }
+    }
+  }
+
+  @Override
+  public synchronized boolean delete(String name) throws IOException {
+    if (!index.containsKey(name)) {
+      return false;
+    }
+    append(name, null, 0, TOMBSTONE, System.currentTimeMillis(), nextVersion++);
+    return true;
+  }
+
+  @Override
+  public List<String> list() {
+    return new ArrayList<>(index.keySet());
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (compactor != null) {
+      compactor.shutdownNow();
+    }
+    synchronized (this) {
+      for (Segment segment : segments.values()) {
+        segment.mapped = null;
+        segment.channel.close();
+      }
+    }
+  }
+
+  /** Total bytes reclaimed by compaction so far. */
+  long compactedBytes() {
+    return compactedBytes.get();
+  }
+
+  /** Number of segment files currently in use. */
+  int segmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * Compacts every sealed segment whose live data has dropped below
+   * {@link #COMPACT_LIVE_RATIO}.
+   *
+   * @return number of segments compacted
+   * @throws IOException if a segment cannot be read or its records copied
+   */
+  int compact() throws IOException {
+    int compacted = 0;
+    for (Segment segment : segments.values()) {
+      Segment current;
+      synchronized (this) {
+        current = active;
+      }
+      if (segment.id >= current.id) {
+        break;
+      }
+      if (segment.live.get() < segment.end * COMPACT_LIVE_RATIO) {
+        compact(segment);
+        compacted++;
+      }
+    }
+    return compacted;
+  }
+
+  private void compactQuietly() {
+    try {
+      compact();
+    } catch (IOException | RuntimeException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void compact(Segment segment) throws IOException {
+    boolean oldest = segments.firstKey() == segment.id;
+    AtomicLong copied = new AtomicLong();
+    forEachRecord(segment, (start, name, length, modified, version) -> {
+      synchronized (this) {
+        if (length == TOMBSTONE) {
+          // Still needed while an older segment may hold a record the tombstone hides
+          if (!oldest && !index.containsKey(name)) {
+            append(name, null, 0, TOMBSTONE, modified, version);
+            copied.addAndGet(HEADER_BYTES + name.getBytes(StandardCharsets.UTF_8).length);
+          }
+          return;
+        }
+        Location location = index.get(name);
+        // Copy under the append lock so a newer write to the name always lands after the copy
+        if (location != null && location.segment == segment && location.start == start) {
+          append(name, segment.channel, location.dataOffset(), length, modified, version);
+          copied.addAndGet(location.recordBytes);
+        }
+      }
+    });
+    synchronized (this) {
+      segments.remove(segment.id);
+    }
+    compactedBytes.addAndGet(segment.end - copied.get());
+    segment.release();
+  }
+
+  private BasicFileAttributes append(String name, FileChannel source, long sourcePosition,
+      long length, long modified, long version) throws IOException {
+    byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+    long recordBytes = HEADER_BYTES + nameBytes.length + Math.max(length, 0);
+    if (active.end > 0 && active.end + recordBytes > maxSegmentBytes) {
+      seal(active);
+      active = newSegment(active.id + 1);
+    }
+    Segment segment = active;
+    long start = segment.end;
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + nameBytes.length);
+    header.putInt(MAGIC).putInt(nameBytes.length).putLong(length).putLong(modified)
+        .putLong(version).put(nameBytes).flip();
+    try {
+      long position = start;
+      while (header.hasRemaining()) {
+        position += segment.channel.write(header, position);
+      }
+      if (length > 0) {
+        source.position(sourcePosition);
+        long written = 0;
+        while (written < length) {
+          long n = segment.channel.transferFrom(source, position + written, length - written);
+          if (n <= 0) {
+            throw new IOException("Source shrank while appending " + name);
+          }
+          written += n;
+        }
+      }
+      if (durability != FileStore.Durability.NONE) {
+        segment.channel.force(false);
+      }
+    } catch (IOException e) {
+      // Drop the partial record so the next append and the next scan start clean
+      segment.channel.truncate(start);
+      throw e;
+    }
+    segment.end = start + recordBytes;
+    return index(segment, start, recordBytes, name, length, modified, version);
+  }
+
+  private BasicFileAttributes index(Segment segment, long start, long recordBytes, String name,
+      long length, long modified, long version) {
+    Location previous;
+    BasicFileAttributes attrs = null;
+    if (length == TOMBSTONE) {
+      previous = index.remove(name);
+    } else {
+      // The version survives compaction, so persisted digests stay paired with the content
+      attrs = new StoredAttributes(length, FileTime.fromMillis(modified), version);
+      previous = index.put(name, new Location(segment, start, recordBytes, attrs));
+      segment.live.addAndGet(recordBytes);
+    }
+    if (previous != null) {
+      previous.segment.live.addAndGet(-previous.recordBytes);
+    }
+    return attrs;
+  }
+
+  private void recover(Segment segment) throws IOException {
+    forEachRecord(segment, (start, name, length, modified, version) -> {
+      long recordBytes = HEADER_BYTES + name.getBytes(StandardCharsets.UTF_8).length
+          + Math.max(length, 0);
+      index(segment, start, recordBytes, name, length, modified, version);
+      nextVersion = Math.max(nextVersion, version + 1);
+    });
+    if (segment.end < segment.channel.size()) {
+      segment.channel.truncate(segment.end);
+    }
+  }
+
+  /**
+   * Visits the complete records of a segment and sets its end after the last one.
+   */
+  private void forEachRecord(Segment segment, RecordVisitor visitor) throws IOException {
+    long size = segment.channel.size();
+    long position = 0;
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    while (position + HEADER_BYTES <= size) {
+      header.clear();
+      readFully(segment.channel, header, position);
+      int nameLength = header.getInt(4);
+      long length = header.getLong(8);
+      long recordEnd = position + HEADER_BYTES + nameLength + Math.max(length, 0);
+      if (header.getInt(0) != MAGIC || nameLength < 0 || nameLength > MAX_NAME_BYTES
+          || length < TOMBSTONE || recordEnd > size) {
+        break;
+      }
+      ByteBuffer name = ByteBuffer.allocate(nameLength);
+      readFully(segment.channel, name, position + HEADER_BYTES);
+      visitor.visit(position, new String(name.array(), StandardCharsets.UTF_8), length,
+          header.getLong(16), header.getLong(24));
+      position = recordEnd;
+    }
+    segment.end = position;
+  }
+
+  private void seal(Segment segment) throws IOException {
+    if (mapSealed && segment.end > 0 && segment.end <= Integer.MAX_VALUE) {
+      segment.mapped = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.end);
+    }
+  }
+
+  private Segment newSegment(int id) throws IOException {
+    Path file = dir.resolve(String.format("%08d.seg", id));
+    Segment segment = new Segment(id, file, FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE));
+    segments.put(id, segment);
+    return segment;
+  }
+
+  private static Closeable releaseOnce(Segment segment) {
+    AtomicBoolean released = new AtomicBoolean();
+    return () -> {
+      if (released.compareAndSet(false, true)) {
+        segment.release();
+      }
+    };
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      int n = channel.read(buffer, position + buffer.position());
+      if (n < 0) {
+        throw new IOException("Unexpected end of segment");
+      }
+    }
+  }
+}
@@ -0,0 +1,397 @@
+package com.fileserver;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.function.UnaryOperator;
+
+/**
+ * Runtime configuration for the file server.
+ * Values are read from {@code fileserver.*} system properties, falling back to the
+ * matching {@code FILESERVER_*} environment variables and then to built-in defaults.
+ */
+final class ServerConfig {
+  /** How request handlers are scheduled onto threads. */
+  enum ExecutorMode {
+    /** Bounded platform-thread pools with 503 load shedding. */
+    PLATFORM,
+    /** One virtual thread per request; requires Java 21. */
+    VIRTUAL
+  }
+
+  /** HTTP implementation that accepts connections and parses requests. */
+  enum Engine {
+    /** The JDK's built-in {@code com.sun.net.httpserver} implementation. */
+    JDK,
+    /** {@link NioHttpServer}: selector threads, sendfile downloads and pipelining. */
+    NIO
+  }
+
+  private final int port;
+  private final Path storage;
+  private final int controlThreads;
+  private final int controlQueue;
+  private final int dataThreads;
+  private final int dataQueue;
+  private final int retryAfterSeconds;
+  private final ExecutorMode executorMode;
+  private final Engine engine;
+  private final int engineSelectors;
+  private final int idleTimeoutSeconds;
+  private final int http2MaxStreams;
+  private final long cacheMaxBytes;
+  private final long cacheMaxFileBytes;
+  private final long mmapMaxBytes;
+  private final int mmapMinHits;
+  private final boolean watchStorage;
+  private final int metadataMaxEntries;
+  private final boolean compression;
+  private final boolean metrics;
+  private final long compressionMinBytes;
+  private final boolean precompress;
+  private final long precompressMaxBytes;
+  private final int variantSweepSeconds;
+  private final boolean compressAtRest;
+  private final FileStore.Durability durability;
+  private final long uploadMaxBytes;
+  private final long uploadInFlightBytes;
+  private final long diskMinFreeBytes;
+  private final boolean contentAddressed;
+  private final StorageLayout layout;
+  private final StorageBackend.Type backend;
+  private final long segmentMaxBytes;
+  private final long segmentMaxFileBytes;
+  private final boolean segmentMmap;
+  private final int segmentCompactSeconds;
+
+  private ServerConfig(UnaryOperator<String> source) {
+    this.port = intValue(source, "fileserver.port", 8080, 0);
+    this.storage = Paths.get(stringValue(source, "fileserver.storage", "storage"));
+    this.controlThreads = intValue(source, "fileserver.control.threads", 2, 1);
+    this.controlQueue = intValue(source, "fileserver.control.queue", 16, 0);
+    this.dataThreads = intValue(source, "fileserver.data.threads",
+        Math.max(4, Runtime.getRuntime().availableProcessors() * 4), 1);
+    this.dataQueue = intValue(source, "fileserver.data.queue", 64, 0);
+    this.retryAfterSeconds = intValue(source, "fileserver.retry-after", 1, 0);
+    this.executorMode = enumValue(source, "fileserver.executor", ExecutorMode.PLATFORM);
+    this.engine = enumValue(source, "fileserver.engine", Engine.JDK);
+    this.engineSelectors = intValue(source, "fileserver.engine.selectors",
+        Runtime.getRuntime().availableProcessors(), 1);
+    this.idleTimeoutSeconds = intValue(source, "fileserver.engine.idle-timeout", 30, 1);
+    this.http2MaxStreams = Boolean.parseBoolean(stringValue(source, "fileserver.http2", "true"))
+        ? intValue(source, "fileserver.http2.max-streams", 128, 1) : 0;
+    this.cacheMaxBytes = sizeValue(source, "fileserver.cache.max-bytes", 64L << 20);
+    this.cacheMaxFileBytes = sizeValue(source, "fileserver.cache.max-file-bytes", 1L << 20);
+    this.mmapMaxBytes = sizeValue(source, "fileserver.mmap.max-bytes", 1L << 30);
+    this.mmapMinHits = intValue(source, "fileserver.mmap.min-hits", 2, 1);
+    this.watchStorage = Boolean.parseBoolean(
+        stringValue(source, "fileserver.metadata.watch", "true"));
+    this.metadataMaxEntries = intValue(source, "fileserver.metadata.max-entries", 100_000, 1);
+    this.metrics = Boolean.parseBoolean(stringValue(source, "fileserver.metrics", "true"));
+    this.compression = Boolean.parseBoolean(
+        stringValue(source, "fileserver.compression", "true"));
+    this.compressionMinBytes = sizeValue(source, "fileserver.compression.min-bytes", 1L << 10);
+    this.precompress = Boolean.parseBoolean(
+        stringValue(source, "fileserver.compression.precompress", "true"));
+    this.precompressMaxBytes =
+        sizeValue(source, "fileserver.compression.precompress-max-bytes", 64L << 20);
+    this.variantSweepSeconds =
+        intValue(source, "fileserver.compression.sweep-interval", 300, 0);
+    this.compressAtRest = Boolean.parseBoolean(
+        stringValue(source, "fileserver.compression.at-rest", "false"));
+    this.uploadMaxBytes = sizeValue(source, "fileserver.upload.max-bytes", 0);
+    this.uploadInFlightBytes = sizeValue(source, "fileserver.upload.max-in-flight-bytes", 0);
+    this.diskMinFreeBytes = sizeValue(source, "fileserver.disk.min-free-bytes", 64L << 20);
+    this.durability = enumValue(source, "fileserver.durability", FileStore.Durability.FILE);
+    this.contentAddressed = Boolean.parseBoolean(stringValue(source, "fileserver.cas", "false"));
+    this.layout = new StorageLayout(intValue(source, "fileserver.layout.depth", 0, 0));
+    this.backend = enumValue(source, "fileserver.backend", StorageBackend.Type.LOCAL);
+    this.segmentMaxBytes = sizeValue(source, "fileserver.segment.max-bytes", 256L << 20);
+    this.segmentMaxFileBytes = sizeValue(source, "fileserver.segment.max-file-bytes", 64L << 10);
+    this.segmentMmap = Boolean.parseBoolean(
+        stringValue(source, "fileserver.segment.mmap", "true"));
+    this.segmentCompactSeconds = intValue(source, "fileserver.segment.compact-interval", 30, 0);
+    if (contentAddressed && backend != StorageBackend.Type.LOCAL) {
+      throw new IllegalArgumentException("fileserver.cas requires fileserver.backend=local");
+    }
+    if (contentAddressed && compressAtRest) {
+      throw new IllegalArgumentException(
+          "fileserver.cas cannot be combined with fileserver.compression.at-rest");
+    }
+  }
+
+  /**
+   * Loads configuration from system properties and environment variables.
+   *
+   * @return the effective configuration
+   */
+  static ServerConfig fromEnvironment() {
+    return new ServerConfig(key -> {
+      String value = System.getProperty(key);
+      return value != null ? value : System.getenv(envName(key));
+    });
+  }
+
+  /**
+   * Loads configuration from the given properties only.
+   *
+   * @param properties configuration keys and values
+   * @return the effective configuration
+   */
+  static ServerConfig from(Properties properties) {
+    return new ServerConfig(properties::getProperty);
+  }
+
+  /** Port the HTTP server binds to; 0 picks an ephemeral port. */
+  int port() {
+    return port;
+  }
+
+  /** Directory holding stored files. */
+  Path storage() {
+    return storage;
+  }
+
+  /** Threads serving control endpoints (/health, /version). */
+  int controlThreads() {
+    return controlThreads;
+  }
+
+  /**
+   * Requests allowed to wait for a control thread. Beyond that the JDK engine runs them on its
+   * dispatcher thread and the NIO engine answers 503.
+   */
+  int controlQueue() {
+    return controlQueue;
+  }
+
+  /** Threads serving data endpoints (/upload, /download). */
+  int dataThreads() {
+    return dataThreads;
+  }
+
+  /** Data requests allowed to wait for a free thread before being rejected. */
+  int dataQueue() {
+    return dataQueue;
+  }
+
+  /** Retry-After value, in seconds, sent with 503 responses when the data pool is full. */
+  int retryAfterSeconds() {
+    return retryAfterSeconds;
+  }
+
+  /** Thread model used for all contexts. */
+  ExecutorMode executorMode() {
+    return executorMode;
+  }
+
+  /** HTTP implementation serving requests. */
+  Engine engine() {
+    return engine;
+  }
+
+  /** Selector threads of the NIO engine. */
+  int engineSelectors() {
+    return engineSelectors;
+  }
+
+  /** Seconds an idle keep-alive connection, or a stalled read or write, may last (NIO). */
+  int idleTimeoutSeconds() {
+    return idleTimeoutSeconds;
+  }
+
+  /** Concurrent streams per cleartext HTTP/2 connection (NIO); 0 when HTTP/2 is disabled. */
+  int http2MaxStreams() {
+    return http2MaxStreams;
+  }
+
+  /** Total bytes of hot file content kept in memory; 0 disables the cache. */
+  long cacheMaxBytes() {
+    return cacheMaxBytes;
+  }
+
+  /** Largest file eligible for the in-memory cache. */
+  long cacheMaxFileBytes() {
+    return cacheMaxFileBytes;
+  }
+
+  /** Total length of hot large files kept memory-mapped; 0 disables mapping. */
+  long mmapMaxBytes() {
+    return mmapMaxBytes;
+  }
+
+  /** Requests after which a file too large for the cache is memory-mapped. */
+  int mmapMinHits() {
+    return mmapMinHits;
+  }
+
+  /** Whether to watch the storage directory for changes made outside the server. */
+  boolean watchStorage() {
+    return watchStorage;
+  }
+
+  /** Most stored files whose metadata is kept in memory. */
+  int metadataMaxEntries() {
+    return metadataMaxEntries;
+  }
+
+  /** Whether requests are measured and exposed on {@code /metrics}. */
+  boolean metrics() {
+    return metrics;
+  }
+
+  /** Whether downloads of text-like files are gzip-encoded for clients that accept it. */
+  boolean compression() {
+    return compression;
+  }
+
+  /** Smallest file worth compressing. */
+  long compressionMinBytes() {
+    return compressionMinBytes;
+  }
+
+  /** Whether a gzip variant of each compressible upload is stored when it is committed. */
+  boolean precompress() {
+    return precompress;
+  }
+
+  /** Largest upload a gzip variant is precomputed for; bigger ones compress on the fly. */
+  long precompressMaxBytes() {
+    return precompressMaxBytes;
+  }
+
+  /** Seconds between sweeps for variants of overwritten content; 0 sweeps only at startup. */
+  int variantSweepSeconds() {
+    return variantSweepSeconds;
+  }
+
+  /** Whether text-like uploads to /upload are stored gzip-compressed. */
+  boolean compressAtRest() {
+    return compressAtRest;
+  }
+
+  /** Largest upload body accepted in one request; 0 means unlimited. */
+  long uploadMaxBytes() {
+    return uploadMaxBytes;
+  }
+
+  /** Bytes all uploads together may be receiving at once; 0 means unlimited. */
+  long uploadInFlightBytes() {
+    return uploadInFlightBytes;
+  }
+
+  /** Free space uploads must leave on the storage volume; 0 disables the check. */
+  long diskMinFreeBytes() {
+    return diskMinFreeBytes;
+  }
+
+  /** What is flushed to disk before an upload is acknowledged. */
+  FileStore.Durability durability() {
+    return durability;
+  }
+
+  /** Whether uploads are deduplicated into a content-addressed blob store. */
+  boolean contentAddressed() {
+    return contentAddressed;
+  }
+
+  /** Directory fan-out used to place stored files. */
+  StorageLayout layout() {
+    return layout;
+  }
+
+  /** Where stored file content lives. */
+  StorageBackend.Type backend() {
+    return backend;
+  }
+
+  /** Size at which the segment backend starts a new segment file. */
+  long segmentMaxBytes() {
+    return segmentMaxBytes;
+  }
+
+  /** Largest file the tiered backend keeps in segments. */
+  long segmentMaxFileBytes() {
+    return segmentMaxFileBytes;
+  }
+
+  /** Whether sealed segments are served from memory mappings. */
+  boolean segmentMmap() {
+    return segmentMmap;
+  }
+
+  /** Seconds between compaction passes over the segments; 0 disables compaction. */
+  int segmentCompactSeconds() {
+    return segmentCompactSeconds;
+  }
+
+  static String envName(String key) {
+    return key.toUpperCase(Locale.ROOT).replace('.', '_').replace('-', '_');
+  }
+
+  private static String stringValue(UnaryOperator<String> source, String key, String fallback) {
+    String value = source.apply(key);
+    return value == null || value.isBlank() ? fallback : value.trim();
+  }
+
+  private static <E extends Enum<E>> E enumValue(UnaryOperator<String> source, String key,
+      E fallback) {
+    String value = stringValue(source, key, fallback.name());
+    try {
+      return Enum.valueOf(fallback.getDeclaringClass(), value.toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Invalid value for " + key + ": " + value, e);
+    }
+  }
+
+  private static long sizeValue(UnaryOperator<String> source, String key, long fallback) {
+    String value = stringValue(source, key, null);
+    return value == null ? fallback : parseSize(key, value);
+  }
+
+  /**
+   * Parses a byte count with an optional k, m or g suffix (powers of 1024).
+   *
+   * @param key setting the value belongs to, for error messages
+   * @param value value such as {@code 64k}
+   * @return the byte count
+   * @throws IllegalArgumentException if the value is malformed or out of range
+   */
+  static long parseSize(String key, String value) {
+    String digits = value.trim().toLowerCase(Locale.ROOT);
+    int shift = 0;
+    char unit = digits.isEmpty() ? ' ' : digits.charAt(digits.length() - 1);
+    if (unit == 'k' || unit == 'm' || unit == 'g') {
+      shift = unit == 'k' ? 10 : unit == 'm' ? 20 : 30;
+      digits = digits.substring(0, digits.length() - 1).trim();
+    }
+    long parsed;
+    try {
+      parsed = Long.parseLong(digits);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid value for " + key + ": " + value, e);
+    }
+    if (parsed < 0 || parsed > (Long.MAX_VALUE >> shift)) {
+      throw new IllegalArgumentException(key + " out of range: " + value);
+    }
+    return parsed << shift;
+  }
+
+  private static int intValue(UnaryOperator<String> source, String key, int fallback, int min) {
+    String value = source.apply(key);
+    if (value == null || value.isBlank()) {
+      return fallback;
+    }
+    int parsed;
+    try {
+      parsed = Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid value for " + key + ": " + value, e);
+    }
+    if (parsed < min) {
+      throw new IllegalArgumentException(key + " must be >= " + min + ": " + value);
+    }
+    return parsed;
+  }
+}
@@ -0,0 +1,143 @@
+package com.fileserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+
+/**
+ * Where stored file content lives.
+ *
+ * <p>Uploads are staged in local files by {@link FileStore} and handed over with
+ * {@link #store}, which makes the new content visible atomically. Reads are positional, so
+ * ranges and the file cache work the same on every backend. The returned attributes carry a
+ * file key that changes whenever the content under a name is replaced; persisted digests are
+ * paired with it.
+ */
+interface StorageBackend extends Closeable {
+
+  /** Selectable implementations. */
+  enum Type {
+    /** Files in the storage directory, see {@link LocalStorageBackend}. */
+    LOCAL,
+    /** Heap-resident, lost on restart, see {@link MemoryStorageBackend}. */
+    MEMORY,
+    /** Append-only segment files, see {@link SegmentStorageBackend}. */
+    SEGMENT,
+    /** Small files in segments, larger ones local, see {@link TieredStorageBackend}. */
+    TIERED
+  }
+
+  /** Open stored content; closing it releases the underlying handle. */
+  interface OpenFile extends Content, Closeable {
+
+    /**
+     * Attributes of the content that was actually opened, which may be newer than metadata
+     * looked up before the open.
+     *
+     * @return size, modification time and file key of the open content
+     */
+    BasicFileAttributes attributes();
+
+    /**
+     * Pairs content with its attributes and the handle to release when it is no longer read.
+     *
+     * @param content readable content
+     * @param attrs attributes of exactly this content
+     * @param handle closed by {@link #close()}
+     * @return the open file
+     */
+    static OpenFile of(Content content, BasicFileAttributes attrs, Closeable handle) {
+      return new OpenFile() {
+        @Override
+        public BasicFileAttributes attributes() {
+          return attrs;
+        }
+
+        @Override
+        public long size() throws IOException {
+          return content.size();
+        }
+
+        @Override
+        public void writeTo(long position, long count, OutputStream os) throws IOException {
+          content.writeTo(position, count, os);
+        }
+
+        @Override
+        public int read(long position, ByteBuffer dst) throws IOException {
+          return content.read(position, dst);
+        }
+
+        @Override
+        public ByteBuffer map() throws IOException {
+          return content.map();
+        }
+
+        @Override
+        public void close() throws IOException {
+          handle.close();
+        }
+      };
+    }
+  }
+
+  /**
+   * Looks up a stored file.
+   *
+   * @param name stored file name
+   * @return its attributes, or null if nothing is stored under the name
+   * @throws IOException if the lookup fails
+   */
+  BasicFileAttributes stat(String name) throws IOException;
+
+  /**
+   * Returns the local file a name is stored in, for backends that keep one file per name.
+   *
+   * @param name stored file name
+   * @return the path, or null if the content is not held in a file of its own
+   */
+  default Path path(String name) {
+    return null;
+  }
+
+  /**
+   * Opens a stored file for positional reads.
+   *
+   * @param name stored file name
+   * @return the open content, or null if nothing is stored under the name
+   * @throws IOException if the file cannot be opened
+   */
+  OpenFile openRead(String name) throws IOException;
+
+  /**
+   * Atomically replaces the content stored under {@code name} with a staged local file.
+   *
+   * @param name stored file name
+   * @param staged fully written file; the backend may move it away, otherwise the caller
+   *     deletes it
+   * @return attributes of the newly stored content
+   * @throws IOException if the content cannot be stored; the previous content is then kept
+   */
+  BasicFileAttributes store(String name, Path staged) throws IOException;
+
+  /**
+   * Removes a stored file.
+   *
+   * @param name stored file name
+   * @return true if something was removed
+   * @throws IOException if removal fails
+   */
+  boolean delete(String name) throws IOException;
+
+  /**
+   * Lists stored file names.
+   *
+   * @return names in no particular order
+   * @throws IOException if the listing fails
+   */
+  List<String> list() throws IOException;
+}
@@ -0,0 +1,156 @@
+package com.fileserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.UUID;
+
+/**
+ * Maps stored file names to paths below a root directory.
+ *
+ * <p>Depth 0 is the original flat layout. At depth {@code n} a name lives under {@code n}
+ * directory levels named after the leading bytes of the SHA-256 of the name, e.g.
+ * {@code 3f/a2/report.csv} at depth 2, so each directory holds at most 256 children plus
+ * its share of the files. The mapping only depends on the name, so lookups need no index.
+ */
+final class StorageLayout {
+  static final int MAX_DEPTH = 3;
+
+  private final int depth;
+
+  /**
+   * Creates a layout.
+   *
+   * @param depth number of fan-out levels, 0 for flat
+   * @throws IllegalArgumentException if the depth is outside 0..{@value #MAX_DEPTH}
+   */
+  StorageLayout(int depth) {
+    if (depth < 0 || depth > MAX_DEPTH) {
+      throw new IllegalArgumentException(
+          "Layout depth must be between 0 and " + MAX_DEPTH + ": " + depth);
+    }
+    this.depth = depth;
+  }
+
+  int depth() {
+    return depth;
+  }
+
+  /**
+   * Tells whether a path is a fan-out directory of some layout: a directory named by two
+   * lowercase hex digits.
+   *
+   * @param path candidate directory
+   * @return true for shard directories
+   */
+  static boolean isShard(Path path) {
+    String name = path.getFileName().toString();
+    return name.length() == 2 && Character.digit(name.charAt(0), 16) >= 0
+        && Character.digit(name.charAt(1), 16) >= 0 && name.equals(name.toLowerCase())
+        && Files.isDirectory(path);
+  }
+
+  /**
+   * Returns where a name is stored under this layout.
+   *
+   * @param root storage or record directory
+   * @param name stored file name
+   * @return the path, whose parent directories may not exist yet
+   */
+  Path resolve(Path root, String name) {
+    Path path = root;
+    if (depth > 0) {
+      byte[] hash = ContentDigests.newDigest().digest(name.getBytes(StandardCharsets.UTF_8));
+      for (int level = 0; level < depth; level++) {
+        path = path.resolve(String.format("%02x", hash[level] & 0xff));
+      }
+    }
+    return path.resolve(name);
+  }
+
+  /**
+   * Creates the directories above a path from {@link #resolve}. A file still at a shallower
+   * depth may be named like one of them, such as a flat {@code 3f} in the way of the shard
+   * directory {@code 3f/}; it is moved to where this layout puts it first, so writes into that
+   * shard need not wait for a layout migration. A file already at its new path belongs to a
+   * newer upload and wins.
+   *
+   * @param root storage or record directory
+   * @param path path below {@code root}
+   * @throws IOException if the directories cannot be created
+   */
+  void createParents(Path root, Path path) throws IOException {
+    while (true) {
+      try {
+        Files.createDirectories(path.getParent());
+        return;
+      } catch (FileAlreadyExistsException e) {
+        Path blocking = blocking(root, path.getParent());
+        if (blocking == null) {
+          // Moved away concurrently, or not a file we may move; this retries or fails
+          Files.createDirectories(path.getParent());
+          return;
+        }
+        relocate(root, blocking);
+      }
+    }
+  }
+
+  private static Path blocking(Path root, Path dir) {
+    Path relative = root.relativize(dir);
+    Path current = root;
+    for (Path part : relative) {
+      current = current.resolve(part);
+      if (Files.isRegularFile(current)) {
+        return current;
+      }
+    }
+    return null;
+  }
+
+  private void relocate(Path root, Path file) throws IOException {
+    String name = file.getFileName().toString();
+    // Renamed aside first: the file may sit where its own new parent directory goes
+    Path aside = root.resolve("." + name + "." + UUID.randomUUID() + ".relocating");
+    try {
+      Files.move(file, aside);
+    } catch (NoSuchFileException e) {
+      return;
+    }
+    Path destination = resolve(root, name);
+    try {
+      createParents(root, destination);
+      Files.move(aside, destination);
+    } catch (FileAlreadyExistsException e) {
+      Files.deleteIfExists(aside);
+    }
+  }
+
+  /**
+   * Finds a name, falling back to the other depths when it is not where this layout puts it.
+   * Only misses pay for the fallback; it keeps files readable while a migration is moving
+   * them.
+   *
+   * @param root storage or record directory
+   * @param name stored file name
+   * @return the existing path, or this layout's path if the name exists nowhere
+   */
+  Path locate(Path root, String name) {
+    Path primary = resolve(root, name);
+    if (Files.exists(primary)) {
+      return primary;
+    }
+    for (int other = 0; other <= MAX_DEPTH; other++) {
+      if (other != depth) {
+        Path legacy = new StorageLayout(other).resolve(root, name);
+        if (Files.exists(legacy)) {
+          return legacy;
+        }
+      }
+    }
+    return primary;
+  }
+}
@@ -0,0 +1,71 @@
+package com.fileserver;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Attributes of content held by a backend that has no file per name.
+ */
+final class StoredAttributes implements BasicFileAttributes {
+  private final long size;
+  private final FileTime lastModified;
+  private final Object key;
+
+  /**
+   * Creates attributes.
+   *
+   * @param size content length
+   * @param lastModified time the content was stored
+   * @param key identity that changes whenever the content under the name is replaced
+   */
+  StoredAttributes(long size, FileTime lastModified, Object key) {
+    this.size = size;
+    this.lastModified = lastModified;
+    this.key = key;
+  }
+
+  @Override
+  public FileTime lastModifiedTime() {
+    return lastModified;
+  }
+
+  @Override
+  public FileTime lastAccessTime() {
+    return lastModified;
+  }
+
+  @Override
+  public FileTime creationTime() {
+    return lastModified;
+  }
+
+  @Override
+  public boolean isRegularFile() {
+    return true;
+  }
+
+  @Override
+  public boolean isDirectory() {
+    return false;
+  }
+
+  @Override
+  public boolean isSymbolicLink() {
+    return false;
+  }
+
+  @Override
+  public boolean isOther() {
+    return false;
+  }
+
+  @Override
+  public long size() {
+    return size;
+  }
+
+  @Override
+  public Object fileKey() {
+    return key;
+  }
+}
@@ -0,0 +1,115 @@
+package com.fileserver;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps small files in a {@link SegmentStorageBackend} and larger ones as regular files.
+ *
+ * <p>Tiny files are where one inode, directory entry and open per file hurts most, while
+ * large files gain nothing from being packed and stream best straight from their own file.
+ * A name lives in exactly one tier; storing it in the other tier first adds the new content
+ * and then removes the old, so readers never find it missing. Stores and deletes of one name
+ * are serialized, so two writers landing in different tiers cannot remove each other's copy.
+ */
+final class TieredStorageBackend implements StorageBackend {
+  private static final int LOCK_STRIPES = 64;
+
+  private final StorageBackend small;
+  private final StorageBackend large;
+  private final long maxSmallBytes;
+  /** Write locks, one per stripe of names. */
+  private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+  /**
+   * Creates the backend.
+   *
+   * @param small backend for files up to {@code maxSmallBytes}
+   * @param large backend for bigger files
+   * @param maxSmallBytes largest file kept in the small tier
+   */
+  TieredStorageBackend(StorageBackend small, StorageBackend large, long maxSmallBytes) {
+    this.small = small;
+    this.large = large;
+    this.maxSmallBytes = maxSmallBytes;
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new ReentrantLock();
+    }
+  }
+
+  @Override
+  public BasicFileAttributes stat(String name) throws IOException {
+    BasicFileAttributes attrs = small.stat(name);
+    return attrs != null ? attrs : large.stat(name);
+  }
+
+  @Override
+  public Path path(String name) {
+    // Where the name would live in the large tier, so both tiers detect the same type
+    return large.path(name);
+  }
+
+  @Override
+  public OpenFile openRead(String name) throws IOException {
+    OpenFile file = small.openRead(name);
+    return file != null ? file : large.openRead(name);
+  }
+
+  @Override
+  public BasicFileAttributes store(String name, Path staged) throws IOException {
+    boolean fitsSmall = Files.size(staged) <= maxSmallBytes;
+    ReentrantLock lock = lock(name);
+    lock.lock();
+    try {
+      if (fitsSmall) {
+        BasicFileAttributes attrs = small.store(name, staged);
+        large.delete(name);
+        return attrs;
+      }
+      BasicFileAttributes attrs = large.store(name, staged);
+      small.delete(name);
+      return attrs;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean delete(String name) throws IOException {
+    ReentrantLock lock = lock(name);
+    lock.lock();
+    try {
+      boolean removed = small.delete(name);
+      return large.delete(name) || removed;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private ReentrantLock lock(String name) {
+    int h = name.hashCode() * 0x9E3779B9;
+    return locks[(h ^ (h >>> 16)) & (LOCK_STRIPES - 1)];
+  }
+
+  @Override
+  public List<String> list() throws IOException {
+    Set<String> names = new LinkedHashSet<>(small.list());
+    names.addAll(large.list());
+    return List.copyOf(names);
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      small.close();
+    } finally {
+      large.close();
+    }
+  }
+}
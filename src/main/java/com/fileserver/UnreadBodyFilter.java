@@ -0,0 +1,121 @@
+package com.fileserver;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Ends the connection after a response sent before the request body was read.
+ *
+ * <p>Handlers check the method, headers and upload limits before reading a body, so a bad
+ * upload is refused without its payload being stored, and an upload whose digest the store
+ * already holds is answered without it. The client does not know that, though:
+ * it keeps sending until the server stops reading, and would then try to reuse a connection
+ * that still has the rest of the body in flight. Adding {@code Connection: close} to such a
+ * response tells it to stop sending at once; the server drains at most a small amount of the
+ * body before closing.
+ *
+ * <p>This matters most for {@code Expect: 100-continue}. The JDK server sends the interim
+ * {@code 100 Continue} itself, before any filter or handler runs, so the request cannot be
+ * refused ahead of it; clients that wait for the interim response still learn of the refusal
+ * as soon as the final one arrives. {@link NioHttpServer} only sends it once the body is read,
+ * so there a refused client is never asked to send the body at all.
+ */
+final class UnreadBodyFilter extends Filter {
+
+  @Override
+  public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+    long declared = declaredLength(exchange.getRequestHeaders());
+    chain.doFilter(declared == 0 ? exchange : new TrackingExchange(exchange, declared));
+  }
+
+  @Override
+  public String description() {
+    return "Closes connections whose request body was answered unread";
+  }
+
+  /**
+   * Returns how many body bytes a request announced.
+   *
+   * @return Content-Length, -1 for a chunked body of unknown length, or 0 for none
+   */
+  private static long declaredLength(Headers headers) {
+    if (headers.containsKey("Transfer-Encoding")) {
+      return -1;
+    }
+    String length = headers.getFirst("Content-Length");
+    if (length == null) {
+      return 0;
+    }
+    try {
+      return Math.max(Long.parseLong(length.trim()), 0);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /** Counts the body bytes a handler reads, and closes the connection on early answers. */
+  private static final class TrackingExchange extends ForwardingExchange {
+    private final long declared;
+    private long read;
+    private boolean eof;
+    private InputStream body;
+
+    TrackingExchange(HttpExchange delegate, long declared) {
+      super(delegate);
+      this.declared = declared;
+    }
+
+    private boolean bodyPending() {
+      return !eof && (declared < 0 || read < declared);
+    }
+
+    @Override
+    public void sendResponseHeaders(int code, long length) throws IOException {
+      if (code >= 200 && bodyPending()) {
+        delegate.getResponseHeaders().set("Connection", "close");
+      }
+      delegate.sendResponseHeaders(code, length);
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+      if (body == null) {
+        body = new FilterInputStream(delegate.getRequestBody()) {
+          @Override
+          public int read() throws IOException {
+            int b = super.read();
+            count(b < 0 ? -1 : 1);
+            return b;
+          }
+
+          @Override
+          public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            count(n);
+            return n;
+          }
+        };
+      }
+      return body;
+    }
+
+    private void count(int n) {
+      if (n < 0) {
+        eof = true;
+      } else {
+        read += n;
+      }
+    }
+
+    @Override
+    public void setStreams(InputStream in, OutputStream out) {
+      delegate.setStreams(in, out);
+      body = null;
+    }
+  }
+}
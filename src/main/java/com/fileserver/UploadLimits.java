@@ -0,0 +1,230 @@
+package com.fileserver;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds what uploads may take from the server while their bodies stream in.
+ *
+ * <ul>
+ *   <li>A request body larger than the per-request limit is refused with 413, up front when
+ *       it declares a Content-Length and as soon as it crosses the limit otherwise.</li>
+ *   <li>Bytes of all uploads in flight share a global budget. A declared length is reserved
+ *       before the body is read; bodies of unknown length reserve as they arrive. An upload
+ *       that does not fit is shed with 503 and Retry-After, as it may succeed shortly.</li>
+ *   <li>Uploads are refused with 507 when they would leave less than the free-space
+ *       watermark on the storage volume, checked up front and every few megabytes.</li>
+ * </ul>
+ *
+ * <p>A limit of 0 disables that check.
+ */
+final class UploadLimits {
+  /** Bytes read between free-space checks of a streaming body. */
+  private static final long DISK_CHECK_INTERVAL = 8L << 20;
+
+  private final long maxRequestBytes;
+  private final long maxInFlightBytes;
+  private final long minFreeBytes;
+  private final java.nio.file.FileStore volume;
+  private final int retryAfterSeconds;
+  private final AtomicLong inFlight = new AtomicLong();
+
+  /**
+   * Creates the limits.
+   *
+   * @param maxRequestBytes largest body accepted in one request
+   * @param maxInFlightBytes bytes all uploads together may be receiving at once
+   * @param storage directory on the volume to watch
+   * @param minFreeBytes usable space uploads must leave on that volume
+   * @param retryAfterSeconds Retry-After value sent with 503
+   * @throws IOException if the volume cannot be determined
+   */
+  UploadLimits(long maxRequestBytes, long maxInFlightBytes, Path storage, long minFreeBytes,
+      int retryAfterSeconds) throws IOException {
+    this.maxRequestBytes = maxRequestBytes;
+    this.maxInFlightBytes = maxInFlightBytes;
+    this.minFreeBytes = minFreeBytes;
+    this.volume = minFreeBytes > 0 ? Files.getFileStore(storage) : null;
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+
+  /**
+   * Admits an upload request before its body is read.
+   *
+   * @param headers request headers; Content-Length is used when present
+   * @return the reservation to read the body through and close when done
+   * @throws LimitExceededException if the upload cannot be accepted
+   * @throws IOException if free space cannot be determined
+   */
+  Reservation admit(Headers headers) throws IOException {
+    return reserve(contentLength(headers));
+  }
+
+  /**
+   * Admits bytes the server writes on an upload's behalf, such as a multipart upload being
+   * assembled from its parts, against the same limits as a request body.
+   *
+   * @param length bytes about to be written, or -1 if unknown
+   * @return the reservation to close once they are written
+   * @throws LimitExceededException if the bytes cannot be accepted
+   * @throws IOException if free space cannot be determined
+   */
+  Reservation reserve(long length) throws IOException {
+    checkLength(length);
+    if (length > 0 && maxInFlightBytes > 0 && length > maxInFlightBytes) {
+      // Would never fit, so there is no point in asking the client to retry
+      throw tooLarge();
+    }
+    checkDisk(Math.max(length, 0));
+    Reservation reservation = new Reservation();
+    if (length > 0) {
+      reservation.reserve(length);
+    }
+    return reservation;
+  }
+
+  /**
+   * Refuses an upload length above the per-request limit, for uploads that span several
+   * requests.
+   *
+   * @param length declared or received length, or -1 if unknown
+   * @throws LimitExceededException if the length is over the limit
+   */
+  void checkLength(long length) throws LimitExceededException {
+    if (length > 0 && maxRequestBytes > 0 && length > maxRequestBytes) {
+      throw tooLarge();
+    }
+  }
+
+  /**
+   * Sends the response for a refused upload.
+   *
+   * @param exchange exchange of the refused request
+   * @param e why it was refused
+   * @throws IOException if the response cannot be sent
+   */
+  void reject(HttpExchange exchange, LimitExceededException e) throws IOException {
+    if (e.status() == 503) {
+      exchange.getResponseHeaders().set("Retry-After", Integer.toString(retryAfterSeconds));
+    }
+    MiniFileServer.sendText(exchange, e.status(), e.getMessage());
+  }
+
+  /** Bytes currently reserved by uploads in flight. */
+  long inFlightBytes() {
+    return inFlight.get();
+  }
+
+  private void checkDisk(long incoming) throws IOException {
+    if (volume != null && volume.getUsableSpace() - incoming < minFreeBytes) {
+      throw new LimitExceededException(507, "Insufficient storage");
+    }
+  }
+
+  private LimitExceededException tooLarge() {
+    return new LimitExceededException(413, "Upload too large");
+  }
+
+  private static long contentLength(Headers headers) {
+    String value = headers.getFirst("Content-Length");
+    if (value == null || headers.getFirst("Transfer-Encoding") != null) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /** Share of the in-flight budget held by one upload; releases it on close. */
+  final class Reservation implements Closeable {
+    private long reserved;
+    private long received;
+    private long nextDiskCheck = DISK_CHECK_INTERVAL;
+
+    private void reserve(long bytes) throws LimitExceededException {
+      if (maxInFlightBytes > 0) {
+        long total = inFlight.addAndGet(bytes);
+        if (total > maxInFlightBytes) {
+          inFlight.addAndGet(-bytes);
+          throw new LimitExceededException(503, "Too many uploads in progress");
+        }
+      }
+      reserved += bytes;
+    }
+
+    /**
+     * Wraps a request body so the limits are enforced as it is read.
+     *
+     * @param in request body
+     * @return a stream that fails with {@link LimitExceededException} once a limit is crossed
+     */
+    InputStream wrap(InputStream in) {
+      return new FilterInputStream(in) {
+        @Override
+        public int read() throws IOException {
+          int b = super.read();
+          if (b >= 0) {
+            received(1);
+          }
+          return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+          int n = super.read(b, off, len);
+          if (n > 0) {
+            received(n);
+          }
+          return n;
+        }
+      };
+    }
+
+    private void received(long n) throws IOException {
+      received += n;
+      if (maxRequestBytes > 0 && received > maxRequestBytes) {
+        throw tooLarge();
+      }
+      if (received > reserved) {
+        reserve(received - reserved);
+      }
+      if (received >= nextDiskCheck) {
+        nextDiskCheck = received + DISK_CHECK_INTERVAL;
+        checkDisk(0);
+      }
+    }
+
+    @Override
+    public void close() {
+      if (maxInFlightBytes > 0) {
+        inFlight.addAndGet(-reserved);
+      }
+      reserved = 0;
+    }
+  }
+
+  /** An upload refused because of a limit, with the status to answer it with. */
+  static final class LimitExceededException extends IOException {
+    private static final long serialVersionUID = 1L;
+    private final int status;
+
+    LimitExceededException(int status, String message) {
+      super(message);
+      this.status = status;
+    }
+
+    /** 413, 503 or 507. */
+    int status() {
+      return status;
+    }
+  }
+}
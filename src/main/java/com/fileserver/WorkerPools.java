@@ -0,0 +1,151 @@
+package com.fileserver;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors backing the HTTP server.
+ * Control endpoints and data endpoints run on separate pools so health probes never
+ * queue behind bulk transfers.
+ */
+final class WorkerPools {
+  private final ExecutorService control;
+  private final ExecutorService data;
+
+  private WorkerPools(ExecutorService control, ExecutorService data) {
+    this.control = control;
+    this.data = data;
+  }
+
+  /**
+   * Creates the control and data pools described by the configuration.
+   * On the JDK engine the control pool runs overflow work on the dispatcher thread; the NIO
+   * engine's reactors must never run a handler, so there it rejects and the reactor answers
+   * 503. The data pool always rejects so the caller can answer 503. In virtual mode both
+   * roles share one virtual-thread-per-task executor and nothing is rejected.
+   *
+   * @param config server configuration
+   * @return the pools
+   */
+  static WorkerPools create(ServerConfig config) {
+    if (config.executorMode() == ServerConfig.ExecutorMode.VIRTUAL) {
+      ExecutorService virtual = virtualPerTask();
+      return new WorkerPools(virtual, virtual);
+    }
+    ExecutorService control = bounded("control", config.controlThreads(), config.controlQueue(),
+        config.engine() == ServerConfig.Engine.NIO
+            ? new ThreadPoolExecutor.AbortPolicy() : new ThreadPoolExecutor.CallerRunsPolicy());
+    ExecutorService data = bounded("data", config.dataThreads(), config.dataQueue(),
+        new ThreadPoolExecutor.AbortPolicy());
+    return new WorkerPools(control, data);
+  }
+
+  /**
+   * Creates a fixed-size pool with a bounded wait queue.
+   *
+   * @param name thread name prefix
+   * @param threads number of worker threads
+   * @param queueCapacity tasks allowed to wait; 0 means hand-off only
+   * @param rejection policy applied when all threads are busy and the queue is full
+   * @return the executor
+   */
+  static ThreadPoolExecutor bounded(String name, int threads, int queueCapacity,
+      RejectedExecutionHandler rejection) {
+    BlockingQueue<Runnable> queue = queueCapacity == 0
+        ? new SynchronousQueue<>()
+        : new LinkedBlockingQueue<>(queueCapacity);
+    return new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, queue,
+        namedThreads(name), rejection);
+  }
+
+  /**
+   * Creates a virtual-thread-per-task executor.
+   * Looked up reflectively so the server still compiles and runs on Java 17.
+   *
+   * @return the executor
+   * @throws IllegalStateException if the running JVM has no virtual threads
+   */
+  static ExecutorService virtualPerTask() {
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (NoSuchMethodException e) {
+      throw new IllegalStateException("Virtual thread executor requires Java 21 or newer, running "
+          + Runtime.version(), e);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Cannot create virtual thread executor", e);
+    }
+  }
+
+  private static ThreadFactory namedThreads(String name) {
+    AtomicInteger counter = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, "fileserver-" + name + "-" + counter.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /**
+   * Exposes queue depth and busy threads of the bounded pools. Virtual threads have neither.
+   *
+   * @param metrics registry to add the gauges to
+   */
+  void register(Metrics metrics) {
+    gauges(metrics, "control", control);
+    if (data != control) {
+      gauges(metrics, "data", data);
+    }
+  }
+
+  private static void gauges(Metrics metrics, String name, ExecutorService executor) {
+    if (!(executor instanceof ThreadPoolExecutor)) {
+      return;
+    }
+    ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+    String labels = "pool=\"" + name + "\"";
+    metrics.register("fileserver_executor_queue_depth", "gauge", "Tasks waiting for a thread",
+        labels, () -> pool.getQueue().size());
+    metrics.register("fileserver_executor_active_threads", "gauge", "Threads running a task",
+        labels, pool::getActiveCount);
+    metrics.register("fileserver_executor_threads", "gauge", "Threads in the pool", labels,
+        pool::getPoolSize);
+  }
+
+  /** Executor installed on the HttpServer; runs control handlers and data dispatch. */
+  ExecutorService control() {
+    return control;
+  }
+
+  /** Executor running upload and download handlers. */
+  ExecutorService data() {
+    return data;
+  }
+
+  /**
+   * Stops accepting work and waits briefly for in-flight requests to finish.
+   *
+   * @param timeoutSeconds maximum time to wait per pool
+   */
+  void shutdown(long timeoutSeconds) {
+    data.shutdown();
+    control.shutdown();
+    try {
+      data.awaitTermination(timeoutSeconds, TimeUnit.SECONDS);
+      if (control != data) {
+        control.awaitTermination(timeoutSeconds, TimeUnit.SECONDS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
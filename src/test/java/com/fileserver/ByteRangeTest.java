@@ -0,0 +1,74 @@
+package com.fileserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests for Range header parsing.
+ */
+class ByteRangeTest {
+
+  /**
+   * Test closed, open-ended and suffix ranges.
+   */
+  @Test
+  void testParseForms() {
+    assertEquals(List.of(new ByteRange(0, 99)), ByteRange.parse("bytes=0-99", 1000));
+    assertEquals(List.of(new ByteRange(900, 999)), ByteRange.parse("bytes=900-", 1000));
+    assertEquals(List.of(new ByteRange(990, 999)), ByteRange.parse("bytes=-10", 1000));
+    assertEquals(List.of(new ByteRange(0, 999)), ByteRange.parse("bytes=-5000", 1000));
+    assertEquals(List.of(new ByteRange(500, 999)), ByteRange.parse("bytes=500-2000", 1000));
+  }
+
+  /**
+   * Test overlapping and adjacent ranges are merged in order.
+   */
+  @Test
+  void testCoalesce() {
+    assertEquals(List.of(new ByteRange(0, 20), new ByteRange(50, 59)),
+        ByteRange.parse("bytes=50-59, 10-20, 0-9, 5-15", 1000));
+  }
+
+  /**
+   * Test malformed headers are ignored and unsatisfiable ones yield no ranges.
+   */
+  @Test
+  void testInvalidAndUnsatisfiable() {
+    assertNull(ByteRange.parse(null, 10));
+    assertNull(ByteRange.parse("items=0-1", 10));
+    assertNull(ByteRange.parse("bytes=5-2", 10));
+    assertNull(ByteRange.parse("bytes=abc", 10));
+    assertTrue(ByteRange.parse("bytes=10-20", 10).isEmpty());
+    assertTrue(ByteRange.parse("bytes=-0", 10).isEmpty());
+  }
+
+  /**
+   * Test the precomputed multipart length matches what is written.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testMultipartLength() throws Exception {
+    Path file = Files.createTempFile("range", ".txt");
+    try {
+      Files.writeString(file, "abcdefghijklmnopqrstuvwxyz");
+      List<ByteRange> ranges = ByteRange.parse("bytes=0-2,10-12", 26);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      try (FileChannel channel = FileChannel.open(file)) {
+        ByteRange.writeMultipart(Content.of(channel), ranges, "b", "text/plain", 26, out);
+      }
+      assertEquals(ByteRange.multipartLength(ranges, "b", "text/plain", 26), out.size());
+      assertTrue(out.toString().contains("Content-Range: bytes 10-12/26\r\n\r\nklm"));
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+}
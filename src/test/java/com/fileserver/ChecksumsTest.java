@@ -0,0 +1,92 @@
+package com.fileserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.sun.net.httpserver.Headers;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests for Checksums header parsing and verification.
+ */
+class ChecksumsTest {
+  /** SHA-256 of "abc". */
+  private static final String SHA256 =
+      "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+  private static final String SHA256_BASE64 = "ungWv48Bz+pBQUDeXa4iI7ADYaOWF3qctBD/YfIAFa0=";
+  /** MD5 of "abc". */
+  private static final String MD5 = "900150983cd24fb0d6963f7d28e17f72";
+  private static final String MD5_BASE64 = "kAFQmDzST7DWlj99KOF/cg==";
+
+  /**
+   * Test every header form yields the same expected digests.
+   */
+  @Test
+  void testParseHeaders() {
+    assertEquals(SHA256, parse("X-Checksum-SHA256", SHA256.toUpperCase()).sha256());
+    assertEquals(SHA256, parse("X-Checksum-SHA256", SHA256_BASE64).sha256());
+    assertEquals(SHA256, parse("Digest", "SHA-256=" + SHA256_BASE64 + ", unixsum=30637")
+        .sha256());
+    assertFalse(parse("Digest", "sha-512=AAAA").present(), "Unknown algorithms are ignored");
+    assertFalse(Checksums.fromHeaders(new Headers()).present());
+  }
+
+  /**
+   * Test malformed or contradicting headers are rejected before the body is read.
+   */
+  @Test
+  void testRejectsMalformed() {
+    assertThrows(IllegalArgumentException.class, () -> parse("Content-MD5", "not base64!"));
+    assertThrows(IllegalArgumentException.class, () -> parse("Content-MD5", SHA256_BASE64));
+    assertThrows(IllegalArgumentException.class, () -> parse("Digest", "sha-256"));
+    Headers headers = new Headers();
+    headers.add("Content-MD5", MD5_BASE64);
+    headers.add("Digest", "md5=" + SHA256_BASE64.substring(0, 22) + "==");
+    assertThrows(IllegalArgumentException.class, () -> Checksums.fromHeaders(headers));
+  }
+
+  /**
+   * Test digests are checked against the streamed body and the MD5 is kept.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testVerify() throws Exception {
+    Headers headers = new Headers();
+    headers.add("Content-MD5", MD5_BASE64);
+    headers.add("Digest", "sha-256=" + SHA256_BASE64);
+    Checksums checksums = Checksums.fromHeaders(headers);
+    try (InputStream in = checksums.wrap(body("abc"))) {
+      in.readAllBytes();
+    }
+    ContentDigests.Entry verified =
+        checksums.verify(new ContentDigests.Entry(SHA256, null, null, 3));
+    assertEquals(MD5, verified.md5());
+    assertEquals("sha-256=" + SHA256_BASE64 + ",md5=" + MD5_BASE64,
+        Checksums.header(verified.sha256(), verified.md5()));
+
+    Checksums corrupt = parse("Content-MD5", MD5_BASE64);
+    try (InputStream in = corrupt.wrap(body("abd"))) {
+      in.readAllBytes();
+    }
+    assertThrows(Checksums.ChecksumMismatchException.class,
+        () -> corrupt.verify(new ContentDigests.Entry(SHA256, null, null, 3)));
+    assertThrows(Checksums.ChecksumMismatchException.class,
+        () -> parse("X-Checksum-SHA256", SHA256).verify(
+            new ContentDigests.Entry(MD5 + MD5, null, null, 3)));
+  }
+
+  private static Checksums parse(String name, String value) {
+    Headers headers = new Headers();
+    headers.add(name, value);
+    return Checksums.fromHeaders(headers);
+  }
+
+  private static InputStream body(String text) {
+    return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+  }
+}
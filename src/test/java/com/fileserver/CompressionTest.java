@@ -0,0 +1,201 @@
+package com.fileserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Unit tests for Compression negotiation, type policy and precomputed variants.
+ */
+class CompressionTest {
+  private static final String SHA = "ab".repeat(32);
+
+  @TempDir
+  Path dir;
+
+  /**
+   * Test Accept-Encoding parsing honours q-values and wildcards.
+   */
+  @Test
+  void testNegotiate() {
+    assertEquals("gzip", Compression.negotiate("gzip, deflate, br"));
+    assertEquals("gzip", Compression.negotiate("br;q=1.0, gzip;q=0.5"));
+    assertEquals("gzip", Compression.negotiate("*"));
+    assertNull(Compression.negotiate(null));
+    assertNull(Compression.negotiate("br, deflate"));
+    assertNull(Compression.negotiate("gzip;q=0"));
+    assertNull(Compression.negotiate("gzip;q=0, *"), "Explicit refusal beats wildcard");
+  }
+
+  /**
+   * Test only text-like media types are compressed.
+   */
+  @Test
+  void testCompressibleType() {
+    assertTrue(Compression.compressibleType("text/csv"));
+    assertTrue(Compression.compressibleType("application/json; charset=utf-8"));
+    assertTrue(Compression.compressibleType("image/svg+xml"));
+    assertFalse(Compression.compressibleType("image/png"));
+    assertFalse(Compression.compressibleType("application/gzip"));
+    assertFalse(Compression.compressibleType(FileMetadata.DEFAULT_CONTENT_TYPE));
+  }
+
+  /**
+   * Test an upload gets a gzip variant named by its digest, and orphans are collected.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testPrecompress() throws Exception {
+    Compression compression = compression();
+    String text = "line of log output\n".repeat(200);
+    compression.precompress(content(text), metadata(text, "text/plain"));
+
+    Path variant = compression.variant(SHA);
+    try (InputStream in = new GZIPInputStream(Files.newInputStream(variant))) {
+      assertEquals(text, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+    }
+    assertEquals(1, compression.precompressed());
+
+    Path staging = Files.createTempFile(variant.getParent().getParent(), "variant", ".tmp");
+    long later = System.currentTimeMillis() + 1000;
+    assertEquals(0, compression.collectGarbage(Set.of(), 0), "Newer variants should be kept");
+    assertEquals(0, compression.collectGarbage(Set.of(SHA), later));
+    assertEquals(1, compression.collectGarbage(Set.of(), later));
+    assertFalse(Files.exists(variant));
+    assertTrue(Files.exists(staging), "Variants being written should be kept");
+  }
+
+  /**
+   * Test a variant left behind by an overwrite is removed by a later sweep, not only at
+   * startup.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testPeriodicSweep() throws Exception {
+    ContentDigests digests = new ContentDigests(dir, new StorageLayout(0));
+    Path stored = Files.writeString(dir.resolve("stored.txt"), "stored");
+    BasicFileAttributes attrs = Files.readAttributes(stored, BasicFileAttributes.class);
+    digests.save("stored.txt", new ContentDigests.Entry(SHA, null, null, attrs.size()), attrs);
+    Path variant = dir.resolve("variants").resolve(SHA.substring(0, 2)).resolve(SHA + ".gz");
+    Files.createDirectories(variant.getParent());
+    Files.write(variant, new byte[1]);
+    Files.setLastModifiedTime(variant, FileTime.fromMillis(0));
+    Compression compression = new Compression(dir, true, 1024, true, 1 << 20, digests, 1);
+    try {
+      // Let the startup sweep pass while the variant is still live
+      Thread.sleep(500);
+      assertTrue(Files.exists(variant), "A live variant should be kept");
+
+      String replacement = "cd".repeat(32);
+      digests.save("stored.txt",
+          new ContentDigests.Entry(replacement, null, null, attrs.size()), attrs);
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      while (Files.exists(variant) && System.nanoTime() < deadline) {
+        Thread.sleep(50);
+      }
+      assertFalse(Files.exists(variant), "The overwritten content's variant should be swept");
+    } finally {
+      compression.close();
+    }
+  }
+
+  /**
+   * Test content that does not shrink gets an empty marker, and small, binary or large files
+   * none.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testIncompressibleContent() throws Exception {
+    Compression compression = compression();
+    byte[] random = new byte[4096];
+    new Random(1).nextBytes(random);
+    compression.precompress(Content.of(ByteBuffer.wrap(random)),
+        new FileMetadata(random.length, FileTime.fromMillis(0), "text/plain", "\"" + SHA + "\""));
+    assertEquals(0, Files.size(compression.variant(SHA)));
+
+    Files.delete(compression.variant(SHA));
+    String small = "tiny";
+    compression.precompress(content(small), metadata(small, "text/plain"));
+    String binary = "x".repeat(4096);
+    compression.precompress(content(binary), metadata(binary, "image/png"));
+    String large = "x".repeat((1 << 20) + 1);
+    compression.precompress(content(large), metadata(large, "text/plain"));
+    assertFalse(Files.exists(compression.variant(SHA)), "Files above the limit get no variant");
+  }
+
+  /**
+   * Test the decoding view of a compressed file serves any range of the uploaded bytes.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testDecode() throws Exception {
+    String text = "0123456789".repeat(10_000);
+    ByteArrayOutputStream gz = new ByteArrayOutputStream();
+    try (OutputStream out = Compression.gzip(gz, Deflater.DEFAULT_COMPRESSION)) {
+      out.write(text.getBytes(StandardCharsets.UTF_8));
+    }
+    byte[] stored = gz.toByteArray();
+    FileMetadata metadata = new FileMetadata(text.length(), stored.length, Compression.GZIP,
+        FileTime.fromMillis(0), "text/plain", "\"" + SHA + "\"", null);
+    Content content = Compression.decode(Content.of(ByteBuffer.wrap(stored)), metadata);
+    assertEquals(text.length(), content.size());
+
+    ByteArrayOutputStream range = new ByteArrayOutputStream();
+    content.writeTo(50_005, 5, range);
+    assertEquals("56789", range.toString(StandardCharsets.UTF_8));
+    range.reset();
+    content.writeTo(3, 4, range);
+    assertEquals("3456", range.toString(StandardCharsets.UTF_8), "Seeking back starts over");
+
+    ByteBuffer all = ByteBuffer.allocate(text.length());
+    while (all.hasRemaining()) {
+      assertTrue(content.read(all.position(), all) > 0);
+    }
+    assertEquals(text, new String(all.array(), StandardCharsets.UTF_8));
+    assertEquals(-1, content.read(text.length(), ByteBuffer.allocate(1)));
+
+    Content plain = Content.of(ByteBuffer.wrap(stored));
+    assertSame(plain, Compression.decode(plain, metadata(text, "text/plain")));
+  }
+
+  /** A policy whose background sweep sees {@link #SHA} as live, as its variants are made here. */
+  private Compression compression() throws Exception {
+    ContentDigests digests = new ContentDigests(dir, new StorageLayout(0));
+    Path stored = Files.writeString(dir.resolve("stored.txt"), "stored");
+    BasicFileAttributes attrs = Files.readAttributes(stored, BasicFileAttributes.class);
+    digests.save("stored.txt", new ContentDigests.Entry(SHA, null, null, attrs.size()), attrs);
+    return new Compression(dir, true, 1024, true, 1 << 20, digests, 0);
+  }
+
+  private static Content content(String text) {
+    return Content.of(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private static FileMetadata metadata(String text, String contentType) {
+    return new FileMetadata(text.length(), FileTime.fromMillis(0), contentType,
+        "\"" + SHA + "\"");
+  }
+}
@@ -0,0 +1,98 @@
+package com.fileserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * End-to-end tests of uploads into a content-addressed store.
+ */
+class DedupUploadIntegrationTest {
+  @TempDir
+  static Path storage;
+
+  private static String baseUrl;
+
+  /**
+   * Start the server with deduplicated storage.
+   *
+   * @throws Exception if server creation fails
+   */
+  @BeforeAll
+  static void setUp() throws Exception {
+    Properties props = new Properties();
+    props.setProperty("fileserver.port", "0");
+    props.setProperty("fileserver.storage", storage.toString());
+    props.setProperty("fileserver.cas", "true");
+    int port = MiniFileServer.start(ServerConfig.from(props)).getAddress().getPort();
+    baseUrl = "http://localhost:" + port;
+  }
+
+  /**
+   * Stop the server after all tests.
+   */
+  @AfterAll
+  static void tearDown() {
+    MiniFileServer.stop();
+  }
+
+  /**
+   * Test an upload whose digest the store already holds is answered without reading its body,
+   * and the connection is closed so the client stops sending it.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testKnownDigestClosesConnection() throws Exception {
+    String content = "known content";
+    HttpResponse<String> first = HttpClient.newHttpClient().send(
+        HttpRequest.newBuilder(URI.create(baseUrl + "/upload"))
+            .header("X-Filename", "known.txt")
+            .POST(HttpRequest.BodyPublishers.ofString(content))
+            .build(),
+        HttpResponse.BodyHandlers.ofString());
+    assertEquals(200, first.statusCode());
+
+    try (Socket socket = new Socket("localhost", URI.create(baseUrl).getPort())) {
+      socket.setSoTimeout(10_000);
+      OutputStream out = socket.getOutputStream();
+      out.write(("POST /upload HTTP/1.1\r\nHost: localhost\r\nX-Filename: known-copy.txt\r\n"
+          + "X-Checksum-SHA256: " + ContentDigests.compute(storage.resolve("known.txt"))
+          + "\r\nContent-Length: 8388608\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+      out.write(new byte[64 * 1024]);
+      out.flush();
+      BufferedReader in = new BufferedReader(
+          new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+      String status = in.readLine();
+      assertTrue(status.startsWith("HTTP/1.1 200"), status);
+      List<String> headers = new ArrayList<>();
+      for (String line = in.readLine(); !line.isEmpty(); line = in.readLine()) {
+        headers.add(line.toLowerCase());
+      }
+      assertTrue(headers.contains("connection: close"), headers.toString());
+      assertTrue(headers.contains("x-dedup: hit"), headers.toString());
+      assertEquals("Uploaded: known-copy.txt", in.readLine());
+      assertNull(in.readLine(), "Connection should be closed without reading the body");
+    }
+    assertEquals(content, Files.readString(storage.resolve("known-copy.txt")));
+  }
+}
@@ -0,0 +1,95 @@
+package com.fileserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for DispatchHandler saturation behavior.
+ */
+class DispatchHandlerTest {
+  private HttpServer server;
+  private ThreadPoolExecutor control;
+  private ThreadPoolExecutor data;
+  private final CountDownLatch started = new CountDownLatch(1);
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  @BeforeEach
+  void setUp() throws Exception {
+    data = WorkerPools.bounded("test-data", 1, 0, new ThreadPoolExecutor.AbortPolicy());
+    server = HttpServer.create(new InetSocketAddress(0), 0);
+    control = WorkerPools.bounded("test-control", 2, 4, new ThreadPoolExecutor.CallerRunsPolicy());
+    server.setExecutor(control);
+    server.createContext("/slow", new DispatchHandler(exchange -> {
+      started.countDown();
+      try {
+        release.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      exchange.sendResponseHeaders(200, -1);
+      exchange.close();
+    }, data, 7));
+    server.createContext("/health", exchange -> {
+      exchange.sendResponseHeaders(200, -1);
+      exchange.close();
+    });
+    server.start();
+  }
+
+  @AfterEach
+  void tearDown() {
+    release.countDown();
+    server.stop(0);
+    control.shutdownNow();
+    data.shutdownNow();
+  }
+
+  /**
+   * A saturated data pool answers 503 with Retry-After while control endpoints still respond.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testSaturatedPoolRejectsWithRetryAfter() throws Exception {
+    CompletableFuture<Integer> first = CompletableFuture.supplyAsync(() -> status("/slow"));
+    assertTrue(started.await(5, TimeUnit.SECONDS), "First request should occupy the pool");
+
+    HttpURLConnection conn = open("/slow");
+    assertEquals(503, conn.getResponseCode(), "Saturated pool should return 503");
+    assertEquals("7", conn.getHeaderField("Retry-After"), "Retry-After should be configured value");
+    conn.disconnect();
+
+    assertEquals(200, status("/health"), "Control endpoint should not queue behind data");
+
+    release.countDown();
+    assertEquals(200, first.get(5, TimeUnit.SECONDS), "First request should complete");
+  }
+
+  private HttpURLConnection open(String path) throws Exception {
+    int port = server.getAddress().getPort();
+    return (HttpURLConnection) new URI("http://localhost:" + port + path).toURL().openConnection();
+  }
+
+  private int status(String path) {
+    try {
+      HttpURLConnection conn = open(path);
+      int code = conn.getResponseCode();
+      conn.disconnect();
+      return code;
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
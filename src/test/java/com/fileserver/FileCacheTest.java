@@ -0,0 +1,159 @@
+package com.fileserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Unit tests for FileCache admission, eviction and invalidation.
+ */
+class FileCacheTest {
+  @TempDir
+  Path dir;
+
+  /**
+   * Test a popular file survives while a one-off file is refused admission.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testOneOffDoesNotEvictHotFile() throws Exception {
+    FileCache cache = new FileCache(10, 10);
+    for (int i = 0; i < 5; i++) {
+      cache.get("hot");
+    }
+    assertNotNull(load(cache, "hot", "0123456789"), "Empty cache should admit");
+
+    cache.get("cold");
+    assertNull(load(cache, "cold", "abcdefghij"), "Less popular file should be rejected");
+    assertNotNull(cache.get("hot"), "Hot file should remain cached");
+    assertEquals(1, cache.rejections());
+  }
+
+  /**
+   * Test a file that becomes more popular than the LRU victim replaces it.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testPopularFileEvictsVictim() throws Exception {
+    FileCache cache = new FileCache(10, 10);
+    cache.get("old");
+    load(cache, "old", "0123456789");
+    for (int i = 0; i < 5; i++) {
+      cache.get("new");
+    }
+    assertNotNull(load(cache, "new", "abcdefghij"), "More popular file should be admitted");
+    assertNull(cache.get("old"), "Victim should be evicted");
+    assertEquals(1, cache.evictions());
+    assertEquals(10, cache.usedBytes());
+  }
+
+  /**
+   * Test invalidation removes the entry and voids loads that started before it.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testInvalidate() throws Exception {
+    FileCache cache = new FileCache(100, 100);
+    cache.get("file");
+    load(cache, "file", "v1");
+    long token = cache.generation("file");
+    cache.invalidate("file");
+    assertNull(cache.get("file"), "Invalidated entry should be gone");
+
+    Path path = dir.resolve("file");
+    Files.writeString(path, "v2");
+    try (FileChannel channel = FileChannel.open(path)) {
+      assertNull(cache.load("file", Content.of(channel), metadata(path), token),
+          "Load started before invalidation should be discarded");
+    }
+  }
+
+  /**
+   * Test invalidating one file leaves loads of other files alone.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testInvalidateOtherFileKeepsLoad() throws Exception {
+    FileCache cache = new FileCache(100, 100);
+    long token = cache.generation("file");
+    cache.invalidate("other");
+
+    Path path = dir.resolve("file");
+    Files.writeString(path, "v1");
+    try (FileChannel channel = FileChannel.open(path)) {
+      assertNotNull(cache.load("file", Content.of(channel), metadata(path), token),
+          "Unrelated invalidation should not void the load");
+    }
+    assertNotNull(cache.get("file"));
+  }
+
+  /**
+   * Test concurrent lookups keep exact hit counts without a lock on the hit path.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testConcurrentHits() throws Exception {
+    FileCache cache = new FileCache(100, 100);
+    load(cache, "file", "v1");
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(() -> {
+        for (int j = 0; j < 10_000; j++) {
+          cache.get("file");
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(40_000, cache.hits());
+  }
+
+  /**
+   * Test the admission sketch grows with the cache, within bounds.
+   */
+  @Test
+  void testSketchSizedFromCapacity() {
+    assertEquals(16384, FileCache.FrequencySketch.forCapacity(64L << 20).width(),
+        "A 64 MiB cache of 4 KiB files needs a counter per entry");
+    assertEquals(1024, FileCache.FrequencySketch.forCapacity(1L << 20).width());
+    assertEquals(1 << 16, FileCache.FrequencySketch.forCapacity(1L << 40).width());
+  }
+
+  /**
+   * Test files above the per-file limit are never cached.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testLargeFileNotCached() throws Exception {
+    FileCache cache = new FileCache(100, 4);
+    assertNull(load(cache, "big", "0123456789"));
+  }
+
+  private FileCache.Entry load(FileCache cache, String name, String content) throws Exception {
+    Path path = dir.resolve(name);
+    Files.writeString(path, content);
+    try (FileChannel channel = FileChannel.open(path)) {
+      return cache.load(name, Content.of(channel), metadata(path), cache.generation(name));
+    }
+  }
+
+  private static FileMetadata metadata(Path path) throws Exception {
+    return FileMetadata.read(path.getFileName().toString(), path,
+        Files.readAttributes(path, BasicFileAttributes.class), null);
+  }
+}
@@ -0,0 +1,179 @@
+package com.fileserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Unit tests for FileStore.
+ */
+class FileStoreTest {
+  private static final StorageLayout FLAT = new StorageLayout(0);
+
+  @TempDir
+  Path storage;
+
+  /**
+   * Test a committed upload replaces the stored file and records its digest.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testCommitReplacesFileAndRecordsDigest() throws Exception {
+    List<String> stored = new ArrayList<>();
+    FileStore store = new FileStore(local(), storage.resolve(".fileserver"), FLAT,
+        FileStore.Durability.FULL, false, false, stored::add);
+    Files.writeString(storage.resolve("a.txt"), "old");
+
+    Path staged = store.newStagingFile();
+    String sha256 = store.write(
+        new ByteArrayInputStream("abc".getBytes(StandardCharsets.UTF_8)), staged, "a.txt")
+        .sha256();
+    assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", sha256);
+    assertEquals("old", Files.readString(storage.resolve("a.txt")),
+        "Staged content must not be visible before commit");
+
+    store.commit(staged, "a.txt", sha256);
+    assertEquals("abc", Files.readString(storage.resolve("a.txt")));
+    assertFalse(Files.exists(staged), "Staging file should be moved away");
+    assertEquals(List.of("a.txt"), stored);
+    BasicFileAttributes attrs =
+        Files.readAttributes(storage.resolve("a.txt"), BasicFileAttributes.class);
+    assertEquals(sha256, store.digests().load("a.txt", attrs).sha256());
+  }
+
+  /**
+   * Test staging files left by a crash are removed on startup.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testStaleStagingFilesRemoved() throws Exception {
+    Path internal = storage.resolve(".fileserver");
+    Path leftover = new FileStore(local(), internal, FLAT, FileStore.Durability.NONE, false, false,
+        name -> { }).newStagingFile();
+    Files.writeString(leftover, "partial");
+
+    new FileStore(local(), internal, FLAT, FileStore.Durability.NONE, false, false, name -> { });
+    assertFalse(Files.exists(leftover), "Stale staging file should be deleted");
+    assertTrue(Files.isDirectory(internal.resolve("tmp")));
+  }
+
+  /**
+   * Test identical bodies are stored once and later names can bind to them without a body.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testContentAddressedDeduplicates() throws Exception {
+    FileStore store = new FileStore(local(), storage.resolve(".fileserver"), FLAT,
+        FileStore.Durability.NONE, true, false, name -> { });
+    Path first = stage(store, "same bytes");
+    String sha256 = ContentDigests.compute(first);
+    assertFalse(store.commit(first, "b.txt", sha256),
+        "First copy should be stored");
+    assertTrue(store.commit(stage(store, "same bytes"), "c.txt", sha256),
+        "Second copy should be recognized as a duplicate");
+    assertTrue(store.commitExisting("d.txt", sha256), "Known digest should bind without body");
+    assertFalse(store.commitExisting("e.txt", "0".repeat(64)), "Unknown digest needs a body");
+
+    Object blobKey = Files.readAttributes(store.blob(sha256), BasicFileAttributes.class)
+        .fileKey();
+    for (String name : List.of("b.txt", "c.txt", "d.txt")) {
+      assertEquals("same bytes", Files.readString(storage.resolve(name)));
+      assertEquals(blobKey, Files.readAttributes(storage.resolve(name),
+          BasicFileAttributes.class).fileKey(), name + " should share the blob");
+    }
+  }
+
+  /**
+   * Test blobs no name refers to are removed in the background after startup.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testUnreferencedBlobsCollected() throws Exception {
+    Path internal = storage.resolve(".fileserver");
+    FileStore store = new FileStore(local(), internal, FLAT, FileStore.Durability.NONE, true, false,
+        name -> { });
+    String first = upload(store, "a.txt", "first");
+    String second = upload(store, "a.txt", "second");
+
+    new FileStore(local(), internal, FLAT, FileStore.Durability.NONE, true, false, name -> { });
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (Files.exists(store.blob(first)) && System.nanoTime() < deadline) {
+      Thread.sleep(20);
+    }
+    assertFalse(Files.exists(store.blob(first)), "Overwritten content should be collected");
+    assertTrue(Files.exists(store.blob(second)), "Live content must be kept");
+  }
+
+  /**
+   * Test text uploads are stored gzip-compressed with the uploaded digest and length recorded.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testCompressAtRest() throws Exception {
+    FileStore store = new FileStore(local(), storage.resolve(".fileserver"), FLAT,
+        FileStore.Durability.NONE, false, true, name -> { });
+    String csv = "id,value\n".repeat(1000);
+    Path staged = store.newStagingFile();
+    ContentDigests.Entry body = store.write(
+        new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)), staged, "data.csv");
+    assertEquals(Compression.GZIP, body.encoding());
+    assertEquals(csv.length(), body.size());
+    store.commit(staged, "data.csv", body);
+
+    Path stored = storage.resolve("data.csv");
+    assertTrue(Files.size(stored) < csv.length() / 10, "Stored file should be compressed");
+    try (InputStream in = new GZIPInputStream(Files.newInputStream(stored))) {
+      assertEquals(csv, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+    }
+    ContentDigests.Entry digest = store.digests().load("data.csv",
+        Files.readAttributes(stored, BasicFileAttributes.class));
+    assertEquals(Compression.GZIP, digest.encoding());
+    assertEquals(csv.length(), digest.size());
+    assertEquals(ContentDigests.compute(writeTemp(csv)), digest.sha256(),
+        "Digest should be that of the uploaded bytes");
+
+    Path image = store.newStagingFile();
+    assertNull(store.write(new ByteArrayInputStream(new byte[10]), image, "a.png").encoding(),
+        "Binary types should be stored as uploaded");
+  }
+
+  private Path writeTemp(String body) throws Exception {
+    return Files.writeString(Files.createTempFile(storage, "plain", ".tmp"), body);
+  }
+
+  private static Path stage(FileStore store, String body) throws Exception {
+    Path staged = store.newStagingFile();
+    store.write(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), staged, "x");
+    return staged;
+  }
+
+  private static String upload(FileStore store, String name, String body) throws Exception {
+    Path staged = stage(store, body);
+    String sha256 = ContentDigests.compute(staged);
+    store.commit(staged, name, sha256);
+    return sha256;
+  }
+
+  private LocalStorageBackend local() {
+    return new LocalStorageBackend(storage, FLAT, FileStore.Durability.NONE);
+  }
+}
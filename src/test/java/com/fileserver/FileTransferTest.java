@@ -0,0 +1,92 @@
+package com.fileserver;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Unit tests for FileTransfer.
+ */
+class FileTransferTest {
+  @TempDir
+  Path dir;
+
+  /**
+   * Test a slice of a file is copied without moving the channel position.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testTransferSlice() throws Exception {
+    Path file = dir.resolve("data.txt");
+    Files.writeString(file, "0123456789");
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      FileTransfer.transfer(channel, 2, 5, out);
+      assertEquals(0, channel.position(), "Positional transfer should not move the channel");
+    }
+    assertArrayEquals("23456".getBytes(StandardCharsets.US_ASCII), out.toByteArray());
+  }
+
+  /**
+   * Test asking for more bytes than the file holds fails instead of spinning.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testTruncatedFileFails() throws Exception {
+    Path file = dir.resolve("short.txt");
+    Files.writeString(file, "abc");
+
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      assertThrows(EOFException.class,
+          () -> FileTransfer.transfer(channel, 0, 10, new ByteArrayOutputStream()));
+    }
+  }
+
+  /**
+   * Test a target that stops accepting bytes fails instead of spinning.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testStalledTargetFails() throws Exception {
+    Path file = dir.resolve("data.txt");
+    Files.writeString(file, "abc");
+    WritableByteChannel stalled = new WritableByteChannel() {
+      @Override
+      public int write(ByteBuffer src) {
+        return 0;
+      }
+
+      @Override
+      public boolean isOpen() {
+        return true;
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      IOException e = assertThrows(IOException.class,
+          () -> FileTransfer.transfer(channel, 0, 3, stalled));
+      assertEquals("Target accepted no bytes at position 0", e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package com.fileserver;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HexFormat;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests for Hpack.
+ */
+class HpackTest {
+
+  /**
+   * Test the Huffman-coded request examples of RFC 7541 C.4, which share a dynamic table.
+   *
+   * @throws Exception if decoding fails
+   */
+  @Test
+  void testRfcRequestExamples() throws Exception {
+    Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE, 1 << 16);
+    assertFields(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff",
+        ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+    assertFields(decoder, "828684be5886a8eb10649cbf",
+        ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+        "cache-control", "no-cache");
+    assertFields(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf",
+        ":method", "GET", ":scheme", "https", ":path", "/index.html",
+        ":authority", "www.example.com", "custom-key", "custom-value");
+  }
+
+  /**
+   * Test encoded header blocks decode back to the same fields.
+   *
+   * @throws Exception if decoding fails
+   */
+  @Test
+  void testEncodeRoundTrip() throws Exception {
+    ByteArrayOutputStream block = new ByteArrayOutputStream();
+    Hpack.encode(block, ":status", "200");
+    Hpack.encode(block, "content-length", "123456");
+    Hpack.encode(block, "x-checksum-sha256", "a".repeat(200));
+    List<String[]> fields = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE, 1 << 16)
+        .decode(block.toByteArray(), block.size());
+    assertEquals(3, fields.size());
+    assertArrayEquals(new String[] {":status", "200"}, fields.get(0));
+    assertArrayEquals(new String[] {"content-length", "123456"}, fields.get(1));
+    assertArrayEquals(new String[] {"x-checksum-sha256", "a".repeat(200)}, fields.get(2));
+    assertEquals((byte) 0x88, block.toByteArray()[0], ":status 200 should be a static index");
+  }
+
+  /**
+   * Test malformed blocks are refused.
+   */
+  @Test
+  void testMalformedBlocks() {
+    Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE, 64);
+    assertThrows(IOException.class, () -> decode(decoder, "80"), "Index 0 is invalid");
+    assertThrows(IOException.class, () -> decode(decoder, "be"), "Empty dynamic table");
+    assertThrows(IOException.class, () -> decode(decoder, "3fe21f"), "Size above the maximum");
+    assertThrows(IOException.class, () -> decode(decoder, "00810000"),
+        "Huffman padding must be ones");
+    assertThrows(IOException.class, () -> decode(decoder, "00821fff00"),
+        "Huffman padding longer than 7 bits");
+    assertThrows(IOException.class, () -> decode(decoder, "4f"), "Truncated literal");
+  }
+
+  private static List<String[]> decode(Hpack.Decoder decoder, String hex) throws Exception {
+    byte[] block = HexFormat.of().parseHex(hex);
+    return decoder.decode(block, block.length);
+  }
+
+  private static void assertFields(Hpack.Decoder decoder, String hex, String... expected)
+      throws Exception {
+    List<String[]> fields = decode(decoder, hex);
+    assertEquals(expected.length / 2, fields.size());
+    for (int i = 0; i < fields.size(); i++) {
+      assertArrayEquals(new String[] {expected[2 * i], expected[2 * i + 1]}, fields.get(i));
+    }
+  }
+}
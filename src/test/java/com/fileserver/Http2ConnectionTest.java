@@ -0,0 +1,326 @@
+package com.fileserver;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for cleartext HTTP/2 on the NIO engine.
+ */
+class Http2ConnectionTest {
+  @TempDir
+  Path dir;
+
+  private NioHttpServer server;
+  private HttpClient client;
+  private final CountDownLatch released = new CountDownLatch(1);
+
+  /**
+   * Start a server with echo, file and blocking contexts.
+   *
+   * @throws Exception if the server cannot be started
+   */
+  @BeforeEach
+  void setUp() throws Exception {
+    server = NioHttpServer.create(new InetSocketAddress("localhost", 0), 2, 5000, 100, 1);
+    server.createContext("/echo", Http2ConnectionTest::echo);
+    server.createContext("/file", exchange -> {
+      Path file = dir.resolve(exchange.getRequestURI().getPath().substring("/file/".length()));
+      try (FileChannel channel = FileChannel.open(file);
+          OutputStream os = exchange.getResponseBody()) {
+        exchange.sendResponseHeaders(200, channel.size());
+        FileTransfer.transfer(channel, 0, channel.size(), os);
+      }
+    });
+    server.createContext("/wait", exchange -> {
+      try {
+        released.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      exchange.sendResponseHeaders(204, -1);
+      exchange.close();
+    });
+    server.createContext("/release", exchange -> {
+      released.countDown();
+      exchange.sendResponseHeaders(204, -1);
+      exchange.close();
+    });
+    server.start();
+    client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+  }
+
+  /**
+   * Stop the server.
+   */
+  @AfterEach
+  void tearDown() {
+    server.stop(0);
+  }
+
+  private static void echo(HttpExchange exchange) throws IOException {
+    byte[] body = exchange.getRequestBody().readAllBytes();
+    exchange.sendResponseHeaders(200, body.length == 0 ? -1 : body.length);
+    try (OutputStream os = exchange.getResponseBody()) {
+      os.write(body);
+    }
+  }
+
+  /**
+   * Test a plain HTTP request is upgraded to h2c.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testUpgrade() throws Exception {
+    Files.writeString(dir.resolve("small.txt"), "hello over h2");
+    HttpResponse<String> response = client.send(request("/file/small.txt").build(),
+        HttpResponse.BodyHandlers.ofString());
+    assertEquals(200, response.statusCode());
+    assertEquals(HttpClient.Version.HTTP_2, response.version());
+    assertEquals("hello over h2", response.body());
+    assertEquals("13", response.headers().firstValue("content-length").orElse(null));
+  }
+
+  /**
+   * Test many small downloads share one connection, and a stalled stream does not hold up the
+   * others.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testMultiplexedDownloads() throws Exception {
+    for (int i = 0; i < 50; i++) {
+      Files.writeString(dir.resolve("f" + i), "file " + i);
+    }
+    // The first request upgrades the connection the others are multiplexed on
+    client.send(request("/file/f0").build(), HttpResponse.BodyHandlers.discarding());
+    CompletableFuture<HttpResponse<Void>> waiting = client.sendAsync(request("/wait").build(),
+        HttpResponse.BodyHandlers.discarding());
+    List<CompletableFuture<HttpResponse<String>>> downloads = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      downloads.add(client.sendAsync(request("/file/f" + i).build(),
+          HttpResponse.BodyHandlers.ofString()));
+    }
+    for (int i = 0; i < 50; i++) {
+      HttpResponse<String> response = downloads.get(i).get(10, TimeUnit.SECONDS);
+      assertEquals(HttpClient.Version.HTTP_2, response.version());
+      assertEquals("file " + i, response.body());
+    }
+    assertTrue(!waiting.isDone(), "Stalled stream should still be open");
+    client.send(request("/release").build(), HttpResponse.BodyHandlers.discarding());
+    assertEquals(204, waiting.get(10, TimeUnit.SECONDS).statusCode());
+  }
+
+  /**
+   * Test bodies larger than the flow-control windows go through in both directions.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testLargeBodies() throws Exception {
+    byte[] data = new byte[5 << 20];
+    new Random(7).nextBytes(data);
+    Files.write(dir.resolve("large.bin"), data);
+    // Upgrade first: a request with a body is not upgraded
+    client.send(request("/release").build(), HttpResponse.BodyHandlers.discarding());
+
+    HttpResponse<byte[]> download = client.send(request("/file/large.bin").build(),
+        HttpResponse.BodyHandlers.ofByteArray());
+    assertEquals(HttpClient.Version.HTTP_2, download.version());
+    assertArrayEquals(data, download.body());
+
+    HttpResponse<byte[]> upload = client.send(request("/echo")
+        .POST(HttpRequest.BodyPublishers.ofByteArray(data)).build(),
+        HttpResponse.BodyHandlers.ofByteArray());
+    assertEquals(HttpClient.Version.HTTP_2, upload.version());
+    assertArrayEquals(data, upload.body());
+  }
+
+  /**
+   * Test a connection that opens with the HTTP/2 preface, without an upgrade.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testPriorKnowledge() throws Exception {
+    Files.writeString(dir.resolve("small.txt"), "direct");
+    try (Socket socket = new Socket("localhost", server.getAddress().getPort())) {
+      socket.setSoTimeout(10_000);
+      OutputStream out = socket.getOutputStream();
+      out.write(Http2Connection.PREFACE.getBytes(StandardCharsets.ISO_8859_1));
+      writeFrame(out, Http2Connection.SETTINGS, 0, 0, new byte[0]);
+      ByteArrayOutputStream block = new ByteArrayOutputStream();
+      Hpack.encode(block, ":method", "GET");
+      Hpack.encode(block, ":scheme", "http");
+      Hpack.encode(block, ":authority", "localhost");
+      Hpack.encode(block, ":path", "/file/small.txt");
+      writeFrame(out, Http2Connection.HEADERS,
+          Http2Connection.END_HEADERS | Http2Connection.END_STREAM, 1, block.toByteArray());
+
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE, 1 << 16);
+      String status = null;
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      while (true) {
+        int length = in.readUnsignedByte() << 16 | in.readUnsignedShort();
+        int type = in.readUnsignedByte();
+        int flags = in.readUnsignedByte();
+        int stream = in.readInt();
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        if (type == Http2Connection.HEADERS && stream == 1) {
+          status = decoder.decode(payload, length).get(0)[1];
+        } else if (type == Http2Connection.DATA && stream == 1) {
+          body.write(payload);
+        }
+        if (stream == 1 && (flags & Http2Connection.END_STREAM) != 0) {
+          break;
+        }
+      }
+      assertEquals("200", status);
+      assertEquals("direct", body.toString(StandardCharsets.UTF_8));
+    }
+  }
+
+  /**
+   * Test a header block that never ends is cut off at the header limit.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testContinuationFlood() throws Exception {
+    try (Socket socket = new Socket("localhost", server.getAddress().getPort())) {
+      socket.setSoTimeout(10_000);
+      OutputStream out = socket.getOutputStream();
+      out.write(Http2Connection.PREFACE.getBytes(StandardCharsets.ISO_8859_1));
+      writeFrame(out, Http2Connection.SETTINGS, 0, 0, new byte[0]);
+      ByteArrayOutputStream block = new ByteArrayOutputStream();
+      Hpack.encode(block, ":method", "GET");
+      writeFrame(out, Http2Connection.HEADERS, 0, 1, block.toByteArray());
+      byte[] filler = new byte[Http2Connection.MAX_FRAME];
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      for (int i = 0; i <= NioHttpServer.HEADER_LIMIT / filler.length; i++) {
+        writeFrame(out, Http2Connection.CONTINUATION, 0, 1, filler);
+      }
+      int goAway = -1;
+      while (goAway < 0) {
+        int length = in.readUnsignedByte() << 16 | in.readUnsignedShort();
+        int type = in.readUnsignedByte();
+        in.readUnsignedByte();
+        in.readInt();
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        if (type == Http2Connection.GOAWAY) {
+          goAway = ByteBuffer.wrap(payload).getInt(4);
+        }
+      }
+      assertEquals(Http2Connection.ENHANCE_YOUR_CALM, goAway);
+      assertEquals(-1, in.read(), "Connection should be closed");
+    }
+  }
+
+  /**
+   * Test idle HTTP/2 connections stay with the reactors instead of holding a thread each.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testIdleConnectionsHoldNoThreads() throws Exception {
+    List<Socket> sockets = new ArrayList<>();
+    try {
+      int before = Thread.activeCount();
+      for (int i = 0; i < 50; i++) {
+        Socket socket = new Socket("localhost", server.getAddress().getPort());
+        socket.setSoTimeout(10_000);
+        sockets.add(socket);
+        socket.getOutputStream().write(
+            Http2Connection.PREFACE.getBytes(StandardCharsets.ISO_8859_1));
+        writeFrame(socket.getOutputStream(), Http2Connection.SETTINGS, 0, 0, new byte[0]);
+      }
+      for (Socket socket : sockets) {
+        // The server's SETTINGS shows the connection was taken up as HTTP/2
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        in.skipBytes(3);
+        assertEquals(Http2Connection.SETTINGS, in.readUnsignedByte());
+      }
+      assertTrue(Thread.activeCount() - before < 10,
+          "Threads grew from " + before + " to " + Thread.activeCount());
+    } finally {
+      for (Socket socket : sockets) {
+        socket.close();
+      }
+    }
+  }
+
+  /**
+   * Test HTTP/2 can be turned off, leaving upgrade requests on HTTP/1.1.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testDisabled() throws Exception {
+    NioHttpServer plain =
+        NioHttpServer.create(new InetSocketAddress("localhost", 0), 1, 5000, 0, 1);
+    plain.createContext("/echo", Http2ConnectionTest::echo);
+    plain.start();
+    try {
+      HttpResponse<String> response = client.send(HttpRequest.newBuilder(
+          URI.create("http://localhost:" + plain.getAddress().getPort() + "/echo")).build(),
+          HttpResponse.BodyHandlers.ofString());
+      assertEquals(200, response.statusCode());
+      assertEquals(HttpClient.Version.HTTP_1_1, response.version());
+    } finally {
+      plain.stop(0);
+    }
+  }
+
+  private HttpRequest.Builder request(String path) {
+    return HttpRequest.newBuilder(
+        URI.create("http://localhost:" + server.getAddress().getPort() + path));
+  }
+
+  private static void writeFrame(OutputStream out, int type, int flags, int stream,
+      byte[] payload) throws IOException {
+    ByteArrayOutputStream frame = new ByteArrayOutputStream();
+    frame.write(payload.length >>> 16);
+    frame.write(payload.length >>> 8);
+    frame.write(payload.length);
+    frame.write(type);
+    frame.write(flags);
+    frame.write(stream >>> 24);
+    frame.write(stream >>> 16);
+    frame.write(stream >>> 8);
+    frame.write(stream);
+    frame.write(payload);
+    out.write(frame.toByteArray());
+    out.flush();
+  }
+}
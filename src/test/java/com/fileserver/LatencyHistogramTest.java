@@ -0,0 +1,48 @@
+package com.fileserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests for LatencyHistogram bucketing and percentiles.
+ */
+class LatencyHistogramTest {
+
+  /**
+   * Test small values are exact and large ones stay within the bucket precision.
+   */
+  @Test
+  void testPrecision() {
+    for (long value : new long[] {0, 1, 127, 128, 1_000, 65_537, 10_000_000_000L,
+        Long.MAX_VALUE}) {
+      int index = LatencyHistogram.index(value);
+      long highest = LatencyHistogram.highestValue(index);
+      assertTrue(highest >= value, "Bucket of " + value + " ends at " + highest);
+      assertTrue(highest - value <= value / 64, "Bucket of " + value + " is too wide");
+      if (index > 0) {
+        assertTrue(LatencyHistogram.highestValue(index - 1) < value);
+      }
+    }
+    assertEquals(127, LatencyHistogram.highestValue(LatencyHistogram.index(127)));
+  }
+
+  /**
+   * Test percentiles of a uniform distribution.
+   */
+  @Test
+  void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.percentile(99));
+    for (long i = 1; i <= 10_000; i++) {
+      histogram.record(i);
+    }
+    assertEquals(10_000, histogram.count());
+    assertEquals(10_000, histogram.max());
+    assertEquals(5_000.5, histogram.mean(), 1e-9);
+    assertEquals(5_000, histogram.percentile(50), 5_000 / 64.0);
+    assertEquals(9_900, histogram.percentile(99), 9_900 / 64.0);
+    assertEquals(10_000, histogram.percentile(100), "Capped at the exact maximum");
+  }
+}
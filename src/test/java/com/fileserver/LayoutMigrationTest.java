@@ -0,0 +1,98 @@
+package com.fileserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Unit tests for LayoutMigration.
+ */
+class LayoutMigrationTest {
+  @TempDir
+  Path storage;
+
+  /**
+   * Test a flat directory is resharded with its digest records and can be flattened again.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testReshardAndBack() throws Exception {
+    StorageLayout flat = new StorageLayout(0);
+    StorageLayout sharded = new StorageLayout(2);
+    Path internal = storage.resolve(MiniFileServer.INTERNAL_DIR);
+    ContentDigests digests = new ContentDigests(internal, flat);
+    for (String name : new String[] {"a.txt", "b.txt", "3f"}) {
+      Files.writeString(storage.resolve(name), name);
+      save(digests, storage.resolve(name), "hash-" + name);
+    }
+
+    assertEquals(3, new LayoutMigration(storage, sharded).run());
+    assertFalse(Files.exists(storage.resolve("a.txt")), "Flat copy should be gone");
+    Path moved = sharded.resolve(storage, "a.txt");
+    assertEquals("a.txt", Files.readString(moved));
+    assertEquals("hash-a.txt", new ContentDigests(internal, sharded)
+        .load("a.txt", Files.readAttributes(moved, BasicFileAttributes.class)).sha256(),
+        "Digest record should follow the file");
+    assertEquals(0, new LayoutMigration(storage, sharded).run(), "Rerun should be a no-op");
+
+    assertEquals(3, new LayoutMigration(storage, flat).run());
+    assertEquals("3f", Files.readString(storage.resolve("3f")));
+    try (Stream<Path> entries = Files.list(storage)) {
+      assertEquals(4, entries.count(), "Emptied shard directories should be removed");
+    }
+  }
+
+  /**
+   * Test a file already uploaded under the new layout is not overwritten by its old copy.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testNewerUploadWins() throws Exception {
+    StorageLayout sharded = new StorageLayout(1);
+    Path internal = storage.resolve(MiniFileServer.INTERNAL_DIR);
+    Files.writeString(storage.resolve("a.txt"), "old");
+    save(new ContentDigests(internal, new StorageLayout(0)), storage.resolve("a.txt"),
+        "hash-old");
+    Path current = sharded.resolve(storage, "a.txt");
+    Files.createDirectories(current.getParent());
+    Files.writeString(current, "new");
+    ContentDigests digests = new ContentDigests(internal, sharded);
+    save(digests, current, "hash-new");
+
+    assertEquals(0, new LayoutMigration(storage, sharded).run());
+    assertEquals("new", Files.readString(current));
+    assertFalse(Files.exists(storage.resolve("a.txt")), "Stale flat copy should be dropped");
+    assertEquals("hash-new",
+        digests.load("a.txt", Files.readAttributes(current, BasicFileAttributes.class)).sha256(),
+        "Fresh digest record should be kept");
+  }
+
+  /**
+   * Test dotfiles are left in place.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testDotfilesStay() throws Exception {
+    Files.writeString(storage.resolve(".gitkeep"), "");
+    Files.writeString(storage.resolve("a.txt"), "a");
+
+    assertEquals(1, new LayoutMigration(storage, new StorageLayout(2)).run());
+    assertTrue(Files.exists(storage.resolve(".gitkeep")), "Dotfile should not be sharded");
+  }
+
+  private static void save(ContentDigests digests, Path file, String sha256) throws Exception {
+    BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+    digests.save(file.getFileName().toString(),
+        new ContentDigests.Entry(sha256, null, null, attrs.size()), attrs);
+  }
+}
@@ -0,0 +1,74 @@
+package com.fileserver;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Properties;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for LoadGenerator option parsing and a short run against a real server.
+ */
+class LoadGeneratorTest {
+  @TempDir
+  Path storage;
+
+  /**
+   * Test options are parsed and invalid ones rejected.
+   */
+  @Test
+  void testOptions() {
+    LoadGenerator.Options options = LoadGenerator.Options.parse("--url=http://host:9000/",
+        "--rates=10, 20", "--size=1k", "--upload-ratio=0.5");
+    assertEquals("http://host:9000", options.url);
+    assertArrayEquals(new int[] {10, 20}, options.rates);
+    assertEquals(1024, options.size);
+    assertEquals(0.5, options.uploadRatio);
+    assertEquals(16, options.files);
+    assertThrows(IllegalArgumentException.class, () -> LoadGenerator.Options.parse("--rate=1"));
+    assertThrows(IllegalArgumentException.class,
+        () -> LoadGenerator.Options.parse("--upload-ratio=2"));
+    assertThrows(IllegalArgumentException.class, () -> LoadGenerator.Options.parse("rates=1"));
+  }
+
+  /**
+   * Test a short run issues the scheduled mix and reports it.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testRun() throws Exception {
+    Properties props = new Properties();
+    props.setProperty("fileserver.port", "0");
+    props.setProperty("fileserver.storage", storage.toString());
+    int port = MiniFileServer.start(ServerConfig.from(props)).getAddress().getPort();
+    try {
+      LoadGenerator.Options options = LoadGenerator.Options.parse(
+          "--url=http://localhost:" + port, "--rates=50", "--duration=1", "--size=1k",
+          "--files=2", "--upload-ratio=0.5");
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      List<LoadGenerator.Step> steps = new LoadGenerator(options)
+          .run(new PrintStream(out, true, StandardCharsets.UTF_8));
+
+      LoadGenerator.Step step = steps.get(0);
+      long total = step.uploads.latency.count() + step.downloads.latency.count();
+      assertEquals(50, total, "One request per scheduled slot");
+      assertEquals(0, step.uploads.errors.sum() + step.downloads.errors.sum());
+      assertTrue(Files.exists(storage.resolve("loadgen-1.bin")), "Download files are seeded");
+      String report = out.toString(StandardCharsets.UTF_8);
+      assertTrue(report.contains("p99.9 ms"), report);
+      assertTrue(report.contains(" download "), report);
+    } finally {
+      MiniFileServer.stop();
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package com.fileserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Unit tests for MappedFiles admission, eviction and reference counting.
+ */
+class MappedFilesTest {
+  @TempDir
+  Path dir;
+
+  /**
+   * Test a file is only mapped once it is hot, and later lookups share the mapping.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testMapsHotFile() throws Exception {
+    MappedFiles files = new MappedFiles(100, 4, 2);
+    assertNull(files.acquire("file"));
+    assertNull(map(files, "file", "0123456789"), "One request is not hot");
+
+    assertNull(files.acquire("file"));
+    MappedFiles.Mapping mapping = map(files, "file", "0123456789");
+    assertNotNull(mapping, "Second request should map the file");
+    mapping.release();
+
+    MappedFiles.Mapping shared = files.acquire("file");
+    assertNotNull(shared);
+    assertEquals("0123456789", text(shared.bytes()));
+    shared.release();
+    assertEquals(1, files.hits());
+    assertEquals(10, files.mappedBytes());
+  }
+
+  /**
+   * Test small files are left to the file cache and the cap evicts the LRU mapping.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testSizeLimits() throws Exception {
+    MappedFiles files = new MappedFiles(15, 4, 1);
+    files.acquire("tiny");
+    assertNull(map(files, "tiny", "abc"), "Files below the minimum should not be mapped");
+
+    files.acquire("a");
+    map(files, "a", "0123456789").release();
+    files.acquire("b");
+    map(files, "b", "abcdefghij").release();
+    assertEquals(1, files.evictions());
+    assertEquals(10, files.mappedBytes());
+    assertNull(files.acquire("a"), "LRU mapping should be evicted");
+    assertNotNull(files.acquire("b"));
+  }
+
+  /**
+   * Test an invalidated mapping stays usable for readers holding it and is then released.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testInvalidateWaitsForReaders() throws Exception {
+    MappedFiles files = new MappedFiles(100, 1, 1);
+    files.acquire("file");
+    MappedFiles.Mapping reader = map(files, "file", "content");
+    long token = files.generation("file");
+
+    files.invalidate("file");
+    assertNull(files.acquire("file"), "Invalidated mapping should be gone");
+    assertEquals("content", text(reader.bytes()), "Reader should still see its mapping");
+    reader.release();
+    assertFalse(reader.acquire(), "Released mapping should not be reusable");
+
+    Path path = dir.resolve("file");
+    try (FileChannel channel = FileChannel.open(path)) {
+      assertNull(files.map("file", Content.of(channel), metadata(path), token),
+          "Mapping started before invalidation should be discarded");
+    }
+    assertEquals(0, files.mappedBytes());
+  }
+
+  /**
+   * Test invalidating one name does not void a mapping of another that is in progress.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testUnrelatedInvalidationKeepsMapping() throws Exception {
+    MappedFiles files = new MappedFiles(100, 1, 1);
+    String other = "other";
+    while (FileCache.stripe(other) == FileCache.stripe("file")) {
+      other += "x";
+    }
+    files.acquire(other);
+    long token = files.generation(other);
+    files.invalidate("file");
+
+    Path path = dir.resolve(other);
+    Files.writeString(path, "content");
+    try (FileChannel channel = FileChannel.open(path)) {
+      MappedFiles.Mapping mapping = files.map(other, Content.of(channel), metadata(path), token);
+      assertNotNull(mapping, "An upload of another name should not void the mapping");
+      mapping.release();
+    }
+  }
+
+  /**
+   * Test content that cannot be mapped is skipped.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testUnmappableContent() throws Exception {
+    MappedFiles files = new MappedFiles(100, 1, 1);
+    files.acquire("file");
+    Path path = dir.resolve("file");
+    Files.writeString(path, "bytes");
+    Content content = Content.of(ByteBuffer.wrap("bytes".getBytes(StandardCharsets.UTF_8)));
+    assertNull(files.map("file", content, metadata(path), files.generation("file")));
+    assertTrue(files.enabled());
+  }
+
+  private MappedFiles.Mapping map(MappedFiles files, String name, String content)
+      throws Exception {
+    Path path = dir.resolve(name);
+    Files.writeString(path, content);
+    try (FileChannel channel = FileChannel.open(path)) {
+      return files.map(name, Content.of(channel), metadata(path), files.generation(name));
+    }
+  }
+
+  private static String text(ByteBuffer bytes) {
+    return StandardCharsets.UTF_8.decode(bytes).toString();
+  }
+
+  private static FileMetadata metadata(Path path) throws Exception {
+    return FileMetadata.read(path.getFileName().toString(), path,
+        Files.readAttributes(path, BasicFileAttributes.class), null);
+  }
+}
@@ -0,0 +1,178 @@
+package com.fileserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Unit tests for MetadataIndex.
+ */
+class MetadataIndexTest {
+  @TempDir
+  Path storage;
+
+  /**
+   * Test the second lookup is served from memory.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testLazyLoadThenHit() throws Exception {
+    Files.writeString(storage.resolve("a.txt"), "hello");
+    MetadataIndex index = new MetadataIndex(local(), null, 100);
+
+    FileMetadata first = index.get("a.txt");
+    assertEquals(5, first.size());
+    assertSame(first, index.get("a.txt"), "Second lookup should reuse the entry");
+    assertEquals(1, index.hits());
+    assertEquals(1, index.misses());
+    assertNull(index.get("missing.txt"), "Missing files have no metadata");
+  }
+
+  /**
+   * Test the index drops the least recently used entry beyond its capacity.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testBoundedLru() throws Exception {
+    for (String name : new String[] {"a.txt", "b.txt", "c.txt"}) {
+      Files.writeString(storage.resolve(name), name);
+    }
+    MetadataIndex index = new MetadataIndex(local(), null, 2);
+    FileMetadata a = index.get("a.txt");
+    index.get("b.txt");
+    assertSame(a, index.get("a.txt"));
+    index.get("c.txt");
+
+    assertSame(a, index.get("a.txt"), "Recently used entry should be kept");
+    assertEquals(3, index.misses(), "Least recently used entry should be dropped");
+    index.get("b.txt");
+    assertEquals(4, index.misses());
+    assertEquals("text/plain", a.contentType());
+  }
+
+  /**
+   * Test a file swapped between the metadata lookup and the open gets metadata for what was
+   * actually opened.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testConfirmAfterSwap() throws Exception {
+    Files.writeString(storage.resolve("s.txt"), "old");
+    StorageBackend backend = local();
+    MetadataIndex index = new MetadataIndex(backend, null, 100);
+    FileMetadata looked = index.get("s.txt");
+    try (StorageBackend.OpenFile file = backend.openRead("s.txt")) {
+      assertSame(looked, index.confirm("s.txt", looked, file.attributes()),
+          "Metadata of the opened file should be kept");
+    }
+
+    Path staged = storage.resolve("s.tmp");
+    Files.writeString(staged, "swapped in");
+    Files.move(staged, storage.resolve("s.txt"), StandardCopyOption.REPLACE_EXISTING);
+    try (StorageBackend.OpenFile file = backend.openRead("s.txt")) {
+      FileMetadata confirmed = index.confirm("s.txt", looked, file.attributes());
+      assertEquals(10, confirmed.size(), "Metadata should describe the opened file");
+      assertEquals(file.size(), confirmed.storedSize());
+      assertSame(confirmed, index.get("s.txt"), "Fresh metadata should replace the entry");
+    }
+  }
+
+  /**
+   * Test a file changed outside the server is invalidated by the watcher.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testWatcherInvalidatesExternalChange() throws Exception {
+    Path file = storage.resolve("b.txt");
+    Files.writeString(file, "v1");
+    Set<String> changed = ConcurrentHashMap.newKeySet();
+    try (MetadataIndex index = new MetadataIndex(local(), null, 100)) {
+      index.watch(storage, changed::add);
+      assertEquals(2, index.get("b.txt").size());
+
+      Files.writeString(file, "version2");
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      while (!changed.contains("b.txt") && System.nanoTime() < deadline) {
+        Thread.sleep(20);
+      }
+      assertTrue(changed.contains("b.txt"), "Watcher should report the change");
+      assertEquals(8, index.get("b.txt").size(), "Fresh metadata should be loaded");
+    }
+  }
+
+  /**
+   * Test the watcher covers shard directories, including ones created after it started.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testWatcherCoversShardDirectories() throws Exception {
+    StorageLayout layout = new StorageLayout(2);
+    Path existing = layout.resolve(storage, "c.txt");
+    Files.createDirectories(existing.getParent());
+    Files.writeString(existing, "v1");
+    Set<String> changed = ConcurrentHashMap.newKeySet();
+    try (MetadataIndex index = new MetadataIndex(local(layout), null, 100)) {
+      index.watch(storage, changed::add);
+      assertEquals(2, index.get("c.txt").size());
+      Files.writeString(existing, "version2");
+      awaitChange(changed, "c.txt");
+      assertEquals(8, index.get("c.txt").size(), "Fresh metadata should be loaded");
+
+      // Pick a name in another top-level shard, so both of its levels are new
+      Path top = existing.getParent().getParent();
+      int i = 0;
+      String name = "d0.txt";
+      while (layout.resolve(storage, name).getParent().getParent().equals(top)) {
+        name = "d" + ++i + ".txt";
+      }
+      Path created = layout.resolve(storage, name);
+      assertNull(index.get(name));
+      Files.createDirectories(created.getParent());
+      Files.writeString(created, "new");
+      awaitChange(changed, name);
+      awaitSize(index, name, 3);
+      Files.writeString(created, "newer");
+      awaitSize(index, name, 5);
+    }
+  }
+
+  private static void awaitChange(Set<String> changed, String name) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (!changed.contains(name) && System.nanoTime() < deadline) {
+      Thread.sleep(20);
+    }
+    assertTrue(changed.contains(name), "Watcher should report the change to " + name);
+  }
+
+  /** Polls until the watcher has replaced a stale entry, as late events may still arrive. */
+  private static void awaitSize(MetadataIndex index, String name, long size) throws Exception {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (index.get(name).size() != size && System.nanoTime() < deadline) {
+      Thread.sleep(20);
+    }
+    assertEquals(size, index.get(name).size(), "Watcher should invalidate " + name);
+  }
+
+  private LocalStorageBackend local() {
+    return local(new StorageLayout(0));
+  }
+
+  private LocalStorageBackend local(StorageLayout layout) {
+    return new LocalStorageBackend(storage, layout, FileStore.Durability.NONE);
+  }
+}
@@ -0,0 +1,70 @@
+package com.fileserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests for Metrics recording and Prometheus rendering.
+ */
+class MetricsTest {
+
+  /**
+   * Test latencies land in cumulative buckets per context and status.
+   */
+  @Test
+  void testHistogram() {
+    Metrics metrics = new Metrics();
+    Metrics.Endpoint download = metrics.endpoint("/download");
+    download.started();
+    download.finished(200, 300_000);
+    download.started();
+    download.finished(200, 2_000_000_000L);
+    download.started();
+    download.finished(404, 1_000_000);
+
+    String text = metrics.render();
+    String labels = "context=\"/download\",status=\"200\"";
+    assertTrue(text.contains("# TYPE fileserver_http_request_duration_seconds histogram\n"));
+    assertTrue(text.contains("fileserver_http_request_duration_seconds_bucket{" + labels
+        + ",le=\"5.0E-4\"} 1\n"), text);
+    assertTrue(text.contains("fileserver_http_request_duration_seconds_bucket{" + labels
+        + ",le=\"1.0\"} 1\n"), text);
+    assertTrue(text.contains("fileserver_http_request_duration_seconds_bucket{" + labels
+        + ",le=\"2.5\"} 2\n"), text);
+    assertTrue(text.contains("fileserver_http_request_duration_seconds_bucket{" + labels
+        + ",le=\"+Inf\"} 2\n"), text);
+    assertTrue(text.contains("fileserver_http_request_duration_seconds_count{" + labels
+        + "} 2\n"), text);
+    assertTrue(text.contains("fileserver_http_request_duration_seconds_bucket{"
+        + "context=\"/download\",status=\"404\",le=\"0.001\"} 1\n"), "Bounds are inclusive");
+    assertTrue(text.contains("fileserver_http_requests_in_flight{context=\"/download\"} 0\n"));
+  }
+
+  /**
+   * Test byte counters and registered gauges are rendered with their labels.
+   */
+  @Test
+  void testCountersAndGauges() {
+    Metrics metrics = new Metrics();
+    Metrics.Endpoint upload = metrics.endpoint("/upload");
+    upload.started();
+    upload.bytesIn(100);
+    upload.bytesOut(7);
+    long[] depth = {3};
+    metrics.register("fileserver_executor_queue_depth", "gauge", "Tasks waiting",
+        "pool=\"data\"", () -> depth[0]);
+    metrics.register("fileserver_cache_bytes", "gauge", "Cached bytes", "", () -> 42);
+
+    depth[0] = 5;
+    String text = metrics.render();
+    assertTrue(text.contains("fileserver_http_requests_in_flight{context=\"/upload\"} 1\n"));
+    assertTrue(text.contains("fileserver_http_request_bytes_total{context=\"/upload\"} 100\n"));
+    assertTrue(text.contains("fileserver_http_response_bytes_total{context=\"/upload\"} 7\n"));
+    assertTrue(text.contains("# TYPE fileserver_executor_queue_depth gauge\n"
+        + "fileserver_executor_queue_depth{pool=\"data\"} 5\n"), "Gauges are read when scraped");
+    assertTrue(text.contains("fileserver_cache_bytes 42\n"));
+    assertEquals(metrics.endpoint("/upload"), upload);
+  }
+}
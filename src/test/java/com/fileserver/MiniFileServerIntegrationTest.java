@@ -0,0 +1,493 @@
+package com.fileserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPInputStream;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * End-to-end tests against the real MiniFileServer handlers.
+ */
+class MiniFileServerIntegrationTest {
+  @TempDir
+  static Path storage;
+
+  private static final HttpClient CLIENT = HttpClient.newHttpClient();
+  static String baseUrl;
+
+  /**
+   * Start the server on an ephemeral port with a temporary storage directory.
+   *
+   * @throws Exception if server creation fails
+   */
+  @BeforeAll
+  static void setUp() throws Exception {
+    start(ServerConfig.Engine.JDK);
+  }
+
+  /**
+   * Start the server with the given HTTP engine.
+   *
+   * @param engine engine to serve requests with
+   * @throws Exception if server creation fails
+   */
+  static void start(ServerConfig.Engine engine) throws Exception {
+    Properties props = new Properties();
+    props.setProperty("fileserver.port", "0");
+    props.setProperty("fileserver.storage", storage.toString());
+    props.setProperty("fileserver.engine", engine.name());
+    props.setProperty("fileserver.upload.max-bytes", "16m");
+    int port = MiniFileServer.start(ServerConfig.from(props)).getAddress().getPort();
+    baseUrl = "http://localhost:" + port;
+  }
+
+  /**
+   * Stop the server after all tests.
+   */
+  @AfterAll
+  static void tearDown() {
+    MiniFileServer.stop();
+  }
+
+  /**
+   * Test single and multiple byte ranges.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testRangeDownload() throws Exception {
+    Files.writeString(storage.resolve("range.txt"), "abcdefghijklmnopqrstuvwxyz");
+
+    HttpResponse<String> single = get("/download?name=range.txt", "Range", "bytes=2-4");
+    assertEquals(206, single.statusCode(), "Single range should return 206");
+    assertEquals("cde", single.body());
+    assertEquals("bytes 2-4/26", single.headers().firstValue("Content-Range").orElse(""));
+
+    HttpResponse<String> multi = get("/download?name=range.txt", "Range", "bytes=0-1,-2");
+    assertEquals(206, multi.statusCode(), "Multiple ranges should return 206");
+    assertTrue(multi.headers().firstValue("Content-Type").orElse("")
+        .startsWith("multipart/byteranges; boundary="));
+    assertTrue(multi.body().contains("Content-Range: bytes 24-25/26\r\n\r\nyz"));
+
+    HttpResponse<String> unsatisfiable = get("/download?name=range.txt", "Range", "bytes=50-");
+    assertEquals(416, unsatisfiable.statusCode(), "Out-of-bounds range should return 416");
+  }
+
+  /**
+   * Test a stale If-Range validator falls back to the full body.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testIfRangeMismatchSendsFullBody() throws Exception {
+    Files.writeString(storage.resolve("if-range.txt"), "0123456789");
+
+    HttpResponse<String> response = get("/download?name=if-range.txt",
+        "Range", "bytes=0-1", "If-Range", "Thu, 01 Jan 1970 00:00:00 GMT");
+    assertEquals(200, response.statusCode(), "Stale If-Range should return 200");
+    assertEquals("0123456789", response.body());
+  }
+
+  /**
+   * Test a resumable upload survives a gap and completes into storage.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testResumableUpload() throws Exception {
+    HttpResponse<String> created = send(HttpRequest.newBuilder(URI.create(baseUrl + "/uploads"))
+        .header("X-Filename", "resumable.txt")
+        .header("Upload-Length", "10")
+        .POST(HttpRequest.BodyPublishers.noBody()));
+    assertEquals(201, created.statusCode(), "Session creation should return 201");
+    String session = baseUrl + created.headers().firstValue("Location").orElseThrow();
+
+    assertEquals(204, put(session, 0, "01234").statusCode(), "First chunk should be accepted");
+    HttpResponse<String> gap = put(session, 8, "89");
+    assertEquals(409, gap.statusCode(), "Chunk past committed offset should be rejected");
+    assertEquals("5", gap.headers().firstValue("Upload-Offset").orElse(""));
+
+    HttpResponse<String> head = send(HttpRequest.newBuilder(URI.create(session))
+        .method("HEAD", HttpRequest.BodyPublishers.noBody()));
+    assertEquals("5", head.headers().firstValue("Upload-Offset").orElse(""));
+
+    assertEquals(204, put(session, 3, "3456789").statusCode(), "Overlapping resend is allowed");
+    HttpResponse<String> done = send(HttpRequest.newBuilder(URI.create(session))
+        .POST(HttpRequest.BodyPublishers.noBody()));
+    assertEquals(200, done.statusCode(), "Finalize should return 200");
+    assertEquals("0123456789", Files.readString(storage.resolve("resumable.txt")));
+  }
+
+  /**
+   * Test an upload refused on its headers closes the connection instead of taking the body,
+   * while an accepted one sent with Expect: 100-continue goes through.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testRefusedUploadClosesConnection() throws Exception {
+    try (Socket socket = new Socket("localhost", URI.create(baseUrl).getPort())) {
+      socket.setSoTimeout(10_000);
+      OutputStream out = socket.getOutputStream();
+      out.write(("POST /upload HTTP/1.1\r\nHost: localhost\r\nExpect: 100-continue\r\n"
+          + "Content-Length: 1048576\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+      out.flush();
+      BufferedReader in = new BufferedReader(
+          new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+      String status = in.readLine();
+      while (status.startsWith("HTTP/1.1 100")) {
+        while (!in.readLine().isEmpty()) {
+          // Headers of the interim response
+        }
+        status = in.readLine();
+      }
+      assertTrue(status.startsWith("HTTP/1.1 400"), status);
+      List<String> headers = new ArrayList<>();
+      for (String line = in.readLine(); !line.isEmpty(); line = in.readLine()) {
+        headers.add(line.toLowerCase());
+      }
+      assertTrue(headers.contains("connection: close"), headers.toString());
+    }
+
+    HttpResponse<String> accepted = send(HttpRequest.newBuilder(URI.create(baseUrl + "/upload"))
+        .header("X-Filename", "continued.txt")
+        .expectContinue(true)
+        .POST(HttpRequest.BodyPublishers.ofString("continued")));
+    assertEquals(200, accepted.statusCode());
+    assertTrue(accepted.headers().firstValue("Connection").isEmpty());
+    assertEquals("continued", Files.readString(storage.resolve("continued.txt")));
+  }
+
+  /**
+   * Test an upload declaring more than the configured limit is refused before its body.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testUploadTooLarge() throws Exception {
+    HttpResponse<String> created = send(HttpRequest.newBuilder(URI.create(baseUrl + "/uploads"))
+        .header("X-Filename", "huge.bin")
+        .header("Upload-Length", Long.toString(1L << 40))
+        .POST(HttpRequest.BodyPublishers.noBody()));
+    assertEquals(413, created.statusCode());
+    assertFalse(created.headers().firstValue("Location").isPresent());
+  }
+
+  /**
+   * Test parts uploaded concurrently and out of order are assembled in part order, and part
+   * lists with repeated or descending numbers are refused.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testMultipartUpload() throws Exception {
+    HttpResponse<String> created = send(HttpRequest.newBuilder(
+        URI.create(baseUrl + "/multipart"))
+        .header("X-Filename", "multipart.txt")
+        .POST(HttpRequest.BodyPublishers.noBody()));
+    assertEquals(201, created.statusCode(), "Multipart creation should return 201");
+    String upload = baseUrl + created.headers().firstValue("Location").orElseThrow();
+
+    List<CompletableFuture<HttpResponse<String>>> parts = List.of(
+        CLIENT.sendAsync(HttpRequest.newBuilder(URI.create(upload + "?part=3"))
+            .PUT(HttpRequest.BodyPublishers.ofString("ccc")).build(),
+            HttpResponse.BodyHandlers.ofString()),
+        CLIENT.sendAsync(HttpRequest.newBuilder(URI.create(upload + "?part=1"))
+            .PUT(HttpRequest.BodyPublishers.ofString("a")).build(),
+            HttpResponse.BodyHandlers.ofString()),
+        CLIENT.sendAsync(HttpRequest.newBuilder(URI.create(upload + "?part=2"))
+            .PUT(HttpRequest.BodyPublishers.ofString("bb")).build(),
+            HttpResponse.BodyHandlers.ofString()));
+    for (CompletableFuture<HttpResponse<String>> part : parts) {
+      assertEquals(204, part.get().statusCode(), "Part upload should return 204");
+    }
+    HttpResponse<String> corrupt = send(HttpRequest.newBuilder(URI.create(upload + "?part=4"))
+        .header("X-Checksum-SHA256", "ungWv48Bz+pBQUDeXa4iI7ADYaOWF3qctBD/YfIAFa0=")
+        .PUT(HttpRequest.BodyPublishers.ofString("dddd")));
+    assertEquals(400, corrupt.statusCode(), "Part with a wrong digest should be refused");
+
+    HttpResponse<String> repeated = send(HttpRequest.newBuilder(URI.create(upload))
+        .POST(HttpRequest.BodyPublishers.ofString("1,1,2")));
+    assertEquals(400, repeated.statusCode(), "A part listed twice should be refused");
+    HttpResponse<String> unordered = send(HttpRequest.newBuilder(URI.create(upload))
+        .POST(HttpRequest.BodyPublishers.ofString("2,1")));
+    assertEquals(400, unordered.statusCode(), "A descending part list should be refused");
+
+    HttpResponse<String> done = send(HttpRequest.newBuilder(URI.create(upload))
+        .POST(HttpRequest.BodyPublishers.noBody()));
+    assertEquals(200, done.statusCode(), "Complete should return 200");
+    assertEquals("abbccc", Files.readString(storage.resolve("multipart.txt")));
+  }
+
+  /**
+   * Test completion is refused for an oversized part list and for parts adding up to more
+   * than the upload limit.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testMultipartLimits() throws Exception {
+    HttpResponse<String> created = send(HttpRequest.newBuilder(
+        URI.create(baseUrl + "/multipart"))
+        .header("X-Filename", "too-big.bin")
+        .POST(HttpRequest.BodyPublishers.noBody()));
+    String upload = baseUrl + created.headers().firstValue("Location").orElseThrow();
+    byte[] half = new byte[9 << 20];
+    for (int part = 1; part <= 2; part++) {
+      assertEquals(204, send(HttpRequest.newBuilder(URI.create(upload + "?part=" + part))
+          .PUT(HttpRequest.BodyPublishers.ofByteArray(half))).statusCode());
+    }
+
+    HttpResponse<String> longList = send(HttpRequest.newBuilder(URI.create(upload))
+        .POST(HttpRequest.BodyPublishers.ofString(
+            "1 ".repeat(MultipartUploads.MAX_PART_LIST_BYTES))));
+    assertEquals(413, longList.statusCode(), "Oversized part list should be refused");
+    HttpResponse<String> tooLarge = send(HttpRequest.newBuilder(URI.create(upload))
+        .POST(HttpRequest.BodyPublishers.noBody()));
+    assertEquals(413, tooLarge.statusCode(), "Assembled file above the limit should be refused");
+    assertFalse(Files.exists(storage.resolve("too-big.bin")));
+  }
+
+  /**
+   * Test repeat downloads are served from the cache and uploads invalidate it.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testCachedDownloadInvalidatedByUpload() throws Exception {
+    Files.writeString(storage.resolve("cached.txt"), "first");
+    assertEquals("MISS", get("/download?name=cached.txt").headers()
+        .firstValue("X-Cache").orElse(""));
+    HttpResponse<String> hit = get("/download?name=cached.txt");
+    assertEquals("HIT", hit.headers().firstValue("X-Cache").orElse(""));
+    assertEquals("first", hit.body());
+
+    send(HttpRequest.newBuilder(URI.create(baseUrl + "/upload"))
+        .header("X-Filename", "cached.txt")
+        .POST(HttpRequest.BodyPublishers.ofString("second")));
+    HttpResponse<String> after = get("/download?name=cached.txt");
+    assertEquals("MISS", after.headers().firstValue("X-Cache").orElse(""));
+    assertEquals("second", after.body());
+  }
+
+  /**
+   * Test a hot file too large for the cache is served from a mapping, including ranges.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testHotLargeFileIsMapped() throws Exception {
+    String body = "0123456789abcdef".repeat(128 * 1024);
+    Files.writeString(storage.resolve("large.txt"), body);
+    assertEquals("MISS", get("/download?name=large.txt").headers()
+        .firstValue("X-Cache").orElse(""));
+    assertEquals("MISS", get("/download?name=large.txt").headers()
+        .firstValue("X-Cache").orElse(""), "Second request maps the file");
+    HttpResponse<String> mapped = get("/download?name=large.txt");
+    assertEquals("MAPPED", mapped.headers().firstValue("X-Cache").orElse(""));
+    assertEquals(body, mapped.body());
+    HttpResponse<String> range = get("/download?name=large.txt", "Range", "bytes=16-19");
+    assertEquals(206, range.statusCode());
+    assertEquals("0123", range.body());
+
+    send(HttpRequest.newBuilder(URI.create(baseUrl + "/upload"))
+        .header("X-Filename", "large.txt")
+        .POST(HttpRequest.BodyPublishers.ofString("replaced")));
+    HttpResponse<String> after = get("/download?name=large.txt");
+    assertEquals("MISS", after.headers().firstValue("X-Cache").orElse(""));
+    assertEquals("replaced", after.body());
+  }
+
+  /**
+   * Test text downloads are gzip-encoded from the stored variant or on the fly.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testCompressedDownload() throws Exception {
+    String text = "timestamp,level,message\n".repeat(400);
+    send(HttpRequest.newBuilder(URI.create(baseUrl + "/upload"))
+        .header("X-Filename", "report.csv")
+        .POST(HttpRequest.BodyPublishers.ofString(text)));
+
+    HttpResponse<byte[]> gzip = getBytes("/download?name=report.csv", "Accept-Encoding", "gzip");
+    assertEquals("gzip", gzip.headers().firstValue("Content-Encoding").orElse(""));
+    assertEquals("Accept-Encoding", gzip.headers().firstValue("Vary").orElse(""));
+    assertTrue(gzip.headers().firstValue("ETag").orElseThrow().startsWith("W/\""));
+    assertTrue(gzip.body().length < text.length() / 10, "Variant should be much smaller");
+    assertEquals(text, gunzip(gzip.body()));
+
+    HttpResponse<String> identity = get("/download?name=report.csv");
+    assertTrue(identity.headers().firstValue("Content-Encoding").isEmpty());
+    assertEquals(text, identity.body());
+    HttpResponse<String> range = get("/download?name=report.csv",
+        "Accept-Encoding", "gzip", "Range", "bytes=0-8");
+    assertEquals(206, range.statusCode());
+    assertEquals("timestamp", range.body(), "Ranges should use the identity bytes");
+    assertEquals("Accept-Encoding", range.headers().firstValue("Vary").orElse(""));
+    HttpResponse<String> unchanged = get("/download?name=report.csv",
+        "If-None-Match", identity.headers().firstValue("ETag").orElseThrow());
+    assertEquals(304, unchanged.statusCode());
+    assertEquals("Accept-Encoding", unchanged.headers().firstValue("Vary").orElse(""));
+    assertEquals(identity.headers().firstValue("ETag").orElseThrow(),
+        unchanged.headers().firstValue("ETag").orElseThrow(), "Identity 304 keeps a strong tag");
+    HttpResponse<String> revalidated = get("/download?name=report.csv", "Accept-Encoding", "gzip",
+        "If-None-Match", gzip.headers().firstValue("ETag").orElseThrow());
+    assertEquals(304, revalidated.statusCode());
+    assertEquals(gzip.headers().firstValue("ETag").orElseThrow(),
+        revalidated.headers().firstValue("ETag").orElseThrow(),
+        "A 304 for gzip must carry the weak tag of the gzip response");
+
+    Files.writeString(storage.resolve("manual.json"), "{\"k\": 1}\n".repeat(300));
+    HttpResponse<byte[]> live = getBytes("/download?name=manual.json", "Accept-Encoding", "gzip");
+    assertEquals("gzip", live.headers().firstValue("Content-Encoding").orElse(""));
+    assertEquals("{\"k\": 1}\n".repeat(300), gunzip(live.body()));
+  }
+
+  /**
+   * Test uploads are verified against client digests and downloads return the stored digest.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testChecksumVerification() throws Exception {
+    HttpResponse<String> bad = send(HttpRequest.newBuilder(URI.create(baseUrl + "/upload"))
+        .header("X-Filename", "verified.txt")
+        .header("Content-MD5", "kAFQmDzST7DWlj99KOF/cg==")
+        .POST(HttpRequest.BodyPublishers.ofString("abd")));
+    assertEquals(400, bad.statusCode(), "Corrupted body should be rejected");
+    assertFalse(Files.exists(storage.resolve("verified.txt")), "Nothing should be committed");
+
+    HttpResponse<String> good = send(HttpRequest.newBuilder(URI.create(baseUrl + "/upload"))
+        .header("X-Filename", "verified.txt")
+        .header("Content-MD5", "kAFQmDzST7DWlj99KOF/cg==")
+        .header("Digest", "sha-256=ungWv48Bz+pBQUDeXa4iI7ADYaOWF3qctBD/YfIAFa0=")
+        .POST(HttpRequest.BodyPublishers.ofString("abc")));
+    assertEquals(200, good.statusCode());
+    HttpResponse<String> download = get("/download?name=verified.txt");
+    assertEquals("sha-256=ungWv48Bz+pBQUDeXa4iI7ADYaOWF3qctBD/YfIAFa0=,"
+        + "md5=kAFQmDzST7DWlj99KOF/cg==", download.headers().firstValue("Digest").orElse(""));
+  }
+
+  /**
+   * Test requests are measured per context and status and exposed on /metrics.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testMetrics() throws Exception {
+    send(HttpRequest.newBuilder(URI.create(baseUrl + "/upload"))
+        .header("X-Filename", "measured.txt")
+        .POST(HttpRequest.BodyPublishers.ofString("measured")));
+    get("/download?name=measured.txt");
+    get("/download?name=missing.txt");
+
+    // A request is recorded when its handler closes the exchange, which may be just after
+    // the client has read the response
+    String notFound = "fileserver_http_request_duration_seconds_count{"
+        + "context=\"/download\",status=\"404\"}";
+    HttpResponse<String> metrics = get("/metrics");
+    for (int i = 0; i < 50 && !metrics.body().contains(notFound); i++) {
+      Thread.sleep(20);
+      metrics = get("/metrics");
+    }
+    assertEquals(200, metrics.statusCode());
+    assertTrue(metrics.headers().firstValue("Content-Type").orElse("")
+        .startsWith("text/plain; version=0.0.4"));
+    String text = metrics.body();
+    assertTrue(text.contains(notFound), text);
+    assertTrue(text.contains("fileserver_http_request_duration_seconds_bucket{"
+        + "context=\"/upload\",status=\"200\",le=\"+Inf\"}"), text);
+    assertTrue(text.contains("fileserver_executor_queue_depth{pool=\"data\"}"), text);
+    assertTrue(text.contains("fileserver_http_requests_in_flight{context=\"/metrics\"} 1\n"),
+        "The scrape itself is in flight");
+    assertTrue(bytes(text, "fileserver_http_request_bytes_total{context=\"/upload\"}") >= 8);
+    assertTrue(bytes(text, "fileserver_http_response_bytes_total{context=\"/download\"}") >= 8);
+  }
+
+  private static long bytes(String metrics, String series) {
+    for (String line : metrics.split("\n")) {
+      if (line.startsWith(series + " ")) {
+        return Long.parseLong(line.substring(series.length() + 1));
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Test uploads get a strong content-hash ETag and conditional requests return 304.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testConditionalGet() throws Exception {
+    send(HttpRequest.newBuilder(URI.create(baseUrl + "/upload"))
+        .header("X-Filename", "etag.txt")
+        .POST(HttpRequest.BodyPublishers.ofString("abc")));
+    HttpResponse<String> first = get("/download?name=etag.txt");
+    String etag = first.headers().firstValue("ETag").orElse("");
+    assertEquals("\"ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad\"", etag,
+        "ETag should be the SHA-256 of the content");
+
+    HttpResponse<String> byTag = get("/download?name=etag.txt", "If-None-Match", etag);
+    assertEquals(304, byTag.statusCode(), "Matching If-None-Match should return 304");
+    assertEquals("", byTag.body());
+
+    String lastModified = first.headers().firstValue("Last-Modified").orElseThrow();
+    assertEquals(304, get("/download?name=etag.txt", "If-Modified-Since", lastModified)
+        .statusCode(), "Unchanged If-Modified-Since should return 304");
+    assertEquals(200, get("/download?name=etag.txt", "If-None-Match", "\"other\"")
+        .statusCode(), "Different ETag should return the body");
+  }
+
+  private static HttpResponse<String> put(String url, long offset, String body) throws Exception {
+    return send(HttpRequest.newBuilder(URI.create(url))
+        .header("Upload-Offset", Long.toString(offset))
+        .PUT(HttpRequest.BodyPublishers.ofString(body)));
+  }
+
+  static HttpResponse<String> send(HttpRequest.Builder request) throws Exception {
+    return CLIENT.send(request.build(), HttpResponse.BodyHandlers.ofString());
+  }
+
+  static HttpResponse<byte[]> getBytes(String path, String... headers) throws Exception {
+    return CLIENT.send(HttpRequest.newBuilder(URI.create(baseUrl + path)).headers(headers)
+        .GET().build(), HttpResponse.BodyHandlers.ofByteArray());
+  }
+
+  private static String gunzip(byte[] body) throws Exception {
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+      return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+
+  static HttpResponse<String> get(String path, String... headers) throws Exception {
+    HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(baseUrl + path));
+    if (headers.length > 0) {
+      builder.headers(headers);
+    }
+    return CLIENT.send(builder.GET().build(), HttpResponse.BodyHandlers.ofString());
+  }
+}
@@ -0,0 +1,41 @@
+package com.fileserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs the end-to-end tests against the NIO engine, where the client upgrades to h2c.
+ */
+class NioEngineIntegrationTest extends MiniFileServerIntegrationTest {
+
+  /**
+   * Start the server on the NIO engine instead of the JDK one.
+   *
+   * @throws Exception if server creation fails
+   */
+  @BeforeAll
+  static void setUp() throws Exception {
+    start(ServerConfig.Engine.NIO);
+  }
+
+  /**
+   * Test the server speaks HTTP/2 to a client that asks for it.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testHttp2() throws Exception {
+    HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+    HttpResponse<String> response = client.send(
+        HttpRequest.newBuilder(URI.create(baseUrl + "/health")).build(),
+        HttpResponse.BodyHandlers.ofString());
+    assertEquals(200, response.statusCode());
+    assertEquals(HttpClient.Version.HTTP_2, response.version());
+  }
+}
@@ -0,0 +1,256 @@
+package com.fileserver;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for the NIO engine at the socket level.
+ */
+class NioHttpServerTest {
+  @TempDir
+  Path dir;
+
+  private NioHttpServer server;
+
+  /**
+   * Start a server with an echo context and a file context.
+   *
+   * @throws Exception if the server cannot be started
+   */
+  @BeforeEach
+  void setUp() throws Exception {
+    server = NioHttpServer.create(new InetSocketAddress("localhost", 0), 2, 5000, 0, 1);
+    server.createContext("/echo", NioHttpServerTest::echo);
+    server.createContext("/reject", exchange -> {
+      exchange.sendResponseHeaders(400, -1);
+      exchange.close();
+    });
+    server.createContext("/file", exchange -> {
+      try (FileChannel channel = FileChannel.open(dir.resolve("file.txt"));
+          OutputStream os = exchange.getResponseBody()) {
+        exchange.sendResponseHeaders(200, channel.size());
+        assertTrue(os instanceof FileTransfer.Sink, "Response stream should take file bytes");
+        FileTransfer.transfer(channel, 0, channel.size(), os);
+      }
+    });
+    server.createContext("/mapped", exchange -> {
+      try (FileChannel channel = FileChannel.open(dir.resolve("file.txt"));
+          OutputStream os = exchange.getResponseBody()) {
+        boolean chunked = "chunked".equals(exchange.getRequestURI().getQuery());
+        exchange.sendResponseHeaders(200, chunked ? 0 : channel.size());
+        FileTransfer.transfer(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), os);
+      }
+    });
+    server.start();
+  }
+
+  /**
+   * Stop the server.
+   */
+  @AfterEach
+  void tearDown() {
+    server.stop(0);
+  }
+
+  private static void echo(HttpExchange exchange) throws IOException {
+    byte[] body = exchange.getRequestBody().readAllBytes();
+    exchange.sendResponseHeaders(200, body.length == 0 ? -1 : body.length);
+    try (OutputStream os = exchange.getResponseBody()) {
+      os.write(body);
+    }
+  }
+
+  /**
+   * Test pipelined requests, including a chunked one, are answered in order on one connection.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testPipelinedRequests() throws Exception {
+    Files.writeString(dir.resolve("file.txt"), "from disk");
+    try (Socket socket = connect()) {
+      write(socket, "POST /echo HTTP/1.1\r\nHost: x\r\nContent-Length: 5\r\n\r\nfirst"
+          + "POST /echo HTTP/1.1\r\nHost: x\r\nTransfer-Encoding: chunked\r\n\r\n"
+          + "3\r\nsec\r\n3;ext=1\r\nond\r\n0\r\n\r\n"
+          + "GET /file HTTP/1.1\r\nHost: x\r\n\r\n");
+      String responses = readUntil(socket.getInputStream(), "from disk");
+      int first = responses.indexOf("first");
+      int second = responses.indexOf("second");
+      assertTrue(first > 0 && second > first, responses);
+      assertEquals(3, responses.split("HTTP/1.1 200 OK\r\n", -1).length - 1, responses);
+      assertTrue(responses.contains("Content-length: 9"), responses);
+    }
+  }
+
+  /**
+   * Test a request refused on its headers gets no 100 Continue, and the connection is closed.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testRefusalSkipsContinue() throws Exception {
+    try (Socket socket = connect()) {
+      write(socket, "POST /reject HTTP/1.1\r\nHost: x\r\nExpect: 100-continue\r\n"
+          + "Content-Length: 1048576\r\n\r\n");
+      String response = new String(socket.getInputStream().readAllBytes(),
+          StandardCharsets.ISO_8859_1);
+      assertTrue(response.startsWith("HTTP/1.1 400"), response);
+      assertTrue(response.contains("Connection: close"), response);
+    }
+  }
+
+  /**
+   * Test 100 Continue is sent once the handler reads the body.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testContinueOnRead() throws Exception {
+    try (Socket socket = connect()) {
+      write(socket, "POST /echo HTTP/1.1\r\nHost: x\r\nExpect: 100-continue\r\n"
+          + "Content-Length: 4\r\n\r\n");
+      readUntil(socket.getInputStream(), "100 Continue\r\n\r\n");
+      write(socket, "body");
+      assertTrue(readUntil(socket.getInputStream(), "body").contains("200 OK"));
+    }
+  }
+
+  /**
+   * Test malformed and oversized request heads are refused.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testBadRequests() throws Exception {
+    try (Socket socket = connect()) {
+      write(socket, "NONSENSE\r\n\r\n");
+      String response = new String(socket.getInputStream().readAllBytes(),
+          StandardCharsets.ISO_8859_1);
+      assertTrue(response.startsWith("HTTP/1.1 400"), response);
+    }
+    try (Socket socket = connect()) {
+      write(socket, "GET /echo HTTP/1.1\r\nX-Big: " + "a".repeat(NioHttpServer.HEADER_LIMIT));
+      String response = new String(socket.getInputStream().readAllBytes(),
+          StandardCharsets.ISO_8859_1);
+      assertTrue(response.startsWith("HTTP/1.1 431"), response);
+    }
+    try (Socket socket = connect()) {
+      write(socket, "GET /missing HTTP/1.1\r\nHost: x\r\n\r\n");
+      assertTrue(readUntil(socket.getInputStream(), "No context found for request")
+          .startsWith("HTTP/1.1 404"));
+    }
+  }
+
+  /**
+   * Test a mapped buffer larger than the output buffer is sent whole, in both framings.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testMappedBody() throws Exception {
+    byte[] data = new byte[3 << 20];
+    new Random(3).nextBytes(data);
+    Files.write(dir.resolve("file.txt"), data);
+    HttpClient client = HttpClient.newHttpClient();
+    for (String path : new String[] {"/mapped", "/mapped?chunked"}) {
+      HttpResponse<byte[]> response = client.send(HttpRequest.newBuilder(
+          URI.create("http://localhost:" + server.getAddress().getPort() + path)).build(),
+          HttpResponse.BodyHandlers.ofByteArray());
+      assertEquals(200, response.statusCode());
+      assertArrayEquals(data, response.body(), path);
+    }
+  }
+
+  /**
+   * Test a saturated executor is answered with 503 by the reactor instead of running the
+   * handler there.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testSaturatedExecutorRejects() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    ThreadPoolExecutor executor = WorkerPools.bounded("test", 1, 0,
+        new ThreadPoolExecutor.AbortPolicy());
+    NioHttpServer busy = NioHttpServer.create(new InetSocketAddress("localhost", 0), 1, 5000, 0, 7);
+    busy.createContext("/wait", exchange -> {
+      try {
+        release.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      exchange.sendResponseHeaders(204, -1);
+      exchange.close();
+    });
+    busy.setExecutor(executor);
+    busy.start();
+    try (Socket first = new Socket("localhost", busy.getAddress().getPort());
+        Socket second = new Socket("localhost", busy.getAddress().getPort())) {
+      first.setSoTimeout(10_000);
+      second.setSoTimeout(10_000);
+      write(first, "GET /wait HTTP/1.1\r\nHost: x\r\n\r\n");
+      while (executor.getActiveCount() == 0) {
+        Thread.sleep(10);
+      }
+      write(second, "GET /wait HTTP/1.1\r\nHost: x\r\n\r\n");
+      String response = new String(second.getInputStream().readAllBytes(),
+          StandardCharsets.ISO_8859_1);
+      assertTrue(response.startsWith("HTTP/1.1 503"), response);
+      assertTrue(response.contains("Retry-After: 7"), response);
+      release.countDown();
+      assertTrue(readUntil(first.getInputStream(), "\r\n\r\n").startsWith("HTTP/1.1 204"));
+    } finally {
+      release.countDown();
+      busy.stop(0);
+      executor.shutdownNow();
+    }
+  }
+
+  private Socket connect() throws IOException {
+    Socket socket = new Socket("localhost", server.getAddress().getPort());
+    socket.setSoTimeout(10_000);
+    return socket;
+  }
+
+  private static void write(Socket socket, String data) throws IOException {
+    socket.getOutputStream().write(data.getBytes(StandardCharsets.ISO_8859_1));
+    socket.getOutputStream().flush();
+  }
+
+  private static String readUntil(InputStream in, String marker) throws IOException {
+    ByteArrayOutputStream received = new ByteArrayOutputStream();
+    while (!received.toString(StandardCharsets.ISO_8859_1).contains(marker)) {
+      int b = in.read();
+      if (b < 0) {
+        break;
+      }
+      received.write(b);
+    }
+    return received.toString(StandardCharsets.ISO_8859_1);
+  }
+}
@@ -0,0 +1,73 @@
+package com.fileserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.file.Paths;
+import java.util.Properties;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests for ServerConfig parsing.
+ */
+class ServerConfigTest {
+
+  /**
+   * Test defaults apply when nothing is configured.
+   */
+  @Test
+  void testDefaults() {
+    ServerConfig config = ServerConfig.from(new Properties());
+    assertEquals(8080, config.port(), "Default port should be 8080");
+    assertEquals(Paths.get("storage"), config.storage(), "Default storage should be ./storage");
+    assertEquals(ServerConfig.ExecutorMode.PLATFORM, config.executorMode(),
+        "Default executor should be platform threads");
+    assertEquals(FileStore.Durability.FILE, config.durability(),
+        "Uploads should be fsynced by default");
+    assertEquals(ServerConfig.Engine.JDK, config.engine(), "Default engine should be the JDK's");
+    assertEquals(128, config.http2MaxStreams(), "HTTP/2 should be enabled by default");
+    assertEquals(16, config.controlQueue());
+  }
+
+  /**
+   * Test explicit values override defaults.
+   */
+  @Test
+  void testOverrides() {
+    Properties props = new Properties();
+    props.setProperty("fileserver.data.threads", "3");
+    props.setProperty("fileserver.data.queue", "0");
+    props.setProperty("fileserver.control.queue", "4");
+    props.setProperty("fileserver.executor", "virtual");
+    props.setProperty("fileserver.durability", "full");
+    props.setProperty("fileserver.engine", "nio");
+    props.setProperty("fileserver.http2", "false");
+    ServerConfig config = ServerConfig.from(props);
+    assertEquals(3, config.dataThreads(), "Data threads should be overridden");
+    assertEquals(0, config.dataQueue(), "Queue of 0 should be allowed");
+    assertEquals(4, config.controlQueue());
+    assertEquals(ServerConfig.ExecutorMode.VIRTUAL, config.executorMode(),
+        "Executor mode should be case-insensitive");
+    assertEquals(FileStore.Durability.FULL, config.durability());
+    assertEquals(ServerConfig.Engine.NIO, config.engine());
+    assertEquals(0, config.http2MaxStreams(), "Disabling HTTP/2 should leave no streams");
+  }
+
+  /**
+   * Test invalid values fail fast.
+   */
+  @Test
+  void testInvalidValuesRejected() {
+    Properties props = new Properties();
+    props.setProperty("fileserver.data.threads", "0");
+    assertThrows(IllegalArgumentException.class, () -> ServerConfig.from(props));
+  }
+
+  /**
+   * Test property keys map to environment variable names.
+   */
+  @Test
+  void testEnvName() {
+    assertEquals("FILESERVER_RETRY_AFTER", ServerConfig.envName("fileserver.retry-after"));
+  }
+}
@@ -0,0 +1,245 @@
+package com.fileserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ * Contract tests run against every StorageBackend, plus segment recovery.
+ */
+class StorageBackendTest {
+  @TempDir
+  Path dir;
+
+  /**
+   * Test store, stat, positional reads, replace and delete.
+   *
+   * @param type backend under test
+   * @throws Exception if test fails
+   */
+  @ParameterizedTest
+  @EnumSource(StorageBackend.Type.class)
+  void testStoreReadReplaceDelete(StorageBackend.Type type) throws Exception {
+    try (StorageBackend backend = create(type)) {
+      assertNull(backend.stat("a.txt"));
+      assertNull(backend.openRead("a.txt"));
+
+      BasicFileAttributes first = backend.store("a.txt", stage("0123456789"));
+      assertEquals(10, first.size());
+      assertEquals(10, backend.stat("a.txt").size());
+      assertEquals("0123456789", read(backend, "a.txt", 0, 10));
+      assertEquals("345", read(backend, "a.txt", 3, 3));
+
+      BasicFileAttributes second = backend.store("a.txt", stage("new"));
+      assertNotEquals(first.fileKey(), second.fileKey(), "Replaced content needs a new key");
+      assertEquals("new", read(backend, "a.txt", 0, 3));
+      try (StorageBackend.OpenFile file = backend.openRead("a.txt")) {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        assertEquals(3, file.read(0, buffer), "Reads must stop at the end of the content");
+        assertEquals(-1, file.read(3, buffer));
+      }
+
+      backend.store("b.txt", stage("b"));
+      assertEquals(List.of("a.txt", "b.txt"), backend.list().stream().sorted().toList());
+      assertTrue(backend.delete("a.txt"));
+      assertFalse(backend.delete("a.txt"));
+      assertNull(backend.stat("a.txt"));
+    }
+  }
+
+  /**
+   * Test a local file still at another shard depth, as during a layout migration, is found.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testLocalFallsBackToOtherDepths() throws Exception {
+    Files.writeString(new StorageLayout(0).resolve(dir, "old.txt"), "old");
+    try (StorageBackend backend =
+        new LocalStorageBackend(dir, new StorageLayout(2), FileStore.Durability.NONE)) {
+      assertEquals(3, backend.stat("old.txt").size());
+      assertEquals("old", read(backend, "old.txt", 0, 3));
+      assertNull(backend.stat("missing.txt"));
+      assertNull(backend.openRead("missing.txt"));
+    }
+  }
+
+  /**
+   * Test a flat file named like a shard directory, left before switching to a sharded layout,
+   * is moved out of the way instead of failing uploads into that shard.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testLocalMovesFlatFileBlockingShard() throws Exception {
+    StorageLayout layout = new StorageLayout(1);
+    String shard = layout.resolve(dir, "x.txt").getParent().getFileName().toString();
+    Files.writeString(dir.resolve(shard), "flat");
+    try (StorageBackend backend =
+        new LocalStorageBackend(dir, layout, FileStore.Durability.NONE)) {
+      backend.store("x.txt", stage("sharded"));
+      assertEquals("sharded", read(backend, "x.txt", 0, 7));
+      assertEquals("flat", read(backend, shard, 0, 4), "The blocking file must survive");
+      assertTrue(Files.isRegularFile(layout.resolve(dir, shard)));
+      assertEquals(List.of("x.txt", shard).stream().sorted().toList(),
+          backend.list().stream().filter(name -> !name.startsWith("stage")).sorted().toList());
+    }
+  }
+
+  /**
+   * Test the segment index is rebuilt on reopen and a torn last record is cut off.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testSegmentRecovery() throws Exception {
+    Path segments = dir.resolve("segments");
+    try (StorageBackend backend = segment(segments, 64)) {
+      backend.store("a.txt", stage("first"));
+      backend.store("b.txt", stage("second"));
+      backend.store("a.txt", stage("third"));
+      backend.delete("b.txt");
+    }
+    List<Path> files;
+    try (Stream<Path> list = Files.list(segments)) {
+      files = list.sorted().toList();
+    }
+    assertTrue(files.size() > 1, "Small segment limit should roll over");
+    Path last = files.get(files.size() - 1);
+    try (FileChannel channel = FileChannel.open(last, StandardOpenOption.APPEND)) {
+      channel.write(ByteBuffer.wrap("torn".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    try (StorageBackend backend = segment(segments, 64)) {
+      assertEquals("third", read(backend, "a.txt", 0, 5));
+      assertNull(backend.stat("b.txt"), "Deletion should survive a restart");
+      backend.store("c.txt", stage("after"));
+    }
+    try (StorageBackend backend = segment(segments, 64)) {
+      assertEquals("after", read(backend, "c.txt", 0, 5),
+          "Appends after a torn record must be readable");
+    }
+  }
+
+  /**
+   * Test compaction reclaims dead records without disturbing readers or recovery.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testSegmentCompaction() throws Exception {
+    Path segments = dir.resolve("segments");
+    try (SegmentStorageBackend backend = segment(segments, 128)) {
+      backend.store("keep.txt", stage("keep"));
+      backend.store("gone.txt", stage("gone"));
+      for (int i = 0; i < 20; i++) {
+        backend.store("hot.txt", stage("version " + i));
+      }
+      backend.delete("gone.txt");
+      int before = backend.segmentCount();
+      StorageBackend.OpenFile reader = backend.openRead("keep.txt");
+
+      assertTrue(backend.compact() > 0, "Mostly dead segments should be compacted");
+      assertTrue(backend.segmentCount() < before);
+      assertTrue(backend.compactedBytes() > 0);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      reader.writeTo(0, 4, out);
+      reader.close();
+      assertEquals("keep", out.toString(StandardCharsets.UTF_8),
+          "A reader opened before compaction keeps its segment");
+      assertEquals("keep", read(backend, "keep.txt", 0, 4));
+      assertEquals("version 19", read(backend, "hot.txt", 0, 10));
+    }
+    try (SegmentStorageBackend backend = segment(segments, 128)) {
+      assertEquals("keep", read(backend, "keep.txt", 0, 4));
+      assertEquals("version 19", read(backend, "hot.txt", 0, 10));
+      assertNull(backend.stat("gone.txt"), "Compaction must not resurrect deleted files");
+    }
+  }
+
+  /**
+   * Test concurrent overwrites landing in different tiers always leave one of them stored.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testTieredConcurrentOverwrite() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try (StorageBackend backend = create(StorageBackend.Type.TIERED)) {
+      for (int i = 0; i < 200; i++) {
+        Path smallBody = stage("tiny");
+        Path largeBody = stage("much larger");
+        List<Callable<BasicFileAttributes>> writers = new ArrayList<>();
+        writers.add(() -> backend.store("x.txt", smallBody));
+        writers.add(() -> backend.store("x.txt", largeBody));
+        for (Future<BasicFileAttributes> writer : executor.invokeAll(writers)) {
+          writer.get();
+        }
+        BasicFileAttributes attrs = backend.stat("x.txt");
+        assertNotNull(attrs, "An overwrite race must not lose both copies");
+        String body = read(backend, "x.txt", 0, attrs.size());
+        assertTrue(body.equals("tiny") || body.equals("much larger"), body);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private StorageBackend create(StorageBackend.Type type) throws Exception {
+    switch (type) {
+      case MEMORY:
+        return new MemoryStorageBackend();
+      case SEGMENT:
+        return segment(dir.resolve("segments"), 1 << 20);
+      case TIERED:
+        return new TieredStorageBackend(segment(dir.resolve("segments"), 1 << 20),
+            new LocalStorageBackend(dir.resolve("files"), new StorageLayout(0),
+                FileStore.Durability.NONE), 5);
+      default:
+        return new LocalStorageBackend(dir, new StorageLayout(1), FileStore.Durability.NONE);
+    }
+  }
+
+  private static SegmentStorageBackend segment(Path segments, long maxBytes)
+      throws Exception {
+    return new SegmentStorageBackend(segments, maxBytes, FileStore.Durability.NONE, true, 0);
+  }
+
+  private Path stage(String body) throws Exception {
+    Path staged = Files.createTempFile(dir, "stage", ".tmp");
+    Files.writeString(staged, body);
+    return staged;
+  }
+
+  private static String read(StorageBackend backend, String name, long position, long count)
+      throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (StorageBackend.OpenFile file = backend.openRead(name)) {
+      file.writeTo(position, count, out);
+    }
+    return out.toString(StandardCharsets.UTF_8);
+  }
+}
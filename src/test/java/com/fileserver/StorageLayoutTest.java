@@ -0,0 +1,44 @@
+package com.fileserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Unit tests for StorageLayout.
+ */
+class StorageLayoutTest {
+  @TempDir
+  Path storage;
+
+  /**
+   * Test names fan out into one two-hex-digit directory per level.
+   */
+  @Test
+  void testResolveFansOut() {
+    assertEquals(storage.resolve("a.txt"), new StorageLayout(0).resolve(storage, "a.txt"));
+    Path sharded = storage.relativize(new StorageLayout(2).resolve(storage, "a.txt"));
+    assertEquals(3, sharded.getNameCount());
+    assertEquals("a.txt", sharded.getFileName().toString());
+    assertEquals(sharded, storage.relativize(new StorageLayout(2).resolve(storage, "a.txt")),
+        "Placement must be stable");
+    assertThrows(IllegalArgumentException.class, () -> new StorageLayout(4));
+  }
+
+  /**
+   * Test a file still in an older layout is found.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testLocateFallsBackToOtherDepths() throws Exception {
+    Files.writeString(storage.resolve("a.txt"), "flat");
+    StorageLayout sharded = new StorageLayout(2);
+    assertEquals(storage.resolve("a.txt"), sharded.locate(storage, "a.txt"));
+    assertEquals(sharded.resolve(storage, "missing"), sharded.locate(storage, "missing"));
+  }
+}
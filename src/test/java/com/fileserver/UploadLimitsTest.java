@@ -0,0 +1,116 @@
+package com.fileserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.sun.net.httpserver.Headers;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Unit tests for UploadLimits admission and streaming enforcement.
+ */
+class UploadLimitsTest {
+  @TempDir
+  Path storage;
+
+  /**
+   * Test a declared length over the limit is refused before any byte is read.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testDeclaredLengthTooLarge() throws Exception {
+    UploadLimits limits = new UploadLimits(100, 0, storage, 0, 1);
+    UploadLimits.LimitExceededException e = assertThrows(
+        UploadLimits.LimitExceededException.class, () -> limits.admit(length(101)));
+    assertEquals(413, e.status());
+    limits.admit(length(100)).close();
+  }
+
+  /**
+   * Test a body of unknown length is cut off once it crosses the limit.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testStreamedBodyTooLarge() throws Exception {
+    UploadLimits limits = new UploadLimits(100, 0, storage, 0, 1);
+    try (UploadLimits.Reservation reservation = limits.admit(new Headers())) {
+      InputStream in = reservation.wrap(new ByteArrayInputStream(new byte[150]));
+      UploadLimits.LimitExceededException e = assertThrows(
+          UploadLimits.LimitExceededException.class, in::readAllBytes);
+      assertEquals(413, e.status());
+    }
+  }
+
+  /**
+   * Test uploads share the in-flight budget and release it when closed.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testInFlightBudget() throws Exception {
+    UploadLimits limits = new UploadLimits(0, 100, storage, 0, 1);
+    assertEquals(413, assertThrows(UploadLimits.LimitExceededException.class,
+        () -> limits.admit(length(101))).status(), "A body that can never fit is too large");
+
+    UploadLimits.Reservation first = limits.admit(length(60));
+    assertEquals(60, limits.inFlightBytes());
+    assertEquals(503, assertThrows(UploadLimits.LimitExceededException.class,
+        () -> limits.admit(length(60))).status());
+    try (UploadLimits.Reservation chunked = limits.admit(new Headers())) {
+      InputStream in = chunked.wrap(new ByteArrayInputStream(new byte[50]));
+      assertEquals(503, assertThrows(UploadLimits.LimitExceededException.class,
+          in::readAllBytes).status(), "Bodies of unknown length reserve as they arrive");
+    }
+    assertEquals(60, limits.inFlightBytes());
+    first.close();
+    assertEquals(0, limits.inFlightBytes());
+    limits.admit(length(60)).close();
+  }
+
+  /**
+   * Test uploads are refused when they would eat into the free-space watermark.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testDiskWatermark() throws Exception {
+    UploadLimits limits = new UploadLimits(0, 0, storage, Long.MAX_VALUE / 2, 1);
+    assertEquals(507, assertThrows(UploadLimits.LimitExceededException.class,
+        () -> limits.admit(length(1))).status());
+  }
+
+  /**
+   * Test bytes written on an upload's behalf count against the budget and the watermark.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  void testReserveAssembledBytes() throws Exception {
+    UploadLimits budget = new UploadLimits(0, 100, storage, 0, 1);
+    try (UploadLimits.Reservation assembling = budget.reserve(60)) {
+      assertEquals(60, budget.inFlightBytes());
+      assertEquals(503, assertThrows(UploadLimits.LimitExceededException.class,
+          () -> budget.admit(length(60))).status());
+    }
+    assertEquals(0, budget.inFlightBytes());
+
+    long usable = Files.getFileStore(storage).getUsableSpace();
+    UploadLimits disk = new UploadLimits(0, 0, storage, usable / 2, 1);
+    disk.reserve(1).close();
+    assertEquals(507, assertThrows(UploadLimits.LimitExceededException.class,
+        () -> disk.reserve(usable)).status(), "Assembly must not cross the watermark");
+  }
+
+  private static Headers length(long length) {
+    Headers headers = new Headers();
+    headers.set("Content-Length", Long.toString(length));
+    return headers;
+  }
+}